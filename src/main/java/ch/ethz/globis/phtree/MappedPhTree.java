@@ -0,0 +1,740 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Read-only PH-Tree that operates directly on a memory mapped file.
+ * <p>
+ * The file is created with {@link PhTreeFrozen#write(Path, PhValueCodec)} and contains
+ * the arrays of the {@link PhTreeFrozen} layout. Opening a file only reads the header,
+ * queries read keys and nodes directly from the mapped file. Only values are deserialized,
+ * when they are returned. Several processes that open the same file share the OS page cache.
+ * <p>
+ * All numbers are stored in little endian byte order. Files are mapped in segments of 1GB,
+ * so files may be larger than 2GB. The number of entries and nodes is limited to 2^31.
+ * The mapping remains valid after {@link #close()} until it is garbage collected.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> The value type of the tree
+ */
+public class MappedPhTree<T> implements Closeable {
+
+	private static final long MAGIC = 0x50485452454D4150L; //PHTREMAP
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 128;
+	/** 
+	 * Files are mapped in segments of 2^SEGMENT_SHIFT bytes. All arrays are 8 byte aligned,
+	 * so primitive values never cross segment boundaries. Only serialized values do.
+	 */
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer[] segments;
+	private final int segmentShift;
+	private final long segmentMask;
+	private final PhValueCodec<T> codec;
+	private final int dims;
+	private final int size;
+	private final int nNodes;
+	private final int nChildren;
+
+	//Start positions of the arrays
+	private final long offKeys;
+	private final long offNodePostLen;
+	private final long offNodeEntryStart;
+	private final long offNodeEntryEnd;
+	private final long offNodeChildStart;
+	private final long offChildHcPos;
+	private final long offChildRef;
+	private final long offValueOffs;
+
+	private MappedPhTree(FileChannel channel, ByteBuffer[] segments, int segmentShift,
+			PhValueCodec<T> codec) {
+		this.channel = channel;
+		this.segments = segments;
+		this.segmentShift = segmentShift;
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.codec = codec;
+		ByteBuffer bb = segments[0];
+		this.dims = bb.getInt(12);
+		this.size = bb.getInt(16);
+		this.nNodes = bb.getInt(20);
+		this.nChildren = bb.getInt(24);
+		int pos = 32;
+		this.offKeys = bb.getLong(pos);
+		this.offNodePostLen = bb.getLong(pos += 8);
+		this.offNodeEntryStart = bb.getLong(pos += 8);
+		this.offNodeEntryEnd = bb.getLong(pos += 8);
+		this.offNodeChildStart = bb.getLong(pos += 8);
+		this.offChildHcPos = bb.getLong(pos += 8);
+		this.offChildRef = bb.getLong(pos += 8);
+		this.offValueOffs = bb.getLong(pos + 8);
+	}
+
+	/**
+	 * Open a file that was written with {@link PhTreeFrozen#write(Path, PhValueCodec)}.
+	 * @param path file path
+	 * @param codec codec for the values, this must be the codec that was used for writing
+	 * @return the tree
+	 * @param <T> value type of the tree
+	 */
+	public static <T> MappedPhTree<T> open(Path path, PhValueCodec<T> codec) {
+		return open(path, codec, SEGMENT_SHIFT);
+	}
+
+	static <T> MappedPhTree<T> open(Path path, PhValueCodec<T> codec, int segmentShift) {
+		try {
+			FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				long fileSize = fc.size();
+				if (fileSize < HEADER_SIZE) {
+					throw new IOException("Not a PH-Tree file: " + path);
+				}
+				long segmentSize = 1L << segmentShift;
+				ByteBuffer[] segments = new ByteBuffer[(int) ((fileSize + segmentSize - 1) >>> segmentShift)];
+				for (int i = 0; i < segments.length; i++) {
+					long start = (long) i << segmentShift;
+					MappedByteBuffer mbb = fc.map(MapMode.READ_ONLY, start, 
+							Math.min(segmentSize, fileSize - start));
+					mbb.order(ByteOrder.LITTLE_ENDIAN);
+					segments[i] = mbb;
+				}
+				if (segments[0].getLong(0) != MAGIC || segments[0].getInt(8) != VERSION) {
+					throw new IOException("Not a PH-Tree file: " + path);
+				}
+				int dims = segments[0].getInt(12);
+				if (dims < 1 || dims > PhTreeFrozen.MAX_DIM) {
+					throw new IOException("Unsupported number of dimensions: " + dims + " in " + path);
+				}
+				return new MappedPhTree<>(fc, segments, segmentShift, codec);
+			} catch (IOException | RuntimeException e) {
+				fc.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the arrays of a {@link PhTreeFrozen}.
+	 */
+	static <T> void write(Path path, PhValueCodec<? super T> codec, int dims, long[] keys, 
+			Object[] values, byte[] nodePostLen, int[] nodeEntryStart, int[] nodeEntryEnd, 
+			int[] nodeChildStart, long[] childHcPos, int[] childRef) {
+		PhTreeFrozen.checkDim(dims);
+		int size = values.length;
+		int nNodes = nodePostLen.length;
+		int nChildren = childRef.length;
+		long offKeys = HEADER_SIZE;
+		long offNodePostLen = offKeys + 8L * keys.length;
+		long offNodeEntryStart = align8(offNodePostLen + nNodes);
+		long offNodeEntryEnd = align8(offNodeEntryStart + 4L * nNodes);
+		long offNodeChildStart = align8(offNodeEntryEnd + 4L * nNodes);
+		long offChildHcPos = align8(offNodeChildStart + 4L * (nNodes + 1));
+		long offChildRef = offChildHcPos + 8L * nChildren;
+		long offValueOffs = align8(offChildRef + 4L * nChildren);
+		long offValueData = offValueOffs + 8L * size;
+
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			//Values are streamed to the end of the file, this gives us their positions.
+			//value i is located at valueOffs[i], 'null' values have no data.
+			long[] valueOffs = new long[size];
+			fc.position(offValueData);
+			CountingOutputStream cos = new CountingOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(fc), WRITE_BUFFER_SIZE));
+			DataOutputStream out = new DataOutputStream(cos);
+			for (int i = 0; i < size; i++) {
+				@SuppressWarnings("unchecked")
+				T v = (T) values[i];
+				if (v == null) {
+					valueOffs[i] = -1;
+				} else {
+					valueOffs[i] = offValueData + cos.count;
+					codec.write(v, out);
+				}
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(dims);
+			header.putInt(size);
+			header.putInt(nNodes);
+			header.putInt(nChildren);
+			header.putInt(0);
+			header.putLong(offKeys);
+			header.putLong(offNodePostLen);
+			header.putLong(offNodeEntryStart);
+			header.putLong(offNodeEntryEnd);
+			header.putLong(offNodeChildStart);
+			header.putLong(offChildHcPos);
+			header.putLong(offChildRef);
+			header.putLong(offValueOffs);
+			header.clear();
+			writeFully(fc, header, 0);
+
+			ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			writeLongs(fc, buf, offKeys, keys);
+			writeBytes(fc, buf, offNodePostLen, nodePostLen);
+			writeInts(fc, buf, offNodeEntryStart, nodeEntryStart);
+			writeInts(fc, buf, offNodeEntryEnd, nodeEntryEnd);
+			writeInts(fc, buf, offNodeChildStart, nodeChildStart);
+			writeLongs(fc, buf, offChildHcPos, childHcPos);
+			writeInts(fc, buf, offChildRef, childRef);
+			writeLongs(fc, buf, offValueOffs, valueOffs);
+			fc.force(true);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeLongs(FileChannel fc, ByteBuffer buf, long pos, long[] a) 
+			throws IOException {
+		for (int i = 0; i < a.length; ) {
+			int n = Math.min(a.length - i, buf.capacity() / 8);
+			buf.clear();
+			buf.asLongBuffer().put(a, i, n);
+			buf.limit(n * 8);
+			pos = writeFully(fc, buf, pos);
+			i += n;
+		}
+	}
+
+	private static void writeInts(FileChannel fc, ByteBuffer buf, long pos, int[] a) 
+			throws IOException {
+		for (int i = 0; i < a.length; ) {
+			int n = Math.min(a.length - i, buf.capacity() / 4);
+			buf.clear();
+			buf.asIntBuffer().put(a, i, n);
+			buf.limit(n * 4);
+			pos = writeFully(fc, buf, pos);
+			i += n;
+		}
+	}
+
+	private static void writeBytes(FileChannel fc, ByteBuffer buf, long pos, byte[] a) 
+			throws IOException {
+		for (int i = 0; i < a.length; ) {
+			int n = Math.min(a.length - i, buf.capacity());
+			buf.clear();
+			buf.put(a, i, n);
+			buf.flip();
+			pos = writeFully(fc, buf, pos);
+			i += n;
+		}
+	}
+
+	private static long writeFully(FileChannel fc, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += fc.write(buf, pos);
+		}
+		return pos;
+	}
+
+	private static long align8(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	private ByteBuffer segment(long pos) {
+		return segments[(int) (pos >>> segmentShift)];
+	}
+
+	private long getLong(long pos) {
+		return segment(pos).getLong((int) (pos & segmentMask));
+	}
+
+	private int getInt(long pos) {
+		return segment(pos).getInt((int) (pos & segmentMask));
+	}
+
+	private byte get(long pos) {
+		return segment(pos).get((int) (pos & segmentMask));
+	}
+
+	private long key(int entry, int d) {
+		return getLong(offKeys + ((long) entry * dims + d) * 8);
+	}
+
+	private int nodePostLen(int node) {
+		return get(offNodePostLen + node);
+	}
+
+	private int nodeEntryStart(int node) {
+		return getInt(offNodeEntryStart + node * 4L);
+	}
+
+	private int nodeEntryEnd(int node) {
+		return getInt(offNodeEntryEnd + node * 4L);
+	}
+
+	private int nodeChildStart(int node) {
+		return getInt(offNodeChildStart + node * 4L);
+	}
+
+	private long childHcPos(int child) {
+		return getLong(offChildHcPos + child * 8L);
+	}
+
+	private int childRef(int child) {
+		return getInt(offChildRef + child * 4L);
+	}
+
+	private T value(int entry) {
+		long offs = getLong(offValueOffs + entry * 8L);
+		if (offs < 0) {
+			return null;
+		}
+		try {
+			return codec.read(new DataInputStream(new SegmentInputStream(offs)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void readKey(int entry, long[] buf) {
+		for (int d = 0; d < dims; d++) {
+			buf[d] = key(entry, d);
+		}
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return dims;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value or {@code null} if the key does not exist
+	 */
+	public T get(long... key) {
+		int i = find(key);
+		return i < 0 ? null : value(i);
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if the key exists
+	 */
+	public boolean contains(long... key) {
+		return find(key) >= 0;
+	}
+
+	private int find(long[] key) {
+		if (size == 0) {
+			return -1;
+		}
+		int node = 0;
+		while (true) {
+			int postLen = nodePostLen(node);
+			if (!matchesPrefix(nodeEntryStart(node), key, postLen)) {
+				return -1;
+			}
+			long h = PhTreeHelper.posInArray(key, postLen);
+			int c = binarySearch(nodeChildStart(node), nodeChildStart(node + 1), h);
+			if (c < 0) {
+				return -1;
+			}
+			int ref = childRef(c);
+			if (ref >= 0) {
+				return equals(ref, key) ? ref : -1;
+			}
+			node = ~ref;
+		}
+	}
+
+	/**
+	 * Binary search for unsigned hcPos values. hcPos can be negative for 64 dimensions.
+	 */
+	private int binarySearch(int start, int end, long hcPos) {
+		int low = start;
+		int high = end - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = Long.compareUnsigned(childHcPos(mid), hcPos);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matchesPrefix(int entry, long[] key, int postLen) {
+		if (postLen >= 63) {
+			return true;
+		}
+		long mask = (-1L) << (postLen + 1);
+		for (int d = 0; d < dims; d++) {
+			if (((key(entry, d) ^ key[d]) & mask) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equals(int entry, long[] key) {
+		for (int d = 0; d < dims; d++) {
+			if (key(entry, d) != key[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}. The key array is reused for every call.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 */
+	public boolean forEach(long[] min, long[] max, PhQueryVisitor<T> visitor) {
+		if (size == 0) {
+			return true;
+		}
+		return forEach(0, min, max, visitor, new long[dims]);
+	}
+
+	private boolean forEach(int node, long[] min, long[] max, PhQueryVisitor<T> visitor, long[] buf) {
+		int postLen = nodePostLen(node);
+		int start = nodeEntryStart(node);
+		long maskLower = 0;
+		long maskUpper = 0;
+		if (postLen < 63) {
+			long maskVT = (-1L) << (postLen + 1);
+			long maskHcBit = 1L << postLen;
+			boolean isInside = true;
+			for (int d = 0; d < dims; d++) {
+				long prefix = key(start, d) & maskVT;
+				long nodeMin = prefix;
+				long nodeMax = prefix | ~maskVT;
+				if (nodeMax < min[d] || nodeMin > max[d]) {
+					return true;
+				}
+				isInside &= nodeMin >= min[d] && nodeMax <= max[d];
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				long nodeBisection = prefix | maskHcBit;
+				if (min[d] >= nodeBisection) {
+					maskLower |= 1L;
+				}
+				if (max[d] >= nodeBisection) {
+					maskUpper |= 1L;
+				}
+			}
+			if (isInside) {
+				return visitAll(start, nodeEntryEnd(node), visitor, buf);
+			}
+		} else {
+			//special treatment for signed longs
+			for (int d = 0; d < dims; d++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				if (min[d] < 0) {
+					maskUpper |= 1L;
+				}
+				if (max[d] < 0) {
+					maskLower |= 1L;
+				}
+			}
+		}
+
+		for (int c = nodeChildStart(node), cEnd = nodeChildStart(node + 1); c < cEnd; c++) {
+			long h = childHcPos(c);
+			if (((h | maskLower) & maskUpper) != h) {
+				if (Long.compareUnsigned(h, maskUpper) > 0) {
+					break;
+				}
+				continue;
+			}
+			int ref = childRef(c);
+			if (ref < 0) {
+				if (!forEach(~ref, min, max, visitor, buf)) {
+					return false;
+				}
+			} else if (isInRange(ref, min, max) && !visit(ref, visitor, buf)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isInRange(int entry, long[] min, long[] max) {
+		for (int d = 0; d < dims; d++) {
+			long k = key(entry, d);
+			if (k < min[d] || k > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean visitAll(int start, int end, PhQueryVisitor<T> visitor, long[] buf) {
+		for (int i = start; i < end; i++) {
+			if (!visit(i, visitor, buf)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean visit(int entry, PhQueryVisitor<T> visitor, long[] buf) {
+		readKey(entry, buf);
+		return visitor.accept(buf, value(entry));
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return all matching entries.
+	 */
+	public List<PhEntry<T>> queryAll(long[] min, long[] max) {
+		List<PhEntry<T>> list = new ArrayList<>();
+		forEach(min, max, (key, value) -> list.add(new PhEntry<>(key.clone(), value)));
+		return list;
+	}
+
+	/**
+	 * @return all entries, in z-order.
+	 */
+	public List<PhEntry<T>> queryAll() {
+		List<PhEntry<T>> list = new ArrayList<>(size);
+		visitAll(0, size, (key, value) -> list.add(new PhEntry<>(key.clone(), value)), new long[dims]);
+		return list;
+	}
+
+	/**
+	 * Performs a range query. The query returns all entries within the given distance
+	 * of the center point.
+	 * @param dist the maximum distance
+	 * @param optionalDist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param center the center point
+	 * @return all matching entries.
+	 */
+	public List<PhEntryDist<T>> rangeQuery(double dist, PhDistance optionalDist, long... center) {
+		PhDistance distance = optionalDist == null ? PhDistanceL.THIS : optionalDist;
+		List<PhEntryDist<T>> result = new ArrayList<>();
+		if (size > 0) {
+			rangeQuery(0, dist, distance, center, result, new long[dims], new long[dims]);
+		}
+		return result;
+	}
+
+	private void rangeQuery(int node, double maxDist, PhDistance distance, long[] center,
+			List<PhEntryDist<T>> result, long[] prefix, long[] buf) {
+		for (int c = nodeChildStart(node), cEnd = nodeChildStart(node + 1); c < cEnd; c++) {
+			int ref = childRef(c);
+			if (ref >= 0) {
+				readKey(ref, buf);
+				double d = distance.dist(center, buf);
+				if (d <= maxDist) {
+					result.add(new PhEntryDist<>(buf.clone(), value(ref), d));
+				}
+			} else {
+				int sub = ~ref;
+				readKey(nodeEntryStart(sub), prefix);
+				if (distance.distToNode(center, prefix, nodePostLen(sub) + 1, buf) <= maxDist) {
+					rangeQuery(sub, maxDist, distance, center, result, prefix, buf);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may be returned if
+	 * several points have the same distance.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param center the center point
+	 * @return List of neighbours, ordered by distance.
+	 */
+	public List<PhEntryDist<T>> nearestNeighbour(int nMin, PhDistance dist, long... center) {
+		PhDistance distance = dist == null ? PhDistanceL.THIS : dist;
+		List<PhEntryDist<T>> result = new ArrayList<>();
+		if (nMin <= 0 || size == 0) {
+			return result;
+		}
+		long[] prefix = new long[dims];
+		long[] buf = new long[dims];
+		//'ref' as in childRef, ordered by distance
+		PriorityQueue<Candidate> queue = new PriorityQueue<>();
+		queue.add(new Candidate(~0, 0));
+		while (!queue.isEmpty()) {
+			Candidate c = queue.poll();
+			if (c.ref >= 0) {
+				if (result.size() >= nMin && c.dist > result.get(result.size() - 1).dist()) {
+					break;
+				}
+				long[] key = new long[dims];
+				readKey(c.ref, key);
+				result.add(new PhEntryDist<>(key, value(c.ref), c.dist));
+				continue;
+			}
+			int node = ~c.ref;
+			for (int i = nodeChildStart(node), end = nodeChildStart(node + 1); i < end; i++) {
+				int ref = childRef(i);
+				double d;
+				if (ref >= 0) {
+					readKey(ref, buf);
+					d = distance.dist(center, buf);
+				} else {
+					int sub = ~ref;
+					readKey(nodeEntryStart(sub), prefix);
+					d = distance.distToNode(center, prefix, nodePostLen(sub) + 1, buf);
+				}
+				queue.add(new Candidate(ref, d));
+			}
+		}
+		return result;
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final int ref;
+		final double dist;
+
+		Candidate(int ref, double dist) {
+			this.ref = ref;
+			this.dist = dist;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			int c = Double.compare(dist, o.dist);
+			//entries before nodes with the same distance
+			return c != 0 ? c : Boolean.compare(ref < 0, o.ref < 0);
+		}
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MappedPhTree(dims=" + dims + ", size=" + size + ", nodes=" + nNodes + ")";
+	}
+
+	/**
+	 * Reads values directly from the mapped file, values may cross segment boundaries.
+	 */
+	private class SegmentInputStream extends InputStream {
+		private long pos;
+
+		SegmentInputStream(long pos) {
+			this.pos = pos;
+		}
+
+		@Override
+		public int read() {
+			if (pos >>> segmentShift >= segments.length) {
+				return -1;
+			}
+			return get(pos++) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int seg = (int) (pos >>> segmentShift);
+			if (seg >= segments.length) {
+				return -1;
+			}
+			ByteBuffer in = segments[seg].duplicate();
+			in.position((int) (pos & segmentMask));
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, in.remaining());
+			in.get(b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Counts the written bytes, unlike {@link DataOutputStream#size()} this does not
+	 * overflow at 2GB.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
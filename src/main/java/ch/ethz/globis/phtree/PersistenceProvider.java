@@ -6,14 +6,14 @@
  */
 package ch.ethz.globis.phtree;
 
-import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 /**
  * Interface for persistence providers. Persistence providers can be used by
- * PhTrees (such as v12) to serialize the tree or to measure I/O access.
+ * PhTrees (such as v16) to serialize the tree or to measure I/O access.
+ * See {@link ch.ethz.globis.phtree.v16.PersistenceProviderFile}.
  */
 public interface PersistenceProvider {
 	
@@ -28,7 +28,7 @@ public interface PersistenceProvider {
 	public static class PersistenceProviderNone implements PersistenceProvider {
 		private PhTree<?> tree;
 		@Override
-		public Object registerNode(Externalizable o) {
+		public Object registerNode(Object o) {
 			return o;
 		}
 		
@@ -38,7 +38,7 @@ public interface PersistenceProvider {
 		}
 
 		@Override
-		public void updateNode(Externalizable o) {
+		public void updateNode(Object o) {
 			//
 		}
 
@@ -84,6 +84,11 @@ public interface PersistenceProvider {
 		}
 	}
 	
+	/**
+	 * Load a node.
+	 * @param o a node identifier
+	 * @return the node
+	 */
 	public Object loadNode(Object o);
 	
 	/**
@@ -91,8 +96,13 @@ public interface PersistenceProvider {
 	 * @param o the new node
 	 * @return A node identifier
 	 */
-	public Object registerNode(Externalizable o);
-	public void updateNode(Externalizable o);
+	public Object registerNode(Object o);
+
+	/**
+	 * Notify the provider that a node has been modified.
+	 * @param o the modified node
+	 */
+	public void updateNode(Object o);
 	
 	public String getDescription();
 	public int statsGetPageReads();
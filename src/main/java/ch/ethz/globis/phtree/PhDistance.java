@@ -34,6 +34,33 @@ public interface PhDistance {
 	void toMBB(double distance, long[] center, long[] outMin, long[] outMax);
 
 
+	/**
+	 * Calculates a lower bound for the distance between {@code center} and any key
+	 * in a node. This is used by kNN queries to order and prune nodes.
+	 * The default implementation moves the center to the closest point inside the node and
+	 * returns its distance. This works for all distance functions that are monotonic in every
+	 * dimension, such as L1 or L2. Other distance functions must override this method.
+	 *
+	 * @param center the query center
+	 * @param prefix the prefix of the node
+	 * @param bitsToIgnore number of trailing bits that are not part of the prefix
+	 * @param buf a buffer with the same length as {@code center}
+	 * @return minimum distance between center and any key in the node
+	 */
+	default double distToNode(long[] center, long[] prefix, int bitsToIgnore, long[] buf) {
+		long maskMin = bitsToIgnore >= 64 ? 0 : (-1L) << bitsToIgnore;
+		long maskMax = ~maskMin;
+		for (int i = 0; i < buf.length; i++) {
+			//if v is outside the node, return distance to closest edge,
+			//otherwise return v itself (assume possible distance=0)
+			long min = prefix[i] & maskMin;
+			long max = prefix[i] | maskMax;
+			buf[i] = min > center[i] ? min : (max < center[i] ? max : center[i]);
+		}
+		return dist(center, buf);
+	}
+
+
 	/**
 	 * Calculate array of distances. This is used by the new experimental k-nearest neighbor search (HSZ) to minimize 
 	 * search effort by filtering out quadrants that cannot possibly contain results because they are two far away. 
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import ch.ethz.globis.phtree.util.BitTools;
+
+
+/**
+ * Calculate the euclidean distance for {@code float} values that are encoded with
+ * {@link BitTools#toSortableUInt32(float)}, see {@link PhTreeF32}.
+ * 
+ * @see PhDistance
+ * 
+ * @author ztilmann
+ */
+public class PhDistanceF32 implements PhDistance {
+
+	public static final PhDistanceF32 THIS = new PhDistanceF32();
+
+	/**
+	 * Calculate the euclidean distance for encoded {@code float} values.
+	 * 
+	 * @see PhDistance#dist(long[], long[])
+	 */
+	@Override
+	public double dist(long[] v1, long[] v2) {
+		double d = 0;
+		for (int i = 0; i < v1.length; i++) {
+			double dl = (double) BitTools.fromSortableUInt32(v1[i]) - BitTools.fromSortableUInt32(v2[i]);
+			d += dl*dl;
+		}
+		return Math.sqrt(d);
+	}
+
+	@Override
+	public void toMBB(double distance, long[] center, long[] outMin, long[] outMax) {
+		for (int i = 0; i < center.length; i++) {
+			double c = BitTools.fromSortableUInt32(center[i]);
+			//Rounding to float must not shrink the box
+			outMin[i] = BitTools.toSortableUInt32(Math.nextDown((float) (c - distance)));
+			outMax[i] = BitTools.toSortableUInt32(Math.nextUp((float) (c + distance)));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
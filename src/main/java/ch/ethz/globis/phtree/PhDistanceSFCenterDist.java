@@ -46,25 +46,47 @@ public class PhDistanceSFCenterDist implements PhDistanceSF {
 	@Override
 	public double dist(long[] v1, long[] v2) {
 		int dimsHalf = v1.length>>1;
-		double[] d1lo = new double[dimsHalf];
-		double[] d1up = new double[dimsHalf];
-		double[] d2lo = new double[dimsHalf];
-		double[] d2up = new double[dimsHalf];
 		//center1 = (d1lo + d1up)/2   
 		//center2 = (d2lo + d2up)/2
 		//dist = center2-center1 = (d1lo + d1up)/2 - (d2lo + d2up)/2
 		//     = (d1lo + d1up - d2lo - d2up)/2
-		pre.post(v1, d1lo, d1up);
-		pre.post(v2, d2lo, d2up);
 		double d = 0;
 		for (int i = 0; i < dimsHalf; i++) {
-			double dOnAxis = d1lo[i] - d2lo[i] + d1up[i] - d2up[i];
+			double dOnAxis = pre.post(v1[i]) - pre.post(v2[i]) 
+					+ pre.post(v1[i+dimsHalf]) - pre.post(v2[i+dimsHalf]);
 			dOnAxis /= 2;
 			d += dOnAxis*dOnAxis;
 		}
 		return Math.sqrt(d);
 	}
 
+	/**
+	 * Calculates the minimum distance between the center and the center point of any
+	 * rectangle in the node. The center points of the rectangles in the node lie between
+	 * the center of the node's minimum corners and the center of the node's maximum corners.
+	 */
+	@Override
+	public double distToNode(long[] center, long[] prefix, int bitsToIgnore, long[] buf) {
+		long maskMin = bitsToIgnore >= 64 ? 0 : (-1L) << bitsToIgnore;
+		long maskMax = ~maskMin;
+		int dimsHalf = center.length>>1;
+		double d = 0;
+		for (int i = 0; i < dimsHalf; i++) {
+			double c = (pre.post(center[i]) + pre.post(center[i+dimsHalf]))/2;
+			double cMin = (pre.post(prefix[i] & maskMin) + pre.post(prefix[i+dimsHalf] & maskMin))/2;
+			double cMax = (pre.post(prefix[i] | maskMax) + pre.post(prefix[i+dimsHalf] | maskMax))/2;
+			//Comparisons with NaN (e.g. from the node bounds) fail and result in '0'
+			double dOnAxis = 0;
+			if (c < cMin) {
+				dOnAxis = cMin - c;
+			} else if (c > cMax) {
+				dOnAxis = c - cMax;
+			}
+			d += dOnAxis*dOnAxis;
+		}
+		return Math.sqrt(d);
+	}
+
 	/**
 	 * Calculates a MBB (minimal bounding box) for use with a query.
 	 * This is not strictly a box, but generates a query that returns all rectangles whose
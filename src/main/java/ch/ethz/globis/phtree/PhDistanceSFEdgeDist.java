@@ -45,25 +45,47 @@ public class PhDistanceSFEdgeDist implements PhDistanceSF {
 	 */
 	@Override
 	public double dist(long[] v1, long[] v2) {
+		int dimsHalf = v1.length>>1;
 		double d = 0;
-		double[] d1lo = new double[v1.length>>1];
-		double[] d1up = new double[v1.length>>1];
-		double[] d2lo = new double[v2.length>>1];
-		double[] d2up = new double[v2.length>>1];
-		pre.post(v1, d1lo, d1up);
-		pre.post(v2, d2lo, d2up);
-		for (int i = 0; i < d1lo.length; i++) {
-			double dOnAxis = 0;
-			if (d1up[i] < d2lo[i]) {
-				dOnAxis = d2lo[i] - d1up[i];
-			} else if (d1lo[i] > d2up[i]) {
-				dOnAxis = d1lo[i] - d2up[i]; 
-			}
+		for (int i = 0; i < dimsHalf; i++) {
+			double dOnAxis = distOnAxis(
+					pre.post(v1[i]), pre.post(v1[i+dimsHalf]), 
+					pre.post(v2[i]), pre.post(v2[i+dimsHalf]));
+			d += dOnAxis*dOnAxis;
+		}
+		return Math.sqrt(d);
+	}
+
+	/**
+	 * Calculates the minimum edge distance between the center and any rectangle in the node.
+	 * The lower corners of the rectangles in the node are at least at the node's minimum
+	 * and the upper corners are at most at the node's maximum.
+	 */
+	@Override
+	public double distToNode(long[] center, long[] prefix, int bitsToIgnore, long[] buf) {
+		long maskMin = bitsToIgnore >= 64 ? 0 : (-1L) << bitsToIgnore;
+		int dimsHalf = center.length>>1;
+		double d = 0;
+		for (int i = 0; i < dimsHalf; i++) {
+			double lowerMin = pre.post(prefix[i] & maskMin);
+			double upperMax = pre.post(prefix[i+dimsHalf] | ~maskMin);
+			double dOnAxis = distOnAxis(
+					lowerMin, upperMax, pre.post(center[i]), pre.post(center[i+dimsHalf]));
 			d += dOnAxis*dOnAxis;
 		}
 		return Math.sqrt(d);
 	}
 
+	private static double distOnAxis(double lo1, double up1, double lo2, double up2) {
+		//Comparisons with NaN (e.g. from the node bounds) fail and result in '0'
+		if (up1 < lo2) {
+			return lo2 - up1;
+		} else if (lo1 > up2) {
+			return lo1 - up2; 
+		}
+		return 0;
+	}
+
 	/**
 	 * Calculates a MBB (minimal bounding box) for use with a query.
 	 * This is not strictly a box, but generates a query that returns all rectangles whose
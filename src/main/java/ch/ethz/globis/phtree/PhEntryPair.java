@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.Comparator;
+
+/**
+ * A pair of entries and their distance, used for returning results from closest pair queries.
+ *
+ * @param <T> The value type
+ */
+public class PhEntryPair<T> {
+	public static final Comparator<PhEntryPair<?>> COMP =
+			(PhEntryPair<?> o1, PhEntryPair<?> o2) -> Double.compare(o1.dist, o2.dist);
+
+	private final PhEntry<T> first;
+	private final PhEntry<T> second;
+	private final double dist;
+
+	public PhEntryPair(PhEntry<T> first, PhEntry<T> second, double dist) {
+		this.first = first;
+		this.second = second;
+		this.dist = dist;
+	}
+
+	public PhEntry<T> first() {
+		return first;
+	}
+
+	public PhEntry<T> second() {
+		return second;
+	}
+
+	public double dist() {
+		return dist;
+	}
+
+	@Override
+	public String toString() {
+		return first + " / " + second + " dist=" + dist;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Resumable cursor for paginated window queries, see
+ * {@link PhTree#query(PhQueryCursor, int, PhQueryVisitor)}.
+ *
+ * A cursor consists of the query window and the last key that was returned.
+ * Queries return entries in hypercube order (z-order), so a query can be resumed
+ * by descending only into nodes that may contain keys that are 'larger' than the last key.
+ * A cursor does not reference the tree, it can be serialized and used later, even if the
+ * tree has been modified in the meantime.
+ *
+ * @author Tilmann Zaeschke
+ *
+ */
+public final class PhQueryCursor implements Serializable {
+
+	/**  */
+	private static final long serialVersionUID = 1L;
+
+	private final long[] min;
+	private final long[] max;
+	private final long[] lastKey;
+
+	/**
+	 * Create a cursor for the first page of a window query.
+	 * @param min the lower left corner of the window
+	 * @param max the upper right corner of the window
+	 */
+	public PhQueryCursor(long[] min, long[] max) {
+		this(min.clone(), max.clone(), null);
+	}
+
+	private PhQueryCursor(long[] min, long[] max, long[] lastKey) {
+		if (min.length != max.length) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +
+					" / " + max.length);
+		}
+		this.min = min;
+		this.max = max;
+		this.lastKey = lastKey;
+	}
+
+	/**
+	 * @param lastKey the last key that has been returned
+	 * @return A cursor that resumes the query after the given key.
+	 */
+	public PhQueryCursor after(long[] lastKey) {
+		return new PhQueryCursor(min, max, lastKey.clone());
+	}
+
+	public long[] getMin() {
+		return min;
+	}
+
+	public long[] getMax() {
+		return max;
+	}
+
+	/**
+	 * @return The last key that has been returned or {@code null} if this cursor
+	 * represents the first page.
+	 */
+	public long[] getLastKey() {
+		return lastKey;
+	}
+
+	/**
+	 * @return A filter that accepts only keys that follow the last key, or {@code null} if this
+	 * cursor represents the first page.
+	 */
+	PhFilter createFilter() {
+		return lastKey == null ? null : new PhFilterAfter(lastKey);
+	}
+
+	@Override
+	public String toString() {
+		return "min=" + Arrays.toString(min) + " max=" + Arrays.toString(max) +
+				" last=" + Arrays.toString(lastKey);
+	}
+
+	/**
+	 * Filter that accepts all keys that follow a given key in hypercube order.
+	 * It rejects all sub-nodes that contain only preceding keys. Tree implementations
+	 * that recognize this filter can instead start their traversal at the last key, see
+	 * {@link #getLastKey()}.
+	 */
+	public static final class PhFilterAfter implements PhFilter {
+
+		/**  */
+		private static final long serialVersionUID = 1L;
+
+		private final long[] lastKey;
+
+		PhFilterAfter(long[] lastKey) {
+			this.lastKey = lastKey;
+		}
+
+		/**
+		 * @return The last key of the previous page. Only keys that follow this key are valid.
+		 */
+		public long[] getLastKey() {
+			return lastKey;
+		}
+
+		@Override
+		public boolean isValid(long[] key) {
+			return PhTreeHelper.compareZOrder(key, lastKey, -1L) > 0;
+		}
+
+		@Override
+		public boolean isValid(int bitsToIgnore, long[] prefix) {
+			if (bitsToIgnore >= 64) {
+				return true;
+			}
+			//If the prefix is equal, the node may contain larger keys.
+			return PhTreeHelper.compareZOrder(prefix, lastKey, (-1L) << bitsToIgnore) >= 0;
+		}
+	}
+}
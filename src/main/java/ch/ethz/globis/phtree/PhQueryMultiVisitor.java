@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+/**
+ * Callback interface for queries with multiple windows, see
+ * {@link PhTree#queryMulti(long[][], long[][], PhQueryMultiVisitor)}.
+ *
+ * The key passed to {@link #accept(int, long[], Object)} is reused by the tree. It is only valid
+ * during the call and must be copied if it is needed afterwards.
+ *
+ * @param <T> value type of the tree
+ */
+@FunctionalInterface
+public interface PhQueryMultiVisitor<T> {
+
+	/**
+	 * This is called once for every window that contains the entry.
+	 * @param window the index of the matching window
+	 * @param key the key of the entry, only valid during this call
+	 * @param value the value of the entry
+	 * @return {@code true} to continue the query, {@code false} to abort it.
+	 */
+	boolean accept(int window, long[] key, T value);
+
+}
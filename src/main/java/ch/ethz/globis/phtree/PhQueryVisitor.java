@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+/**
+ * Callback interface for visitor based queries, see
+ * {@link PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)}.
+ *
+ * The key passed to {@link #accept(long[], Object)} is reused by the tree. It is only valid
+ * during the call and must be copied if it is needed afterwards.
+ *
+ * @param <T> value type of the tree
+ */
+@FunctionalInterface
+public interface PhQueryVisitor<T> {
+
+	/**
+	 *
+	 * @param key the key of the entry, only valid during this call
+	 * @param value the value of the entry
+	 * @return {@code true} to continue the query, {@code false} to abort it.
+	 */
+	boolean accept(long[] key, T value);
+
+}
@@ -19,12 +19,17 @@
  */
 package ch.ethz.globis.phtree;
 
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import ch.ethz.globis.phtree.util.PhIteratorBase;
 import ch.ethz.globis.phtree.util.PhMapper;
+import ch.ethz.globis.phtree.util.PhTreeBounds;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.v13.PhTree13;
 import ch.ethz.globis.phtree.v16.PhTree16;
@@ -126,7 +131,157 @@ public interface PhTree<T> {
 	}
 
 	/**
-	 * 
+	 * Performs a rectangular window query and reports every match to a visitor.
+	 * Unlike {@link #query(long[], long[], PhFilter)}, this does not maintain an iterator
+	 * state and does not need to look ahead for the next element.
+	 * V13 and V16 traverse the tree directly and do not create any objects per result entry.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param filter A filter function, can be {@code null}.
+	 * @param visitor Called for every matching entry. The traversal is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the traversal was aborted by the visitor, otherwise {@code true}.
+	 */
+	default boolean forEach(long[] min, long[] max, PhFilter filter, PhQueryVisitor<T> visitor) {
+		PhQuery<T> q = filter == null ? query(min, max) : query(min, max, filter);
+		while (q.hasNext()) {
+			PhEntry<T> e = q.nextEntryReuse();
+			if (!visitor.accept(e.getKey(), PhTreeHelper.unmaskNull(e.getValue()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Performs several rectangular window queries at once. Every entry is reported once for
+	 * each window that contains it.
+	 * V13 and V16 traverse the tree only once and descend into a node only with the
+	 * windows that intersect with the node.
+	 * @param mins Minimum values, one array per window
+	 * @param maxs Maximum values, one array per window
+	 * @param visitor Called for every matching entry and window. The traversal is aborted as
+	 * soon as the visitor returns {@code false}.
+	 * @return {@code false} if the traversal was aborted by the visitor, otherwise {@code true}.
+	 */
+	default boolean queryMulti(long[][] mins, long[][] maxs, PhQueryMultiVisitor<T> visitor) {
+		if (mins.length != maxs.length) {
+			throw new IllegalArgumentException("Invalid number of windows: " + mins.length +
+					" / " + maxs.length);
+		}
+		for (int w = 0; w < mins.length; w++) {
+			final int window = w;
+			if (!forEach(mins[w], maxs[w], null, (key, value) -> visitor.accept(window, key, value))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Performs one page of a paginated window query. The query continues after the last
+	 * key of the cursor and skips all nodes that contain only preceding keys, so the cost
+	 * does not depend on the number of previously returned entries.
+	 * Results are returned in hypercube order (z-order).
+	 * @param cursor The query cursor, see {@link PhQueryCursor#PhQueryCursor(long[], long[])}
+	 * @param maxResults maximum number of results for this page
+	 * @param visitor Called for every matching entry. The page ends early if the
+	 * visitor returns {@code false}.
+	 * @return A cursor for the next page or {@code null} if there are no more results.
+	 */
+	default PhQueryCursor query(PhQueryCursor cursor, int maxResults, PhQueryVisitor<T> visitor) {
+		long[] lastKey = new long[getDim()];
+		int[] n = {0};
+		boolean complete = forEach(cursor.getMin(), cursor.getMax(), cursor.createFilter(),
+				(key, value) -> {
+					if (n[0] >= maxResults) {
+						return false;
+					}
+					n[0]++;
+					System.arraycopy(key, 0, lastKey, 0, lastKey.length);
+					return visitor.accept(key, value);
+				});
+		if (complete) {
+			return null;
+		}
+		return n[0] == 0 ? cursor : cursor.after(lastKey);
+	}
+
+	/**
+	 * Performs a rectangular window query and writes the results column by column into
+	 * buffers: coordinate 'd' of every result is written to {@code keysOut[d]} and the value
+	 * is appended to {@code valuesOut}, so the i-th value belongs to the i-th key.
+	 * The buffers are written starting at their current position, they can be direct buffers.
+	 * The query stops when the buffers are full, see
+	 * {@link #queryToColumns(PhQueryCursor, LongBuffer[], List)} for paginated queries.
+	 * V13 and V16 do not create any objects per result entry, except for growing
+	 * {@code valuesOut}.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param keysOut one buffer per dimension
+	 * @param valuesOut output for the values, can be {@code null}.
+	 * @return the number of results that were written
+	 */
+	default int queryToColumns(long[] min, long[] max, LongBuffer[] keysOut, 
+			List<? super T> valuesOut) {
+		int capacity = PhTreeHelper.remainingInColumns(keysOut, getDim());
+		int[] n = {0};
+		forEach(min, max, null, (key, value) -> {
+			if (n[0] >= capacity) {
+				return false;
+			}
+			for (int d = 0; d < keysOut.length; d++) {
+				keysOut[d].put(key[d]);
+			}
+			if (valuesOut != null) {
+				valuesOut.add(value);
+			}
+			n[0]++;
+			return true;
+		});
+		return n[0];
+	}
+
+	/**
+	 * Performs one page of a paginated window query and writes the results column by column
+	 * into buffers, see {@link #queryToColumns(long[], long[], LongBuffer[], List)}.
+	 * The page ends when the buffers are full.
+	 * @param cursor The query cursor, see {@link PhQueryCursor#PhQueryCursor(long[], long[])}
+	 * @param keysOut one buffer per dimension
+	 * @param valuesOut output for the values, can be {@code null}.
+	 * @return A cursor for the next page or {@code null} if there are no more results.
+	 */
+	default PhQueryCursor queryToColumns(PhQueryCursor cursor, LongBuffer[] keysOut, 
+			List<? super T> valuesOut) {
+		int capacity = PhTreeHelper.remainingInColumns(keysOut, getDim());
+		return query(cursor, capacity, (key, value) -> {
+			for (int d = 0; d < keysOut.length; d++) {
+				keysOut[d].put(key[d]);
+			}
+			if (valuesOut != null) {
+				valuesOut.add(value);
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Calculates the bounding box of all keys in the tree.
+	 * Implementations may cache the bounding box and update it incrementally.
+	 * @param outMin output: the minimum value of every dimension
+	 * @param outMax output: the maximum value of every dimension
+	 * @return {@code false} if the tree is empty, otherwise {@code true}
+	 */
+	default boolean getBounds(long[] outMin, long[] outMax) {
+		if (size() == 0) {
+			return false;
+		}
+		PhTreeBounds.compute(this, outMin, outMax);
+		return true;
+	}
+
+	/**
+	 *
 	 * @return the number of dimensions of the tree
 	 */
 	int getDim();
@@ -158,6 +313,61 @@ public interface PhTree<T> {
 	PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist, PhFilter dims,
 			long... key);
 
+	/**
+	 * Locate the k closest pairs of entries in the tree.
+	 * V13 and V16 perform a best-first traversal over pairs of nodes, ordered by
+	 * the minimum distance between the nodes. Other versions perform a kNN search for every
+	 * entry.
+	 * @param k number of pairs to be returned. If several pairs have the same distance, it is
+	 * undefined which of them are returned.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @return The k closest pairs of distinct entries, ordered by distance.
+	 */
+	default List<PhEntryPair<T>> closestPairs(int k, PhDistance dist) {
+		PhDistance distance = dist == null ? PhDistanceL.THIS : dist;
+		//Every pair in the result is among the k nearest neighbours of both of its entries.
+		PriorityQueue<PhEntryPair<T>> best = new PriorityQueue<>(Collections.reverseOrder(PhEntryPair.COMP));
+		if (k > 0 && size() >= 2) {
+			PhExtent<T> iter = queryExtent();
+			while (iter.hasNext()) {
+				PhEntry<T> e = iter.nextEntry();
+				PhKnnQuery<T> knn = nearestNeighbour(k + 1, distance, null, e.getKey());
+				while (knn.hasNext()) {
+					PhEntryDist<T> n = knn.nextEntry();
+					//report every pair only once
+					if (PhTreeHelper.compareZOrder(e.getKey(), n.getKey(), -1L) >= 0) {
+						continue;
+					}
+					if (best.size() < k || n.dist() < best.peek().dist()) {
+						best.add(new PhEntryPair<>(
+								new PhEntry<>(e.getKey(), PhTreeHelper.unmaskNull(e.getValue())),
+								new PhEntry<>(n.getKey(), PhTreeHelper.unmaskNull(n.getValue())),
+								n.dist()));
+						if (best.size() > k) {
+							best.poll();
+						}
+					}
+				}
+			}
+		}
+		List<PhEntryPair<T>> result = new ArrayList<>(best);
+		result.sort(PhEntryPair.COMP);
+		return result;
+	}
+
+	/**
+	 * Create an immutable, densely packed copy of the tree for query-only use.
+	 * The frozen tree stores all keys, values and nodes in a few large arrays and
+	 * is considerably smaller than the mutable tree.
+	 * @return A frozen copy of this tree.
+	 * @throws IllegalArgumentException if the tree has more than {@link PhTreeFrozen#MAX_DIM}
+	 * dimensions
+	 * @see PhTreeFrozen
+	 */
+	default PhTreeFrozen<T> freeze() {
+		return PhTreeFrozen.create(this);
+	}
+
 	/**
 	 * Find all entries within a given distance from a center point.
 	 * @param dist Maximum distance
@@ -232,6 +442,10 @@ public interface PhTree<T> {
 	 * @param <T> the type of the values
 	 */
 	static <T> PhTree<T> create(PhTreeConfig cfg) {
+		if (cfg.getPersistenceProvider() != PersistenceProvider.NONE) {
+			//Only V16 supports persistence
+			return new PhTree16<>(cfg);
+		}
 		if (cfg.getDim() > 60) {
 			return new PhTree16HD<>(cfg);
 		} else if (cfg.getDim() >= 8) {
@@ -322,6 +536,18 @@ public interface PhTree<T> {
 	 */
 	void clear();
 
+	/**
+	 * Set a listener that is notified of every modification of the tree, including the
+	 * modifications performed by the Map-like methods such as {@link #compute(long[], BiFunction)}.
+	 * Trees without a listener only pay for a single {@code null} check per modification.
+	 * @param listener the listener or {@code null} to remove the current listener
+	 * @see PhTreeListener
+	 * @see ch.ethz.globis.phtree.util.PhTreeListenerAsync
+	 */
+	default void setListener(PhTreeListener<T> listener) {
+		throw new UnsupportedOperationException();
+	}
+
 
 	// Overrides of JDK8 Map extension methods
 
@@ -21,6 +21,7 @@ public class PhTreeConfig {
 	private int dimActual;
 	private boolean[] unique; 
 	private int concurrencyType = CONCURRENCY_NONE;
+	private int depth = 64;
 	private PersistenceProvider persProvider = PersistenceProvider.NONE;
 	
 	public PhTreeConfig(int dim) {
@@ -55,7 +56,21 @@ public class PhTreeConfig {
 	 * @return Depth in bits.
 	 */
 	public int getDepth() {
-		return 64;
+		return depth;
+	}
+
+	/**
+	 * Set the number of bits per key coordinate. Keys are then treated as unsigned values
+	 * in the range {@code [0, 2^depth)}, the tree rejects keys outside this range.
+	 * The default is 64, which allows all long values. This is supported by V13, V16 and
+	 * V16HD.
+	 * @param depth Depth in bits, between 1 and 64.
+	 */
+	public void setDepth(int depth) {
+		if (depth < 1 || depth > 64) {
+			throw new IllegalArgumentException("depth=" + depth);
+		}
+		this.depth = depth;
 	}
 
 	public int[] getDimsToSplit() {
@@ -19,6 +19,7 @@
  */
 package ch.ethz.globis.phtree;
 
+import java.nio.DoubleBuffer;
 import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -99,6 +100,24 @@ public class PhTreeF<T> {
 		return pht.size();
 	}
 
+	/**
+	 * Calculates the bounding box of all keys in the tree.
+	 * @param outMin output: the minimum value of every dimension
+	 * @param outMax output: the maximum value of every dimension
+	 * @return {@code false} if the tree is empty, otherwise {@code true}
+	 * @see PhTree#getBounds(long[], long[])
+	 */
+	public boolean getBounds(double[] outMin, double[] outMax) {
+		long[] lMin = new long[outMin.length];
+		long[] lMax = new long[outMax.length];
+		if (!pht.getBounds(lMin, lMax)) {
+			return false;
+		}
+		pre.post(lMin, outMin);
+		pre.post(lMax, outMax);
+		return true;
+	}
+
 	/**
 	 * Insert an entry associated with a k dimensional key.
 	 * @param key the key to store the value to store
@@ -532,6 +551,42 @@ public class PhTreeF<T> {
 		return pht.queryAll(lLow, lUpp, maxResults, filter, mapper);
 	}
 
+	/**
+	 * Performs a rectangular window query and writes the results column by column into
+	 * buffers: coordinate 'd' of every result is written to {@code keysOut[d]} and the value
+	 * is appended to {@code valuesOut}, so the i-th value belongs to the i-th key.
+	 * The query stops when the buffers are full.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param keysOut one buffer per dimension
+	 * @param valuesOut output for the values, can be {@code null}.
+	 * @return the number of results that were written
+	 * @see PhTree#queryToColumns(long[], long[], java.nio.LongBuffer[], List)
+	 */
+	public int queryToColumns(double[] min, double[] max, DoubleBuffer[] keysOut, 
+			List<? super T> valuesOut) {
+		int capacity = PhTreeHelper.remainingInColumns(keysOut, pht.getDim());
+		long[] lMin = new long[min.length];
+		long[] lMax = new long[max.length];
+		pre.pre(min, lMin);
+		pre.pre(max, lMax);
+		int[] n = {0};
+		pht.forEach(lMin, lMax, null, (key, value) -> {
+			if (n[0] >= capacity) {
+				return false;
+			}
+			for (int d = 0; d < keysOut.length; d++) {
+				keysOut[d].put(pre.post(key[d]));
+			}
+			if (valuesOut != null) {
+				valuesOut.add(value);
+			}
+			n[0]++;
+			return true;
+		});
+		return n[0];
+	}
+
 	/**
 	 * Clear the tree.
 	 */
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.util.BitTools;
+import ch.ethz.globis.phtree.util.PhIteratorBase;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * k-dimensional index (quad-/oct-/n-tree) for {@code float} keys.
+ *
+ * Unlike {@link PhTreeF}, which encodes every coordinate as 64 bit {@code long}, this tree
+ * encodes every coordinate as unsigned 32 bit value (see {@link BitTools#toSortableUInt32(float)})
+ * and stores them in a tree with a bit depth of 32 (see {@link PhTreeConfig#setDepth(int)}).
+ * This reduces the memory required for keys and the depth of the tree. For 3 dimensions,
+ * the calculated size of the tree is about 25% smaller than that of a {@link PhTreeF}.
+ * All numbers of dimensions are supported, trees with more than 60 dimensions use the
+ * high-dimensional implementation.
+ *
+ * The default distance function for nearest neighbour queries is {@link PhDistanceF32}.
+ *
+ * @author ztilmann (Tilmann Zaeschke)
+ *
+ * @param <T> The value type of the tree
+ */
+public class PhTreeF32<T> {
+
+	static final int DEPTH_32 = 32;
+
+	private final PhTree<T> pht;
+
+	protected PhTreeF32(int dim) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setDepth(DEPTH_32);
+		this.pht = PhTree.create(cfg);
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeF32
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeF32<T> create(int dim) {
+		return new PhTreeF32<>(dim);
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public int size() {
+		return pht.size();
+	}
+
+	/**
+	 * Insert an entry associated with a k dimensional key.
+	 * @param key the key to store the value to store
+	 * @param value the value
+	 * @return the previously associated value or {@code null} if the key was found
+	 */
+	public T put(float[] key, T value) {
+		return pht.put(pre(key, new long[key.length]), value);
+	}
+
+	/**
+	 * @param key key
+	 * @return true if the key exists in the tree
+	 */
+	public boolean contains(float ... key) {
+		return pht.contains(pre(key, new long[key.length]));
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	public T get(float ... key) {
+		return pht.get(pre(key, new long[key.length]));
+	}
+
+	/**
+	 * Remove the entry associated with a k dimensional key.
+	 * @param key the key to remove
+	 * @return the associated value or {@code null} if the key was found
+	 */
+	public T remove(float... key) {
+		return pht.remove(pre(key, new long[key.length]));
+	}
+
+	/**
+	 * Update the key of an entry. Update may fail if the old key does not exist, or if the new
+	 * key already exists.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value (can be {@code null}) associated with the updated key if the key could be 
+	 * updated, otherwise {@code null}.
+	 */
+	public T update(float[] oldKey, float[] newKey) {
+		return pht.update(pre(oldKey, new long[oldKey.length]), pre(newKey, new long[newKey.length]));
+	}
+
+	/**
+	 * Performs a rectangular window query. The parameters are the min and max keys which 
+	 * contain the minimum respectively the maximum keys in every dimension.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return Result iterator.
+	 */
+	public PhQueryF32<T> query(float[] min, float[] max) {
+		long[] lMin = pre(min, new long[min.length]);
+		long[] lMax = pre(max, new long[max.length]);
+		return new PhQueryF32<>(pht.query(lMin, lMax), pht.getDim());
+	}
+
+	/**
+	 * Same as {@link #query(float[], float[])}, except that it returns a list
+	 * instead of an iterator. This may be faster for small result sets. 
+	 * @param min min values
+	 * @param max max values
+	 * @return List of query results
+	 */
+	public List<PhEntryF32<T>> queryAll(float[] min, float[] max) {
+		List<PhEntryF32<T>> list = new ArrayList<>();
+		forEach(min, max, (key, value) -> list.add(new PhEntryF32<>(key.clone(), value)));
+		return list;
+	}
+
+	/**
+	 * Performs a rectangular window query without creating result objects.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEach(float[] min, float[] max, FloatVisitor<T> visitor) {
+		long[] lMin = pre(min, new long[min.length]);
+		long[] lMax = pre(max, new long[max.length]);
+		float[] buffer = new float[pht.getDim()];
+		return pht.forEach(lMin, lMax, null, (key, value) -> visitor.accept(post(key, buffer), value));
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
+	 * several points have the same distance.
+	 * @param key the center point
+	 * @return KNN query iterator.
+	 */
+	public PhKnnQueryF32<T> nearestNeighbour(int nMin, float... key) {
+		return nearestNeighbour(nMin, PhDistanceF32.THIS, key);
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
+	 * several points have the same distance.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceF32}.
+	 * @param key the center point
+	 * @return KNN query iterator.
+	 */
+	public PhKnnQueryF32<T> nearestNeighbour(int nMin, PhDistance dist, float... key) {
+		long[] lKey = pre(key, new long[key.length]);
+		PhKnnQuery<T> iter = pht.nearestNeighbour(nMin, dist == null ? PhDistanceF32.THIS : dist,
+				null, lKey);
+		return new PhKnnQueryF32<>(iter, pht.getDim());
+	}
+
+	/**
+	 * Clear the tree.
+	 */
+	public void clear() {
+		pht.clear();
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return pht.getDim();
+	}
+
+	/**
+	 * 
+	 * @return the internal PhTree that backs this PhTreeF32.
+	 */
+	public PhTree<T> getInternalTree() {
+		return pht;
+	}
+
+	public PhTreeStats getStats() {
+		return pht.getStats();
+	}
+
+	@Override
+	public String toString() {
+		return pht.toString(); 
+	}
+
+	private static long[] pre(float[] key, long[] out) {
+		for (int i = 0; i < key.length; i++) {
+			out[i] = BitTools.toSortableUInt32(key[i]);
+		}
+		return out;
+	}
+
+	private static float[] post(long[] key, float[] out) {
+		for (int i = 0; i < key.length; i++) {
+			out[i] = BitTools.fromSortableUInt32(key[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * Callback interface for visitor based queries with {@code float} keys.
+	 *
+	 * @param <T> value type
+	 */
+	@FunctionalInterface
+	public interface FloatVisitor<T> {
+
+		/**
+		 * @param key the key of the entry, only valid during this call
+		 * @param value the value of the entry
+		 * @return {@code true} to continue the query, {@code false} to abort it.
+		 */
+		boolean accept(float[] key, T value);
+	}
+
+	/**
+	 * Iterator class for {@code float} keys. 
+	 * @param <T> value type
+	 */
+	public static class PhIteratorF32<T> implements PhIteratorBase<T, PhEntryF32<T>> {
+		private final PhIteratorBase<T, ? extends PhEntry<T>> iter;
+		private final int dims;
+		private final PhEntryF32<T> buffer;
+
+		protected PhIteratorF32(PhIteratorBase<T, ? extends PhEntry<T>> iter, int dims) {
+			this.iter = iter;
+			this.dims = dims;
+			this.buffer = new PhEntryF32<>(new float[dims], null);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return nextValue();
+		}
+
+		@Override
+		public PhEntryF32<T> nextEntry() {
+			PhEntry<T> e = iter.nextEntryReuse();
+			return new PhEntryF32<>(post(e.getKey(), new float[dims]), e.getValue());
+		}
+
+		@Override
+		public PhEntryF32<T> nextEntryReuse() {
+			PhEntry<T> e = iter.nextEntryReuse();
+			post(e.getKey(), buffer.getKey());
+			buffer.setValue(e.getValue());
+			return buffer;
+		}
+
+		/**
+		 * @return the key of the next entry
+		 */
+		public float[] nextKey() {
+			return post(iter.nextEntryReuse().getKey(), new float[dims]);
+		}
+
+		@Override
+		public T nextValue() {
+			return iter.nextValue();
+		}
+
+		@Override
+		public void remove() {
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Query iterator class for {@code float} keys. 
+	 * @param <T> value type
+	 */
+	public static class PhQueryF32<T> extends PhIteratorF32<T> {
+		private final long[] lMin;
+		private final long[] lMax;
+		private final PhQuery<T> q;
+
+		protected PhQueryF32(PhQuery<T> iter, int dims) {
+			super(iter, dims);
+			q = iter;
+			lMin = new long[dims];
+			lMax = new long[dims];
+		}
+
+		/**
+		 * Restarts the query with a new query rectangle.
+		 * @param lower minimum values of query rectangle
+		 * @param upper maximum values of query rectangle
+		 */
+		public void reset(float[] lower, float[] upper) {
+			q.reset(pre(lower, lMin), pre(upper, lMax));
+		}
+	}
+
+	/**
+	 * Nearest neighbor query iterator class for {@code float} keys. 
+	 * @param <T> value type
+	 */
+	public static class PhKnnQueryF32<T> extends PhIteratorF32<T> {
+		private final long[] lCenter;
+		private final PhKnnQuery<T> q;
+		private final PhEntryDistF32<T> buffer;
+		private final int dims;
+
+		protected PhKnnQueryF32(PhKnnQuery<T> iter, int dims) {
+			super(iter, dims);
+			this.dims = dims;
+			q = iter;
+			lCenter = new long[dims];
+			buffer = new PhEntryDistF32<>(new float[dims], null, Double.NaN); 
+		}
+
+		@Override
+		public PhEntryDistF32<T> nextEntry() {
+			PhEntryDist<T> e = q.nextEntryReuse();
+			return new PhEntryDistF32<>(post(e.getKey(), new float[dims]), e.getValue(), e.dist());
+		}
+
+		@Override
+		public PhEntryDistF32<T> nextEntryReuse() {
+			PhEntryDist<T> e = q.nextEntryReuse();
+			post(e.getKey(), buffer.getKey());
+			buffer.set(e.getValue(), e.dist());
+			return buffer;
+		}
+
+		/**
+		 * Restarts the query with a new center point.
+		 * @param nMin new minimum result count, often called 'k'
+		 * @param dist new distance function. Using 'null' will result in reusing the previous
+		 * distance function.
+		 * @param center new center point
+		 * @return this
+		 */
+		public PhKnnQueryF32<T> reset(int nMin, PhDistance dist, float... center) {
+			q.reset(nMin, dist, pre(center, lCenter));
+			return this;
+		}
+	}
+
+	/**
+	 * Entry class for Float entries.
+	 *
+	 * @param <T> value type of the entries
+	 */
+	public static class PhEntryF32<T> {
+		protected float[] key;
+		protected T value;
+		
+		/**
+		 * @param key the key
+		 * @param value the value
+		 */
+		public PhEntryF32(float[] key, T value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		public float[] getKey() {
+			return key;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		public void setValue(T value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Entry class for Float entries with distance information for nearest neighbour queries.
+	 *
+	 * @param <T> value type of the entries
+	 */
+	public static class PhEntryDistF32<T> extends PhEntryF32<T> {
+		private double dist;
+
+		/**
+		 * @param key the key
+		 * @param value the value
+		 * @param dist the distance to the center point
+		 */
+		public PhEntryDistF32(float[] key, T value, double dist) {
+			super(key, value);
+			this.dist = dist;
+		}
+
+		/**
+		 * @param value new value
+		 * @param dist new distance
+		 */
+		public void set(T value, double dist) {
+			this.value = value;
+			this.dist = dist;
+		}
+		
+		/**
+		 * @return distance to center point of kNN query
+		 */
+		public double dist() {
+			return dist;
+		}
+	}
+}
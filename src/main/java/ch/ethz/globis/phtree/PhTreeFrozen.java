@@ -0,0 +1,553 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * Immutable, densely packed PH-Tree for query-only use, see {@link PhTree#freeze()}.
+ *
+ * All data is stored in a few large arrays. Entries are stored in z-order, i.e. the entries
+ * of every node form a contiguous range. Nodes are stored in DFS order, they refer to their
+ * children and entries via array offsets. There are no per-node or per-entry objects
+ * (except for the values) and no slack capacity.
+ *
+ * Window queries report the entries of nodes that lie completely inside the query window
+ * by a linear scan, without descending into the nodes.
+ *
+ * The hcPos of a child is stored in a single 'long', the number of dimensions is therefore
+ * limited to {@link #MAX_DIM}.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> The value type of the tree
+ */
+public class PhTreeFrozen<T> {
+
+	private static final int DEPTH_64 = 64;
+	/** Maximum number of dimensions, the hcPos of a child must fit into a 'long'. */
+	public static final int MAX_DIM = 64;
+
+	private final int dims;
+	private final int size;
+
+	/** Keys of all entries in z-order, 'dims' longs per entry. */
+	private final long[] keys;
+	/** Values of all entries. */
+	private final Object[] values;
+
+	/** Postfix length of each node. */
+	private final byte[] nodePostLen;
+	/** First entry of each node. */
+	private final int[] nodeEntryStart;
+	/** End of the entries of each node (exclusive). */
+	private final int[] nodeEntryEnd;
+	/** First child of each node. The children of node 'n' end at nodeChildStart[n+1]. */
+	private final int[] nodeChildStart;
+
+	/** The hcPos of every child. */
+	private final long[] childHcPos;
+	/** Entry index if positive, otherwise the node index as '~index'. */
+	private final int[] childRef;
+
+	private int nNodes = 0;
+	private int nChildren = 0;
+
+	private PhTreeFrozen(int dims, long[] keys, Object[] values) {
+		this.dims = dims;
+		this.size = values.length;
+		this.keys = keys;
+		this.values = values;
+		//Every node has at least two children, except for a root with less than two entries.
+		int maxNodes = Math.max(1, size - 1);
+		int[] nodeStart = new int[maxNodes];
+		int[] nodeEnd = new int[maxNodes];
+		byte[] postLen = new byte[maxNodes];
+		int[] childStart = new int[maxNodes + 1];
+		long[] hcPos = new long[maxNodes + size];
+		int[] ref = new int[maxNodes + size];
+		build(0, size, nodeStart, nodeEnd, postLen, childStart, hcPos, ref);
+		childStart[nNodes] = nChildren;
+		this.nodeEntryStart = Arrays.copyOf(nodeStart, nNodes);
+		this.nodeEntryEnd = Arrays.copyOf(nodeEnd, nNodes);
+		this.nodePostLen = Arrays.copyOf(postLen, nNodes);
+		this.nodeChildStart = Arrays.copyOf(childStart, nNodes + 1);
+		this.childHcPos = Arrays.copyOf(hcPos, nChildren);
+		this.childRef = Arrays.copyOf(ref, nChildren);
+	}
+
+	/**
+	 * Create a frozen copy of a tree.
+	 * @param tree the tree
+	 * @return A frozen copy of the tree.
+	 * @param <T> value type of the tree
+	 * @throws IllegalArgumentException if the tree has more than {@link #MAX_DIM} dimensions
+	 */
+	public static <T> PhTreeFrozen<T> create(PhTree<T> tree) {
+		int dims = tree.getDim();
+		checkDim(dims);
+		int n = tree.size();
+		long[] keys = new long[n * dims];
+		Object[] values = new Object[n];
+		PhExtent<T> it = tree.queryExtent();
+		boolean isSorted = true;
+		int i = 0;
+		while (it.hasNext()) {
+			PhEntry<T> e = it.nextEntryReuse();
+			System.arraycopy(e.getKey(), 0, keys, i * dims, dims);
+			values[i] = PhTreeHelper.unmaskNull(e.getValue());
+			if (i > 0 && compare(keys, i - 1, i, dims) > 0) {
+				isSorted = false;
+			}
+			i++;
+		}
+		if (!isSorted) {
+			sort(keys, values, dims);
+		}
+		return new PhTreeFrozen<>(dims, keys, values);
+	}
+
+	static void checkDim(int dims) {
+		if (dims > MAX_DIM) {
+			throw new IllegalArgumentException(
+					"Frozen trees support at most " + MAX_DIM + " dimensions: " + dims);
+		}
+	}
+
+	private static int compare(long[] keys, int i1, int i2, int dims) {
+		long x = 0;
+		for (int d = 0; d < dims; d++) {
+			x |= keys[i1 * dims + d] ^ keys[i2 * dims + d];
+		}
+		if (x == 0) {
+			return 0;
+		}
+		int bit = Long.SIZE - 1 - Long.numberOfLeadingZeros(x);
+		for (int d = 0; d < dims; d++) {
+			long k1 = keys[i1 * dims + d];
+			if (((k1 ^ keys[i2 * dims + d]) >>> bit & 1L) != 0) {
+				return (k1 >>> bit & 1L) != 0 ? 1 : -1;
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	private static void sort(long[] keys, Object[] values, int dims) {
+		int n = values.length;
+		List<PhEntry<Object>> list = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			list.add(new PhEntry<>(Arrays.copyOfRange(keys, i * dims, (i + 1) * dims), values[i]));
+		}
+		list.sort((e1, e2) -> PhTreeHelper.compareZOrder(e1.getKey(), e2.getKey(), -1L));
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(list.get(i).getKey(), 0, keys, i * dims, dims);
+			values[i] = list.get(i).getValue();
+		}
+	}
+
+	/**
+	 * Create a node for the entries [start, end). The children of a node are stored
+	 * before the children of its sub-nodes, so every node has a contiguous range of children.
+	 */
+	private void build(int start, int end, int[] nodeStart, int[] nodeEnd, byte[] nodePost,
+			int[] childStart, long[] hcPos, int[] ref) {
+		int node = nNodes++;
+		int postLen = DEPTH_64 - 1;
+		if (end - start >= 2) {
+			//In z-order, the first and the last key have the fewest common leading bits.
+			long x = 0;
+			for (int d = 0; d < dims; d++) {
+				x |= keys[start * dims + d] ^ keys[(end - 1) * dims + d];
+			}
+			postLen = Long.SIZE - Long.numberOfLeadingZeros(x) - 1;
+		}
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodePost[node] = (byte) postLen;
+		childStart[node] = nChildren;
+
+		//reserve children
+		int first = nChildren;
+		int i = start;
+		while (i < end) {
+			long h = posInArray(i, postLen);
+			int j = i + 1;
+			while (j < end && posInArray(j, postLen) == h) {
+				j++;
+			}
+			hcPos[nChildren] = h;
+			ref[nChildren] = j - i == 1 ? i : -1;
+			nChildren++;
+			i = j;
+		}
+		int last = nChildren;
+
+		//sub-nodes
+		i = start;
+		for (int c = first; c < last; c++) {
+			if (ref[c] >= 0) {
+				i++;
+				continue;
+			}
+			int j = i + 1;
+			while (j < end && posInArray(j, postLen) == hcPos[c]) {
+				j++;
+			}
+			ref[c] = ~nNodes;
+			build(i, j, nodeStart, nodeEnd, nodePost, childStart, hcPos, ref);
+			i = j;
+		}
+	}
+
+	private long posInArray(int entry, int postLen) {
+		long pos = 0;
+		int offs = entry * dims;
+		for (int d = 0; d < dims; d++) {
+			pos <<= 1;
+			pos |= (keys[offs + d] >>> postLen) & 1L;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return dims;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value or {@code null} if the key does not exist
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long... key) {
+		int i = find(key);
+		return i < 0 ? null : (T) values[i];
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if the key exists
+	 */
+	public boolean contains(long... key) {
+		return find(key) >= 0;
+	}
+
+	private int find(long[] key) {
+		if (size == 0) {
+			return -1;
+		}
+		int node = 0;
+		while (true) {
+			int postLen = nodePostLen[node];
+			if (!matchesPrefix(nodeEntryStart[node], key, postLen)) {
+				return -1;
+			}
+			long h = PhTreeHelper.posInArray(key, postLen);
+			int c = binarySearch(nodeChildStart[node], nodeChildStart[node + 1], h);
+			if (c < 0) {
+				return -1;
+			}
+			int ref = childRef[c];
+			if (ref >= 0) {
+				return equals(ref, key) ? ref : -1;
+			}
+			node = ~ref;
+		}
+	}
+
+	/**
+	 * Binary search for unsigned hcPos values. hcPos can be negative for 64 dimensions.
+	 */
+	private int binarySearch(int start, int end, long hcPos) {
+		int low = start;
+		int high = end - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = Long.compareUnsigned(childHcPos[mid], hcPos);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matchesPrefix(int entry, long[] key, int postLen) {
+		if (postLen >= 63) {
+			return true;
+		}
+		long mask = (-1L) << (postLen + 1);
+		int offs = entry * dims;
+		for (int d = 0; d < dims; d++) {
+			if (((keys[offs + d] ^ key[d]) & mask) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equals(int entry, long[] key) {
+		int offs = entry * dims;
+		for (int d = 0; d < dims; d++) {
+			if (keys[offs + d] != key[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}. The key array is reused for every call.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 */
+	public boolean forEach(long[] min, long[] max, PhQueryVisitor<T> visitor) {
+		if (size == 0) {
+			return true;
+		}
+		return forEach(0, min, max, visitor, new long[dims]);
+	}
+
+	private boolean forEach(int node, long[] min, long[] max, PhQueryVisitor<T> visitor, long[] buf) {
+		int postLen = nodePostLen[node];
+		int start = nodeEntryStart[node];
+		long maskLower = 0;
+		long maskUpper = 0;
+		if (postLen < 63) {
+			long maskVT = (-1L) << (postLen + 1);
+			long maskHcBit = 1L << postLen;
+			boolean isInside = true;
+			for (int d = 0; d < dims; d++) {
+				long prefix = keys[start * dims + d] & maskVT;
+				long nodeMin = prefix;
+				long nodeMax = prefix | ~maskVT;
+				if (nodeMax < min[d] || nodeMin > max[d]) {
+					return true;
+				}
+				isInside &= nodeMin >= min[d] && nodeMax <= max[d];
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				long nodeBisection = prefix | maskHcBit;
+				if (min[d] >= nodeBisection) {
+					maskLower |= 1L;
+				}
+				if (max[d] >= nodeBisection) {
+					maskUpper |= 1L;
+				}
+			}
+			if (isInside) {
+				return visitAll(start, nodeEntryEnd[node], visitor, buf);
+			}
+		} else {
+			//special treatment for signed longs
+			for (int d = 0; d < dims; d++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				if (min[d] < 0) {
+					maskUpper |= 1L;
+				}
+				if (max[d] < 0) {
+					maskLower |= 1L;
+				}
+			}
+		}
+
+		for (int c = nodeChildStart[node], cEnd = nodeChildStart[node + 1]; c < cEnd; c++) {
+			long h = childHcPos[c];
+			if (((h | maskLower) & maskUpper) != h) {
+				if (Long.compareUnsigned(h, maskUpper) > 0) {
+					break;
+				}
+				continue;
+			}
+			int ref = childRef[c];
+			if (ref < 0) {
+				if (!forEach(~ref, min, max, visitor, buf)) {
+					return false;
+				}
+			} else if (isInRange(ref, min, max) && !visit(ref, visitor, buf)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isInRange(int entry, long[] min, long[] max) {
+		int offs = entry * dims;
+		for (int d = 0; d < dims; d++) {
+			long k = keys[offs + d];
+			if (k < min[d] || k > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean visitAll(int start, int end, PhQueryVisitor<T> visitor, long[] buf) {
+		for (int i = start; i < end; i++) {
+			if (!visit(i, visitor, buf)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean visit(int entry, PhQueryVisitor<T> visitor, long[] buf) {
+		System.arraycopy(keys, entry * dims, buf, 0, dims);
+		return visitor.accept(buf, (T) values[entry]);
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return all matching entries.
+	 */
+	public List<PhEntry<T>> queryAll(long[] min, long[] max) {
+		List<PhEntry<T>> list = new ArrayList<>();
+		forEach(min, max, (key, value) -> list.add(new PhEntry<>(key.clone(), value)));
+		return list;
+	}
+
+	/**
+	 * @return all entries, in z-order.
+	 */
+	public List<PhEntry<T>> queryAll() {
+		List<PhEntry<T>> list = new ArrayList<>(size);
+		visitAll(0, size, (key, value) -> list.add(new PhEntry<>(key.clone(), value)), new long[dims]);
+		return list;
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may be returned if
+	 * several points have the same distance.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param center the center point
+	 * @return List of neighbours, ordered by distance.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PhEntryDist<T>> nearestNeighbour(int nMin, PhDistance dist, long... center) {
+		PhDistance distance = dist == null ? PhDistanceL.THIS : dist;
+		List<PhEntryDist<T>> result = new ArrayList<>();
+		if (nMin <= 0 || size == 0) {
+			return result;
+		}
+		long[] prefix = new long[dims];
+		long[] buf = new long[dims];
+		//'ref' as in childRef, ordered by distance
+		PriorityQueue<Candidate> queue = new PriorityQueue<>();
+		queue.add(new Candidate(~0, 0));
+		while (!queue.isEmpty()) {
+			Candidate c = queue.poll();
+			if (c.ref >= 0) {
+				if (result.size() >= nMin && c.dist > result.get(result.size() - 1).dist()) {
+					break;
+				}
+				long[] key = Arrays.copyOfRange(keys, c.ref * dims, (c.ref + 1) * dims);
+				result.add(new PhEntryDist<>(key, (T) values[c.ref], c.dist));
+				continue;
+			}
+			int node = ~c.ref;
+			for (int i = nodeChildStart[node], end = nodeChildStart[node + 1]; i < end; i++) {
+				int ref = childRef[i];
+				double d;
+				if (ref >= 0) {
+					System.arraycopy(keys, ref * dims, buf, 0, dims);
+					d = distance.dist(center, buf);
+				} else {
+					int sub = ~ref;
+					System.arraycopy(keys, nodeEntryStart[sub] * dims, prefix, 0, dims);
+					d = distance.distToNode(center, prefix, nodePostLen[sub] + 1, buf);
+				}
+				queue.add(new Candidate(ref, d));
+			}
+		}
+		return result;
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final int ref;
+		final double dist;
+
+		Candidate(int ref, double dist) {
+			this.ref = ref;
+			this.dist = dist;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			int c = Double.compare(dist, o.dist);
+			//entries before nodes with the same distance
+			return c != 0 ? c : Boolean.compare(ref < 0, o.ref < 0);
+		}
+	}
+
+	public PhTreeStats getStats() {
+		PhTreeStats stats = new PhTreeStats(DEPTH_64);
+		stats.nNodes = nNodes;
+		stats.nTotalChildren = nChildren;
+		final int REF = 4;//bytes for a reference
+		//arrays + fields
+		stats.size = 16 + 8 * 16 + 6 * REF + 3 * 4;
+		stats.size += PhTreeHelper.align8(keys.length * 8) + PhTreeHelper.align8(values.length * REF);
+		stats.size += PhTreeHelper.align8(nodePostLen.length) + 3L * PhTreeHelper.align8(nNodes * 4 + 4);
+		stats.size += PhTreeHelper.align8(nChildren * 8) + PhTreeHelper.align8(nChildren * 4);
+		return stats;
+	}
+
+	/**
+	 * Writes the tree to a file. The file can be opened with
+	 * {@link MappedPhTree#open(Path, PhValueCodec)}, which queries the file without loading it.
+	 * @param path file path, an existing file is overwritten
+	 * @param codec the codec for the values, it is not used for 'null' values.
+	 */
+	public void write(Path path, PhValueCodec<? super T> codec) {
+		MappedPhTree.<T>write(path, codec, dims, keys, values, nodePostLen, nodeEntryStart, 
+				nodeEntryEnd, nodeChildStart, childHcPos, childRef);
+	}
+
+	@Override
+	public String toString() {
+		return "PhTreeFrozen(dims=" + dims + ", size=" + size + ", nodes=" + nNodes + ")";
+	}
+}
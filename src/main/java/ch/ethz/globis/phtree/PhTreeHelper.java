@@ -6,6 +6,8 @@
  */
 package ch.ethz.globis.phtree;
 
+import java.nio.Buffer;
+import java.util.function.BiFunction;
 
 /**
  *
@@ -228,6 +230,52 @@ public abstract class PhTreeHelper {
     }
 
 
+    /**
+     * Compares two keys with respect to their order in the tree, i.e. the order in which
+     * they are returned by queries. This is the order of the interleaved bits (z-order)
+     * where the first dimension determines the most significant bit.
+     * @param v1 one vector
+     * @param v2 another vector
+     * @param mask Mask that indicates which bits to compare. Only bits where mask=1 are checked.
+     * @return A negative value, zero or a positive value if v1 is less than, equal to or
+     * greater than v2.
+     */
+    public static int compareZOrder(long[] v1, long[] v2, long mask) {
+    	long x = 0;
+    	for (int i = 0; i < v1.length; i++) {
+    		x |= v1[i] ^ v2[i];
+    	}
+    	x &= mask;
+    	if (x == 0) {
+    		return 0;
+    	}
+    	int bit = Long.SIZE - 1 - Long.numberOfLeadingZeros(x);
+    	for (int i = 0; i < v1.length; i++) {
+    		if (((v1[i] ^ v2[i]) >>> bit & 1L) != 0) {
+    			return (v1[i] >>> bit & 1L) != 0 ? 1 : -1;
+    		}
+    	}
+    	throw new IllegalStateException();
+    }
+
+
+	/**
+	 * Checks that there is one output buffer per dimension.
+	 * @param columns one buffer per dimension
+	 * @param dims number of dimensions
+	 * @return the smallest number of remaining elements of all buffers
+	 */
+	public static int remainingInColumns(Buffer[] columns, int dims) {
+		if (columns.length != dims) {
+			throw new IllegalArgumentException("Expected " + dims + " buffers: " + columns.length);
+		}
+		int n = Integer.MAX_VALUE;
+		for (Buffer b : columns) {
+			n = Math.min(n, b.remaining());
+		}
+		return n;
+	}
+
 	public static <T> Object maskNull(T value) {
 		return value == null ? PhTreeHelper.NULL : value;
 	}
@@ -237,6 +285,46 @@ public abstract class PhTreeHelper {
 		return value == PhTreeHelper.NULL ? null : (T) value;
 	}
 
+	/**
+	 * Remapping function for compute() operations on trees with a {@link PhTreeListener}.
+	 * It records the previous value so that the listener can be notified after the operation.
+	 *
+	 * @param <T> value type of the tree
+	 */
+	public static final class ListenerCompute<T> implements BiFunction<long[], T, T> {
+		private final BiFunction<long[], ? super T, ? extends T> function;
+		private T oldValue;
+
+		public ListenerCompute(BiFunction<long[], ? super T, ? extends T> function) {
+			this.function = function;
+		}
+
+		@Override
+		public T apply(long[] key, T value) {
+			oldValue = value;
+			return function.apply(key, value);
+		}
+
+		/**
+		 * Notifies the listener about the outcome of the compute() operation.
+		 * @param listener the listener
+		 * @param key the key
+		 * @param newValue the result of the operation
+		 * @param sizeDelta change of the number of entries in the tree
+		 */
+		public void notify(PhTreeListener<T> listener, long[] key, T newValue, int sizeDelta) {
+			if (sizeDelta > 0) {
+				listener.onPut(key, null, newValue, false);
+			} else if (sizeDelta < 0) {
+				listener.onRemove(key, oldValue);
+			} else if (newValue != null && newValue != oldValue) {
+				//Entries are only kept if the function returns a value. Returning the
+				//current value does not modify the entry, e.g. in remove(key, value).
+				listener.onPut(key, oldValue, newValue, true);
+			}
+		}
+	}
+
 
 }
 
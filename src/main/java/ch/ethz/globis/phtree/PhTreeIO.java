@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+/**
+ * Binary snapshots of PH-Trees.
+ * <p>
+ * V13 and V16 trees are written node by node in pre-order. The bit-streams of V13 nodes
+ * and the keys of V16 nodes are transferred in bulk. When a snapshot is read, the nodes
+ * are rebuilt directly, without inserting the entries one by one.
+ * Other trees are written as a list of entries and are rebuilt with {@link PhTree#put(long[], Object)}.
+ * <p>
+ * Values are serialized with a {@link PhValueCodec}.
+ * I/O errors are reported as {@link UncheckedIOException}.
+ *
+ * @author Tilmann Zaeschke
+ */
+public final class PhTreeIO {
+
+	private static final long MAGIC = 0x5048545245455348L; //PHTREESH
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final byte TYPE_ENTRIES = 0;
+	private static final byte TYPE_V13 = 13;
+	private static final byte TYPE_V16 = 16;
+
+	private PhTreeIO() {
+		// static methods only
+	}
+
+	/**
+	 * Writes a snapshot of a tree. The channel is not closed.
+	 * @param tree the tree
+	 * @param channel the output channel
+	 * @param codec codec for the values, it is not used for 'null' values
+	 * @param <T> value type of the tree
+	 */
+	public static <T> void write(PhTree<T> tree, WritableByteChannel channel, PhValueCodec<? super T> codec) {
+		Output out = new Output(channel);
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			if (tree instanceof PhTree13) {
+				out.writeByte(TYPE_V13);
+				((PhTree13<T>) tree).write(out, codec);
+			} else if (tree instanceof PhTree16) {
+				out.writeByte(TYPE_V16);
+				((PhTree16<T>) tree).write(out, codec);
+			} else {
+				out.writeByte(TYPE_ENTRIES);
+				writeEntries(tree, out, codec);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads a snapshot that was written with {@link #write(PhTree, WritableByteChannel, PhValueCodec)}.
+	 * The channel is not closed.
+	 * @param channel the input channel
+	 * @param codec codec for the values, this must be the codec that was used for writing
+	 * @return the tree
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTree<T> read(ReadableByteChannel channel, PhValueCodec<T> codec) {
+		Input in = new Input(channel);
+		try {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a PH-Tree snapshot");
+			}
+			byte type = in.readByte();
+			switch (type) {
+			case TYPE_V13:
+				return PhTree13.read(in, codec);
+			case TYPE_V16:
+				return PhTree16.read(in, codec);
+			case TYPE_ENTRIES:
+				return readEntries(in, codec);
+			default:
+				throw new IOException("Unknown tree type: " + type);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static <T> void writeEntries(PhTree<T> tree, Output out, PhValueCodec<? super T> codec) 
+			throws IOException {
+		int dims = tree.getDim();
+		out.writeInt(dims);
+		out.writeInt(tree.size());
+		PhExtent<T> it = tree.queryExtent();
+		while (it.hasNext()) {
+			PhEntry<T> e = it.nextEntryReuse();
+			out.writeLongs(e.getKey(), 0, dims);
+			writeValue(PhTreeHelper.unmaskNull(e.getValue()), out, codec);
+		}
+	}
+
+	private static <T> PhTree<T> readEntries(Input in, PhValueCodec<T> codec) throws IOException {
+		int dims = in.readInt();
+		int size = in.readInt();
+		PhTree<T> tree = PhTree.create(dims);
+		for (int i = 0; i < size; i++) {
+			long[] key = new long[dims];
+			in.readLongs(key, 0, dims);
+			tree.put(key, readValue(in, codec));
+		}
+		return tree;
+	}
+
+	/**
+	 * Writes a value or 'null'.
+	 * @param value the value
+	 * @param out output
+	 * @param codec the value codec
+	 * @throws IOException if writing fails
+	 * @param <T> value type
+	 */
+	public static <T> void writeValue(T value, DataOutputStream out, PhValueCodec<? super T> codec) 
+			throws IOException {
+		if (value == null) {
+			out.writeBoolean(false);
+		} else {
+			out.writeBoolean(true);
+			codec.write(value, out);
+		}
+	}
+
+	/**
+	 * Reads a value that was written with {@link #writeValue(Object, DataOutputStream, PhValueCodec)}.
+	 * @param in input
+	 * @param codec the value codec
+	 * @return the value or 'null'
+	 * @throws IOException if reading fails
+	 * @param <T> value type
+	 */
+	public static <T> T readValue(DataInputStream in, PhValueCodec<T> codec) throws IOException {
+		return in.readBoolean() ? codec.read(in) : null;
+	}
+
+	/**
+	 * Buffered output to a channel. Arrays of longs are transferred in bulk.
+	 */
+	public static final class Output extends DataOutputStream {
+		private final ChannelOutputStream channelOut;
+
+		Output(WritableByteChannel channel) {
+			super(new ChannelOutputStream(channel));
+			this.channelOut = (ChannelOutputStream) out;
+		}
+
+		/**
+		 * @param a the source array
+		 * @param offs offset in the array
+		 * @param len number of longs to write
+		 * @throws IOException if writing fails
+		 */
+		public void writeLongs(long[] a, int offs, int len) throws IOException {
+			channelOut.writeLongs(a, offs, len);
+		}
+	}
+
+	/**
+	 * Buffered input from a channel. Arrays of longs are transferred in bulk.
+	 */
+	public static final class Input extends DataInputStream {
+		private final ChannelInputStream channelIn;
+
+		Input(ReadableByteChannel channel) {
+			super(new ChannelInputStream(channel));
+			this.channelIn = (ChannelInputStream) in;
+		}
+
+		/**
+		 * @param a the destination array
+		 * @param offs offset in the array
+		 * @param len number of longs to read
+		 * @throws IOException if reading fails
+		 */
+		public void readLongs(long[] a, int offs, int len) throws IOException {
+			channelIn.readLongs(a, offs, len);
+		}
+	}
+
+	private static final class ChannelOutputStream extends OutputStream {
+		private final WritableByteChannel channel;
+		private final ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		ChannelOutputStream(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!bb.hasRemaining()) {
+				drain();
+			}
+			bb.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!bb.hasRemaining()) {
+					drain();
+				}
+				int n = Math.min(len, bb.remaining());
+				bb.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		void writeLongs(long[] a, int offs, int len) throws IOException {
+			while (len > 0) {
+				if (bb.remaining() < Long.BYTES) {
+					drain();
+				}
+				int n = Math.min(len, bb.remaining() / Long.BYTES);
+				bb.asLongBuffer().put(a, offs, n);
+				bb.position(bb.position() + n * Long.BYTES);
+				offs += n;
+				len -= n;
+			}
+		}
+
+		private void drain() throws IOException {
+			bb.flip();
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+			bb.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+	}
+
+	private static final class ChannelInputStream extends InputStream {
+		private final ReadableByteChannel channel;
+		private final ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		ChannelInputStream(ReadableByteChannel channel) {
+			this.channel = channel;
+			bb.limit(0);
+		}
+
+		/**
+		 * @return 'false' if the end of the channel has been reached.
+		 */
+		private boolean fill() throws IOException {
+			bb.compact();
+			int n = channel.read(bb);
+			bb.flip();
+			return n >= 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (!bb.hasRemaining()) {
+				if (!fill()) {
+					return -1;
+				}
+			}
+			return bb.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (!bb.hasRemaining()) {
+				if (!fill()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, bb.remaining());
+			bb.get(b, off, n);
+			return n;
+		}
+
+		void readLongs(long[] a, int offs, int len) throws IOException {
+			while (len > 0) {
+				while (bb.remaining() < Long.BYTES) {
+					if (!fill()) {
+						throw new EOFException();
+					}
+				}
+				int n = Math.min(len, bb.remaining() / Long.BYTES);
+				bb.asLongBuffer().get(a, offs, n);
+				bb.position(bb.position() + n * Long.BYTES);
+				offs += n;
+				len -= n;
+			}
+		}
+	}
+}
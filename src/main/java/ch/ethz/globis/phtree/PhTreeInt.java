@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v13.PhTree13.ValueStorage;
+
+/**
+ * k-dimensional index (quad-/oct-/n-tree) with primitive {@code int} values.
+ *
+ * The values are stored unboxed in the nodes of the tree, there is no box object per entry.
+ * The methods {@link #getInt(long...)} and {@link #forEach(long[], long[], IntVisitor)}
+ * return values without boxing them. Methods that return iterators, such as
+ * {@link #query(long[], long[])}, return boxed values.
+ *
+ * Missing entries are reported with the 'no entry value', which can be specified when
+ * creating the tree. The default is 0.
+ *
+ * @author ztilmann (Tilmann Zaeschke)
+ */
+public class PhTreeInt {
+
+	private final PhTree13<Integer> pht;
+	private final int noEntryValue;
+
+	protected PhTreeInt(int dim, int noEntryValue) {
+		this.pht = new PhTree13<>(dim, ValueStorage.INT);
+		this.noEntryValue = noEntryValue;
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeInt
+	 */
+	public static PhTreeInt create(int dim) {
+		return new PhTreeInt(dim, 0);
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @param noEntryValue The value that is returned if an entry does not exist
+	 * @return PhTreeInt
+	 */
+	public static PhTreeInt create(int dim, int noEntryValue) {
+		return new PhTreeInt(dim, noEntryValue);
+	}
+
+	/**
+	 * @return the value that is returned if an entry does not exist
+	 */
+	public int getNoEntryValue() {
+		return noEntryValue;
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public int size() {
+		return pht.size();
+	}
+
+	/**
+	 * Insert an entry associated with a k dimensional key.
+	 * @param key the key to store the value to store
+	 * @param value the value
+	 * @return the previously associated value or the 'no entry value' if the key was not found
+	 */
+	public int putInt(long[] key, int value) {
+		return (int) pht.putLong(key, value, noEntryValue);
+	}
+
+	/**
+	 * @param key key
+	 * @return true if the key exists in the tree
+	 */
+	public boolean contains(long... key) {
+		return pht.contains(key);
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value associated with the key or the 'no entry value' if the key was not found
+	 */
+	public int getInt(long... key) {
+		return (int) pht.getLong(key, noEntryValue);
+	}
+
+	/**
+	 * Remove the entry associated with a k dimensional key.
+	 * @param key the key to remove
+	 * @return the associated value or the 'no entry value' if the key was not found
+	 */
+	public int removeInt(long... key) {
+		Integer prev = pht.remove(key);
+		return prev == null ? noEntryValue : prev;
+	}
+
+	/**
+	 * Update the key of an entry. Update may fail if the old key does not exist, or if the new
+	 * key already exists.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the updated key if the key could be
+	 * updated, otherwise the 'no entry value'.
+	 */
+	public int update(long[] oldKey, long[] newKey) {
+		Integer value = pht.update(oldKey, newKey);
+		return value == null ? noEntryValue : value;
+	}
+
+	/**
+	 * Performs a rectangular window query. The values are reported without boxing.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEach(long[] min, long[] max, IntVisitor visitor) {
+		return pht.forEachLong(min, max, null, (key, value) -> visitor.accept(key, (int) value));
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return Result iterator.
+	 */
+	public PhQuery<Integer> query(long[] min, long[] max) {
+		return pht.query(min, max);
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
+	 * several points have the same distance.
+	 * @param key the center point
+	 * @return KNN query iterator.
+	 */
+	public PhKnnQuery<Integer> nearestNeighbour(int nMin, long... key) {
+		return pht.nearestNeighbour(nMin, key);
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
+	 * several points have the same distance.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param key the center point
+	 * @return KNN query iterator.
+	 */
+	public PhKnnQuery<Integer> nearestNeighbour(int nMin, PhDistance dist, long... key) {
+		return pht.nearestNeighbour(nMin, dist == null ? PhDistanceL.THIS : dist, null, key);
+	}
+
+	/**
+	 * Clear the tree.
+	 */
+	public void clear() {
+		pht.clear();
+	}
+
+	public int getDim() {
+		return pht.getDim();
+	}
+
+	public PhTreeStats getStats() {
+		return pht.getStats();
+	}
+
+	@Override
+	public String toString() {
+		return pht.toString(); 
+	}
+
+	/**
+	 * Callback interface for visitor based queries with primitive values.
+	 */
+	@FunctionalInterface
+	public interface IntVisitor {
+
+		/**
+		 * @param key the key of the entry, only valid during this call
+		 * @param value the value of the entry
+		 * @return {@code true} to continue the query, {@code false} to abort it.
+		 */
+		boolean accept(long[] key, int value);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+/**
+ * Listener for modifications of a tree, see {@link PhTree#setListener(PhTreeListener)}.
+ * <p>
+ * The listener is called synchronously by the modifying thread after the tree has been
+ * modified. Listeners must not modify the tree. For asynchronous delivery see
+ * {@link ch.ethz.globis.phtree.util.PhTreeListenerAsync}.
+ * <p>
+ * Exceptions thrown by the listener are propagated to the caller of the modifying method.
+ * The modification has already been applied at this point, it is not rolled back.
+ * <p>
+ * Keys passed to the listener may be stored in the tree or may be reused by the caller.
+ * They must not be modified and must be copied if they are needed after the call.
+ *
+ * @param <T> value type of the tree
+ */
+public interface PhTreeListener<T> {
+
+	/**
+	 * Called after an entry was inserted or after the value of an existing entry was replaced.
+	 * @param key the key of the entry
+	 * @param oldValue the previous value, {@code null} if there was no entry
+	 * @param newValue the new value
+	 * @param replaced {@code true} if an entry with the key existed before. This allows
+	 * distinguishing an insert from the replacement of a {@code null} value.
+	 */
+	void onPut(long[] key, T oldValue, T newValue, boolean replaced);
+
+	/**
+	 * Called after an entry was removed.
+	 * @param key the key of the entry
+	 * @param oldValue the value of the removed entry
+	 */
+	void onRemove(long[] key, T oldValue);
+
+	/**
+	 * Called after the key of an entry was changed with {@link PhTree#update(long[], long[])}.
+	 * If an entry with the new key existed, it has been replaced by the updated entry and
+	 * {@link #onRemove(long[], Object)} is called for it before this method.
+	 * @param oldKey the previous key
+	 * @param newKey the new key
+	 * @param value the value of the entry
+	 */
+	void onUpdate(long[] oldKey, long[] newKey, T value);
+
+	/**
+	 * Called after all entries were removed with {@link PhTree#clear()}.
+	 */
+	default void onClear() {
+		//nothing
+	}
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+
+/**
+ * k-dimensional index (quad-/oct-/n-tree) that allows storing more than one value per key.
+ *
+ * Unlike {@link PhTreeMultiMapF}, this does not add an ID dimension. Every key in the
+ * backing tree holds a value bucket: a single value is stored inline, several values are
+ * stored in a compact array. Buckets are modified in place with
+ * {@link PhTree#compute(long[], java.util.function.BiFunction)}, so adding or removing a
+ * value requires only one traversal of the tree (two for more than 60 dimensions).
+ *
+ * Values are compared with {@link Objects#equals(Object, Object)}. The same value
+ * can be stored several times for the same key.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> The value type of the tree
+ */
+public class PhTreeMultiMap<T> {
+
+	/** Represents 'null' values, so we can distinguish them from missing keys. */
+	private static final Object NULL = new Object();
+
+	private final PhTree<Object> pht;
+	/** PhTree16HD does not support compute(), it requires a get() before every put(). */
+	private final boolean hasCompute;
+	private int nValues = 0;
+
+	protected PhTreeMultiMap(int dim) {
+		this.pht = PhTree.create(dim);
+		this.hasCompute = !(pht instanceof PhTree16HD);
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeMultiMap
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeMultiMap<T> create(int dim) {
+		return new PhTreeMultiMap<>(dim);
+	}
+
+	/**
+	 * @return the number of values in the tree
+	 */
+	public int size() {
+		return nValues;
+	}
+
+	/**
+	 * @return the number of distinct keys in the tree
+	 */
+	public int sizeKeys() {
+		return pht.size();
+	}
+
+	/**
+	 * Add a value to a key.
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(long[] key, T value) {
+		Object v = value == null ? NULL : value;
+		if (!hasCompute) {
+			Object o = pht.get(key);
+			pht.put(key, add(o, v));
+		} else {
+			pht.compute(key, (k, o) -> add(o, v));
+		}
+		nValues++;
+	}
+
+	private static Object add(Object o, Object v) {
+		if (o == null) {
+			return v;
+		} else if (o instanceof Bucket) {
+			((Bucket) o).add(v);
+			return o;
+		}
+		return new Bucket(o, v);
+	}
+
+	/**
+	 * Remove one occurrence of a value from a key.
+	 * @param key the key
+	 * @param value the value
+	 * @return {@code true} if the value was found and removed
+	 */
+	public boolean remove(long[] key, T value) {
+		Object v = value == null ? NULL : value;
+		boolean[] found = new boolean[1];
+		if (!hasCompute) {
+			Object o = pht.get(key);
+			if (o == null) {
+				return false;
+			}
+			Object o2 = remove(o, v, found);
+			if (o2 == null) {
+				pht.remove(key);
+			} else if (o2 != o) {
+				pht.put(key, o2);
+			}
+		} else {
+			pht.computeIfPresent(key, (k, o) -> remove(o, v, found));
+		}
+		if (found[0]) {
+			nValues--;
+		}
+		return found[0];
+	}
+
+	/**
+	 * @return the new value of the key, {@code null} if the key has to be removed
+	 */
+	private static Object remove(Object o, Object v, boolean[] found) {
+		if (o instanceof Bucket) {
+			Bucket b = (Bucket) o;
+			found[0] = b.remove(v);
+			return b.size == 1 ? b.values[0] : b;
+		} else if (Objects.equals(o, v)) {
+			found[0] = true;
+			return null;
+		}
+		return o;
+	}
+
+	/**
+	 * Remove all values of a key.
+	 * @param key the key
+	 * @return the number of removed values
+	 */
+	public int removeAll(long[] key) {
+		Object o = pht.remove(key);
+		if (o == null) {
+			return 0;
+		}
+		int n = o instanceof Bucket ? ((Bucket) o).size : 1;
+		nValues -= n;
+		return n;
+	}
+
+	/**
+	 * @param key the key
+	 * @return all values of the key or an empty list if the key does not exist
+	 */
+	public List<T> getAll(long[] key) {
+		Object o = pht.get(key);
+		if (o == null) {
+			return Collections.emptyList();
+		}
+		List<T> list = new ArrayList<>(o instanceof Bucket ? ((Bucket) o).size : 1);
+		addAll(o, list);
+		return list;
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if the key has at least one value
+	 */
+	public boolean contains(long[] key) {
+		return pht.contains(key);
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value
+	 * @return {@code true} if the key has the given value
+	 */
+	public boolean contains(long[] key, T value) {
+		Object v = value == null ? NULL : value;
+		Object o = pht.get(key);
+		if (o instanceof Bucket) {
+			return ((Bucket) o).indexOf(v) >= 0;
+		}
+		return o != null && Objects.equals(o, v);
+	}
+
+	/**
+	 * Move one occurrence of a value to a new key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value the value
+	 * @return {@code true} if the value was found and moved
+	 */
+	public boolean update(long[] oldKey, long[] newKey, T value) {
+		if (!remove(oldKey, value)) {
+			return false;
+		}
+		put(newKey, value);
+		return true;
+	}
+
+	/**
+	 * Performs a rectangular window query and reports every value of every matching key.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching value. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEach(long[] min, long[] max, PhQueryVisitor<T> visitor) {
+		return pht.forEach(min, max, null, (key, o) -> {
+			if (o instanceof Bucket) {
+				Bucket b = (Bucket) o;
+				for (int i = 0; i < b.size; i++) {
+					if (!visitor.accept(key, unmaskNull(b.values[i]))) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return visitor.accept(key, unmaskNull(o));
+		});
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return all matching key/value pairs.
+	 */
+	public List<PhEntry<T>> queryAll(long[] min, long[] max) {
+		List<PhEntry<T>> list = new ArrayList<>();
+		forEach(min, max, (key, value) -> list.add(new PhEntry<>(key.clone(), value)));
+		return list;
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of results. Depending on {@code countKeys}, this is the number of
+	 * distinct keys or the number of values. More values may be returned if several
+	 * keys have the same distance or if {@code countKeys == true}.
+	 * @param countKeys {@code true} to count distinct keys, {@code false} to count values.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param center the center point
+	 * @return List of neighbours, ordered by distance.
+	 */
+	public List<PhEntryDist<T>> nearestNeighbour(int nMin, boolean countKeys, PhDistance dist,
+			long... center) {
+		List<PhEntryDist<T>> result = new ArrayList<>();
+		if (nMin <= 0) {
+			return result;
+		}
+		//Every key has at least one value, so 'nMin' keys always contain 'nMin' values.
+		PhKnnQuery<Object> knn = pht.nearestNeighbour(nMin,
+				dist == null ? PhDistanceL.THIS : dist, null, center);
+		List<T> buffer = new ArrayList<>();
+		while (knn.hasNext() && (countKeys || result.size() < nMin)) {
+			PhEntryDist<Object> e = knn.nextEntry();
+			buffer.clear();
+			addAll(e.getValue(), buffer);
+			for (int i = 0; i < buffer.size() && (countKeys || result.size() < nMin); i++) {
+				result.add(new PhEntryDist<>(e.getKey(), buffer.get(i), e.dist()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Clear the tree.
+	 */
+	public void clear() {
+		pht.clear();
+		nValues = 0;
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return pht.getDim();
+	}
+
+	public PhTreeStats getStats() {
+		return pht.getStats();
+	}
+
+	@Override
+	public String toString() {
+		return pht.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T unmaskNull(Object o) {
+		//The backing tree may return its own null marker
+		o = PhTreeHelper.unmaskNull(o);
+		return o == NULL ? null : (T) o;
+	}
+
+	private static <T> void addAll(Object o, List<T> list) {
+		if (o instanceof Bucket) {
+			Bucket b = (Bucket) o;
+			for (int i = 0; i < b.size; i++) {
+				list.add(unmaskNull(b.values[i]));
+			}
+		} else {
+			list.add(unmaskNull(o));
+		}
+	}
+
+	/**
+	 * Value bucket for keys with more than one value.
+	 */
+	private static final class Bucket {
+		private Object[] values;
+		private int size;
+
+		Bucket(Object v1, Object v2) {
+			values = new Object[]{v1, v2};
+			size = 2;
+		}
+
+		void add(Object v) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size + (size >> 1) + 1);
+			}
+			values[size++] = v;
+		}
+
+		int indexOf(Object v) {
+			for (int i = 0; i < size; i++) {
+				if (Objects.equals(values[i], v)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		boolean remove(Object v) {
+			int i = indexOf(v);
+			if (i < 0) {
+				return false;
+			}
+			values[i] = values[--size];
+			values[size] = null;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(Arrays.copyOf(values, size));
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.globis.phtree.PhTreeF.PhEntryDistF;
+import ch.ethz.globis.phtree.PhTreeF.PhEntryF;
+import ch.ethz.globis.phtree.pre.PreProcessorPointF;
+
+/**
+ * Multi-map with {@code double} keys, see {@link PhTreeMultiMap}.
+ *
+ * Unlike {@link PhTreeMultiMapF}, this does not add an ID dimension, values of the same
+ * key are stored in a value bucket.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> The value type of the tree
+ */
+public class PhTreeMultiMapBucketF<T> {
+
+	private final PhTreeMultiMap<T> pht;
+	private final PreProcessorPointF pre;
+
+	protected PhTreeMultiMapBucketF(int dim, PreProcessorPointF pre) {
+		this.pht = PhTreeMultiMap.create(dim);
+		this.pre = pre;
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeMultiMapBucketF
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeMultiMapBucketF<T> create(int dim) {
+		return new PhTreeMultiMapBucketF<>(dim, new PreProcessorPointF.IEEE());
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions and
+	 * a custom preprocessor.
+	 *
+	 * @param dim number of dimensions
+	 * @param pre The preprocessor to be used
+	 * @return PhTreeMultiMapBucketF
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeMultiMapBucketF<T> create(int dim, PreProcessorPointF pre) {
+		return new PhTreeMultiMapBucketF<>(dim, pre);
+	}
+
+	/**
+	 * @return the number of values in the tree
+	 */
+	public int size() {
+		return pht.size();
+	}
+
+	/**
+	 * @return the number of distinct keys in the tree
+	 */
+	public int sizeKeys() {
+		return pht.sizeKeys();
+	}
+
+	/**
+	 * Add a value to a key.
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(double[] key, T value) {
+		pht.put(pre(key), value);
+	}
+
+	/**
+	 * Remove one occurrence of a value from a key.
+	 * @param key the key
+	 * @param value the value
+	 * @return {@code true} if the value was found and removed
+	 */
+	public boolean remove(double[] key, T value) {
+		return pht.remove(pre(key), value);
+	}
+
+	/**
+	 * Remove all values of a key.
+	 * @param key the key
+	 * @return the number of removed values
+	 */
+	public int removeAll(double[] key) {
+		return pht.removeAll(pre(key));
+	}
+
+	/**
+	 * @param key the key
+	 * @return all values of the key or an empty list if the key does not exist
+	 */
+	public List<T> getAll(double[] key) {
+		return pht.getAll(pre(key));
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if the key has at least one value
+	 */
+	public boolean contains(double[] key) {
+		return pht.contains(pre(key));
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value
+	 * @return {@code true} if the key has the given value
+	 */
+	public boolean contains(double[] key, T value) {
+		return pht.contains(pre(key), value);
+	}
+
+	/**
+	 * Move one occurrence of a value to a new key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value the value
+	 * @return {@code true} if the value was found and moved
+	 */
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		return pht.update(pre(oldKey), pre(newKey), value);
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return all matching key/value pairs.
+	 */
+	public List<PhEntryF<T>> queryAll(double[] min, double[] max) {
+		List<PhEntryF<T>> list = new ArrayList<>();
+		pht.forEach(pre(min), pre(max), (key, value) -> list.add(new PhEntryF<>(post(key), value)));
+		return list;
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space, see
+	 * {@link PhTreeMultiMap#nearestNeighbour(int, boolean, PhDistance, long...)}.
+	 * @param nMin number of results
+	 * @param countKeys {@code true} to count distinct keys, {@code false} to count values.
+	 * @param center the center point
+	 * @return List of neighbours, ordered by distance.
+	 */
+	public List<PhEntryDistF<T>> nearestNeighbour(int nMin, boolean countKeys, double... center) {
+		List<PhEntryDist<T>> list = pht.nearestNeighbour(nMin, countKeys, PhDistanceF.THIS,
+				pre(center));
+		List<PhEntryDistF<T>> result = new ArrayList<>(list.size());
+		for (PhEntryDist<T> e : list) {
+			result.add(new PhEntryDistF<>(post(e.getKey()), e.getValue(), e.dist()));
+		}
+		return result;
+	}
+
+	/**
+	 * Clear the tree.
+	 */
+	public void clear() {
+		pht.clear();
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return pht.getDim();
+	}
+
+	/**
+	 * @return the underlying multi-map with {@code long} keys
+	 */
+	public PhTreeMultiMap<T> getInternalTree() {
+		return pht;
+	}
+
+	@Override
+	public String toString() {
+		return pht.toString();
+	}
+
+	private long[] pre(double[] key) {
+		long[] lKey = new long[key.length];
+		pre.pre(key, lKey);
+		return lKey;
+	}
+
+	private double[] post(long[] key) {
+		double[] dKey = new double[key.length];
+		pre.post(key, dKey);
+		return dKey;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v13.PhTree13.ValueStorage;
+
+/**
+ * k-dimensional index (quad-/oct-/n-tree) that stores only keys.
+ *
+ * The nodes of the tree do not store values. A node allocates a reference array only when
+ * it gets its first sub-node, nodes that contain only keys consist of the key bit-stream.
+ *
+ * @author ztilmann (Tilmann Zaeschke)
+ */
+public class PhTreeSet {
+
+	private final PhTree13<Object> pht;
+
+	protected PhTreeSet(int dim) {
+		this.pht = new PhTree13<>(dim, ValueStorage.NONE);
+	}
+
+	/**
+	 * Create a new tree with the specified number of dimensions.
+	 *
+	 * @param dim number of dimensions
+	 * @return PhTreeSet
+	 */
+	public static PhTreeSet create(int dim) {
+		return new PhTreeSet(dim);
+	}
+
+	/**
+	 * @return the number of keys in the tree
+	 */
+	public int size() {
+		return pht.size();
+	}
+
+	/**
+	 * Add a key to the tree.
+	 * @param key the key
+	 * @return {@code true} if the key was added, {@code false} if it already existed
+	 */
+	public boolean add(long... key) {
+		return pht.put(key, null) == null;
+	}
+
+	/**
+	 * @param key key
+	 * @return true if the key exists in the tree
+	 */
+	public boolean contains(long... key) {
+		return pht.contains(key);
+	}
+
+	/**
+	 * Remove a key from the tree.
+	 * @param key the key to remove
+	 * @return {@code true} if the key was found and removed
+	 */
+	public boolean remove(long... key) {
+		return pht.remove(key) != null;
+	}
+
+	/**
+	 * Update a key. Update may fail if the old key does not exist, or if the new
+	 * key already exists.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return {@code true} if the key was updated
+	 */
+	public boolean update(long[] oldKey, long[] newKey) {
+		return pht.updateIfAbsent(oldKey, newKey);
+	}
+
+	/**
+	 * @return an iterator over all keys in the tree
+	 */
+	public PhIteratorSet queryExtent() {
+		return new PhIteratorSet(pht.queryExtent());
+	}
+
+	/**
+	 * Performs a rectangular window query. The parameters are the min and max keys which 
+	 * contain the minimum respectively the maximum keys in every dimension.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return Result iterator.
+	 */
+	public PhQuerySet query(long[] min, long[] max) {
+		return new PhQuerySet(pht.query(min, max));
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @param visitor Called for every matching key. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEach(long[] min, long[] max, KeyVisitor visitor) {
+		return pht.forEach(min, max, null, (key, value) -> visitor.accept(key));
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of keys to be returned. More keys may or may not be returned if 
+	 * several points have the same distance.
+	 * @param dist the distance function, can be {@code null}. The default is {@link PhDistanceL}.
+	 * @param center the center point
+	 * @return List of keys, ordered by distance.
+	 */
+	public List<long[]> nearestNeighbour(int nMin, PhDistance dist, long... center) {
+		List<long[]> result = new ArrayList<>(nMin);
+		PhKnnQuery<Object> knn = pht.nearestNeighbour(nMin, dist == null ? PhDistanceL.THIS : dist, 
+				null, center);
+		while (knn.hasNext()) {
+			result.add(knn.nextKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Clear the tree.
+	 */
+	public void clear() {
+		pht.clear();
+	}
+
+	public int getDim() {
+		return pht.getDim();
+	}
+
+	public PhTreeStats getStats() {
+		return pht.getStats();
+	}
+
+	@Override
+	public String toString() {
+		return pht.toString(); 
+	}
+
+	/**
+	 * Callback interface for visitor based queries on key-only trees.
+	 */
+	@FunctionalInterface
+	public interface KeyVisitor {
+
+		/**
+		 * @param key the key, only valid during this call
+		 * @return {@code true} to continue the query, {@code false} to abort it.
+		 */
+		boolean accept(long[] key);
+	}
+
+	/**
+	 * Iterator over the keys of a key-only tree.
+	 */
+	public static class PhIteratorSet implements Iterator<long[]> {
+		private final PhIterator<Object> iter;
+
+		protected PhIteratorSet(PhIterator<Object> iter) {
+			this.iter = iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+
+		@Override
+		public long[] next() {
+			return iter.nextKey();
+		}
+
+		@Override
+		public void remove() {
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Query iterator over the keys of a key-only tree.
+	 */
+	public static class PhQuerySet extends PhIteratorSet {
+		private final PhQuery<Object> q;
+
+		protected PhQuerySet(PhQuery<Object> q) {
+			super(q);
+			this.q = q;
+		}
+
+		/**
+		 * Restarts the query with a new query rectangle.
+		 * @param min Minimum values
+		 * @param max Maximum values
+		 */
+		public void reset(long[] min, long[] max) {
+			q.reset(min, max);
+		}
+	}
+}
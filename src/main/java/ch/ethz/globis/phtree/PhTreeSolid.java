@@ -53,6 +53,18 @@ public class PhTreeSolid<T> implements Iterable<T> {
 		R apply(T lower, T upper, U value);
 	}
 
+	@FunctionalInterface
+	public interface SolidVisitor<K, T> {
+
+		/**
+		 * @param lower lower left corner
+		 * @param upper upper right corner
+		 * @param value the value
+		 * @return {@code false} to abort the query
+		 */
+		boolean accept(K lower, K upper, T value);
+	}
+
 	private final int dims;
 	private final PhTree<T> pht;
 	private final PreProcessorRange pre;
@@ -242,6 +254,51 @@ public class PhTreeSolid<T> implements Iterable<T> {
 		return new PhQueryS<>(pht.query(lLow, lUpp), dims, pre, true);
 	}
 
+	/**
+	 * Query for all bodies that contain the given point (stabbing query).
+	 * @param point the point
+	 * @return Iterator over all matching elements.
+	 */
+	public PhQueryS<T> queryContains(long... point) {
+		return queryIntersect(point, point);
+	}
+
+	/**
+	 * Query for all bodies that are included in or partially intersect with the query rectangle.
+	 * Unlike {@link #queryIntersect(long[], long[])}, this does not create an iterator and
+	 * reuses the arrays passed to the visitor. Use this for large result sets.
+	 * @param lower 'lower left' corner of query rectangle
+	 * @param upper 'upper right' corner of query rectangle
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEachIntersect(long[] lower, long[] upper, SolidVisitor<long[], ? super T> visitor) {
+		long[] lUpp = new long[lower.length << 1];
+		long[] lLow = new long[lower.length << 1];
+		pre.pre(qMIN, lower, lLow);
+		pre.pre(upper, qMAX, lUpp);
+		long[] bufLower = new long[dims];
+		long[] bufUpper = new long[dims];
+		return pht.forEach(lLow, lUpp, null, (key, value) -> {
+			pre.post(key, bufLower, bufUpper);
+			return visitor.accept(bufLower, bufUpper, value);
+		});
+	}
+
+	/**
+	 * Query for all bodies that contain the given point (stabbing query).
+	 * @param point the point
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see #forEachIntersect(long[], long[], SolidVisitor)
+	 */
+	public boolean forEachContains(long[] point, SolidVisitor<long[], ? super T> visitor) {
+		return forEachIntersect(point, point, visitor);
+	}
+
 	/**
 	 * Iterator class for solids/rectangles. 
 	 * @param <T> value type
@@ -41,6 +41,18 @@ public class PhTreeSolidF<T> implements Iterable<T> {
 		R apply(T lower, T upper, U value);
 	}
 
+	@FunctionalInterface
+	public interface SolidVisitor<K, T> {
+
+		/**
+		 * @param lower lower left corner
+		 * @param upper upper right corner
+		 * @param value the value
+		 * @return {@code false} to abort the query
+		 */
+		boolean accept(K lower, K upper, T value);
+	}
+
 	private final int dims;
 	private final PhTree<T> pht;
 	private final PreProcessorRangeF pre;
@@ -240,6 +252,51 @@ public class PhTreeSolidF<T> implements Iterable<T> {
 		return new PhQuerySF<>(pht.query(lLow, lUpp), dims, pre, true);
 	}
 	
+	/**
+	 * Query for all bodies that contain the given point (stabbing query).
+	 * @param point the point
+	 * @return Iterator over all matching elements.
+	 */
+	public PhQuerySF<T> queryContains(double... point) {
+		return queryIntersect(point, point);
+	}
+
+	/**
+	 * Query for all bodies that are included in or partially intersect with the query rectangle.
+	 * Unlike {@link #queryIntersect(double[], double[])}, this does not create an iterator and
+	 * reuses the arrays passed to the visitor. Use this for large result sets.
+	 * @param lower 'lower left' corner of query rectangle
+	 * @param upper 'upper right' corner of query rectangle
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see PhTree#forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEachIntersect(double[] lower, double[] upper, SolidVisitor<double[], ? super T> visitor) {
+		long[] lUpp = new long[lower.length << 1];
+		long[] lLow = new long[lower.length << 1];
+		pre.pre(qMIN, lower, lLow);
+		pre.pre(upper, qMAX, lUpp);
+		double[] bufLower = new double[dims];
+		double[] bufUpper = new double[dims];
+		return pht.forEach(lLow, lUpp, null, (key, value) -> {
+			pre.post(key, bufLower, bufUpper);
+			return visitor.accept(bufLower, bufUpper, value);
+		});
+	}
+
+	/**
+	 * Query for all bodies that contain the given point (stabbing query).
+	 * @param point the point
+	 * @param visitor Called for every matching entry. The query is aborted as soon as the
+	 * visitor returns {@code false}.
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see #forEachIntersect(double[], double[], SolidVisitor)
+	 */
+	public boolean forEachContains(double[] point, SolidVisitor<double[], ? super T> visitor) {
+		return forEachIntersect(point, point, visitor);
+	}
+
 	/**
 	 * Locate nearest neighbours for a given point in space.
 	 * @param nMin number of entries to be returned. More entries may or may not be returned if 
@@ -588,6 +645,25 @@ public class PhTreeSolidF<T> implements Iterable<T> {
 		return pht.size();
 	}
 
+	/**
+	 * Calculates the bounding box of all entries in the tree.
+	 * @param outMin output: the minimum lower corner of every dimension
+	 * @param outMax output: the maximum upper corner of every dimension
+	 * @return {@code false} if the tree is empty, otherwise {@code true}
+	 * @see PhTree#getBounds(long[], long[])
+	 */
+	public boolean getBounds(double[] outMin, double[] outMax) {
+		long[] lMin = new long[2*dims];
+		long[] lMax = new long[2*dims];
+		if (!pht.getBounds(lMin, lMax)) {
+			return false;
+		}
+		//lower corners are stored in [0, dims), upper corners in [dims, 2*dims)
+		System.arraycopy(lMax, dims, lMin, dims, dims);
+		pre.post(lMin, outMin, outMax);
+		return true;
+	}
+
 	/**
 	 * @param lower min value
 	 * @param upper max value
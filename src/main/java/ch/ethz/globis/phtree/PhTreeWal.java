@@ -0,0 +1,581 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+
+/**
+ * PH-Tree with a write-ahead log (WAL) for durable updates.
+ * <p>
+ * Every {@link #put(long[], Object)}, {@link #remove(long[])} and {@link #update(long[], long[])}
+ * is applied to an in-memory tree and appended to a log file. The calls return once the
+ * log record has been forced to disk. Concurrent callers share a single {@code fsync}
+ * (group commit): the first caller that finds unsynced records writes and forces all of them,
+ * the other callers only wait for it to finish.
+ * <p>
+ * {@link #checkpoint()} writes a snapshot of the tree with {@link PhTreeIO} and truncates the log.
+ * When the directory is opened again, the snapshot is read and the log is replayed.
+ * A torn record at the end of the log (from a crash during a write) is discarded.
+ * <p>
+ * All methods are thread-safe. I/O errors are reported as {@link UncheckedIOException}.
+ * If writing the log fails, the log is truncated to the last complete record and all further
+ * updates and checkpoints are rejected. They are also rejected if a checkpoint fails after the
+ * snapshot has been installed. The in-memory tree may then contain updates that are not
+ * durable, the durable state is recovered by opening the directory again.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> The value type of the tree
+ */
+public class PhTreeWal<T> implements Closeable {
+
+	private static final long MAGIC = 0x5048545245574C47L; //PHTREWLG
+	private static final int LOG_HEADER_SIZE = 16;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String SNAPSHOT_TMP = "snapshot.tmp";
+	private static final String LOG = "wal";
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_UPDATE = 3;
+
+	private final Path dir;
+	private final PhValueCodec<T> codec;
+	private final FileChannel log;
+	private PhTree<T> tree;
+	private long generation;
+
+	//Records that have been applied to the tree but are not yet written. Guarded by 'this'.
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+	private long appendSeq = 0;
+
+	//Guards writing and forcing the log.
+	private final Object syncLock = new Object();
+	private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+	private volatile long syncedSeq = 0;
+	//Set when writing the log failed. Guarded by syncLock.
+	private volatile IOException failure;
+
+	private PhTreeWal(Path dir, PhTree<T> tree, long generation, FileChannel log,
+			PhValueCodec<T> codec) {
+		this.dir = dir;
+		this.tree = tree;
+		this.generation = generation;
+		this.log = log;
+		this.codec = codec;
+	}
+
+	/**
+	 * Opens or creates a tree in a directory. If the directory contains a snapshot,
+	 * it is read, then all updates in the log are replayed.
+	 * @param dir the directory, it is created if it does not exist
+	 * @param dims number of dimensions, only used if no snapshot exists
+	 * @param codec codec for the values in the snapshot and in the log
+	 * @return the tree
+	 * @param <T> value type of the tree
+	 */
+	public static <T> PhTreeWal<T> open(Path dir, int dims, PhValueCodec<T> codec) {
+		try {
+			Files.createDirectories(dir);
+			Files.deleteIfExists(dir.resolve(SNAPSHOT_TMP));
+			PhTree<T> tree;
+			long gen = 0;
+			Path snapshot = dir.resolve(SNAPSHOT);
+			if (Files.exists(snapshot)) {
+				try (FileChannel fc = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+					ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
+					readFully(fc, bb);
+					gen = bb.getLong(0);
+					tree = PhTreeIO.read(fc, codec);
+				}
+				if (tree.getDim() != dims) {
+					throw new IllegalArgumentException(
+							"Snapshot has " + tree.getDim() + " dimensions, expected " + dims);
+				}
+			} else {
+				tree = PhTree.create(dims);
+			}
+
+			FileChannel log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				if (readLogGeneration(log) == gen) {
+					replay(log, tree, codec);
+				} else {
+					//Missing log or a log from before the last checkpoint
+					resetLog(log, gen);
+				}
+			} catch (IOException | RuntimeException e) {
+				log.close();
+				throw e;
+			}
+			return new PhTreeWal<>(dir, tree, gen, log, codec);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long readLogGeneration(FileChannel log) throws IOException {
+		if (log.size() < LOG_HEADER_SIZE) {
+			return -1;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(LOG_HEADER_SIZE);
+		log.position(0);
+		readFully(log, bb);
+		return bb.getLong(0) == MAGIC ? bb.getLong(8) : -1;
+	}
+
+	private static void resetLog(FileChannel log, long gen) throws IOException {
+		log.truncate(0);
+		ByteBuffer bb = ByteBuffer.allocate(LOG_HEADER_SIZE);
+		bb.putLong(MAGIC).putLong(gen).flip();
+		log.write(bb, 0);
+		log.force(true);
+		log.position(LOG_HEADER_SIZE);
+	}
+
+	/**
+	 * Replays all complete records of the log. The log is truncated after the last valid record.
+	 */
+	private static <T> void replay(FileChannel log, PhTree<T> tree, PhValueCodec<T> codec)
+			throws IOException {
+		long pos = LOG_HEADER_SIZE;
+		long size = log.size();
+		ByteBuffer head = ByteBuffer.allocate(8);
+		CRC32 crc = new CRC32();
+		int dims = tree.getDim();
+		while (pos + head.capacity() <= size) {
+			head.clear();
+			log.position(pos);
+			readFully(log, head);
+			int len = head.getInt(0);
+			if (len <= 0 || pos + head.capacity() + len > size) {
+				break;
+			}
+			ByteBuffer data = ByteBuffer.allocate(len);
+			readFully(log, data);
+			crc.reset();
+			crc.update(data.array(), 0, len);
+			if ((int) crc.getValue() != head.getInt(4)) {
+				break;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array()));
+			byte op = in.readByte();
+			long[] key = readKey(in, dims);
+			switch (op) {
+			case OP_PUT:
+				tree.put(key, PhTreeIO.readValue(in, codec));
+				break;
+			case OP_REMOVE:
+				tree.remove(key);
+				break;
+			case OP_UPDATE:
+				tree.update(key, readKey(in, dims));
+				break;
+			default:
+				throw new IOException("Unknown log record: " + op);
+			}
+			pos += head.capacity() + len;
+		}
+		//Discard a torn record at the end
+		log.truncate(pos);
+		log.position(pos);
+	}
+
+	private static long[] readKey(DataInputStream in, int dims) throws IOException {
+		long[] key = new long[dims];
+		for (int i = 0; i < dims; i++) {
+			key[i] = in.readLong();
+		}
+		return key;
+	}
+
+	private static void readFully(FileChannel fc, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			if (fc.read(bb) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Insert an entry associated with a k dimensional key.
+	 * The call returns when the update has been written to the log.
+	 * @param key the key to store the value to store
+	 * @param value the value
+	 * @return the previously associated value or {@code null} if the key was found
+	 * @see PhTree#put(long[], Object)
+	 */
+	public T put(long[] key, T value) {
+		long seq;
+		T prev;
+		synchronized (this) {
+			checkFailure();
+			try {
+				startRecord(OP_PUT, key);
+				PhTreeIO.writeValue(value, recordOut, codec);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			prev = PhTreeHelper.unmaskNull(tree.put(key, value));
+			seq = appendRecord();
+		}
+		sync(seq);
+		return prev;
+	}
+
+	/**
+	 * Remove the entry associated with a k dimensional key.
+	 * The call returns when the update has been written to the log.
+	 * @param key the key to remove
+	 * @return the associated value or {@code null} if the key was found
+	 * @see PhTree#remove(long[])
+	 */
+	public T remove(long... key) {
+		long seq;
+		T prev;
+		synchronized (this) {
+			checkFailure();
+			if (!tree.contains(key)) {
+				return null;
+			}
+			startRecord(OP_REMOVE, key);
+			prev = PhTreeHelper.unmaskNull(tree.remove(key));
+			seq = appendRecord();
+		}
+		sync(seq);
+		return prev;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * The call returns when the update has been written to the log.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value (can be {@code null}) associated with the updated key if the key could be
+	 * updated, otherwise {@code null}.
+	 * @see PhTree#update(long[], long[])
+	 */
+	public T update(long[] oldKey, long[] newKey) {
+		long seq;
+		T prev;
+		synchronized (this) {
+			checkFailure();
+			if (!tree.contains(oldKey)) {
+				return null;
+			}
+			startRecord(OP_UPDATE, oldKey);
+			checkDim(newKey);
+			try {
+				for (long l : newKey) {
+					recordOut.writeLong(l);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			prev = PhTreeHelper.unmaskNull(tree.update(oldKey, newKey));
+			seq = appendRecord();
+		}
+		sync(seq);
+		return prev;
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new UncheckedIOException("Writing the log failed, updates are rejected", failure);
+		}
+	}
+
+	private void checkDim(long[] key) {
+		if (key.length != tree.getDim()) {
+			throw new IllegalArgumentException("Key has " + key.length + " dimensions, expected "
+					+ tree.getDim());
+		}
+	}
+
+	private void startRecord(byte op, long[] key) {
+		checkDim(key);
+		record.reset();
+		try {
+			recordOut.writeByte(op);
+			for (long l : key) {
+				recordOut.writeLong(l);
+			}
+		} catch (IOException e) {
+			//ByteArrayOutputStream does not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Appends the current record to the pending buffer.
+	 * @return the sequence number of the record
+	 */
+	private long appendRecord() {
+		byte[] ba = record.toByteArray();
+		crc.reset();
+		crc.update(ba, 0, ba.length);
+		int len = 8 + ba.length;
+		if (pending.remaining() < len) {
+			ByteBuffer bb = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + len));
+			pending.flip();
+			bb.put(pending);
+			pending = bb;
+		}
+		pending.putInt(ba.length).putInt((int) crc.getValue()).put(ba);
+		return ++appendSeq;
+	}
+
+	/**
+	 * Group commit: waits until the log is durable up to the given record. The thread that
+	 * enters first writes and forces all pending records, including those of other threads.
+	 * If this fails, the log is truncated to the last forced record and the WAL is marked
+	 * as failed. This also fails all threads that are waiting for the records.
+	 */
+	private void sync(long seq) {
+		if (syncedSeq >= seq) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (syncedSeq >= seq) {
+				//Another thread has forced our record
+				return;
+			}
+			//Our record may have been discarded by a failed write
+			checkFailure();
+			long last;
+			synchronized (this) {
+				//Swap buffers so other threads can continue to append while we write
+				ByteBuffer bb = pending;
+				pending = writing;
+				writing = bb;
+				last = appendSeq;
+			}
+			writing.flip();
+			long pos = -1;
+			try {
+				pos = log.position();
+				while (writing.hasRemaining()) {
+					log.write(writing);
+				}
+				log.force(false);
+			} catch (IOException e) {
+				failure = e;
+				//Remove partially written records, they must not be replayed
+				try {
+					if (pos >= 0) {
+						log.truncate(pos);
+						log.force(false);
+					}
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
+				}
+				throw new UncheckedIOException(e);
+			} finally {
+				writing.clear();
+			}
+			syncedSeq = last;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the tree and truncates the log. This bounds the time
+	 * required for replaying the log when the tree is opened.
+	 * Concurrent updates are blocked until the checkpoint is complete.
+	 */
+	public void checkpoint() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				checkFailure();
+				long gen = generation + 1;
+				try {
+					Path tmp = dir.resolve(SNAPSHOT_TMP);
+					try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+						ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
+						bb.putLong(gen).flip();
+						fc.write(bb);
+						PhTreeIO.write(tree, fc, codec);
+						fc.force(true);
+					}
+					//The log is still valid until the snapshot is in place. After this, the old
+					//log is ignored because it has an older generation.
+					Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				generation = gen;
+				pending.clear();
+				syncedSeq = appendSeq;
+				try {
+					//The rename is only durable once the directory is forced
+					forceDirectory(dir);
+					resetLog(log, gen);
+				} catch (IOException e) {
+					//Updates must not go to the log of the old generation, it is discarded
+					//when the directory is opened again.
+					failure = e;
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces the directory. This is best-effort on platforms where a directory cannot be
+	 * opened as channel (Windows).
+	 */
+	private static void forceDirectory(Path dir) throws IOException {
+		FileChannel fc;
+		try {
+			fc = FileChannel.open(dir, StandardOpenOption.READ);
+		} catch (IOException | UnsupportedOperationException e) {
+			return;
+		}
+		try (FileChannel c = fc) {
+			c.force(true);
+		}
+	}
+
+	/**
+	 * @return the size of the log file in bytes, including records that are not yet written.
+	 */
+	public long logSize() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					return log.size() + pending.position();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value associated with the key or {@code null}
+	 */
+	public synchronized T get(long... key) {
+		return tree.get(key);
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if the key exists in the tree
+	 */
+	public synchronized boolean contains(long... key) {
+		return tree.contains(key);
+	}
+
+	/**
+	 * Performs a rectangular window query.
+	 * @param min Minimum values
+	 * @param max Maximum values
+	 * @return all matching entries.
+	 */
+	public synchronized List<PhEntry<T>> queryAll(long[] min, long[] max) {
+		return tree.queryAll(min, max);
+	}
+
+	/**
+	 * Locate nearest neighbours for a given point in space.
+	 * @param nMin number of entries to be returned. More entries may be returned with several have
+	 * 				the same distance.
+	 * @param key the center point
+	 * @return List of neighbours.
+	 */
+	public synchronized List<PhEntryDist<T>> nearestNeighbour(int nMin, long... key) {
+		List<PhEntryDist<T>> list = new ArrayList<>();
+		PhKnnQuery<T> q = tree.nearestNeighbour(nMin, key);
+		while (q.hasNext()) {
+			list.add(q.nextEntry());
+		}
+		return list;
+	}
+
+	/**
+	 * @return the number of entries in the tree
+	 */
+	public synchronized int size() {
+		return tree.size();
+	}
+
+	/**
+	 * @return the number of dimensions
+	 */
+	public int getDim() {
+		return tree.getDim();
+	}
+
+	/**
+	 * Forces all pending records to disk and closes the log. The in-memory tree is discarded.
+	 * The log is closed even if forcing the records fails. After a failed write, records that
+	 * were not written are discarded without an exception.
+	 */
+	@Override
+	public void close() {
+		long seq;
+		synchronized (this) {
+			seq = appendSeq;
+		}
+		try {
+			if (failure == null) {
+				sync(seq);
+			}
+		} finally {
+			try {
+				log.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				synchronized (this) {
+					tree = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PhTreeWal(dir=" + dir + ", size=" + (tree == null ? "closed" : tree.size()) + ")";
+	}
+}
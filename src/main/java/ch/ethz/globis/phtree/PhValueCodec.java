@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encodes and decodes values of a tree, for example when a tree is written to disk.
+ * Values are never {@code null} when they are passed to a codec.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> value type
+ */
+public interface PhValueCodec<T> {
+
+	/** Codec for trees that store only {@code null} values, such as {@link PhTreeSet}. */
+	PhValueCodec<Object> NONE = new PhValueCodec<Object>() {
+		@Override
+		public void write(Object value, DataOutput out) {
+			throw new IllegalArgumentException("Only 'null' values are supported: " + value);
+		}
+
+		@Override
+		public Object read(DataInput in) {
+			throw new IllegalStateException();
+		}
+	};
+
+	/** Codec for {@link Long} values. */
+	PhValueCodec<Long> LONG = new PhValueCodec<Long>() {
+		@Override
+		public void write(Long value, DataOutput out) throws IOException {
+			out.writeLong(value);
+		}
+
+		@Override
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+	};
+
+	/** Codec for {@link Integer} values. */
+	PhValueCodec<Integer> INTEGER = new PhValueCodec<Integer>() {
+		@Override
+		public void write(Integer value, DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	/** Codec for {@link String} values with at most 65535 bytes in modified UTF-8. */
+	PhValueCodec<String> STRING = new PhValueCodec<String>() {
+		@Override
+		public void write(String value, DataOutput out) throws IOException {
+			out.writeUTF(value);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			return in.readUTF();
+		}
+	};
+
+	/**
+	 * Codec for arbitrary {@link java.io.Serializable} values. This uses Java serialization
+	 * for every single value and is therefore slow and space consuming.
+	 */
+	PhValueCodec<Object> SERIALIZABLE = new PhValueCodec<Object>() {
+		@Override
+		public void write(Object value, DataOutput out) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+				oos.writeObject(value);
+			}
+			out.writeInt(bos.size());
+			out.write(bos.toByteArray());
+		}
+
+		@Override
+		public Object read(DataInput in) throws IOException {
+			byte[] ba = new byte[in.readInt()];
+			in.readFully(ba);
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(ba))) {
+				return ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+	};
+
+	/**
+	 * @param value the value, never {@code null}
+	 * @param out output
+	 * @throws IOException if writing fails
+	 */
+	void write(T value, DataOutput out) throws IOException;
+
+	/**
+	 * @param in input
+	 * @return the value
+	 * @throws IOException if reading fails
+	 */
+	T read(DataInput in) throws IOException;
+}
@@ -45,6 +45,23 @@ public interface PreProcessorRangeF {
 	public void post(long[] pre, double[] post1, double[] post2);
 	
 	
+	/**
+	 * Post-processes a single coordinate of either corner.
+	 * This allows decoding single coordinates without allocating any arrays.
+	 * The default implementation decodes a one-dimensional rectangle with
+	 * {@link #post(long[], double[], double[])}. It allocates arrays and only works for
+	 * implementations that take the number of dimensions from the length of the arrays,
+	 * implementations should override it.
+	 * @param pre pre-processed value (input)
+	 * @return post-processed value
+	 */
+	public default double post(long pre) {
+		double[] post1 = new double[1];
+		post(new long[] {pre, pre}, post1, new double[1]);
+		return post1[0];
+	}
+	
+	
 	/**
 	 * Simple IEEE preprocessor that converts the bits directly to an integer value.
 	 * The conversion is lossless. Euclidean space properties are not fully maintained in
@@ -86,6 +103,11 @@ public interface PreProcessorRangeF {
 				post2[d] = BitTools.toDouble(pre[d+pDIM]);
 			}
 		}
+
+		@Override
+		public double post(long pre) {
+			return BitTools.toDouble(pre);
+		}
 	}
 	
 	
@@ -133,6 +155,11 @@ public interface PreProcessorRangeF {
 				post2[i] = pre[i+dims]*div;
 			}
 		}
+
+		@Override
+		public double post(long pre) {
+			return pre*div;
+		}
 	}
 	
 	/**
@@ -179,6 +206,11 @@ public interface PreProcessorRangeF {
 				post2[i] = BitTools.toDouble(pre[i+dims])-shift;
 			}
 		}
+
+		@Override
+		public double post(long pre) {
+			return BitTools.toDouble(pre)-shift;
+		}
 	}
 	
 	/**
@@ -229,6 +261,11 @@ public interface PreProcessorRangeF {
 				post2[i] = pre[i+dims]*div-shift;
 			}
 		}
+
+		@Override
+		public double post(long pre) {
+			return pre*div-shift;
+		}
 	}
 	
 
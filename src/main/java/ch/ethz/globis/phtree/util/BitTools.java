@@ -42,6 +42,28 @@ public class BitTools {
 		return (r >= 0) ? r : r ^ 0x7FFFFFFF;
 	}
 
+	/**
+	 * Encodes a float as an unsigned, sortable 32 bit value. Unlike {@link #toSortableLong(float)},
+	 * the result is never negative, so it can be stored in a tree with a bit depth of 32.
+	 * @param value value to convert
+	 * @return sortable value in the range {@code [0, 2^32)}
+	 */
+	public static long toSortableUInt32(float value) {
+		//see toSortableLong(double). Additionally we flip the sign bit, so that negative values
+		//come first when interpreted as unsigned integer.
+		int r = Float.floatToRawIntBits(value);
+		return ((r >= 0) ? r ^ 0x80000000 : ~r) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @param value value encoded with {@link #toSortableUInt32(float)}
+	 * @return the float value
+	 */
+	public static float fromSortableUInt32(long value) {
+		int iVal = (int) value;
+		return Float.intBitsToFloat(iVal < 0 ? iVal ^ 0x80000000 : ~iVal);
+	}
+
 	public static double toDouble(long value) {
 		return Double.longBitsToDouble(value >= 0 ? value : value ^ 0x7FFFFFFFFFFFFFFFL);
 	}
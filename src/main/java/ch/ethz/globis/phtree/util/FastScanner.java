@@ -31,13 +31,32 @@ import java.io.IOException;
  */
 public class FastScanner {
 
+	/** Powers of ten that are exactly representable as double. */
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
 	private final BufferedReader reader;
+	private final char delimiter;
 	
 	private String currentLine = null;
 	private int currentPos = 0;
 	
 	public FastScanner(BufferedReader reader) {
+		this(reader, ' ');
+	}
+
+	/**
+	 * @param reader input
+	 * @param delimiter the character that separates tokens, for example ',' for CSV files
+	 */
+	public FastScanner(BufferedReader reader, char delimiter) {
 		this.reader = reader;
+		this.delimiter = delimiter;
 		try {
 			currentLine = reader.readLine();
 		} catch (IOException e) {
@@ -73,7 +92,7 @@ public class FastScanner {
 
 	public String next() {
 		int pos;
-		while ((pos = currentLine.indexOf(' ', currentPos)) == currentPos) {
+		while ((pos = currentLine.indexOf(delimiter, currentPos)) == currentPos) {
 			currentPos++;
 		}
 		
@@ -88,4 +107,130 @@ public class FastScanner {
 		return ret;
 	}
 
+	/**
+	 * Parses the remaining tokens of the current line as doubles and moves to the next line.
+	 * Whitespace around tokens is ignored. If the delimiter is a whitespace character,
+	 * consecutive delimiters are treated as one, otherwise empty tokens are rejected.
+	 * An empty line has no tokens.
+	 * @param out output, tokens that do not fit into the array are not parsed
+	 * @return the number of tokens, this may be larger than the length of the output array
+	 * @throws NumberFormatException if a token is empty or not a valid double
+	 */
+	public int nextLineAsDoubles(double[] out) {
+		String line = currentLine;
+		int len = line.length();
+		boolean mergeDelimiters = delimiter <= ' ';
+		int n = 0;
+		int pos = currentPos;
+		if (skipWhitespace(line, pos, len) == len) {
+			pos = len + 1;
+		}
+		while (pos <= len) {
+			int end = line.indexOf(delimiter, pos);
+			if (end < 0) {
+				end = len;
+			}
+			int start = skipWhitespace(line, pos, end);
+			int stop = end;
+			while (stop > start && line.charAt(stop - 1) <= ' ') {
+				stop--;
+			}
+			if (start < stop) {
+				if (n < out.length) {
+					out[n] = parseDouble(line, start, stop);
+				}
+				n++;
+			} else if (!mergeDelimiters) {
+				throw new NumberFormatException("Empty token at position " + pos + ": " + line);
+			}
+			pos = end + 1;
+		}
+		currentPos = len;
+		nextLine();
+		return n;
+	}
+
+	private static int skipWhitespace(String s, int pos, int end) {
+		while (pos < end && s.charAt(pos) <= ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Parses a decimal number without creating a String. Numbers with up to 15 significant
+	 * digits and a small exponent are converted exactly, see Clinger's fast path. All other
+	 * numbers are passed to {@link Double#parseDouble(String)}, so the result is always the same.
+	 * @param s the line
+	 * @param start first character of the number
+	 * @param end end of the number (exclusive)
+	 * @return the value
+	 * @throws NumberFormatException if the number is not a valid double
+	 */
+	private static double parseDouble(String s, int start, int end) {
+		int i = start;
+		char c = s.charAt(i);
+		boolean negative = c == '-';
+		if (negative || c == '+') {
+			i++;
+		}
+		long mantissa = 0;
+		int nDigits = 0;
+		int exp = 0;
+		boolean hasDigits = false;
+		boolean hasDot = false;
+		for (; i < end; i++) {
+			c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				hasDigits = true;
+				if (mantissa != 0 || c != '0') {
+					if (++nDigits > 15) {
+						return Double.parseDouble(s.substring(start, end));
+					}
+					mantissa = mantissa * 10 + (c - '0');
+				}
+				if (hasDot) {
+					exp--;
+				}
+			} else if (c == '.' && !hasDot) {
+				hasDot = true;
+			} else {
+				break;
+			}
+		}
+		if (hasDigits && i < end && (c == 'e' || c == 'E')) {
+			i++;
+			boolean negativeExp = false;
+			if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+				negativeExp = s.charAt(i++) == '-';
+			}
+			int e = 0;
+			int eStart = i;
+			for (; i < end && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+				if (e < 10_000) {
+					e = e * 10 + (c - '0');
+				}
+			}
+			if (i == eStart) {
+				hasDigits = false;
+			}
+			exp += negativeExp ? -e : e;
+		}
+		if (!hasDigits || i != end) {
+			//Invalid number or a format that is not handled here, such as "NaN" or "1d"
+			return Double.parseDouble(s.substring(start, end));
+		}
+		double v;
+		if (mantissa == 0) {
+			v = 0;
+		} else if (exp >= 0 && exp < POW10.length) {
+			v = mantissa * POW10[exp];
+		} else if (exp < 0 && -exp < POW10.length) {
+			v = mantissa / POW10[-exp];
+		} else {
+			return Double.parseDouble(s.substring(start, end));
+		}
+		return negative ? -v : v;
+	}
+
 }
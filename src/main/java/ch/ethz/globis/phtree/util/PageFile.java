@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A file that consists of fixed size pages. Page 0 is the header page, the other pages
+ * can be allocated and freed. Free pages are kept in a linked list that is stored in the
+ * free pages themselves.
+ * <p>
+ * Pages are read and written through a {@link FileChannel}. Recently used pages are kept in
+ * a small LRU page cache. Writes go directly to the channel, they are made durable with
+ * {@link #writeHeader(ByteBuffer)}.
+ * <p>
+ * I/O errors are reported as {@link UncheckedIOException}.
+ *
+ * @author Tilmann Zaeschke
+ */
+public class PageFile implements Closeable {
+
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	public static final int DEFAULT_CACHE_PAGES = 256;
+	/** Number of bytes at the beginning of the header page that are used by the page file. */
+	public static final int HEADER_SIZE = 32;
+
+	private static final long MAGIC = 0x5048545245455046L; // "PHTREEPF"
+	private static final int VERSION = 1;
+	private static final long NO_PAGE = -1;
+
+	private final FileChannel channel;
+	private final int pageSize;
+	private final int cachePages;
+	private final LinkedHashMap<Long, ByteBuffer> cache;
+	private long nPages;
+	private long freeHead = NO_PAGE;
+	private int statReads;
+	private int statWrites;
+
+	private PageFile(FileChannel channel, int pageSize, int cachePages) {
+		this.channel = channel;
+		this.pageSize = pageSize;
+		this.cachePages = cachePages;
+		this.cache = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+				return size() > cachePages;
+			}
+		};
+	}
+
+	/**
+	 * Create a new page file. An existing file is overwritten.
+	 * @param path file path
+	 * @param pageSize page size in bytes
+	 * @param cachePages number of pages in the page cache
+	 * @return the page file
+	 */
+	public static PageFile create(Path path, int pageSize, int cachePages) {
+		if (pageSize < 2 * HEADER_SIZE) {
+			throw new IllegalArgumentException("pageSize=" + pageSize);
+		}
+		try {
+			FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, 
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			PageFile pf = new PageFile(fc, pageSize, cachePages);
+			pf.nPages = 1;
+			pf.writeHeader(ByteBuffer.allocate(0));
+			return pf;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Open an existing page file.
+	 * @param path file path
+	 * @param cachePages number of pages in the page cache
+	 * @return the page file
+	 */
+	public static PageFile open(Path path, int cachePages) {
+		try {
+			FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(fc, bb, 0);
+			bb.flip();
+			if (bb.getLong() != MAGIC || bb.getInt() != VERSION) {
+				fc.close();
+				throw new IOException("Not a page file: " + path);
+			}
+			PageFile pf = new PageFile(fc, bb.getInt(), cachePages);
+			pf.nPages = bb.getLong();
+			pf.freeHead = bb.getLong();
+			return pf;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return page size in bytes
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return a new page ID, this may be a previously freed page
+	 */
+	public long allocate() {
+		if (freeHead == NO_PAGE) {
+			return nPages++;
+		}
+		long id = freeHead;
+		freeHead = read(id).getLong(0);
+		return id;
+	}
+
+	/**
+	 * Free a page. The content of the page is lost.
+	 * @param pageId page ID
+	 */
+	public void free(long pageId) {
+		ByteBuffer bb = ByteBuffer.allocate(pageSize);
+		bb.putLong(0, freeHead);
+		write(pageId, bb);
+		freeHead = pageId;
+	}
+
+	/**
+	 * @param pageId page ID
+	 * @return a read-only view of the page
+	 */
+	public ByteBuffer read(long pageId) {
+		ByteBuffer bb = cache.get(pageId);
+		if (bb == null) {
+			bb = ByteBuffer.allocate(pageSize);
+			try {
+				readFully(channel, bb, pageId * pageSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			bb.clear();
+			statReads++;
+			cache.put(pageId, bb);
+		}
+		return bb.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads pages into the page cache. Runs of adjacent pages that are not cached are read
+	 * with a single read operation. At most half of the page cache is used for prefetching.
+	 * @param pageIds page IDs, the array is sorted by this method
+	 */
+	public void prefetch(long[] pageIds) {
+		Arrays.sort(pageIds);
+		int max = cachePages / 2;
+		int n = 0;
+		int i = 0;
+		while (i < pageIds.length && n < max) {
+			if (cache.containsKey(pageIds[i])) {
+				i++;
+				continue;
+			}
+			int j = i + 1;
+			while (j < pageIds.length && n + j - i < max && pageIds[j] == pageIds[j - 1] + 1 
+					&& !cache.containsKey(pageIds[j])) {
+				j++;
+			}
+			readRun(pageIds[i], j - i);
+			n += j - i;
+			i = j;
+		}
+	}
+
+	private void readRun(long firstId, int nPages) {
+		ByteBuffer run = ByteBuffer.allocate(nPages * pageSize);
+		try {
+			readFully(channel, run, firstId * pageSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int i = 0; i < nPages; i++) {
+			run.limit((i + 1) * pageSize);
+			run.position(i * pageSize);
+			cache.put(firstId + i, run.slice());
+		}
+		statReads += nPages;
+	}
+
+	/**
+	 * @param pageId page ID
+	 * @param page page content, the buffer must have exactly {@link #getPageSize()} bytes
+	 * remaining. The buffer is not modified.
+	 */
+	public void write(long pageId, ByteBuffer page) {
+		if (page.remaining() != pageSize) {
+			throw new IllegalArgumentException("size=" + page.remaining());
+		}
+		ByteBuffer copy = ByteBuffer.allocate(pageSize);
+		copy.put(page.duplicate());
+		copy.flip();
+		try {
+			long pos = pageId * pageSize;
+			while (copy.hasRemaining()) {
+				pos += channel.write(copy, pos);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		statWrites++;
+		copy.flip();
+		cache.put(pageId, copy);
+	}
+
+	/**
+	 * @return a copy of the user defined part of the header, see {@link #writeHeader(ByteBuffer)}.
+	 */
+	public ByteBuffer readHeader() {
+		ByteBuffer bb = ByteBuffer.allocate(pageSize);
+		try {
+			readFully(channel, bb, 0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		bb.position(HEADER_SIZE);
+		return bb.slice();
+	}
+
+	/**
+	 * Write the header page and force all changes to the storage device.
+	 * @param userHeader user defined header data, at most {@code pageSize - HEADER_SIZE} bytes.
+	 */
+	public void writeHeader(ByteBuffer userHeader) {
+		ByteBuffer bb = ByteBuffer.allocate(pageSize);
+		bb.putLong(MAGIC);
+		bb.putInt(VERSION);
+		bb.putInt(pageSize);
+		bb.putLong(nPages);
+		bb.putLong(freeHead);
+		bb.position(HEADER_SIZE);
+		bb.put(userHeader.duplicate());
+		bb.clear();
+		try {
+			channel.force(false);
+			while (bb.hasRemaining()) {
+				channel.write(bb, bb.position());
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		statWrites++;
+	}
+
+	/**
+	 * Remove all pages except the header page.
+	 */
+	public void clear() {
+		cache.clear();
+		nPages = 1;
+		freeHead = NO_PAGE;
+		try {
+			channel.truncate(pageSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return number of pages in the file, including the header page and free pages
+	 */
+	public long getPageCount() {
+		return nPages;
+	}
+
+	public int statsGetPageReads() {
+		return statReads;
+	}
+
+	public int statsGetPageWrites() {
+		return statWrites;
+	}
+
+	public void statsReset() {
+		statReads = 0;
+		statWrites = 0;
+	}
+
+	@Override
+	public void close() {
+		cache.clear();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			int n = fc.read(bb, pos + bb.position());
+			if (n < 0) {
+				//beyond end of file, e.g. allocated but not yet written
+				break;
+			}
+		}
+	}
+}
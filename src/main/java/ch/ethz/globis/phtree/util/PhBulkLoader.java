@@ -0,0 +1,533 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.pre.PreProcessorPointF;
+
+/**
+ * Parallel loader for files with points.
+ * <p>
+ * The input files are split into chunks of {@link #setChunkSize(int)} bytes. The chunks are
+ * parsed in parallel by {@link #setThreads(int)} threads into batches of keys. Coordinates are
+ * converted with a {@link PreProcessorPointF}, the keys of each batch are sorted in z-order.
+ * The batches are passed through a bounded queue to a {@link BatchSink} that is called in
+ * the thread that started the loading. If the sink is slower than the parsers, the parsers
+ * block until there is space in the queue.
+ * <p>
+ * Supported formats are:
+ * <ul>
+ * <li>{@link Format#CSV}: one point per line, coordinates are separated by
+ * {@link #setDelimiter(char)}. Empty lines are ignored.</li>
+ * <li>{@link Format#BINARY}: 'dims' doubles per point, see {@link #setByteOrder(ByteOrder)}.
+ * </li>
+ * </ul>
+ * Usage:
+ * <pre>{@code
+ * PhTreeF<Object> tree = PhTreeF.create(3);
+ * PhBulkLoader.Stats stats = new PhBulkLoader(3).load(tree, null, Format.CSV, path);
+ * System.out.println(stats.getRowsPerSecond());
+ * }</pre>
+ * I/O errors are reported as {@link UncheckedIOException}, invalid rows as
+ * {@link IllegalArgumentException}.
+ *
+ * @author Tilmann Zaeschke
+ */
+public class PhBulkLoader {
+
+	public enum Format {
+		CSV,
+		BINARY
+	}
+
+	/**
+	 * Receives the batches of parsed keys.
+	 */
+	@FunctionalInterface
+	public interface BatchSink {
+		/**
+		 * @param keys keys, sorted in z-order. The loader does not reuse the key arrays.
+		 * @param n number of keys
+		 */
+		void accept(long[][] keys, int n);
+	}
+
+	private static final Comparator<long[]> Z_ORDER =
+			(k1, k2) -> PhTreeHelper.compareZOrder(k1, k2, -1L);
+	/** Bytes that are read at once when searching the end of a line. */
+	private static final int LINE_SEARCH = 256;
+
+	private final int dims;
+	private final PreProcessorPointF pre;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int chunkSize = 1 << 24;
+	private int batchSize = 1 << 14;
+	private int queueCapacity = 16;
+	private char delimiter = ',';
+	private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+	private final AtomicLong rowsLoaded = new AtomicLong();
+
+	/**
+	 * Create a loader that converts coordinates with {@link PreProcessorPointF.IEEE}.
+	 * @param dims number of dimensions
+	 */
+	public PhBulkLoader(int dims) {
+		this(dims, new PreProcessorPointF.IEEE());
+	}
+
+	/**
+	 * @param dims number of dimensions
+	 * @param pre the preprocessor, this must be the preprocessor of the tree
+	 */
+	public PhBulkLoader(int dims, PreProcessorPointF pre) {
+		this.dims = dims;
+		this.pre = pre;
+	}
+
+	/**
+	 * @param threads number of parser threads, the default is the number of processors
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads=" + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @param chunkSize size of the chunks in bytes that are parsed by one thread, the default
+	 * is 16MB.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize=" + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param batchSize maximum number of keys that are passed to the sink at once, the
+	 * default is 16384.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize=" + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param queueCapacity maximum number of parsed batches that wait for the sink, the
+	 * default is 16.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity=" + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param delimiter separator of the coordinates in CSV files, the default is ','.
+	 */
+	public void setDelimiter(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * @param byteOrder byte order of the doubles in binary files, the default is big endian.
+	 */
+	public void setByteOrder(ByteOrder byteOrder) {
+		this.byteOrder = byteOrder;
+	}
+
+	/**
+	 * @return the number of rows that have been passed to the sink by the current or the
+	 * last call to a load() method. This can be called from other threads to report progress.
+	 */
+	public long getRowsLoaded() {
+		return rowsLoaded.get();
+	}
+
+	/**
+	 * Inserts all points into a tree.
+	 * @param tree the tree, the tree must use the same preprocessor as this loader
+	 * @param value the value for all points
+	 * @param format file format
+	 * @param files input files
+	 * @return statistics
+	 * @param <T> value type
+	 */
+	public <T> Stats load(PhTree<T> tree, T value, Format format, Path... files) {
+		return load(format, (keys, n) -> {
+			for (int i = 0; i < n; i++) {
+				tree.put(keys[i], value);
+			}
+		}, files);
+	}
+
+	/**
+	 * Inserts all points into a tree.
+	 * @param tree the tree, the tree must use the same preprocessor as this loader
+	 * @param value the value for all points
+	 * @param format file format
+	 * @param files input files
+	 * @return statistics
+	 * @param <T> value type
+	 */
+	public <T> Stats load(PhTreeF<T> tree, T value, Format format, Path... files) {
+		return load(tree.getInternalTree(), value, format, files);
+	}
+
+	/**
+	 * Parses all files and passes the keys to a sink.
+	 * @param format file format
+	 * @param sink the sink, it is called by the current thread
+	 * @param files input files
+	 * @return statistics
+	 */
+	public Stats load(Format format, BatchSink sink, Path... files) {
+		long t0 = System.nanoTime();
+		rowsLoaded.set(0);
+		List<Chunk> chunks = new ArrayList<>();
+		long bytes = 0;
+		for (Path file : files) {
+			bytes += split(file, format, chunks);
+		}
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueCapacity);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ParserThreadFactory());
+		try {
+			for (Chunk c : chunks) {
+				pool.execute(() -> parse(c, format, queue));
+			}
+			int done = 0;
+			while (done < chunks.size()) {
+				Batch b = queue.take();
+				if (b.error != null) {
+					throw b.error;
+				}
+				if (b.keys == null) {
+					done++;
+					continue;
+				}
+				sink.accept(b.keys, b.n);
+				rowsLoaded.addAndGet(b.n);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		} finally {
+			//This also stops parsers that wait for space in the queue
+			pool.shutdownNow();
+		}
+		return new Stats(rowsLoaded.get(), bytes, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Splits a file into chunks.
+	 * @return the file size
+	 */
+	private long split(Path file, Format format, List<Chunk> chunks) {
+		long size;
+		try {
+			size = Files.size(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		long step = chunkSize;
+		if (format == Format.BINARY) {
+			int recordSize = 8 * dims;
+			if (size % recordSize != 0) {
+				throw new IllegalArgumentException(
+						"File size is not a multiple of " + recordSize + ": " + file);
+			}
+			step = Math.max(1, chunkSize / recordSize) * recordSize;
+		}
+		for (long pos = 0; pos < size; pos += step) {
+			chunks.add(new Chunk(file, pos, Math.min(size, pos + step)));
+		}
+		return size;
+	}
+
+	private void parse(Chunk chunk, Format format, BlockingQueue<Batch> queue) {
+		try {
+			try {
+				if (format == Format.CSV) {
+					parseCsv(chunk, queue);
+				} else {
+					parseBinary(chunk, queue);
+				}
+			} catch (IOException e) {
+				queue.put(new Batch(new UncheckedIOException(e)));
+				return;
+			} catch (RuntimeException e) {
+				queue.put(new Batch(e));
+				return;
+			}
+			queue.put(new Batch(null, 0));
+		} catch (InterruptedException e) {
+			//the loading has been aborted
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void parseCsv(Chunk chunk, BlockingQueue<Batch> queue)
+			throws IOException, InterruptedException {
+		byte[] data;
+		int offs = 0;
+		try (FileChannel fc = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+			//Lines belong to the chunk in which they start. The byte before the chunk is read to
+			//find out whether the first line starts at the beginning of the chunk.
+			long start = chunk.start == 0 ? 0 : chunk.start - 1;
+			data = read(fc, start, (int) (chunk.end - start));
+			int len = data.length;
+			long pos = chunk.end;
+			while (len > 0 && data[len - 1] != '\n' && pos < fc.size()) {
+				byte[] more = read(fc, pos, LINE_SEARCH);
+				pos += more.length;
+				data = Arrays.copyOf(data, len + more.length);
+				System.arraycopy(more, 0, data, len, more.length);
+				int eol = indexOfEol(more, 0);
+				len = eol < 0 ? data.length : len + eol + 1;
+			}
+			if (chunk.start > 0) {
+				offs = indexOfEol(data, 0) + 1;
+				if (offs == 0 || offs >= chunk.end - start) {
+					//no line starts in this chunk
+					return;
+				}
+			}
+			data = Arrays.copyOf(data, len);
+		}
+
+		FastScanner sc = new FastScanner(new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(data, offs, data.length - offs), StandardCharsets.US_ASCII)),
+				delimiter);
+		double[] raw = new double[dims];
+		long[][] keys = new long[batchSize][];
+		int n = 0;
+		while (sc.hasNext()) {
+			int nTokens;
+			try {
+				nTokens = sc.nextLineAsDoubles(raw);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid row in " + chunk, e);
+			}
+			if (nTokens == 0) {
+				continue;
+			}
+			if (nTokens != dims) {
+				throw new IllegalArgumentException(
+						"Expected " + dims + " coordinates but got " + nTokens + " in " + chunk);
+			}
+			long[] key = new long[dims];
+			pre.pre(raw, key);
+			keys[n++] = key;
+			if (n == batchSize) {
+				emit(keys, n, queue);
+				keys = new long[batchSize][];
+				n = 0;
+			}
+		}
+		if (n > 0) {
+			emit(keys, n, queue);
+		}
+	}
+
+	private static int indexOfEol(byte[] data, int offs) {
+		for (int i = offs; i < data.length; i++) {
+			if (data[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void parseBinary(Chunk chunk, BlockingQueue<Batch> queue)
+			throws IOException, InterruptedException {
+		ByteBuffer bb;
+		try (FileChannel fc = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+			bb = ByteBuffer.wrap(read(fc, chunk.start, (int) (chunk.end - chunk.start)));
+		}
+		bb.order(byteOrder);
+		double[] raw = new double[dims];
+		long[][] keys = new long[batchSize][];
+		int n = 0;
+		while (bb.hasRemaining()) {
+			for (int d = 0; d < dims; d++) {
+				raw[d] = bb.getDouble();
+			}
+			long[] key = new long[dims];
+			pre.pre(raw, key);
+			keys[n++] = key;
+			if (n == batchSize) {
+				emit(keys, n, queue);
+				keys = new long[batchSize][];
+				n = 0;
+			}
+		}
+		if (n > 0) {
+			emit(keys, n, queue);
+		}
+	}
+
+	/**
+	 * Reads up to 'len' bytes, less if the end of the file is reached.
+	 */
+	private static byte[] read(FileChannel fc, long pos, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		while (bb.hasRemaining()) {
+			if (fc.read(bb, pos + bb.position()) < 0) {
+				break;
+			}
+		}
+		return bb.position() == len ? bb.array() : Arrays.copyOf(bb.array(), bb.position());
+	}
+
+	private static void emit(long[][] keys, int n, BlockingQueue<Batch> queue)
+			throws InterruptedException {
+		//Inserting keys in z-order improves the locality of the insertion
+		Arrays.sort(keys, 0, n, Z_ORDER);
+		queue.put(new Batch(keys, n));
+	}
+
+	/**
+	 * Statistics of a load operation.
+	 */
+	public static class Stats {
+		private final long rows;
+		private final long bytes;
+		private final long nanos;
+
+		Stats(long rows, long bytes, long nanos) {
+			this.rows = rows;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return number of loaded rows
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return total size of the input files
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return duration in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return rows per second
+		 */
+		public double getRowsPerSecond() {
+			return nanos == 0 ? 0 : rows * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "rows=" + rows + ";bytes=" + bytes + ";ms=" + nanos / 1_000_000
+					+ ";rows/s=" + (long) getRowsPerSecond();
+		}
+	}
+
+	private static class Chunk {
+		final Path file;
+		final long start;
+		final long end;
+
+		Chunk(Path file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public String toString() {
+			return file + " [" + start + ", " + end + ")";
+		}
+	}
+
+	/**
+	 * A batch of keys. A batch without keys marks the end of a chunk.
+	 */
+	private static class Batch {
+		final long[][] keys;
+		final int n;
+		final RuntimeException error;
+
+		Batch(long[][] keys, int n) {
+			this.keys = keys;
+			this.n = n;
+			this.error = null;
+		}
+
+		Batch(RuntimeException error) {
+			this.keys = null;
+			this.n = 0;
+			this.error = error;
+		}
+	}
+
+	private static class ParserThreadFactory implements ThreadFactory {
+		private static final AtomicInteger ID = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PhBulkLoader-" + ID.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
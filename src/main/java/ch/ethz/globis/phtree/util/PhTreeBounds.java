@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import java.util.Arrays;
+
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhTree;
+
+/**
+ * Incrementally maintained bounding box of all keys in a tree.
+ *
+ * Insertions extend the box in O(dims). A removal invalidates the box only if the removed
+ * key lies on the boundary. An invalid box is recomputed lazily with
+ * {@link #compute(PhTree, long[], long[])}, which only descends into nodes that can
+ * extend the box found so far.
+ *
+ * @author Tilmann Zaeschke
+ */
+public final class PhTreeBounds {
+
+	private final PhTree<?> tree;
+	private final long[] min;
+	private final long[] max;
+	private boolean isValid = false;
+
+	public PhTreeBounds(PhTree<?> tree, int dims) {
+		this.tree = tree;
+		this.min = new long[dims];
+		this.max = new long[dims];
+	}
+
+	/**
+	 * Call this after a key has been inserted.
+	 * @param key the new key
+	 */
+	public void insert(long[] key) {
+		if (tree.size() == 1) {
+			System.arraycopy(key, 0, min, 0, min.length);
+			System.arraycopy(key, 0, max, 0, max.length);
+			isValid = true;
+			return;
+		}
+		if (!isValid) {
+			return;
+		}
+		for (int i = 0; i < min.length; i++) {
+			if (key[i] < min[i]) {
+				min[i] = key[i];
+			}
+			if (key[i] > max[i]) {
+				max[i] = key[i];
+			}
+		}
+	}
+
+	/**
+	 * Call this after a key has been removed.
+	 * @param key the removed key
+	 */
+	public void remove(long[] key) {
+		if (!isValid) {
+			return;
+		}
+		for (int i = 0; i < min.length; i++) {
+			if (key[i] == min[i] || key[i] == max[i]) {
+				isValid = false;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Call this after a key has been moved, or after an attempt to move a key has failed.
+	 * @param oldKey the removed key
+	 * @param newKey the new key
+	 */
+	public void update(long[] oldKey, long[] newKey) {
+		//The update may have failed, so we only extend the box if the new key really exists.
+		remove(oldKey);
+		if (isValid && !isInside(newKey) && tree.contains(newKey)) {
+			insert(newKey);
+		}
+	}
+
+	private boolean isInside(long[] key) {
+		for (int i = 0; i < min.length; i++) {
+			if (key[i] < min[i] || key[i] > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void clear() {
+		isValid = false;
+	}
+
+	/**
+	 * @param outMin output: the minimum value of every dimension
+	 * @param outMax output: the maximum value of every dimension
+	 * @return {@code false} if the tree is empty, otherwise {@code true}
+	 */
+	public boolean get(long[] outMin, long[] outMax) {
+		if (tree.size() == 0) {
+			return false;
+		}
+		if (!isValid) {
+			compute(tree, min, max);
+			isValid = true;
+		}
+		System.arraycopy(min, 0, outMin, 0, min.length);
+		System.arraycopy(max, 0, outMax, 0, max.length);
+		return true;
+	}
+
+	/**
+	 * Calculates the bounding box of all keys in a tree. This descends only into nodes that
+	 * may contain keys outside of the bounding box of the keys found so far.
+	 * @param tree the tree
+	 * @param outMin output: the minimum value of every dimension
+	 * @param outMax output: the maximum value of every dimension
+	 * @param <T> value type
+	 */
+	public static <T> void compute(PhTree<T> tree, long[] outMin, long[] outMax) {
+		Arrays.fill(outMin, Long.MAX_VALUE);
+		Arrays.fill(outMax, Long.MIN_VALUE);
+		long[] qMin = new long[outMin.length];
+		long[] qMax = new long[outMax.length];
+		Arrays.fill(qMin, Long.MIN_VALUE);
+		Arrays.fill(qMax, Long.MAX_VALUE);
+		tree.forEach(qMin, qMax, new PhFilterExtendsBox(outMin, outMax), (key, value) -> {
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] < outMin[i]) {
+					outMin[i] = key[i];
+				}
+				if (key[i] > outMax[i]) {
+					outMax[i] = key[i];
+				}
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Accepts only keys and nodes that lie (partially) outside of a given box.
+	 */
+	private static class PhFilterExtendsBox implements PhFilter {
+
+		/**  */
+		private static final long serialVersionUID = 1L;
+
+		private final long[] min;
+		private final long[] max;
+
+		PhFilterExtendsBox(long[] min, long[] max) {
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public boolean isValid(long[] key) {
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] < min[i] || key[i] > max[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isValid(int bitsToIgnore, long[] prefix) {
+			long mask = bitsToIgnore >= 64 ? 0 : ((-1L) << bitsToIgnore);
+			for (int i = 0; i < prefix.length; i++) {
+				if ((prefix[i] & mask) < min[i] || (prefix[i] | ~mask) > max[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
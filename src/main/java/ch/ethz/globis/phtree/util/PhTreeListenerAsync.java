@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.util;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeListener;
+
+/**
+ * Listener that delivers modifications of a tree asynchronously to another listener.
+ * <p>
+ * Events are copied into a preallocated ring buffer, keys are copied into arrays that
+ * belong to the slots of the buffer, so no objects are created per event. A single
+ * background thread takes the events from the buffer in batches of up to
+ * {@link #PhTreeListenerAsync(PhTreeListener, int, int, int) batchSize} and passes
+ * them in order to the target listener. If the buffer is full, the modifying thread blocks
+ * until the background thread has caught up.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * PhTreeListenerAsync<String> async = new PhTreeListenerAsync<>(replicator, dims, 4096, 256);
+ * tree.setListener(async);
+ * ...
+ * tree.setListener(null);
+ * async.close();
+ * }</pre>
+ * Keys passed to the target listener are only valid during the call.
+ * Exceptions thrown by the target listener do not stop the delivery, the first exception
+ * is rethrown, wrapped in an {@link IllegalStateException}, by {@link #flush()} or
+ * {@link #close()}.
+ *
+ * @author Tilmann Zaeschke
+ *
+ * @param <T> value type of the tree
+ */
+public class PhTreeListenerAsync<T> implements PhTreeListener<T>, AutoCloseable {
+
+	private static final byte PUT = 0;
+	private static final byte PUT_REPLACED = 1;
+	private static final byte REMOVE = 2;
+	private static final byte UPDATE = 3;
+	private static final byte CLEAR = 4;
+
+	private final PhTreeListener<T> target;
+	private final int dims;
+	private final int batchSize;
+	private final int mask;
+	private final byte[] types;
+	private final long[][] keys;
+	private final long[][] newKeys;
+	private final Object[] oldValues;
+	private final Object[] newValues;
+	private final Thread thread;
+
+	//All fields below are guarded by 'this'
+	/** Number of delivered events. */
+	private long head = 0;
+	/** Number of published events. */
+	private long tail = 0;
+	private boolean closed = false;
+	private Throwable failure;
+
+	/**
+	 * @param target the listener that receives the events
+	 * @param dims number of dimensions of the tree
+	 * @param capacity number of events that can be buffered, rounded up to a power of two
+	 * @param batchSize maximum number of events that are delivered in one batch
+	 */
+	public PhTreeListenerAsync(PhTreeListener<T> target, int dims, int capacity, int batchSize) {
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("capacity=" + capacity + " batchSize=" + batchSize);
+		}
+		int n = Integer.highestOneBit(capacity);
+		n = n < capacity ? n << 1 : n;
+		this.target = target;
+		this.dims = dims;
+		this.batchSize = Math.min(batchSize, n);
+		this.mask = n - 1;
+		this.types = new byte[n];
+		this.keys = new long[n][dims];
+		this.newKeys = new long[n][dims];
+		this.oldValues = new Object[n];
+		this.newValues = new Object[n];
+		this.thread = new Thread(this::run, "PhTreeListenerAsync");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public void onPut(long[] key, T oldValue, T newValue, boolean replaced) {
+		synchronized (this) {
+			int i = claim();
+			types[i] = replaced ? PUT_REPLACED : PUT;
+			System.arraycopy(key, 0, keys[i], 0, dims);
+			oldValues[i] = oldValue;
+			newValues[i] = newValue;
+			publish();
+		}
+	}
+
+	@Override
+	public void onRemove(long[] key, T oldValue) {
+		synchronized (this) {
+			int i = claim();
+			types[i] = REMOVE;
+			System.arraycopy(key, 0, keys[i], 0, dims);
+			oldValues[i] = oldValue;
+			publish();
+		}
+	}
+
+	@Override
+	public void onUpdate(long[] oldKey, long[] newKey, T value) {
+		synchronized (this) {
+			int i = claim();
+			types[i] = UPDATE;
+			System.arraycopy(oldKey, 0, keys[i], 0, dims);
+			System.arraycopy(newKey, 0, newKeys[i], 0, dims);
+			newValues[i] = value;
+			publish();
+		}
+	}
+
+	@Override
+	public void onClear() {
+		synchronized (this) {
+			types[claim()] = CLEAR;
+			publish();
+		}
+	}
+
+	/**
+	 * Waits for a free slot.
+	 * @return the position of the slot
+	 */
+	private int claim() {
+		while (tail - head > mask && !closed) {
+			await();
+		}
+		if (closed) {
+			throw new IllegalStateException("The listener is closed");
+		}
+		return (int) (tail & mask);
+	}
+
+	private void publish() {
+		if (tail++ == head) {
+			//The buffer was empty, wake up the background thread
+			notifyAll();
+		}
+	}
+
+	private void await() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+
+	private void run() {
+		while (true) {
+			long start;
+			int n;
+			synchronized (this) {
+				while (tail == head && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						//The thread is only stopped by close()
+					}
+				}
+				if (tail == head) {
+					return;
+				}
+				start = head;
+				n = (int) Math.min(tail - head, batchSize);
+			}
+			//The slots are not modified before 'head' is advanced
+			for (long e = start; e < start + n; e++) {
+				deliver((int) (e & mask));
+			}
+			synchronized (this) {
+				head += n;
+				notifyAll();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void deliver(int i) {
+		try {
+			switch (types[i]) {
+			case PUT:
+			case PUT_REPLACED:
+				target.onPut(keys[i], (T) oldValues[i], (T) newValues[i], types[i] == PUT_REPLACED);
+				break;
+			case REMOVE:
+				target.onRemove(keys[i], (T) oldValues[i]);
+				break;
+			case UPDATE:
+				target.onUpdate(keys[i], newKeys[i], (T) newValues[i]);
+				break;
+			case CLEAR:
+				target.onClear();
+				break;
+			default:
+				throw new IllegalStateException("type=" + types[i]);
+			}
+		} catch (RuntimeException | Error e) {
+			//The background thread must not stop, the modifying threads would block
+			synchronized (this) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		//Do not keep values reachable
+		oldValues[i] = null;
+		newValues[i] = null;
+	}
+
+	/**
+	 * @return the number of events that have not been delivered yet.
+	 */
+	public synchronized int getPending() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Waits until all events that were published before this call have been delivered.
+	 * @throws IllegalStateException if the target listener failed
+	 */
+	public void flush() {
+		synchronized (this) {
+			long end = tail;
+			while (head < end) {
+				await();
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Delivers all remaining events and stops the background thread. The listener should
+	 * be removed from the tree with {@link PhTree#setListener(PhTreeListener)} before it is
+	 * closed, further events cause an {@link IllegalStateException}.
+	 * @throws IllegalStateException if the target listener failed
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+		checkFailure();
+	}
+
+	private synchronized void checkFailure() {
+		if (failure != null) {
+			Throwable e = failure;
+			failure = null;
+			throw new IllegalStateException("Listener failed", e);
+		}
+	}
+}
@@ -22,7 +22,11 @@ package ch.ethz.globis.phtree.v13;
 import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhTreeIO;
+import ch.ethz.globis.phtree.PhValueCodec;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.function.BiFunction;
 
 
@@ -40,8 +44,30 @@ public class Node {
 	/** Bias towards using AHC. AHC is used if (sizeLHC*AHC_LHC_BIAS) greater than (sizeAHC)  */
 	public static final double AHC_LHC_BIAS = 2.0;
 
+	/** Marker in 'values' for entries with a primitive long value, see {@link NodeLong}. */
+	static final Object LONG_VALUE = new Object();
+	/** Marker in 'values' for entries with a primitive int value, see {@link NodeInt}. */
+	static final Object INT_VALUE = new Object();
+	/**
+	 * Marker for a new primitive value that is passed to the insert methods. The value itself
+	 * is passed via {@link PhTree13#primitiveNew()}, this avoids boxing it.
+	 */
+	static final Object NEW_PRIMITIVE = new Object();
+
+	//Entry types in snapshots, see PhTreeIO
+	private static final byte SLOT_EMPTY = 0;
+	private static final byte SLOT_NULL = 1;
+	private static final byte SLOT_NODE = 2;
+	private static final byte SLOT_VALUE = 3;
+	private static final byte SLOT_LONG = 4;
+	private static final byte SLOT_INT = 5;
+
+	/**
+	 * Values and sub-nodes. In trees without values this is 'null' until the node gets
+	 * its first sub-node. Entries are then represented by NULL.
+	 */
 	private Object[] values;
-	
+
 	private int entryCnt = 0;
 
 	/**
@@ -76,7 +102,7 @@ public class Node {
 	
 	static final int IK_WIDTH(int dims) { return dims; } //post index key width
 
-    private Node() {
+    Node() {
 		// For ZooDB only
 	}
 
@@ -84,6 +110,12 @@ public class Node {
         if (original.values != null) {
             this.values = tree.objPool().arrayClone(original.values);
         }
+        Object pv = original.primitives();
+        if (pv != null) {
+        	Object pv2 = createPrimitives(original.values.length);
+        	System.arraycopy(pv, 0, pv2, 0, original.values.length);
+        	setPrimitives(pv2);
+        }
         this.entryCnt = original.entryCnt;
         this.isHC = original.isHC;
         this.postLenStored = original.postLenStored;
@@ -104,7 +136,10 @@ public class Node {
 		this.isHC = false;
 		int size = calcArraySizeTotalBits(2, dims);
 		this.ba = tree.longPool().arrayCreate(size);
-		this.values = tree.objPool().arrayCreate(2);
+		this.values = tree.hasValues() ? tree.objPool().arrayCreate(2) : null;
+		if (values != null) {
+			setPrimitives(createPrimitives(values.length));
+		}
 	}
 
 	static Node createNode(int dims, int infixLenClassic, int postLenClassic, PhTree13<?> tree) {
@@ -116,6 +151,7 @@ public class Node {
 	private void discardNode(PhTree13<?> tree) {
 		tree.longPool().arrayReplace(ba, null);
 		tree.objPool().arrayReplace(values, null);
+		setPrimitives(null);
 		entryCnt = 0;
 		tree.nodePool().offer(this);
 	}
@@ -180,7 +216,7 @@ public class Node {
 			v = values[(int) hcPos];
 			offs = posToOffsBitsDataAHC(hcPos, getBitPosIndex(), dims);
 		} else {
-			v = values[pin];
+			v = rawValue(pin);
 			offs = pinToOffsBitsDataLHC(pin, getBitPosIndex(), dims);
 		}
 //		Object v = isHC() ? values[(int) hcPos] : values[pin];
@@ -193,13 +229,24 @@ public class Node {
 			}
 			return v;
 		} else {
+			//Primitive values are moved or replaced without boxing, see writeValue()
+			boolean isPrimitive = isPrimitive(v);
+			if (isPrimitive) {
+				tree.primitiveOld(getLongValue(pin));
+			}
+			Object prev;
 			if (getPostLen() > 0) {
 				long mask = calcPostfixMask();
-				return insertSplit(keyToMatch, newValueToInsert, v, pin, hcPos, tree, offs, mask);
+				prev = insertSplit(keyToMatch, newValueToInsert, v, pin, hcPos, tree, offs, mask);
+			} else {
+				//perfect match -> replace value
+				writeValue(pin, newValueToInsert, tree);
+				prev = v;
 			}
-			//perfect match -> replace value
-			values[pin] = newValueToInsert;
-			return v;
+			if (isPrimitive && prev != null && newValueToInsert != NEW_PRIMITIVE) {
+				return box(prev, tree.primitiveOld());
+			}
+			return prev;
 		}
 	}
 
@@ -236,7 +283,7 @@ public class Node {
 				//not found
 				return null;
 			}
-			v = values[pin];
+			v = rawValue(pin);
 			offs = pinToOffsBitsDataLHC(pin, getBitPosIndex(), dims);
 		}
 		if (v instanceof Node) {
@@ -254,10 +301,10 @@ public class Node {
 				return null;
 			}
 			if (getOnly) {
-				return v;
+				return readValue(pin);
 			} else {
 				return deleteAndMergeIntoParent(pin, hcPos, keyToMatch,
-						parent, newKey, insertRequired, v, tree);
+						parent, newKey, insertRequired, readValue(pin), tree);
 			}
 		}
 	}
@@ -286,7 +333,7 @@ public class Node {
 			v = values[(int) hcPos];
 			offs = posToOffsBitsDataAHC(hcPos, getBitPosIndex(), dims);
 		} else {
-			v = values[pin];
+			v = rawValue(pin);
 			offs = pinToOffsBitsDataLHC(pin, getBitPosIndex(), dims);
 		}
 		if (v instanceof Node) {
@@ -298,6 +345,7 @@ public class Node {
 			}
 			return v;
 		} else {
+			v = readValue(pin);
 			if (getPostLen() > 0) {
 				long mask = calcPostfixMask();
 				return insertSplitCompute(keyToMatch, v, doIfAbsent, parent, pin, hcPos, tree, offs, mask,
@@ -308,7 +356,7 @@ public class Node {
 			if (newValue == null) {
 				deleteAndMergeIntoParent(pin, hcPos, keyToMatch, parent, null, null, v, tree);
 			} else {
-				values[pin] = newValue;
+				writeValue(pin, newValue, tree);
 			}
 			return newValue;
 		}
@@ -370,7 +418,7 @@ public class Node {
 		int maxConflictingBits = calcConflictingBits(newKey, offs, buffer, mask);
 		if (maxConflictingBits == 0) {
 			if (!(currentValue instanceof Node)) {
-				values[pin] = newValue;
+				writeValue(pin, newValue, tree);
 			}
 			tree.longPool().offer(buffer);
 			return currentValue;
@@ -399,7 +447,7 @@ public class Node {
 			//exact match
 			T newValue = remappingFunction.apply(newKey, PhTreeHelper.unmaskNull(currentValue));
 			if (newValue != null) {
-				values[pin] = newValue;
+				writeValue(pin, newValue, tree);
 				return newValue;
 			}
 			deleteAndMergeIntoParent(pin, hcPos, newKey, parent, null, null, null, tree);
@@ -507,7 +555,8 @@ public class Node {
 			int bitPosOfDiff = calcConflictingBits(key, newKey, -1L);
 			if (bitPosOfDiff <= getPostLen()) {
 				//replace
-				return replacePost(pinToDelete, hcPos, newKey);
+				replacePost(pinToDelete, hcPos, newKey);
+				return valueToDelete;
 			} else {
 				insertRequired[0] = bitPosOfDiff;
 			}
@@ -535,7 +584,7 @@ public class Node {
 				if (values[i] != null && i != pinToDelete) {
 					pin2 = i;
 					pos2 = i;
-					val2 = values[i];
+					val2 = readValue(i);
 					break;
 				}
 			}
@@ -544,7 +593,7 @@ public class Node {
 			pin2 = (pinToDelete == 0) ? 1 : 0;
 			int offs = pinToOffsBitsLHC(pin2, getBitPosIndex(), dims);
 			pos2 = Bits.readArray(ba, offs, IK_WIDTH(dims));
-			val2 = values[pin2];
+			val2 = readValue(pin2);
 		}
 
 		long[] newPost = new long[dims];
@@ -578,10 +627,11 @@ public class Node {
 	 * @return The sub node or null.
 	 */
 	private Object getEntryByPIN(int posInNode, long hcPos, long[] postBuf) {
-		Object o = values[posInNode];
+		Object o = rawValue(posInNode);
 		if (o instanceof Node) {
 			getInfixOfSub(posInNode, hcPos, postBuf);
 		} else {
+			o = toValue(o, posInNode);
 			int offsetBit = pinToOffsBitsData(posInNode, hcPos, postBuf.length);
 			final long mask = mask1100(postLenStored());
 			for (int i = 0; i < postBuf.length; i++) {
@@ -616,13 +666,14 @@ public class Node {
 	 * @return The sub node or null.
 	 */
 	Object getEntryPIN(int posInNode, long hcPos, long[] subNodePrefix, long[] outKey) {
-		Object o = values[posInNode];
+		Object o = rawValue(posInNode);
 		if (o == null) {
 			return null;
 		}
 		if (o instanceof Node) {
 			getInfixOfSub(posInNode, hcPos, subNodePrefix);
 		} else {
+			o = toValue(o, posInNode);
 			int offsetBit = pinToOffsBitsData(posInNode, hcPos, subNodePrefix.length);
 			final long mask = mask1100(postLenStored());
 			for (int i = 0; i < subNodePrefix.length; i++) {
@@ -665,10 +716,10 @@ public class Node {
 		int offsIndex = getBitPosIndex();
 		int offsKey;
 		if (isAHC()) {
-			values[(int) hcPos] = value;
+			writeValue((int) hcPos, value, tree);
 			offsKey = posToOffsBitsDataAHC(hcPos, offsIndex, dims);
 		} else {
-			values[pin] = value;
+			writeValue(pin, value, tree);
 			offsKey = pinToOffsBitsLHC(pin, offsIndex, dims);
 			Bits.writeArray(ba, offsKey, IK_WIDTH(dims), hcPos);
 			offsKey += IK_WIDTH(dims);
@@ -686,20 +737,19 @@ public class Node {
 		}
 	}
 
-	private Object replacePost(int pin, long hcPos, long[] newKey) {
+	private void replacePost(int pin, long hcPos, long[] newKey) {
 		int offs = pinToOffsBitsData(pin, hcPos, newKey.length);
 		for (int i = 0; i < newKey.length; i++) {
 			Bits.writeArray(ba, offs, postLenStored(), newKey[i]);
 			offs += postLenStored();
 		}
-		return values[pin];
 	}
 
 	private void replaceEntryWithSub(int posInNode, long hcPos, long[] infix, Node newSub, PhTree13<?> tree) {
 		//TODO during insert we wounldn't need to rewrite the infix, only the infix-flag
 		//     would need to be set...
 		writeSubInfix(posInNode, hcPos, infix, newSub.requiresInfix());
-		values[posInNode] = newSub;
+		writeValue(posInNode, newSub, tree);
 	}
 	
 	private void writeSubInfix(int pin, long hcPos, long[] infix, boolean subRequiresInfix) {
@@ -727,7 +777,7 @@ public class Node {
 	 * it may have to be replaced with a post-fix.
 	 */
 	private void replaceSubWithPost(int pin, long hcPos, long[] key, Object value, PhTree13<?> tree) {
-		values[pin] = value;
+		writeValue(pin, value, tree);
 		replacePost(pin, hcPos, key);
 	}
 
@@ -738,6 +788,8 @@ public class Node {
 		setAHC( true );
 		long[] bia2 = tree.longPool().arrayCreate(calcArraySizeTotalBits(oldEntryCount+1, dims));
 		Object [] v2 = tree.objPool().arrayCreate(1<<dims);
+		Object pv = primitives();
+		Object pv2 = createPrimitives(v2.length);
 		//Copy only bits that are relevant. Otherwise we might mess up the not-null table!
 		Bits.copyBitsLeft(ba, 0, bia2, 0, posOfIndex);
 		int postLenTotal = dims*postLenStored(); 
@@ -747,10 +799,14 @@ public class Node {
 			Bits.copyBitsLeft(ba, entryPosLHC+IK_WIDTH(dims),
 					bia2, posOfData + postLenTotal*p2, 
 					postLenTotal);
-			v2[p2] = values[i];
+			v2[p2] = rawValue(i);
+			if (pv2 != null) {
+				System.arraycopy(pv, i, pv2, p2, 1);
+			}
 		}
 		ba = tree.longPool().arrayReplace(ba, bia2);
 		values = tree.objPool().arrayReplace(values, v2);
+		setPrimitives(pv2);
 	}
 	
 	
@@ -759,6 +815,8 @@ public class Node {
 		setAHC( false );
 		long[] bia2 = tree.longPool().arrayCreate(calcArraySizeTotalBits(oldEntryCount-1, dims));
 		Object[] v2 = tree.objPool().arrayCreate(oldEntryCount-1);
+		Object pv = primitives();
+		Object pv2 = createPrimitives(v2.length);
 		int oldOffsIndex = getBitPosIndex();
 		int oldOffsData = oldOffsIndex + (1<<dims)*INN_HC_WIDTH;
 		//Copy only bits that are relevant. Otherwise we might mess up the not-null table!
@@ -768,11 +826,14 @@ public class Node {
 		for (int i = 0; i < (1L<<dims); i++) {
 			if (i == hcPosToRemove) {
 				//skip the item that should be deleted.
-				oldEntry = values[i];
+				oldEntry = readValue(i);
 				continue;
 			}
 			if (values[i] != null) {
 				v2[n] = values[i];
+				if (pv2 != null) {
+					System.arraycopy(pv, i, pv2, n, 1);
+				}
 				int entryPosLHC = oldOffsIndex + n*(IK_WIDTH(dims)+postLenTotal);
 				Bits.writeArray(bia2, entryPosLHC, IK_WIDTH(dims), i);
 				Bits.copyBitsLeft(
@@ -784,6 +845,7 @@ public class Node {
 		}
 		ba = tree.longPool().arrayReplace(ba, bia2);
 		values = tree.objPool().arrayReplace(values, v2);
+		setPrimitives(pv2);
 		return oldEntry;
 	}
 	
@@ -819,7 +881,7 @@ public class Node {
 			for (int i = 0; i < key.length; i++) {
 				Bits.writeArray(ba, offsPostKey + postLenStored() * i, postLenStored(), key[i]);
 			}
-			values[(int) hcPos] = value;
+			writeValue((int) hcPos, value, tree);
 		} else {
 			//get position
 			pin = -(pin+1);
@@ -837,8 +899,12 @@ public class Node {
 				Bits.writeArray(ia, offs, postLenStored(), key[i]);
 				offs += postLenStored();
 			}
-			values = tree.objPool().insertSpaceAtPos(values, pin, bufEntryCnt+1);
-			values[pin] = value;
+			if (values != null) {
+				int oldLength = values.length;
+				values = tree.objPool().insertSpaceAtPos(values, pin, bufEntryCnt+1);
+				insertPrimitiveAtPos(pin, bufEntryCnt+1, oldLength, values.length);
+			}
+			writeValue(pin, value, tree);
 		}
 	}
 
@@ -856,7 +922,16 @@ public class Node {
 	 */
 	Object checkAndGetEntryPIN(int pin, long hcPos, long[] inOutPrefix, long[] outKey,
 			long[] rangeMin, long[] rangeMax) {
-		Object o = values[pin]; 
+		return toValue(checkAndGetEntryPINRaw(pin, hcPos, inOutPrefix, outKey, rangeMin, rangeMax), pin);
+	}
+
+	/**
+	 * Same as checkAndGetEntryPIN(), but primitive values are returned as LONG_VALUE or INT_VALUE,
+	 * see getLongValue().
+	 */
+	Object checkAndGetEntryPINRaw(int pin, long hcPos, long[] inOutPrefix, long[] outKey,
+			long[] rangeMin, long[] rangeMax) {
+		Object o = rawValue(pin);
 		if (o == null) {
 			return null;
 		}
@@ -972,7 +1047,7 @@ public class Node {
 		Object oldVal;
 		if (isAHC()) {
 			//hyper-cube
-			oldVal = values[(int) hcPos]; 
+			oldVal = readValue((int) hcPos);
 			values[(int) hcPos] = null;
 			//Nothing else to do, values can just stay where they are
 		} else {
@@ -983,8 +1058,12 @@ public class Node {
 			//shrink array
 			ba = tree.longPool().arrayTrim(ba, calcArraySizeTotalBits(bufEntryCnt-1, dims));
 			//values:
-			oldVal = values[posInNode]; 
-			values = tree.objPool().removeSpaceAtPos(values, posInNode, bufEntryCnt-1);
+			oldVal = readValue(posInNode);
+			if (values != null) {
+				int oldLength = values.length;
+				values = tree.objPool().removeSpaceAtPos(values, posInNode, bufEntryCnt-1);
+				removePrimitiveAtPos(posInNode, bufEntryCnt-1, oldLength, values.length);
+			}
 		}
 
 		decEntryCount();
@@ -1103,6 +1182,273 @@ public class Node {
 	Object[] values() {
 		return values;
 	}
+
+	/**
+	 * @return the array with primitive values or 'null', see {@link NodeLong} and {@link NodeInt}.
+	 * The array is parallel to 'values', the corresponding slot in 'values' contains
+	 * LONG_VALUE or INT_VALUE.
+	 */
+	Object primitives() {
+		return null;
+	}
+
+	void setPrimitives(Object primitives) {
+		//nothing to do
+	}
+
+	/**
+	 * @param length array length
+	 * @return a new array for primitive values or 'null' if the node does not store
+	 * primitive values.
+	 */
+	Object createPrimitives(int length) {
+		return null;
+	}
+
+	/**
+	 * Writes a boxed value unboxed, if the node supports the type of the value.
+	 * @param pin position in node (for AHC the hcPos)
+	 * @param value the value
+	 * @return true if the value was written
+	 */
+	boolean writePrimitive(int pin, Object value) {
+		return false;
+	}
+
+	/**
+	 * Writes a primitive value and the corresponding marker in 'values'.
+	 * @param pin position in node (for AHC the hcPos)
+	 * @param value the value
+	 */
+	void setLongValue(int pin, long value) {
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Get the primitive value of an entry in a tree with primitive values.
+	 * @param pin position in node (for AHC the hcPos)
+	 * @return the value
+	 */
+	long getLongValue(int pin) {
+		throw new IllegalStateException();
+	}
+
+	static boolean isPrimitive(Object o) {
+		return o == LONG_VALUE || o == INT_VALUE;
+	}
+
+	static Object box(Object marker, long value) {
+		return marker == LONG_VALUE ? (Object) Long.valueOf(value) : Integer.valueOf((int) value);
+	}
+
+	/**
+	 * Reads an entry value. Primitive values are returned as Long or Integer.
+	 * @param pin position in node (for AHC the hcPos)
+	 * @return the value, or a sub node, or null.
+	 */
+	private Object readValue(int pin) {
+		return toValue(rawValue(pin), pin);
+	}
+
+	/**
+	 * @param pin position in node (for AHC the hcPos)
+	 * @return the stored object, this may be a marker such as LONG_VALUE
+	 */
+	private Object rawValue(int pin) {
+		//'values' can only be 'null' in LHC nodes of trees without values
+		return values == null ? PhTreeHelper.NULL : values[pin];
+	}
+
+	Object toValue(Object o, int pin) {
+		return isPrimitive(o) ? box(o, getLongValue(pin)) : o;
+	}
+
+	/**
+	 * Writes an entry value or a sub-node. In trees with primitive values, Long or
+	 * Integer values are stored unboxed. In trees without values, entry values are ignored.
+	 * NEW_PRIMITIVE writes {@link PhTree13#primitiveNew()}, LONG_VALUE or INT_VALUE write
+	 * {@link PhTree13#primitiveOld()}, i.e. the value of an entry that is moved.
+	 * @param pin position in node (for AHC the hcPos)
+	 * @param value the new value
+	 */
+	private void writeValue(int pin, Object value, PhTree13<?> tree) {
+		if (!tree.hasValues()) {
+			if (value instanceof Node) {
+				if (values == null) {
+					//first sub-node: all other entries are keys
+					int n = Math.max(getEntryCount(), 2);
+					values = tree.objPool().arrayCreate(n);
+					Arrays.fill(values, 0, n, PhTreeHelper.NULL);
+				}
+				values[pin] = value;
+			} else if (values != null) {
+				values[pin] = PhTreeHelper.NULL;
+			}
+			return;
+		}
+		if (value == NEW_PRIMITIVE) {
+			setLongValue(pin, tree.primitiveNew());
+		} else if (isPrimitive(value)) {
+			setLongValue(pin, tree.primitiveOld());
+		} else if (!writePrimitive(pin, value)) {
+			values[pin] = value;
+		}
+	}
+
+	/**
+	 * Lookup for trees with primitive values. This is equivalent to calling doIfMatching()
+	 * with getOnly=true on every node along the path, but it does not box the value.
+	 * @param root the root node
+	 * @param keyToMatch the key
+	 * @param valueIfAbsent value to return if the key does not exist
+	 * @return the value or 'valueIfAbsent'
+	 */
+	static long getLong(Node root, long[] keyToMatch, long valueIfAbsent) {
+		int dims = keyToMatch.length;
+		Node node = root;
+		while (node != null) {
+			long hcPos = posInArray(keyToMatch, node.getPostLen());
+			int pin = node.getPosition(hcPos, dims);
+			if (pin < 0) {
+				return valueIfAbsent;
+			}
+			int offs = node.pinToOffsBitsData(pin, hcPos, dims);
+			Object v = node.values[pin];
+			if (v instanceof Node) {
+				Node sub = (Node) v;
+				if (node.hasSubInfix(offs, dims)
+						&& !node.readAndCheckKdKey(offs, keyToMatch, node.calcInfixMask(sub.getPostLen()))) {
+					return valueIfAbsent;
+				}
+				node = sub;
+			} else {
+				if (!node.readAndCheckKdKey(offs, keyToMatch, node.calcPostfixMask())) {
+					return valueIfAbsent;
+				}
+				return node.getLongValue(pin);
+			}
+		}
+		return valueIfAbsent;
+	}
+
+	/**
+	 * Writes the node and its sub-nodes in pre-order, see {@link PhTreeIO}.
+	 * @param out output
+	 * @param codec value codec
+	 * @param dims dimensions
+	 * @throws IOException if writing fails
+	 */
+	void write(PhTreeIO.Output out, PhValueCodec<Object> codec, int dims) throws IOException {
+		out.writeByte(postLenStored);
+		out.writeByte(infixLenStored);
+		out.writeBoolean(isHC);
+		out.writeInt(entryCnt);
+		out.writeInt(ba.length);
+		out.writeLongs(ba, 0, ba.length);
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		int nSlots = isHC ? 1 << dims : entryCnt;
+		for (int i = 0; i < nSlots; i++) {
+			Object v = values[i];
+			if (v == null) {
+				out.writeByte(SLOT_EMPTY);
+			} else if (v == PhTreeHelper.NULL) {
+				out.writeByte(SLOT_NULL);
+			} else if (v instanceof Node) {
+				out.writeByte(SLOT_NODE);
+				((Node) v).write(out, codec, dims);
+			} else if (v == LONG_VALUE) {
+				out.writeByte(SLOT_LONG);
+				out.writeLong(getLongValue(i));
+			} else if (v == INT_VALUE) {
+				out.writeByte(SLOT_INT);
+				out.writeLong(getLongValue(i));
+			} else {
+				out.writeByte(SLOT_VALUE);
+				codec.write(v, out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a node and its sub-nodes that were written with
+	 * {@link #write(PhTreeIO.Output, PhValueCodec, int)}.
+	 * @param in input
+	 * @param codec value codec
+	 * @param tree the tree
+	 * @return the new node
+	 * @throws IOException if reading fails
+	 */
+	static Node read(PhTreeIO.Input in, PhValueCodec<Object> codec, PhTree13<?> tree) throws IOException {
+		Node n = tree.nodePool().get();
+		n.postLenStored = in.readByte();
+		n.infixLenStored = in.readByte();
+		n.isHC = in.readBoolean();
+		n.entryCnt = in.readInt();
+		int baSize = in.readInt();
+		n.ba = tree.longPool().arrayCreate(baSize << 6);
+		in.readLongs(n.ba, 0, baSize);
+		int nValues = in.readInt();
+		if (nValues < 0) {
+			n.values = null;
+			return n;
+		}
+		Object[] values = tree.objPool().arrayCreate(nValues);
+		n.values = values;
+		n.setPrimitives(n.createPrimitives(values.length));
+		int nSlots = n.isHC ? 1 << tree.getDim() : n.entryCnt;
+		for (int i = 0; i < nSlots; i++) {
+			byte type = in.readByte();
+			switch (type) {
+			case SLOT_EMPTY:
+				break;
+			case SLOT_NULL:
+				values[i] = PhTreeHelper.NULL;
+				break;
+			case SLOT_NODE:
+				values[i] = read(in, codec, tree);
+				break;
+			case SLOT_LONG:
+			case SLOT_INT:
+				n.setLongValue(i, in.readLong());
+				break;
+			default:
+				values[i] = codec.read(in);
+			}
+		}
+		return n;
+	}
+
+	private void insertPrimitiveAtPos(int pos, int requiredSize, int oldLength, int newLength) {
+		Object a = primitives();
+		if (a == null) {
+			return;
+		}
+		Object dst = a;
+		if (newLength > oldLength) {
+			dst = createPrimitives(newLength);
+			System.arraycopy(a, 0, dst, 0, pos);
+		}
+		System.arraycopy(a, pos, dst, pos+1, requiredSize-1-pos);
+		setPrimitives(dst);
+	}
+
+	private void removePrimitiveAtPos(int pos, int requiredSize, int oldLength, int newLength) {
+		Object a = primitives();
+		if (a == null) {
+			return;
+		}
+		Object dst = a;
+		if (newLength < oldLength) {
+			dst = createPrimitives(newLength);
+			System.arraycopy(a, 0, dst, 0, pos);
+		}
+		System.arraycopy(a, pos+1, dst, pos, requiredSize-pos);
+		setPrimitives(dst);
+	}
 	
 	long[] ba() {
 		return ba;
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v13;
+
+/**
+ * Node of a tree with primitive {@code int} values, see {@link PhTree13.ValueStorage#INT}.
+ * 
+ * Values of type Integer are stored unboxed in a parallel array to 'values', other nodes do not
+ * have this array.
+ *
+ * @author ztilmann (Tilmann Zaeschke)
+ */
+final class NodeInt extends Node {
+
+	private int[] iValues;
+
+	static Node createEmpty() {
+		return new NodeInt();
+	}
+
+	@Override
+	Object primitives() {
+		return iValues;
+	}
+
+	@Override
+	void setPrimitives(Object primitives) {
+		iValues = (int[]) primitives;
+	}
+
+	@Override
+	Object createPrimitives(int length) {
+		return new int[length];
+	}
+
+	@Override
+	boolean writePrimitive(int pin, Object value) {
+		if (value instanceof Integer) {
+			setLongValue(pin, (Integer) value);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	void setLongValue(int pin, long value) {
+		iValues[pin] = (int) value;
+		values()[pin] = INT_VALUE;
+	}
+
+	@Override
+	long getLongValue(int pin) {
+		return iValues[pin];
+	}
+}
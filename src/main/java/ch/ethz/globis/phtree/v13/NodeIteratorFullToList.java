@@ -65,7 +65,7 @@ public class NodeIteratorFullToList<T> {
 	
 	@SuppressWarnings("unchecked")
 	private void readValue(int posInNode, long hcPos, KnnResultList<T> resultList) {
-		if (node.values()[posInNode] == null) {
+		if (node.values() != null && node.values()[posInNode] == null) {
 			return;
 		}
 		PhEntryDist<T> result = resultList.phGetTempEntry(); 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v13;
+
+import ch.ethz.globis.phtree.PhQueryMultiVisitor;
+import ch.ethz.globis.phtree.PhTreeHelper;
+
+/**
+ * A recursive query for multiple windows that traverses the tree only once.
+ *
+ * For every depth, we keep the list of windows that intersect with the current node.
+ * A sub-node is only visited with the windows that intersect with its prefix region,
+ * and it is not visited at all if there are no such windows.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class NodeIteratorMultiVisitor<T> {
+
+	private final int dims;
+	private final long[] valTemplate;
+	private final long[] resultKey;
+	private long[][] rangeMin;
+	private long[][] rangeMax;
+	//The active windows for each depth
+	private final int[][] active = new int[PhTree13.DEPTH_64 + 1][];
+	private final int[] nActive = new int[PhTree13.DEPTH_64 + 1];
+	private PhQueryMultiVisitor<T> visitor;
+
+	NodeIteratorMultiVisitor(int dims) {
+		this.dims = dims;
+		this.valTemplate = new long[dims];
+		this.resultKey = new long[dims];
+	}
+
+	/**
+	 *
+	 * @param root the root node
+	 * @param rangeMin minimum, one array per window
+	 * @param rangeMax maximum, one array per window
+	 * @param visitor result visitor
+	 * @return false if the visitor aborted the traversal
+	 */
+	boolean run(Node root, long[][] rangeMin, long[][] rangeMax, PhQueryMultiVisitor<T> visitor) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.visitor = visitor;
+		int[] a = activeArray(0);
+		int n = 0;
+		for (int w = 0; w < rangeMin.length; w++) {
+			if (isValid(w)) {
+				a[n++] = w;
+			}
+		}
+		nActive[0] = n;
+		return n == 0 || traverse(root, 0);
+	}
+
+	private boolean isValid(int w) {
+		for (int d = 0; d < dims; d++) {
+			if (rangeMin[w][d] > rangeMax[w][d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int[] activeArray(int depth) {
+		int[] a = active[depth];
+		if (a == null) {
+			a = new int[rangeMin.length];
+			active[depth] = a;
+		}
+		return a;
+	}
+
+	private boolean traverse(Node node, int depth) {
+		//Calculate the union of the HC-masks of all active windows, see
+		//NodeIteratorNoGC.calcLimits().
+		int postLen = node.getPostLen();
+		long maskHcBit = 1L << postLen;
+		long maskVT = (-1L) << postLen;
+		long maskLower = -1L;
+		long maskUpper = 0;
+		int[] a = active[depth];
+		for (int iw = 0; iw < nActive[depth]; iw++) {
+			long[] min = rangeMin[a[iw]];
+			long[] max = rangeMax[a[iw]];
+			long lowerLimit = 0;
+			long upperLimit = 0;
+			//to prevent problems with signed long when using 64 bit
+			if (maskHcBit >= 0) { //i.e. postLen < 63
+				for (int i = 0; i < dims; i++) {
+					lowerLimit <<= 1;
+					upperLimit <<= 1;
+					long nodeBisection = (valTemplate[i] | maskHcBit) & maskVT;
+					if (min[i] >= nodeBisection) {
+						lowerLimit |= 1L;
+					}
+					if (max[i] >= nodeBisection) {
+						upperLimit |= 1L;
+					}
+				}
+			} else {
+				//special treatment for signed longs
+				for (int i = 0; i < dims; i++) {
+					lowerLimit <<= 1;
+					upperLimit <<= 1;
+					if (min[i] < 0) {
+						upperLimit |= 1L;
+					}
+					if (max[i] < 0) {
+						lowerLimit |= 1L;
+					}
+				}
+			}
+			maskLower &= lowerLimit;
+			maskUpper |= upperLimit;
+		}
+
+		if (node.isAHC()) {
+			for (long pos = maskLower; pos <= maskUpper; pos++) {
+				if (checkHcPos(pos, maskLower, maskUpper) && !readValue(node, (int) pos, pos, depth)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int nMaxEntry = node.getEntryCount();
+		int currentOffsetKey = node.getBitPosIndex();
+		//length of post-fix WITH key
+		int postEntryLenLHC = Node.IK_WIDTH(dims) + dims*node.postLenStored();
+		for (int pin = 0; pin < nMaxEntry; pin++) {
+			long pos = Bits.readArray(node.ba(), currentOffsetKey, Node.IK_WIDTH(dims));
+			currentOffsetKey += postEntryLenLHC;
+			if (checkHcPos(pos, maskLower, maskUpper)) {
+				if (!readValue(node, pin, pos, depth)) {
+					return false;
+				}
+			} else if (pos > maskUpper) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkHcPos(long pos, long maskLower, long maskUpper) {
+		return ((pos | maskLower) & maskUpper) == pos;
+	}
+
+	/**
+	 *
+	 * @return False if the visitor aborted the traversal.
+	 */
+	private boolean readValue(Node node, int pin, long pos, int depth) {
+		Object o = node.getEntryPIN(pin, pos, valTemplate, resultKey);
+		if (o == null) {
+			return true;
+		}
+		int[] a = active[depth];
+		int n = nActive[depth];
+
+		if (o instanceof Node) {
+			Node sub = (Node) o;
+			//Find all windows that intersect with the sub-node
+			long mask = (-1L) << (sub.getPostLen() + 1);
+			int[] subActive = activeArray(depth + 1);
+			int nSub = 0;
+			for (int iw = 0; iw < n; iw++) {
+				if (intersects(rangeMin[a[iw]], rangeMax[a[iw]], mask)) {
+					subActive[nSub++] = a[iw];
+				}
+			}
+			nActive[depth + 1] = nSub;
+			return nSub == 0 || traverse(sub, depth + 1);
+		}
+
+		T value = PhTreeHelper.unmaskNull(o);
+		for (int iw = 0; iw < n; iw++) {
+			int w = a[iw];
+			if (contains(rangeMin[w], rangeMax[w]) && !visitor.accept(w, resultKey, value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean intersects(long[] min, long[] max, long mask) {
+		for (int d = 0; d < dims; d++) {
+			if ((valTemplate[d] & mask) > max[d] || (valTemplate[d] | ~mask) < min[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean contains(long[] min, long[] max) {
+		for (int d = 0; d < dims; d++) {
+			if (resultKey[d] < min[d] || resultKey[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v13;
+
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhQueryCursor.PhFilterAfter;
+import ch.ethz.globis.phtree.PhQueryVisitor;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhTreeLong.LongVisitor;
+
+/**
+ * A recursive window query that reports all results to a {@link PhQueryVisitor}.
+ *
+ * In contrast to {@link NodeIteratorNoGC}, this does not keep a stack of node iterators and
+ * never looks ahead for the next element. All per-node state lives in local variables, so
+ * the traversal does not create any objects.
+ * If the filter is a {@link PhFilterAfter}, the traversal starts at the last key of the
+ * filter instead of rejecting all preceding entries one by one.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class NodeIteratorVisitor<T> {
+
+	private final int dims;
+	private final long[] valTemplate;
+	private final long[] resultKey;
+	private long[] rangeMin;
+	private long[] rangeMax;
+	private PhFilter checker;
+	//Start key for paginated queries, this is 'null' if all entries are traversed.
+	private long[] after;
+	private PhQueryVisitor<T> visitor;
+	private LongVisitor longVisitor;
+
+	NodeIteratorVisitor(int dims) {
+		this.dims = dims;
+		this.valTemplate = new long[dims];
+		this.resultKey = new long[dims];
+	}
+
+	/**
+	 *
+	 * @param root the root node
+	 * @param rangeMin minimum
+	 * @param rangeMax maximum
+	 * @param checker result verifier, can be null.
+	 * @param visitor result visitor
+	 * @return false if the visitor aborted the traversal
+	 */
+	boolean run(Node root, long[] rangeMin, long[] rangeMax, PhFilter checker,
+			PhQueryVisitor<T> visitor) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.visitor = visitor;
+		this.longVisitor = null;
+		return start(root, checker);
+	}
+
+	/**
+	 * Same as run(), but for trees with primitive values. The values are reported
+	 * without boxing.
+	 *
+	 * @param root the root node
+	 * @param rangeMin minimum
+	 * @param rangeMax maximum
+	 * @param checker result verifier, can be null.
+	 * @param visitor result visitor
+	 * @return false if the visitor aborted the traversal
+	 */
+	boolean runLong(Node root, long[] rangeMin, long[] rangeMax, PhFilter checker,
+			LongVisitor visitor) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.visitor = null;
+		this.longVisitor = visitor;
+		return start(root, checker);
+	}
+
+	private boolean start(Node root, PhFilter checker) {
+		if (checker instanceof PhFilterAfter) {
+			//All entries after the start key are valid, the filter is not needed
+			this.after = ((PhFilterAfter) checker).getLastKey();
+			this.checker = null;
+		} else {
+			this.after = null;
+			this.checker = checker;
+		}
+		return traverse(root, after != null);
+	}
+
+	/**
+	 * @param node the node
+	 * @param onPath whether the node contains the start key 'after'. In this case
+	 * all entries that precede the start key are skipped.
+	 * @return false if the visitor aborted the traversal
+	 */
+	private boolean traverse(Node node, boolean onPath) {
+		//See NodeIteratorNoGC.calcLimits()
+		int postLen = node.getPostLen();
+		long maskHcBit = 1L << postLen;
+		long maskVT = (-1L) << postLen;
+		long maskLower = 0;
+		long maskUpper = 0;
+		//to prevent problems with signed long when using 64 bit
+		if (maskHcBit >= 0) { //i.e. postLen < 63
+			for (int i = 0; i < dims; i++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				long nodeBisection = (valTemplate[i] | maskHcBit) & maskVT;
+				if (rangeMin[i] >= nodeBisection) {
+					maskLower |= 1L;
+				}
+				if (rangeMax[i] >= nodeBisection) {
+					maskUpper |= 1L;
+				}
+			}
+		} else {
+			//special treatment for signed longs
+			for (int i = 0; i < dims; i++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				if (rangeMin[i] < 0) {
+					maskUpper |= 1L;
+				}
+				if (rangeMax[i] < 0) {
+					maskLower |= 1L;
+				}
+			}
+		}
+
+		//Entries at this position may precede the start key, all others follow it.
+		long startPos = -1;
+		if (onPath) {
+			startPos = PhTree13.seek(PhTreeHelper.posInArray(after, postLen), maskLower, maskUpper);
+			if (startPos < 0) {
+				return true;
+			}
+		}
+
+		int nMaxEntry = node.getEntryCount();
+		if (dims > 6 && useHCI(node.isAHC(), nMaxEntry, maskLower, maskUpper)) {
+			return traverseHCI(node, maskLower, maskUpper, startPos);
+		} else if (node.isAHC()) {
+			return traverseAHC(node, maskLower, maskUpper, startPos);
+		}
+		return traverseLHC(node, nMaxEntry, maskLower, maskUpper, startPos);
+	}
+
+	private boolean useHCI(boolean isHC, int nMaxEntry, long maskLower, long maskUpper) {
+		long maxHcAddr = ~((-1L)<<dims);
+		int nSetFilterBits = Long.bitCount(maskLower | ((~maskUpper) & maxHcAddr));
+		//nPossibleMatch = (2^k-x)
+		long nPossibleMatch = 1L << (dims - nSetFilterBits);
+		if (!PhTree13.HCI_ENABLED) {
+			return false;
+		}
+		if (isHC) {
+			return nPossibleMatch*2 <= maxHcAddr;
+		}
+		int logNPost = Long.SIZE - Long.numberOfLeadingZeros(nMaxEntry) + 1+1;
+		return nMaxEntry >= 2*nPossibleMatch*(double)logNPost;
+	}
+
+	private boolean traverseHCI(Node node, long maskLower, long maskUpper, long startPos) {
+		long currentPos = startPos < 0 ? maskLower : startPos;
+		do {
+			int pin = node.getPosition(currentPos, dims);
+			if (pin >= 0 && !readValue(node, pin, currentPos, currentPos == startPos)) {
+				return false;
+			}
+			currentPos = PhTree13.inc(currentPos, maskLower, maskUpper);
+		} while (currentPos > maskLower);
+		return true;
+	}
+
+	private boolean traverseAHC(Node node, long maskLower, long maskUpper, long startPos) {
+		long firstPos = startPos < 0 ? maskLower : startPos;
+		for (long currentPos = firstPos; currentPos <= maskUpper; currentPos++) {
+			if (checkHcPos(currentPos, maskLower, maskUpper)
+					&& !readValue(node, (int) currentPos, currentPos, currentPos == startPos)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean traverseLHC(Node node, int nMaxEntry, long maskLower, long maskUpper,
+			long startPos) {
+		//length of post-fix WITH key
+		int postEntryLenLHC = Node.IK_WIDTH(dims) + dims*node.postLenStored();
+		int firstPin = 0;
+		if (startPos >= 0) {
+			firstPin = node.getPosition(startPos, dims);
+			firstPin = firstPin < 0 ? -(firstPin+1) : firstPin;
+		}
+		int currentOffsetKey = node.getBitPosIndex() + firstPin * postEntryLenLHC;
+		for (int pin = firstPin; pin < nMaxEntry; pin++) {
+			long currentPos = Bits.readArray(node.ba(), currentOffsetKey, Node.IK_WIDTH(dims));
+			currentOffsetKey += postEntryLenLHC;
+			if (checkHcPos(currentPos, maskLower, maskUpper)) {
+				if (!readValue(node, pin, currentPos, currentPos == startPos)) {
+					return false;
+				}
+			} else if (currentPos > maskUpper) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkHcPos(long pos, long maskLower, long maskUpper) {
+		return ((pos | maskLower) & maskUpper) == pos;
+	}
+
+	/**
+	 *
+	 * @param onPath whether the entry may contain or precede the start key 'after'
+	 * @return False if the visitor aborted the traversal.
+	 */
+	private boolean readValue(Node node, int pin, long pos, boolean onPath) {
+		Object o = node.checkAndGetEntryPINRaw(pin, pos, valTemplate, resultKey, rangeMin, rangeMax);
+		if (o == null) {
+			return true;
+		}
+
+		if (o instanceof Node) {
+			Node sub = (Node) o;
+			//skip this for postLen>=63
+			if (checker != null && sub.getPostLen() < (PhTree13.DEPTH_64-1) &&
+					!checker.isValid(sub.getPostLen()+1, valTemplate)) {
+				return true;
+			}
+			if (onPath) {
+				int cmp = sub.getPostLen() >= PhTree13.DEPTH_64-1 ? 0 :
+					PhTreeHelper.compareZOrder(valTemplate, after, (-1L) << (sub.getPostLen()+1));
+				if (cmp < 0) {
+					return true;
+				}
+				return traverse(sub, cmp == 0);
+			}
+			return traverse(sub, false);
+		}
+
+		if (checker != null && !checker.isValid(resultKey)) {
+			return true;
+		}
+		if (onPath && PhTreeHelper.compareZOrder(resultKey, after, -1L) <= 0) {
+			return true;
+		}
+		if (longVisitor != null) {
+			return longVisitor.accept(resultKey, node.getLongValue(pin));
+		}
+		return visitor.accept(resultKey, PhTreeHelper.unmaskNull(node.toValue(o, pin)));
+	}
+}
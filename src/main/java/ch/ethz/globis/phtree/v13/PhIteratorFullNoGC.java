@@ -33,8 +33,8 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorFullNoGC[PhTree13.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorFullNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -74,7 +74,7 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 	public PhIteratorFullNoGC(PhTree13<T> pht, PhFilter checker) {
 		this.dims = pht.getDim();
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.valTemplate = new long[dims];
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[dims], null);
@@ -34,8 +34,8 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorNoGC[PhTree13.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -76,7 +76,7 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 	public PhIteratorNoGC(PhTree13<T> pht, PhFilter checker) {
 		this.dims = pht.getDim();
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.valTemplate = new long[dims];
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[dims], null);
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v13;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhEntryPair;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.v13.PhQueryKnnHS.KnnResultList;
+
+/**
+ * Closest pair query. This performs a best-first traversal over pairs of nodes and entries,
+ * ordered by the minimum distance between their regions, similar to {@link PhQueryKnnHS}.
+ * A pair of nodes is expanded by pairing the children of the larger node with the other node.
+ * A node paired with itself is expanded into all pairs of its children.
+ *
+ * The distance function must be monotonic in every dimension, which is true for
+ * L1, L2 and the IEEE-based distances for floating point keys.
+ *
+ * @param <T> value type
+ */
+public class PhQueryClosestPairs<T> {
+
+	private final int dims;
+	private final PhTree13<T> pht;
+	private PhDistance distance;
+	private final PriorityQueue<Candidate<T>> queue = new PriorityQueue<>();
+	/** Max-heap with the distances of the best k entry pairs found so far. */
+	private final PriorityQueue<Double> bestK = new PriorityQueue<>(Collections.reverseOrder());
+	private final NodeIteratorFullToList<T> iterNode;
+	private final KnnResultList<T> children;
+	private final long[] buf1;
+	private final long[] buf2;
+	private int k;
+
+	/**
+	 * Create a new closest pair search instance.
+	 * @param pht the parent tree
+	 */
+	public PhQueryClosestPairs(PhTree13<T> pht) {
+		this.dims = pht.getDim();
+		this.pht = pht;
+		this.iterNode = new NodeIteratorFullToList<>(dims);
+		this.children = new KnnResultList<>(dims, new ArrayList<>());
+		this.buf1 = new long[dims];
+		this.buf2 = new long[dims];
+	}
+
+	/**
+	 * @param k number of pairs to be returned
+	 * @param dist the distance function
+	 * @return The k pairs of distinct entries with the smallest distances, ordered by distance.
+	 */
+	public List<PhEntryPair<T>> run(int k, PhDistance dist) {
+		this.k = k;
+		this.distance = dist;
+		this.queue.clear();
+		this.bestK.clear();
+		List<PhEntryPair<T>> results = new ArrayList<>();
+		if (k <= 0 || pht.size() < 2) {
+			return results;
+		}
+
+		PhEntryDist<T> rootE = new PhEntryDist<>(new long[dims], null, 0);
+		rootE.setNodeInternal(pht.getRoot());
+		queue.add(new Candidate<>(rootE, rootE, 0));
+
+		while (!queue.isEmpty()) {
+			Candidate<T> c = queue.poll();
+			if (!c.e1.hasNodeInternal() && !c.e2.hasNodeInternal()) {
+				results.add(new PhEntryPair<>(toEntry(c.e1), toEntry(c.e2), c.dist));
+				if (results.size() >= k) {
+					break;
+				}
+			} else if (c.e1 == c.e2) {
+				expandSelf(c.e1);
+			} else if (bitsToIgnore(c.e1) >= bitsToIgnore(c.e2)) {
+				expand(c.e1, c.e2);
+			} else {
+				expand(c.e2, c.e1);
+			}
+		}
+		return results;
+	}
+
+	private void expandSelf(PhEntryDist<T> nodeE) {
+		List<PhEntryDist<T>> list = readChildren(nodeE);
+		for (int i = 0; i < list.size(); i++) {
+			PhEntryDist<T> e1 = list.get(i);
+			if (e1.hasNodeInternal()) {
+				queue.add(new Candidate<>(e1, e1, 0));
+			}
+			for (int j = i + 1; j < list.size(); j++) {
+				addCandidate(e1, list.get(j));
+			}
+		}
+	}
+
+	private void expand(PhEntryDist<T> nodeE, PhEntryDist<T> other) {
+		List<PhEntryDist<T>> list = readChildren(nodeE);
+		for (int i = 0; i < list.size(); i++) {
+			addCandidate(list.get(i), other);
+		}
+	}
+
+	private List<PhEntryDist<T>> readChildren(PhEntryDist<T> nodeE) {
+		children.clear();
+		iterNode.init((Node) nodeE.getNodeInternal(), children, nodeE.getKey());
+		List<PhEntryDist<T>> list = new ArrayList<>(children.size());
+		for (int i = 0; i < children.size(); i++) {
+			list.add(children.get(i));
+		}
+		return list;
+	}
+
+	private void addCandidate(PhEntryDist<T> e1, PhEntryDist<T> e2) {
+		double d = minDist(e1, e2);
+		if (bestK.size() >= k && d > bestK.peek()) {
+			return;
+		}
+		if (!e1.hasNodeInternal() && !e2.hasNodeInternal()) {
+			bestK.add(d);
+			if (bestK.size() > k) {
+				bestK.poll();
+			}
+		}
+		queue.add(new Candidate<>(e1, e2, d));
+	}
+
+	private static int bitsToIgnore(PhEntryDist<?> e) {
+		return e.hasNodeInternal() ? ((Node) e.getNodeInternal()).getPostLen() + 1 : 0;
+	}
+
+	/**
+	 * Calculates the minimum distance between the regions of two nodes or entries.
+	 */
+	private double minDist(PhEntryDist<T> e1, PhEntryDist<T> e2) {
+		if (!e1.hasNodeInternal() && !e2.hasNodeInternal()) {
+			return distance.dist(e1.getKey(), e2.getKey());
+		}
+		int bits1 = bitsToIgnore(e1);
+		int bits2 = bitsToIgnore(e2);
+		long maskMin1 = bits1 >= 64 ? 0 : (-1L) << bits1;
+		long maskMin2 = bits2 >= 64 ? 0 : (-1L) << bits2;
+		long[] p1 = e1.getKey();
+		long[] p2 = e2.getKey();
+		for (int i = 0; i < dims; i++) {
+			long min1 = p1[i] & maskMin1;
+			long max1 = p1[i] | ~maskMin1;
+			long min2 = p2[i] & maskMin2;
+			long max2 = p2[i] | ~maskMin2;
+			if (max1 < min2) {
+				buf1[i] = max1;
+				buf2[i] = min2;
+			} else if (max2 < min1) {
+				buf1[i] = min1;
+				buf2[i] = max2;
+			} else {
+				//overlapping: distance=0 in this dimension
+				buf1[i] = buf2[i] = min1 > min2 ? min1 : min2;
+			}
+		}
+		return distance.dist(buf1, buf2);
+	}
+
+	private static <T> PhEntry<T> toEntry(PhEntryDist<T> e) {
+		return new PhEntry<>(e.getKey(), PhTreeHelper.unmaskNull(e.getValue()));
+	}
+
+	private static class Candidate<T> implements Comparable<Candidate<T>> {
+		final PhEntryDist<T> e1;
+		final PhEntryDist<T> e2;
+		final double dist;
+
+		Candidate(PhEntryDist<T> e1, PhEntryDist<T> e2, double dist) {
+			this.e1 = e1;
+			this.e2 = e2;
+			this.dist = dist;
+		}
+
+		@Override
+		public int compareTo(Candidate<T> o) {
+			return Double.compare(dist, o.dist);
+		}
+	}
+}
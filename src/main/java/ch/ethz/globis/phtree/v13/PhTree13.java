@@ -19,21 +19,32 @@
  */
 package ch.ethz.globis.phtree.v13;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
+import ch.ethz.globis.phtree.PersistenceProvider;
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhDistanceL;
 import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryPair;
 import ch.ethz.globis.phtree.PhFilter;
 import ch.ethz.globis.phtree.PhFilterDistance;
+import ch.ethz.globis.phtree.PhQueryMultiVisitor;
+import ch.ethz.globis.phtree.PhQueryVisitor;
 import ch.ethz.globis.phtree.PhRangeQuery;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.PhTreeConfig;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhTreeHelper.ListenerCompute;
+import ch.ethz.globis.phtree.PhTreeIO;
+import ch.ethz.globis.phtree.PhTreeListener;
+import ch.ethz.globis.phtree.PhTreeLong.LongVisitor;
+import ch.ethz.globis.phtree.PhValueCodec;
 import ch.ethz.globis.phtree.util.*;
 import ch.ethz.globis.phtree.util.unsynced.LongArrayPool;
 import ch.ethz.globis.phtree.util.unsynced.ObjectArrayPool;
@@ -111,6 +122,8 @@ public class PhTree13<T> implements PhTree<T> {
 
 	//Dimension. This is the number of attributes of an entity.
 	private final int dims;
+	//Number of bits per key coordinate.
+	private final int depth;
 
 	private int nEntries = 0;
 
@@ -119,24 +132,81 @@ public class PhTree13<T> implements PhTree<T> {
 	private final ObjectPool<Node> nodePool;
 	private final ObjectArrayPool<Object> refPool;
 	private final LongArrayPool bitPool;
+	private final PhTreeBounds bounds;
+	private final ValueStorage valueStorage;
+	/** Listener for modifications, this is 'null' if there is no listener. */
+	private PhTreeListener<T> listener;
+	/** Primitive values that are passed to the nodes during insert, see Node.writeValue(). */
+	private long primitiveNew;
+	private long primitiveOld;
+
+	/**
+	 * Defines how the nodes store values.
+	 */
+	public enum ValueStorage {
+		/** Values are stored as objects. */
+		OBJECT,
+		/**
+		 * Values of type Long are stored unboxed in a {@code long[]} per node,
+		 * see {@link ch.ethz.globis.phtree.PhTreeLong}.
+		 */
+		LONG,
+		/**
+		 * Values of type Integer are stored unboxed in an {@code int[]} per node,
+		 * see {@link ch.ethz.globis.phtree.PhTreeInt}.
+		 */
+		INT,
+		/**
+		 * Values are not stored, every value is 'null'. This is used for key-only trees,
+		 * see {@link ch.ethz.globis.phtree.PhTreeSet}.
+		 */
+		NONE
+	}
 
 	Node getRoot() {
 		return root;
 	}
 
 	public PhTree13(int dim) {
+		this(dim, ValueStorage.OBJECT);
+	}
+
+	/**
+	 * @param dim number of dimensions
+	 * @param valueStorage how the nodes store values
+	 */
+	public PhTree13(int dim, ValueStorage valueStorage) {
+		this(dim, valueStorage, DEPTH_64);
+	}
+
+	private PhTree13(int dim, ValueStorage valueStorage, int depth) {
 		this.dims = dim;
-		this.nodePool = ObjectPool.create(Node::createEmpty);
+		this.depth = depth;
+		this.valueStorage = valueStorage;
+		switch (valueStorage) {
+		case LONG:
+			this.nodePool = ObjectPool.create(NodeLong::createEmpty);
+			break;
+		case INT:
+			this.nodePool = ObjectPool.create(NodeInt::createEmpty);
+			break;
+		default:
+			this.nodePool = ObjectPool.create(Node::createEmpty);
+		}
 		this.refPool = ObjectArrayPool.create();
 		this.bitPool = LongArrayPool.create();
+		this.bounds = new PhTreeBounds(this, dim);
 		debugCheck();
 	}
 
 	public PhTree13(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
+		this(cnf.getDimActual(), ValueStorage.OBJECT, cnf.getDepth());
 		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
 			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
 		}
+		if (cnf.getPersistenceProvider() != PersistenceProvider.NONE) {
+			throw new UnsupportedOperationException("provider= " + cnf.getPersistenceProvider().getDescription());
+		}
 	}
 
 	void increaseNrEntries() {
@@ -154,7 +224,7 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public PhTreeStats getStats() {
-		return getStats(0, getRoot(), new PhTreeStats(DEPTH_64));
+		return getStats(0, getRoot(), new PhTreeStats(depth));
 	}
 
 	private PhTreeStats getStats(int currentDepth, Node node, PhTreeStats stats) {
@@ -170,11 +240,16 @@ public class PhTree13<T> implements PhTree<T> {
 		currentDepth += node.getInfixLen();
 		stats.q_totalDepth += currentDepth;
 
-		for (Object o: node.values()) {
-			if (o instanceof Node) {
-				getStats(currentDepth + 1, (Node) o, stats);
-			} else if (o != null) {
-				stats.q_nPostFixN[currentDepth]++;
+		if (node.values() == null) {
+			//tree without values, node without sub-nodes
+			stats.q_nPostFixN[currentDepth] += node.getEntryCount();
+		} else {
+			for (Object o: node.values()) {
+				if (o instanceof Node) {
+					getStats(currentDepth + 1, (Node) o, stats);
+				} else if (o != null) {
+					stats.q_nPostFixN[currentDepth]++;
+				}
 			}
 		}
 
@@ -185,6 +260,11 @@ public class PhTree13<T> implements PhTree<T> {
 		int nChildren = node.getEntryCount();
 		stats.size += 16 + align8(Bits.arraySizeInByte(node.ba()));
 		stats.size += node.values() != null ? 16 + align8(node.values().length * REF) : 0;
+		Object pv = node.primitives();
+		if (pv != null) {
+			stats.size += pv instanceof long[] ? 16 + align8(((long[]) pv).length * 8)
+					: 16 + align8(((int[]) pv).length * 4);
+		}
 		if (nChildren == 1 && (node != getRoot()) && nEntries > 1) {
 			//This should not happen! Except for a root node if the tree has <2 entries.
 			System.err.println("WARNING: found lonely node...");
@@ -212,6 +292,7 @@ public class PhTree13<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T put(long[] key, T value) {
+		checkKey(key);
 		Object nonNullValue = value == null ? PhTreeHelper.NULL : value;
 		if (getRoot() == null) {
 			insertRoot(key, nonNullValue);
@@ -223,18 +304,29 @@ public class PhTree13<T> implements PhTree<T> {
 			Node currentNode = (Node) o;
 			o = currentNode.doInsertIfMatching(key, nonNullValue, this);
 		}
+		bounds.insert(key);
+		if (listener != null) {
+			listener.onPut(key, unmaskNull(o), value, o != null);
+		}
 		return (T) o;
     }
 
     private void insertRoot(long[] key, Object value) {
-        root = Node.createNode(dims, 0, DEPTH_64-1, this);
+        root = Node.createNode(dims, 0, depth-1, this);
         long pos = posInArray(key, root.getPostLen());
         root.addPostPIN(pos, -1, key, value, this);
         increaseNrEntries();
+        bounds.insert(key);
+        if (listener != null) {
+            listener.onPut(key, null, unmaskNull(value), false);
+        }
     }
 
 	@Override
 	public boolean contains(long... key) {
+		if (!isInRange(key)) {
+			return false;
+		}
 		Object o = getRoot();
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -247,6 +339,9 @@ public class PhTree13<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T get(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		Object o = getRoot();
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -264,6 +359,10 @@ public class PhTree13<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T remove(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
+		int sizeBefore = nEntries;
 		Object o = getRoot();
 		Node parentNode = null;
 		while (o instanceof Node) {
@@ -271,13 +370,76 @@ public class PhTree13<T> implements PhTree<T> {
 			o = currentNode.doIfMatching(key, false, parentNode, null, null, this);
 			parentNode = currentNode;
 		}
+		if (nEntries < sizeBefore) {
+			bounds.remove(key);
+			if (listener != null) {
+				listener.onRemove(key, unmaskNull(o));
+			}
+		}
 		return (T) o;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public T update(long[] oldKey, long[] newKey) {
-		Node[] stack = new Node[64];
+		Object[] displaced = listener == null ? null : new Object[1];
+		Object o = updateRaw(oldKey, newKey, displaced);
+		Object value = o == PhTreeHelper.NULL ? null : o;
+		if (o != null && listener != null) {
+			if (displaced[0] != null) {
+				listener.onRemove(newKey, unmaskNull(displaced[0]));
+			}
+			listener.onUpdate(oldKey, newKey, (T) value);
+		}
+		return (T) value;
+	}
+
+	/**
+	 * Moves an entry to a new key, but only if there is no entry with the new key.
+	 * In contrast to {@link #update(long[], long[])}, this reports whether an entry was
+	 * moved, even if the tree does not store values, see {@link ValueStorage#NONE}.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return {@code true} if the entry was moved, {@code false} if the old key does not
+	 * exist or if the new key already exists.
+	 */
+	public boolean updateIfAbsent(long[] oldKey, long[] newKey) {
+		if (Arrays.equals(oldKey, newKey)) {
+			return false;
+		}
+		if (listener != null) {
+			//the listener must not see the rollback below
+			if (!contains(oldKey) || contains(newKey)) {
+				return false;
+			}
+			update(oldKey, newKey);
+			return true;
+		}
+		Object[] displaced = new Object[1];
+		Object o = updateRaw(oldKey, newKey, displaced);
+		if (o == null) {
+			return false;
+		}
+		if (displaced[0] != null) {
+			//The new key existed, this is rare, so we simply restore both entries.
+			insertRaw(newKey, displaced[0]);
+			insertRaw(oldKey, o);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param displaced if not 'null', this receives the entry that was replaced by the
+	 * updated entry
+	 * @return the (masked) value of the updated entry or 'null' if the old key does not exist
+	 */
+	private Object updateRaw(long[] oldKey, long[] newKey, Object[] displaced) {
+		if (!isInRange(oldKey)) {
+			return null;
+		}
+		checkKey(newKey);
+		Node[] stack = new Node[depth];
 		int stackSize = 0;
 		
 		Object o = getRoot();
@@ -290,7 +452,7 @@ public class PhTree13<T> implements PhTree<T> {
 			parentNode = currentNode;
 		}
 		
-		Object value = o == PhTreeHelper.NULL ? null : o;
+		Object value = o;
 
 		//traverse the tree from bottom to top
 		//this avoids extracting and checking infixes.
@@ -307,13 +469,26 @@ public class PhTree13<T> implements PhTree<T> {
 						Node currentNode = (Node) o;
 						o = currentNode.doInsertIfMatching(newKey, value, this);
 					}
+					if (displaced != null) {
+						displaced[0] = o;
+					}
 					insertRequired[0] = NO_INSERT_REQUIRED;
 					break;
 				}
 			}
 		}		
 		
-		return (T) value;
+		bounds.update(oldKey, newKey);
+		return value;
+	}
+
+	private void insertRaw(long[] key, Object value) {
+		Object o = getRoot();
+		while (o instanceof Node) {
+			Node currentNode = (Node) o;
+			o = currentNode.doInsertIfMatching(key, value, this);
+		}
+		bounds.insert(key);
 	}
 
 
@@ -328,6 +503,7 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T putIfAbsent(long[] key, T value) {
+		checkKey(key);
 		if (getRoot() == null) {
 			insertRoot(key, maskNull(value));
 			return null;
@@ -349,6 +525,9 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public boolean replace(long[] key, T oldValue, T newValue) {
+		if (!isInRange(key)) {
+			return false;
+		}
 		if (getRoot() == null) {
 			return false;
 		}
@@ -368,6 +547,9 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T replace(long[] key, T value) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		if (getRoot() == null) {
 			return null;
 		}
@@ -387,6 +569,7 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public T computeIfAbsent(long[] key, Function<long[], ? extends T> mappingFunction) {
+		checkKey(key);
 		if (getRoot() == null) {
 			T newValue = mappingFunction.apply(key);
 			if (newValue != null) {
@@ -409,10 +592,19 @@ public class PhTree13<T> implements PhTree<T> {
     @SuppressWarnings("unchecked")
 	@Override
 	public T computeIfPresent(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		if (getRoot() == null) {
 			return null;
 		}
 
+        ListenerCompute<T> lc = null;
+        if (listener != null) {
+            lc = new ListenerCompute<>(remappingFunction);
+            remappingFunction = lc;
+        }
+        int sizeBefore = nEntries;
         Object o = getRoot();
         Node parentNode = null;
         while (o instanceof Node) {
@@ -420,12 +612,19 @@ public class PhTree13<T> implements PhTree<T> {
             o = currentNode.doCompute(key, false, parentNode, this, remappingFunction);
             parentNode = currentNode;
         }
+        if (nEntries < sizeBefore) {
+            bounds.remove(key);
+        }
+        if (lc != null) {
+            lc.notify(listener, key, (T) o, nEntries - sizeBefore);
+        }
         return (T) o;
 	}
 
     @SuppressWarnings("unchecked")
 	@Override
 	public T compute(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		checkKey(key);
 		if (getRoot() == null) {
 			T newValue = remappingFunction.apply(key, null);
 			if (newValue != null) {
@@ -434,6 +633,12 @@ public class PhTree13<T> implements PhTree<T> {
 			return newValue;
 		}
 
+        ListenerCompute<T> lc = null;
+        if (listener != null) {
+            lc = new ListenerCompute<>(remappingFunction);
+            remappingFunction = lc;
+        }
+        int sizeBefore = nEntries;
         Object o = getRoot();
         Node parentNode = null;
         while (o instanceof Node) {
@@ -441,6 +646,14 @@ public class PhTree13<T> implements PhTree<T> {
             o = currentNode.doCompute(key, true, parentNode, this, remappingFunction);
             parentNode = currentNode;
         }
+        if (nEntries < sizeBefore) {
+            bounds.remove(key);
+        } else if (nEntries > sizeBefore) {
+            bounds.insert(key);
+        }
+        if (lc != null) {
+            lc.notify(listener, key, (T) o, nEntries - sizeBefore);
+        }
         return (T) o;
     }
 
@@ -575,6 +788,118 @@ public class PhTree13<T> implements PhTree<T> {
 		return q;
 	}
 
+	@Override
+	public boolean forEach(long[] min, long[] max, PhFilter filter, PhQueryVisitor<T> visitor) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		if (getRoot() == null) {
+			return true;
+		}
+		return new NodeIteratorVisitor<T>(dims).run(getRoot(), min, max, filter, visitor);
+	}
+
+	/**
+	 * Insert for trees with primitive values that avoids boxing the value.
+	 * @param key the key
+	 * @param value the value
+	 * @param valueIfAbsent value to be returned if the key did not exist
+	 * @return the previous value or 'valueIfAbsent'
+	 * @see ValueStorage#LONG
+	 * @see ValueStorage#INT
+	 */
+	@SuppressWarnings("unchecked")
+	public long putLong(long[] key, long value, long valueIfAbsent) {
+		checkPrimitiveValues();
+		if (listener != null) {
+			//the listener requires boxed values
+			Object v = valueStorage == ValueStorage.LONG ? (Object) value : (Object) (int) value;
+			Object prev = put(key, (T) v);
+			return prev == null ? valueIfAbsent : ((Number) prev).longValue();
+		}
+		checkKey(key);
+		primitiveNew = value;
+		if (getRoot() == null) {
+			insertRoot(key, Node.NEW_PRIMITIVE);
+			return valueIfAbsent;
+		}
+		Object o = getRoot();
+		while (o instanceof Node) {
+			Node currentNode = (Node) o;
+			o = currentNode.doInsertIfMatching(key, Node.NEW_PRIMITIVE, this);
+		}
+		bounds.insert(key);
+		if (o == null) {
+			return valueIfAbsent;
+		}
+		return Node.isPrimitive(o) ? primitiveOld : ((Number) o).longValue();
+	}
+
+	/**
+	 * Lookup for trees with primitive values that avoids boxing the value.
+	 * @param key the key
+	 * @param valueIfAbsent value to be returned if the key does not exist
+	 * @return the value or 'valueIfAbsent'
+	 * @see ValueStorage#LONG
+	 * @see ValueStorage#INT
+	 */
+	public long getLong(long[] key, long valueIfAbsent) {
+		if (!isInRange(key)) {
+			return valueIfAbsent;
+		}
+		checkPrimitiveValues();
+		if (getRoot() == null) {
+			return valueIfAbsent;
+		}
+		return Node.getLong(getRoot(), key, valueIfAbsent);
+	}
+
+	/**
+	 * Visitor based window query for trees with primitive values that avoids boxing the values.
+	 * @param min minimum values
+	 * @param max maximum values
+	 * @param filter a filter instance, can be null
+	 * @param visitor result visitor
+	 * @return {@code false} if the query was aborted by the visitor, otherwise {@code true}.
+	 * @see #forEach(long[], long[], PhFilter, PhQueryVisitor)
+	 */
+	public boolean forEachLong(long[] min, long[] max, PhFilter filter, LongVisitor visitor) {
+		checkPrimitiveValues();
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		if (getRoot() == null) {
+			return true;
+		}
+		return new NodeIteratorVisitor<T>(dims).runLong(getRoot(), min, max, filter, visitor);
+	}
+
+	private void checkPrimitiveValues() {
+		if (!hasPrimitiveValues()) {
+			throw new UnsupportedOperationException("The tree does not store primitive values.");
+		}
+	}
+
+	@Override
+	public boolean queryMulti(long[][] mins, long[][] maxs, PhQueryMultiVisitor<T> visitor) {
+		if (mins.length != maxs.length) {
+			throw new IllegalArgumentException("Invalid number of windows: " + mins.length +
+					" / " + maxs.length);
+		}
+		for (int i = 0; i < mins.length; i++) {
+			if (mins[i].length != dims || maxs[i].length != dims) {
+				throw new IllegalArgumentException("Invalid number of arguments: " + mins[i].length +  
+						" / " + maxs[i].length + "  DIM=" + dims);
+			}
+		}
+		if (getRoot() == null || mins.length == 0) {
+			return true;
+		}
+		return new NodeIteratorMultiVisitor<T>(dims).run(getRoot(), mins, maxs, visitor);
+	}
+
 	/**
 	 * Performs a rectangular window query. The parameters are the min and max keys which 
 	 * contain the minimum respectively the maximum keys in every dimension.
@@ -617,6 +942,11 @@ public class PhTree13<T> implements PhTree<T> {
 		return it.resetAndRun(getRoot(), min, max, maxResults);
 	}
 
+	@Override
+	public boolean getBounds(long[] outMin, long[] outMax) {
+		return bounds.get(outMin, outMax);
+	}
+
 	@Override
 	public int getDim() {
 		return dims;
@@ -624,7 +954,30 @@ public class PhTree13<T> implements PhTree<T> {
 
 	@Override
 	public int getBitDepth() {
-		return PhTree13.DEPTH_64;
+		return depth;
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if all coordinates of the key fit into the bit depth of the tree
+	 */
+	private boolean isInRange(long[] key) {
+		if (depth == DEPTH_64) {
+			return true;
+		}
+		for (long k : key) {
+			if ((k >>> depth) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkKey(long[] key) {
+		if (!isInRange(key)) {
+			throw new IllegalArgumentException(
+					"Key exceeds bit depth " + depth + ": " + Arrays.toString(key));
+		}
 	}
 
 	/**
@@ -649,6 +1002,11 @@ public class PhTree13<T> implements PhTree<T> {
 		return new PhQueryKnnHS<>(this).reset(nMin, dist, center);
 	}
 
+	@Override
+	public List<PhEntryPair<T>> closestPairs(int k, PhDistance dist) {
+		return new PhQueryClosestPairs<>(this).run(k, dist == null ? PhDistanceL.THIS : dist);
+	}
+
 	@Override
 	public PhRangeQuery<T> rangeQuery(double dist, long... center) {
 		return rangeQuery(dist, null, center);
@@ -674,6 +1032,15 @@ public class PhTree13<T> implements PhTree<T> {
 	public void clear() {
 		root = null;
 		nEntries = 0;
+		bounds.clear();
+		if (listener != null) {
+			listener.onClear();
+		}
+	}
+
+	@Override
+	public void setListener(PhTreeListener<T> listener) {
+		this.listener = listener;
 	}
 
 	/**
@@ -697,6 +1064,69 @@ public class PhTree13<T> implements PhTree<T> {
 		//return (r <= v) ? -1 : r;
 	}
 
+	/**
+	 * Find the smallest valid value that is equal to or larger than a given value.
+	 * @param v start value, this does not need to be valid
+	 * @param min min mask
+	 * @param max max mask
+	 * @return smallest valid value {@code >= v} or -1 if there is no such value.
+	 */
+	static long seek(long v, long min, long max) {
+		//bits that are '1' but must be '0' or that are '0' but must be '1'
+		long invalid = (v & ~max) | (~v & min);
+		if (invalid == 0) {
+			return v;
+		}
+		int bit = Long.SIZE - 1 - Long.numberOfLeadingZeros(invalid);
+		long maskLow = (1L << bit) - 1;
+		if ((min & (1L << bit)) != 0) {
+			//The bit must be '1': set it and use the minimum for all lower bits
+			return (v & ~maskLow) | (1L << bit) | (min & maskLow);
+		}
+		//The bit must be '0': increment the next higher valid bit
+		long r = inc(v | maskLow | (1L << bit), min, max);
+		return r > v ? r : -1;
+	}
+
+	/**
+	 * Writes the tree, see {@link PhTreeIO}.
+	 * @param out output
+	 * @param codec value codec
+	 * @throws IOException if writing fails
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(PhTreeIO.Output out, PhValueCodec<? super T> codec) throws IOException {
+		out.writeInt(dims);
+		out.writeInt(depth);
+		out.writeByte(valueStorage.ordinal());
+		out.writeInt(nEntries);
+		out.writeBoolean(root != null);
+		if (root != null) {
+			root.write(out, (PhValueCodec<Object>) codec, dims);
+		}
+	}
+
+	/**
+	 * Reads a tree that was written with {@link #write(PhTreeIO.Output, PhValueCodec)}.
+	 * @param in input
+	 * @param codec value codec
+	 * @return the tree
+	 * @throws IOException if reading fails
+	 * @param <T> value type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PhTree13<T> read(PhTreeIO.Input in, PhValueCodec<T> codec) throws IOException {
+		int dims = in.readInt();
+		int depth = in.readInt();
+		ValueStorage vs = ValueStorage.values()[in.readByte()];
+		PhTree13<T> tree = new PhTree13<>(dims, vs, depth);
+		tree.nEntries = in.readInt();
+		if (in.readBoolean()) {
+			tree.root = Node.read(in, (PhValueCodec<Object>) codec, tree);
+		}
+		return tree;
+	}
+
 	ObjectPool<Node> nodePool() {
 		return nodePool;
 	}
@@ -708,5 +1138,25 @@ public class PhTree13<T> implements PhTree<T> {
 	LongArrayPool longPool() {
 		return bitPool;
 	}
+
+	boolean hasPrimitiveValues() {
+		return valueStorage == ValueStorage.LONG || valueStorage == ValueStorage.INT;
+	}
+
+	long primitiveNew() {
+		return primitiveNew;
+	}
+
+	long primitiveOld() {
+		return primitiveOld;
+	}
+
+	void primitiveOld(long value) {
+		primitiveOld = value;
+	}
+
+	boolean hasValues() {
+		return valueStorage != ValueStorage.NONE;
+	}
 }
 
@@ -20,12 +20,15 @@ package ch.ethz.globis.phtree.v16;
 
 import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.BiFunction;
 
 import ch.ethz.globis.phtree.PhEntry;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhTreeIO;
+import ch.ethz.globis.phtree.PhValueCodec;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.util.StringBuilderLn;
 import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
@@ -41,6 +44,11 @@ import ch.ethz.globis.phtree.v16.bst.BSTreePage;
  */
 public class Node {
 
+	//Entry types in snapshots, see PhTreeIO
+	private static final byte ENTRY_VALUE = 0;
+	private static final byte ENTRY_NULL = 1;
+	private static final byte ENTRY_NODE = 2;
+
 	private byte maxLeafN;// = 100;//10;//340;
 	/** Max number of keys in inner page (there can be max+1 page-refs) */
 	private byte maxInnerN;// = 100;//11;//509;
@@ -58,12 +66,16 @@ public class Node {
 	//Nested tree index
 	private BSTreePage root;
 
+	/** Persistence state, this is 'null' if the tree is not persistent. */
+	private NodePage page;
+
 	
     Node() {
 		// For pooling only
 	}
 
 	private void initNode(int infixLenClassic, int postLenClassic, int dims, PhTree16<?> tree) {
+		this.page = null;
 		this.infixLenStored = (byte) (infixLenClassic + 1);
 		this.postLenStored = (byte) (postLenClassic + 1);
 		this.entryCnt = 0;
@@ -84,20 +96,170 @@ public class Node {
 		case 12: maxLeafN = 64; maxInnerN = 70+1; break;
 		default: maxLeafN = 100; maxInnerN = 100; break;
 		}
-		this.root = bstCreateRoot(tree);
 	}
 
 	public static Node createNode(int dims, int infixLenClassic, int postLenClassic, PhTree16<?> tree) {
 		Node n = tree.nodePool().get();
 		n.initNode(infixLenClassic, postLenClassic, dims, tree);
+		n.root = n.bstCreateRoot(tree);
+		if (tree.persistence() != null) {
+			tree.persistence().registerNode(n);
+		}
 		return n;
 	}
 
-	private void discardNode(PhTree16<?> tree) {
+	/**
+	 * Creates an empty node for a node that is loaded by a persistence provider.
+	 * @param dims dimensions
+	 * @param infixLenClassic infix length
+	 * @param postLenClassic postfix length
+	 * @param tree the tree
+	 * @return new node, the node is not registered with the persistence provider
+	 */
+	static Node createNodeForLoad(int dims, int infixLenClassic, int postLenClassic, PhTree16<?> tree) {
+		Node n = tree.nodePool().get();
+		n.initNode(infixLenClassic, postLenClassic, dims, tree);
+		n.root = n.bstCreateRoot(tree);
+		return n;
+	}
+
+	/**
+	 * Creates a node without content. The content is loaded by the persistence provider
+	 * when the node is accessed for the first time, see {@link #getRoot()}.
+	 * @param dims dimensions
+	 * @param infixLenClassic infix length
+	 * @param postLenClassic postfix length
+	 * @param tree the tree
+	 * @return new node, the node is not registered with the persistence provider
+	 */
+	static Node createStub(int dims, int infixLenClassic, int postLenClassic, PhTree16<?> tree) {
+		Node n = tree.nodePool().get();
+		n.initNode(infixLenClassic, postLenClassic, dims, tree);
+		return n;
+	}
+
+	/**
+	 * @return 'true' if the content of the node is in memory, 'false' for stubs and evicted nodes.
+	 */
+	boolean isLoaded() {
+		return root != null;
+	}
+
+	/**
+	 * Prepares an empty content before the entries of the node are loaded.
+	 * @param tree the tree
+	 */
+	void initContentForLoad(PhTree16<?> tree) {
+		root = bstCreateRoot(tree);
 		entryCnt = 0;
-		getRoot().clear();
-		tree.bstPool().reportFreeNode(root);
+	}
+
+	/**
+	 * Discards the content of the node, it is reloaded when the node is accessed again.
+	 * The BST pages are not returned to the pool because iterators may still traverse them.
+	 */
+	void evictContent() {
 		root = null;
+	}
+
+	/**
+	 * Writes the node and its sub-nodes in pre-order, see {@link PhTreeIO}.
+	 * The keys of all entries are written first, followed by the values.
+	 * @param out output
+	 * @param codec value codec
+	 * @param dims dimensions
+	 * @throws IOException if writing fails
+	 */
+	void write(PhTreeIO.Output out, PhValueCodec<Object> codec, int dims) throws IOException {
+		out.writeByte(getPostLen());
+		out.writeByte(getInfixLen());
+		int n = getEntryCount();
+		out.writeInt(n);
+		long[] keys = new long[n * dims];
+		BSTIteratorAll it = iterator();
+		for (int i = 0; it.hasNextEntry(); i++) {
+			System.arraycopy(it.nextEntry().getKdKey(), 0, keys, i * dims, dims);
+		}
+		out.writeLongs(keys, 0, keys.length);
+		it = iterator();
+		while (it.hasNextEntry()) {
+			Object v = it.nextEntry().getValue();
+			if (v instanceof Node) {
+				out.writeByte(ENTRY_NODE);
+				((Node) v).write(out, codec, dims);
+			} else if (v == null || v == PhTreeHelper.NULL) {
+				out.writeByte(ENTRY_NULL);
+			} else {
+				out.writeByte(ENTRY_VALUE);
+				codec.write(v, out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a node and its sub-nodes that were written with
+	 * {@link #write(PhTreeIO.Output, PhValueCodec, int)}.
+	 * @param in input
+	 * @param codec value codec
+	 * @param tree the tree
+	 * @return the new node
+	 * @throws IOException if reading fails
+	 */
+	static Node read(PhTreeIO.Input in, PhValueCodec<Object> codec, PhTree16<?> tree) throws IOException {
+		int dims = tree.getDim();
+		int postLen = in.readByte();
+		int infixLen = in.readByte();
+		Node node = createNode(dims, infixLen, postLen, tree);
+		int n = in.readInt();
+		long[] keys = new long[n * dims];
+		in.readLongs(keys, 0, keys.length);
+		for (int i = 0; i < n; i++) {
+			long[] key = Arrays.copyOfRange(keys, i * dims, (i + 1) * dims);
+			Object v;
+			byte type = in.readByte();
+			if (type == ENTRY_NODE) {
+				v = read(in, codec, tree);
+			} else if (type == ENTRY_NULL) {
+				v = PhTreeHelper.NULL;
+			} else {
+				v = codec.read(in);
+			}
+			long hcPos = posInArray(key, postLen);
+			node.bstGetOrCreate(hcPos, tree).set(hcPos, key, v);
+		}
+		return node;
+	}
+
+	NodePage getPage() {
+		return page;
+	}
+
+	void setPage(NodePage page) {
+		this.page = page;
+	}
+
+	/**
+	 * Notifies the persistence provider, if any, that the node has been modified.
+	 * The content of an evicted node is loaded first, only loaded nodes can be dirty.
+	 */
+	void markDirty() {
+		if (page != null && !page.dirty) {
+			root();
+			page.store.updateNode(this);
+		}
+	}
+
+	private void discardNode(PhTree16<?> tree) {
+		if (page != null) {
+			page.store.removeNode(this);
+			page = null;
+		}
+		entryCnt = 0;
+		if (root != null) {
+			root.clear();
+			tree.bstPool().reportFreeNode(root);
+			root = null;
+		}
 		tree.nodePool().offer(this);
 	}
 	
@@ -140,6 +302,10 @@ public class Node {
 		}
 		Object v = removeEntry(hcPos, keyToMatch, insertRequired, tree);
 		if (v != null && !(v instanceof Node)) {
+			if (insertRequired != null && insertRequired.insertRequired == PhTree16.NO_INSERT_REQUIRED) {
+				//update() replaced the key in place, the entry was not removed
+				return v;
+			}
 			//Found and removed entry.
 			tree.decreaseNrEntries();
 			if (getEntryCount() == 1) {
@@ -355,6 +521,9 @@ public class Node {
 	 * @return entry counter
 	 */
 	public int getEntryCount() {
+		if (root == null && page != null) {
+			page.store.access(this, false, false);
+		}
 		return entryCnt;
 	}
 
@@ -388,6 +557,7 @@ public class Node {
 
     void setInfixLen(int newInfLen) {
         infixLenStored = (byte) (newInfLen + 1);
+        markDirty();
     }
 
     public int getPostLen() {
@@ -416,7 +586,7 @@ public class Node {
 
 
     public final BSTEntry bstGetOrCreate(long key, PhTree16<?> tree) {
-        BSTreePage page = getRoot();
+        BSTreePage page = root();
         if (page.isLeaf()) {
             BSTEntry e = page.getOrCreate(key, null, -1, this);
             if (e.getKdKey() == null && e.getValue() instanceof BSTreePage) {
@@ -441,7 +611,7 @@ public class Node {
 
 
     public BSTEntry bstRemove(long key, long[] kdKey, PhTree16.UpdateInfo ui, PhTree16<?> tree) {
-		final BSTreePage rootPage = getRoot();
+		final BSTreePage rootPage = root();
 		if (rootPage.isLeaf()) {
 			return rootPage.remove(key, kdKey, this, ui);
 		}
@@ -458,7 +628,7 @@ public class Node {
 
     public <T> Object bstCompute(long key, long[] kdKey, PhTree16<?> tree, boolean doIfAbsent,
                                    BiFunction<long[], ? super T, ? extends T> mappingFunction) {
-        BSTreePage page = getRoot();
+        BSTreePage page = root();
         int pos = -1;
         while (!page.isLeaf()) {
             pos = page.binarySearchInnerNode(key);
@@ -466,7 +636,7 @@ public class Node {
         }
         Object result = page.computeLeaf(key, kdKey, pos, this, doIfAbsent, mappingFunction);
 
-        BSTreePage rootPage = getRoot();
+        BSTreePage rootPage = root();
         if (!rootPage.isLeaf() && rootPage.getNKeys() == 0) {
             root = rootPage.getFirstSubPage();
             root.setParent(null);
@@ -477,7 +647,7 @@ public class Node {
 
 
     public BSTEntry bstGet(long key) {
-        BSTreePage page = getRoot();
+        BSTreePage page = root();
         while (page != null && !page.isLeaf()) {
             page = page.findSubPage(key);
         }
@@ -491,7 +661,25 @@ public class Node {
 		return BSTreePage.create(this, parent, isLeaf, leftPredecessor, tree);
 	}
 
+    /**
+     * Access for iterators, the node is not pinned, see {@link NodeStore#access(Node, boolean, boolean)}.
+     * @return the root page of the node's BST
+     */
     public BSTreePage getRoot() {
+        if (page != null) {
+            //This may load the content of the node
+            page.store.access(this, root != null, false);
+        }
+        return root;
+    }
+
+    /**
+     * Access for operations that may modify the node.
+     */
+    private BSTreePage root() {
+        if (page != null) {
+            page.store.access(this, root != null, true);
+        }
         return root;
     }
 
@@ -501,7 +689,7 @@ public class Node {
 
     public String toStringTree() {
         StringBuilderLn sb = new StringBuilderLn();
-        if (root != null) {
+        if (getRoot() != null) {
             root.toStringTree(sb, "");
         }
         return sb.toString();
@@ -540,7 +728,7 @@ public class Node {
 	
 	public BSTStats getStats() {
 		BSTStats stats = new BSTStats();
-		if (root != null) {
+		if (getRoot() != null) {
 			root.getStats(stats);
 		}
 		return stats;
@@ -583,11 +771,17 @@ public class Node {
 		if (be.getKdKey() == null) {
 			//new!
 			be.set(hcPos, kdKey, value);
+			markDirty();
 			return null;
 		} 
 		
 		//exists!!
-		return handleCollision(be, kdKey, value, tree);
+		Object v = handleCollision(be, kdKey, value, tree);
+		if (!(v instanceof Node)) {
+			//replaced or split
+			markDirty();
+		}
+		return v;
 	}
 
 
@@ -646,6 +840,7 @@ public class Node {
 	private void replaceEntry(long hcPos, long[] kdKey, Object value) {
 		BSTEntry be = bstGet(hcPos);
 		be.set(hcPos, kdKey, value);
+		markDirty();
 	}
 
 	Object removeEntry(long hcPos, long[] keyToMatch, Node parent, PhTree16<?> tree) {
@@ -663,6 +858,9 @@ public class Node {
     <T> Object computeEntry(long hcPos, long[] keyToMatch, Node parent, PhTree16<?> tree,
                             boolean doIfAbsent, BiFunction<long[], ? super T, ? extends T> mappingFunction) {
         Object v = bstCompute(hcPos, keyToMatch, tree,  doIfAbsent, mappingFunction);
+        if (!(v instanceof Node)) {
+            markDirty();
+        }
         //Check for removed elements
         if (getEntryCount() == 1) {
             mergeIntoParentNt(keyToMatch, parent, tree);
@@ -687,6 +885,10 @@ public class Node {
     private Object removeEntry(long hcPos, long[] key, UpdateInfo ui, PhTree16<?> tree) {
         //Only remove value-entries, node-entries are simply returned without removing them
         BSTEntry prev = bstRemove(hcPos, key, ui, tree);
+        if (prev != null && !(prev.getValue() instanceof Node)) {
+            //removed or key replaced
+            markDirty();
+        }
         //return values:
         // - null -> not found / remove failed
         // - Node -> recurse node
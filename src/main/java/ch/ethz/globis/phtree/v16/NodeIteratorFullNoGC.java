@@ -37,6 +37,7 @@ import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
 public class NodeIteratorFullNoGC<T> {
 	
 	private final BSTIteratorAll ntIterator = new BSTIteratorAll();
+	private Node node;
 	private PhFilter checker;
 
 
@@ -54,9 +55,14 @@ public class NodeIteratorFullNoGC<T> {
 	 */
 	void init(Node node, PhFilter checker) {
 		this.checker = checker;
+		this.node = node;
 		ntIterator.reset(node.getRoot());
 	}
 
+	Node getNode() {
+		return node;
+	}
+
 	/**
 	 * Advances the cursor. 
 	 * @return TRUE iff a matching element was found.
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import ch.ethz.globis.phtree.PhQueryMultiVisitor;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorMask;
+
+/**
+ * A recursive query for multiple windows that traverses the tree only once.
+ *
+ * For every depth, we keep the list of windows that intersect with the current node.
+ * A sub-node is only visited with the windows that intersect with its prefix region,
+ * and it is not visited at all if there are no such windows.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class NodeIteratorMultiVisitor<T> {
+
+	private final int dims;
+	private final BSTIteratorMask[] iterators = new BSTIteratorMask[PhTree16.DEPTH_64];
+	private long[][] rangeMin;
+	private long[][] rangeMax;
+	//The active windows for each depth
+	private final int[][] active = new int[PhTree16.DEPTH_64 + 1][];
+	private final int[] nActive = new int[PhTree16.DEPTH_64 + 1];
+	private PhQueryMultiVisitor<T> visitor;
+
+	NodeIteratorMultiVisitor(int dims) {
+		this.dims = dims;
+	}
+
+	/**
+	 *
+	 * @param root the root node
+	 * @param rangeMin minimum, one array per window
+	 * @param rangeMax maximum, one array per window
+	 * @param visitor result visitor
+	 * @return false if the visitor aborted the traversal
+	 */
+	boolean run(Node root, long[][] rangeMin, long[][] rangeMax, PhQueryMultiVisitor<T> visitor) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.visitor = visitor;
+		int[] a = activeArray(0);
+		int n = 0;
+		for (int w = 0; w < rangeMin.length; w++) {
+			if (isValid(w)) {
+				a[n++] = w;
+			}
+		}
+		nActive[0] = n;
+		//The root has no prefix, unless the tree uses less than 64 bits
+		return n == 0 || traverse(root, new long[dims], 0);
+	}
+
+	private boolean isValid(int w) {
+		for (int d = 0; d < dims; d++) {
+			if (rangeMin[w][d] > rangeMax[w][d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int[] activeArray(int depth) {
+		int[] a = active[depth];
+		if (a == null) {
+			a = new int[rangeMin.length];
+			active[depth] = a;
+		}
+		return a;
+	}
+
+	private boolean traverse(Node node, long[] prefix, int depth) {
+		//Calculate the union of the HC-masks of all active windows, see
+		//NodeIteratorNoGC.calcLimits().
+		int postLen = node.getPostLen();
+		long maskHcBit = 1L << postLen;
+		long maskVT = (-1L) << postLen;
+		long maskLower = -1L;
+		long maskUpper = 0;
+		int[] a = active[depth];
+		int n = nActive[depth];
+		for (int iw = 0; iw < n; iw++) {
+			long[] min = rangeMin[a[iw]];
+			long[] max = rangeMax[a[iw]];
+			long lowerLimit = 0;
+			long upperLimit = 0;
+			//to prevent problems with signed long when using 64 bit
+			if (maskHcBit >= 0) { //i.e. postLen < 63
+				for (int i = 0; i < dims; i++) {
+					lowerLimit <<= 1;
+					upperLimit <<= 1;
+					long nodeBisection = (prefix[i] | maskHcBit) & maskVT;
+					if (min[i] >= nodeBisection) {
+						lowerLimit |= 1L;
+					}
+					if (max[i] >= nodeBisection) {
+						upperLimit |= 1L;
+					}
+				}
+			} else {
+				//special treatment for signed longs
+				for (int i = 0; i < dims; i++) {
+					lowerLimit <<= 1;
+					upperLimit <<= 1;
+					if (min[i] < 0) {
+						upperLimit |= 1L;
+					}
+					if (max[i] < 0) {
+						lowerLimit |= 1L;
+					}
+				}
+			}
+			maskLower &= lowerLimit;
+			maskUpper |= upperLimit;
+		}
+
+		BSTIteratorMask it = iterators[depth];
+		if (it == null) {
+			it = new BSTIteratorMask();
+			iterators[depth] = it;
+		}
+		it.reset(node.getRoot(), maskLower, maskUpper, node.getEntryCount());
+		while (it.hasNextEntry()) {
+			BSTEntry be = it.nextEntry();
+			Object v = be.getValue();
+			long[] kdKey = be.getKdKey();
+			if (v instanceof Node) {
+				Node sub = (Node) v;
+				//Find all windows that intersect with the sub-node
+				long mask = (-1L) << (sub.getPostLen() + 1);
+				int[] subActive = activeArray(depth + 1);
+				int nSub = 0;
+				for (int iw = 0; iw < n; iw++) {
+					if (intersects(kdKey, rangeMin[a[iw]], rangeMax[a[iw]], mask)) {
+						subActive[nSub++] = a[iw];
+					}
+				}
+				nActive[depth + 1] = nSub;
+				if (nSub > 0 && !traverse(sub, kdKey, depth + 1)) {
+					return false;
+				}
+			} else if (v != null) {
+				T value = PhTreeHelper.unmaskNull(v);
+				for (int iw = 0; iw < n; iw++) {
+					int w = a[iw];
+					if (contains(kdKey, rangeMin[w], rangeMax[w]) && !visitor.accept(w, kdKey, value)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean intersects(long[] prefix, long[] min, long[] max, long mask) {
+		for (int d = 0; d < dims; d++) {
+			if ((prefix[d] & mask) > max[d] || (prefix[d] | ~mask) < min[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean contains(long[] key, long[] min, long[] max) {
+		for (int d = 0; d < dims; d++) {
+			if (key[d] < min[d] || key[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -171,4 +171,8 @@ public class NodeIteratorNoGC<T> {
 		calcLimits(rangeMin, rangeMax, prefix);
 		reinit(node, rangeMin, rangeMax, checker);
 	}
+
+	Node getNode() {
+		return node;
+	}
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011-2016 ETH Zurich. All Rights Reserved.
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhQueryCursor.PhFilterAfter;
+import ch.ethz.globis.phtree.PhQueryVisitor;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorMask;
+
+/**
+ * A recursive window query that reports all results to a {@link PhQueryVisitor}.
+ *
+ * In contrast to {@link NodeIteratorNoGC}, this never looks ahead for the next element.
+ * The BST iterators are reused for each depth, so the traversal does not create any objects
+ * per result entry.
+ * If the filter is a {@link PhFilterAfter}, the traversal starts at the last key of the
+ * filter instead of rejecting all preceding entries one by one.
+ *
+ * @author ztilmann
+ *
+ * @param <T> value type
+ */
+public class NodeIteratorVisitor<T> {
+
+	private final BSTIteratorMask[] iterators = new BSTIteratorMask[PhTree16.DEPTH_64];
+	private final PhEntry<T> resultBuffer = new PhEntry<>(null, null);
+	private long[] rangeMin;
+	private long[] rangeMax;
+	private PhFilter checker;
+	//Start key for paginated queries, this is 'null' if all entries are traversed.
+	private long[] after;
+	private PhQueryVisitor<T> visitor;
+
+	/**
+	 *
+	 * @param root the root node
+	 * @param rangeMin minimum
+	 * @param rangeMax maximum
+	 * @param checker result verifier, can be null.
+	 * @param visitor result visitor
+	 * @return false if the visitor aborted the traversal
+	 */
+	boolean run(Node root, long[] rangeMin, long[] rangeMax, PhFilter checker,
+			PhQueryVisitor<T> visitor) {
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+		this.visitor = visitor;
+		if (checker instanceof PhFilterAfter) {
+			//All entries after the start key are valid, the filter is not needed
+			this.after = ((PhFilterAfter) checker).getLastKey();
+			this.checker = null;
+		} else {
+			this.after = null;
+			this.checker = checker;
+		}
+		//The root has no prefix, unless the tree uses less than 64 bits
+		return traverse(root, new long[rangeMin.length], 0, after != null);
+	}
+
+	/**
+	 * @param node the node
+	 * @param prefix the prefix of the node
+	 * @param depth the depth of the node
+	 * @param onPath whether the node contains the start key 'after'. In this case
+	 * all entries that precede the start key are skipped.
+	 * @return false if the visitor aborted the traversal
+	 */
+	private boolean traverse(Node node, long[] prefix, int depth, boolean onPath) {
+		//See NodeIteratorNoGC.calcLimits()
+		int postLen = node.getPostLen();
+		long maskHcBit = 1L << postLen;
+		long maskVT = (-1L) << postLen;
+		long maskLower = 0;
+		long maskUpper = 0;
+		//to prevent problems with signed long when using 64 bit
+		if (maskHcBit >= 0) { //i.e. postLen < 63
+			for (int i = 0; i < rangeMin.length; i++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				long nodeBisection = (prefix[i] | maskHcBit) & maskVT;
+				if (rangeMin[i] >= nodeBisection) {
+					maskLower |= 1L;
+				}
+				if (rangeMax[i] >= nodeBisection) {
+					maskUpper |= 1L;
+				}
+			}
+		} else {
+			//special treatment for signed longs
+			for (int i = 0; i < rangeMin.length; i++) {
+				maskLower <<= 1;
+				maskUpper <<= 1;
+				if (rangeMin[i] < 0) {
+					maskUpper |= 1L;
+				}
+				if (rangeMax[i] < 0) {
+					maskLower |= 1L;
+				}
+			}
+		}
+
+		BSTIteratorMask it = iterators[depth];
+		if (it == null) {
+			it = new BSTIteratorMask();
+			iterators[depth] = it;
+		}
+		//Entries at this position may precede the start key, all others follow it.
+		long startPos = -1;
+		if (onPath) {
+			startPos = PhTreeHelper.posInArray(after, postLen);
+			it.reset(node.getRoot(), maskLower, maskUpper, node.getEntryCount(), startPos);
+		} else {
+			it.reset(node.getRoot(), maskLower, maskUpper, node.getEntryCount());
+		}
+		while (it.hasNextEntry()) {
+			BSTEntry be = it.nextEntry();
+			if (!node.checkAndGetEntry(be, resultBuffer, rangeMin, rangeMax)) {
+				continue;
+			}
+			boolean entryOnPath = onPath && be.getKey() == startPos;
+			Object v = be.getValue();
+			if (v instanceof Node) {
+				Node sub = (Node) v;
+				//skip this for postLen>=63
+				if (checker != null && sub.getPostLen() < (PhTree16.DEPTH_64-1) &&
+						!checker.isValid(sub.getPostLen()+1, be.getKdKey())) {
+					continue;
+				}
+				int cmp = 1;
+				if (entryOnPath) {
+					cmp = sub.getPostLen() >= PhTree16.DEPTH_64-1 ? 0 : PhTreeHelper.compareZOrder(
+							be.getKdKey(), after, (-1L) << (sub.getPostLen()+1));
+					if (cmp < 0) {
+						continue;
+					}
+				}
+				if (!traverse(sub, be.getKdKey(), depth + 1, cmp == 0)) {
+					return false;
+				}
+			} else if (entryOnPath && PhTreeHelper.compareZOrder(be.getKdKey(), after, -1L) <= 0) {
+				continue;
+			} else if (checker == null || checker.isValid(be.getKdKey())) {
+				if (!visitor.accept(be.getKdKey(), PhTreeHelper.unmaskNull(v))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
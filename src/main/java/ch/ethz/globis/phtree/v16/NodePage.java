@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+/**
+ * Persistence state of a {@link Node}, see {@link NodeStore}.
+ * 
+ * @author Tilmann Zaeschke
+ */
+final class NodePage {
+
+	final NodeStore store;
+	/** The node, this is 'null' if the node has been removed. */
+	Node node;
+	/** IDs of the pages that store the node. The first ID is the ID of the node. */
+	long[] pages;
+	boolean dirty;
+	/** 'true' if the content of the node is loaded and accounted for in the node cache. */
+	boolean resident;
+	/** CLOCK reference bit. */
+	boolean referenced;
+	/** The last operation that accessed the node. Nodes are not evicted during this operation. */
+	long lastOp = -1;
+	/** Estimated memory size of the content in bytes. */
+	long size;
+
+	NodePage(NodeStore store, Node node, long[] pages) {
+		this.store = store;
+		this.node = node;
+		this.pages = pages;
+	}
+
+	long id() {
+		return pages[0];
+	}
+}
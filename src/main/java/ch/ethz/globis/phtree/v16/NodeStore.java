@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+import ch.ethz.globis.phtree.PersistenceProvider;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.Node.BSTEntry;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Base class for persistence providers of {@link PhTree16} that track modified nodes
+ * via {@link NodePage}. It also defines the serialized format of a single node.
+ *
+ * @author Tilmann Zaeschke
+ */
+abstract class NodeStore implements PersistenceProvider {
+
+	static final byte TYPE_VALUE = 0;
+	static final byte TYPE_NULL = 1;
+	static final byte TYPE_NODE = 2;
+	static final long NO_NODE = -1;
+
+	final PhValueCodec<Object> codec;
+	PhTree16<?> tree;
+
+	@SuppressWarnings("unchecked")
+	NodeStore(PhValueCodec<?> codec) {
+		this.codec = (PhValueCodec<Object>) codec;
+	}
+
+	/**
+	 * Called when a node has been removed from the tree.
+	 * @param node the node
+	 */
+	abstract void removeNode(Node node);
+
+	/**
+	 * Called when the tree is cleared.
+	 */
+	abstract void clearNodes();
+
+	/**
+	 * Loads a sub-node while a node is decoded.
+	 * @param id the node ID
+	 * @param postLen postfix length of the sub-node
+	 * @param infixLen infix length of the sub-node
+	 * @return the node
+	 */
+	abstract Node loadChild(long id, int postLen, int infixLen);
+
+	/**
+	 * Called when a tree operation starts, see {@link PhTree16#getRoot()}.
+	 */
+	void startOperation() {
+		//nothing
+	}
+
+	/**
+	 * Called whenever the content of a node is accessed, see {@link Node#getRoot()}.
+	 * @param node the node
+	 * @param loaded 'false' if the content has to be loaded
+	 * @param pin 'true' if the node may be modified by the current operation. Iterators do not
+	 * pin nodes, they are registered with {@link #registerIterator(NodePath)} instead.
+	 */
+	void access(Node node, boolean loaded, boolean pin) {
+		if (!loaded) {
+			throw new IllegalStateException("Node is not loaded");
+		}
+	}
+
+	/**
+	 * Registers an iterator that keeps references to the content of nodes between operations.
+	 * The nodes on the current path of the iterator must not be evicted while the iterator
+	 * is reachable.
+	 * @param it the path of the iterator
+	 */
+	void registerIterator(NodePath it) {
+		//nothing
+	}
+
+	/**
+	 * The nodes that an iterator is currently positioned in.
+	 */
+	interface NodePath {
+		/**
+		 * @param nodes receives all nodes on the current path
+		 */
+		void collectNodes(Collection<Node> nodes);
+	}
+
+	/**
+	 * Writes a node. Sub-nodes are written as references to the ID of their page.
+	 * @param node the node
+	 * @param out output
+	 * @throws IOException if writing fails
+	 */
+	void encodeNode(Node node, DataOutput out) throws IOException {
+		out.writeByte(node.getPostLen());
+		out.writeByte(node.getInfixLen());
+		out.writeInt(node.getEntryCount());
+		BSTIteratorAll it = node.iterator();
+		while (it.hasNextEntry()) {
+			BSTEntry e = it.nextEntry();
+			for (long k : e.getKdKey()) {
+				out.writeLong(k);
+			}
+			Object v = e.getValue();
+			if (v instanceof Node) {
+				Node sub = (Node) v;
+				out.writeByte(TYPE_NODE);
+				out.writeLong(sub.getPage().id());
+				//Stored here, so sub-nodes can be created as stubs
+				out.writeByte(sub.getPostLen());
+				out.writeByte(sub.getInfixLen());
+			} else if (v == null || v == PhTreeHelper.NULL) {
+				out.writeByte(TYPE_NULL);
+			} else {
+				out.writeByte(TYPE_VALUE);
+				codec.write(v, out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a node that was written with {@link #encodeNode(Node, DataOutput)}.
+	 * Sub-nodes are loaded with {@link #loadChild(long, int, int)}.
+	 * @param in input
+	 * @param page the page of the new node, {@link NodePage#node} is set by this method
+	 * @return the node
+	 * @throws IOException if reading fails
+	 */
+	Node decodeNode(DataInput in, NodePage page) throws IOException {
+		int postLen = in.readByte();
+		int infixLen = in.readByte();
+		int nEntries = in.readInt();
+		Node node = Node.createNodeForLoad(tree.getDim(), infixLen, postLen, tree);
+		page.node = node;
+		node.setPage(page);
+		decodeEntries(in, node, nEntries);
+		return node;
+	}
+
+	/**
+	 * Reads the entries of a node.
+	 * @param in input
+	 * @param node the node
+	 * @param nEntries number of entries
+	 * @throws IOException if reading fails
+	 */
+	void decodeEntries(DataInput in, Node node, int nEntries) throws IOException {
+		int dims = tree.getDim();
+		int postLen = node.getPostLen();
+		for (int i = 0; i < nEntries; i++) {
+			long[] key = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				key[d] = in.readLong();
+			}
+			Object v;
+			byte type = in.readByte();
+			if (type == TYPE_NODE) {
+				long id = in.readLong();
+				int subPostLen = in.readByte();
+				v = loadChild(id, subPostLen, in.readByte());
+			} else if (type == TYPE_NULL) {
+				v = PhTreeHelper.NULL;
+			} else {
+				v = codec.read(in);
+			}
+			long hcPos = posInArray(key, postLen);
+			BSTEntry e = node.bstGetOrCreate(hcPos, tree);
+			e.set(hcPos, key, v);
+		}
+	}
+}
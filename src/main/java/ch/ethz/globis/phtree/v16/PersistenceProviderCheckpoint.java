@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * Persistence provider for in-memory {@link PhTree16} trees that supports incremental
+ * checkpoints.
+ * <p>
+ * Every node has a unique ID. Modified and removed nodes are tracked via
+ * {@link #updateNode(Object)}. {@link #checkpoint(WritableByteChannel)} writes all nodes,
+ * {@link #checkpointIncremental(WritableByteChannel)} writes only the nodes that were
+ * modified since the previous checkpoint, together with the IDs of removed nodes.
+ * {@link #restore(PhValueCodec, ReadableByteChannel, ReadableByteChannel...)} merges a full
+ * checkpoint with a sequence of incremental checkpoints and rebuilds the tree.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+ * PhTreeConfig cfg = new PhTreeConfig(dims);
+ * cfg.setPersistenceProvider(pp);
+ * PhTree<Long> tree = PhTree.create(cfg);
+ * ...
+ * pp.checkpoint(base);
+ * ...
+ * pp.checkpointIncremental(delta1);
+ * ...
+ * pp = PersistenceProviderCheckpoint.restore(PhValueCodec.LONG, base, delta1);
+ * PhTree<Long> tree = pp.loadTree();
+ * }</pre>
+ * Incremental checkpoints must be restored in the order in which they were written.
+ * I/O errors are reported as {@link UncheckedIOException}.
+ *
+ * @author Tilmann Zaeschke
+ */
+public class PersistenceProviderCheckpoint extends NodeStore {
+
+	private static final long MAGIC = 0x5048545245434B50L; //PHTRECKP
+	private static final int VERSION = 1;
+	private static final byte KIND_FULL = 0;
+	private static final byte KIND_INCREMENTAL = 1;
+
+	private long nextId = 0;
+	/** Sequence number of the last checkpoint, 0 if there is none. */
+	private long sequence = 0;
+	private final ArrayList<NodePage> dirty = new ArrayList<>();
+	private final ArrayList<Long> removed = new ArrayList<>();
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	private final DataOutputStream nodeOut = new DataOutputStream(bos);
+	/** Serialized nodes, only used while restoring. */
+	private Map<Long, byte[]> restoring;
+	private int statPageReads = 0;
+	private int statPageWrites = 0;
+
+	private PersistenceProviderCheckpoint(PhValueCodec<?> codec) {
+		super(codec);
+	}
+
+	/**
+	 * Create a provider for a new tree.
+	 * @param codec value codec
+	 * @return the provider
+	 */
+	public static PersistenceProviderCheckpoint create(PhValueCodec<?> codec) {
+		return new PersistenceProviderCheckpoint(codec);
+	}
+
+	/**
+	 * Not supported, all nodes are kept in memory and are only read by
+	 * {@link #restore(PhValueCodec, ReadableByteChannel, ReadableByteChannel...)}.
+	 */
+	@Override
+	public Object loadNode(Object o) {
+		throw new UnsupportedOperationException("provider= " + getDescription());
+	}
+
+	/**
+	 * Assigns an ID to a new node.
+	 * @param o the new node
+	 * @return the node ID
+	 */
+	@Override
+	public Object registerNode(Object o) {
+		Node node = (Node) o;
+		NodePage page = new NodePage(this, node, new long[] {nextId++});
+		node.setPage(page);
+		page.dirty = true;
+		dirty.add(page);
+		return page.id();
+	}
+
+	@Override
+	public void updateNode(Object o) {
+		NodePage page = ((Node) o).getPage();
+		if (!page.dirty) {
+			page.dirty = true;
+			dirty.add(page);
+		}
+	}
+
+	@Override
+	void removeNode(Node node) {
+		NodePage page = node.getPage();
+		removed.add(page.id());
+		page.node = null;
+		page.dirty = false;
+	}
+
+	@Override
+	void clearNodes() {
+		//Nodes that are not reachable from the root are ignored when restoring
+		for (NodePage page : dirty) {
+			page.node = null;
+		}
+		dirty.clear();
+		removed.clear();
+	}
+
+	@Override
+	public String getDescription() {
+		return "CHECKPOINT";
+	}
+
+	/**
+	 * @return Number of nodes read by restore().
+	 */
+	@Override
+	public int statsGetPageReads() {
+		return statPageReads;
+	}
+
+	/**
+	 * @return Number of nodes written by checkpoints.
+	 */
+	@Override
+	public int statsGetPageWrites() {
+		return statPageWrites;
+	}
+
+	@Override
+	public void statsReset() {
+		statPageReads = 0;
+		statPageWrites = 0;
+	}
+
+	@Override
+	public void writeTree(PhTree<?> tree, int dims) {
+		if (this.tree != null) {
+			throw new IllegalStateException("The provider is already used by a tree");
+		}
+		this.tree = (PhTree16<?>) tree;
+	}
+
+	@Override
+	public void updateTree(PhTree<?> tree, int dims, int nEntries, Object rootId) {
+		//The tree is written by checkpoint()
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> PhTree<T> loadTree() {
+		return (PhTree<T>) tree;
+	}
+
+	@Override
+	public void flush() {
+		//The tree is written by checkpoint()
+	}
+
+	/**
+	 * @return the sequence number of the last checkpoint, 0 if there is none.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Writes all nodes of the tree. The channel is not closed.
+	 * @param channel output
+	 */
+	public void checkpoint(WritableByteChannel channel) {
+		ArrayList<NodePage> all = new ArrayList<>();
+		Node root = tree.getRoot();
+		if (root != null) {
+			collect(root, all);
+		}
+		write(channel, KIND_FULL, all, new ArrayList<>());
+	}
+
+	private static void collect(Node node, ArrayList<NodePage> list) {
+		list.add(node.getPage());
+		BSTIteratorAll it = node.iterator();
+		while (it.hasNextEntry()) {
+			Object v = it.nextEntry().getValue();
+			if (v instanceof Node) {
+				collect((Node) v, list);
+			}
+		}
+	}
+
+	/**
+	 * Writes all nodes that were modified or created since the last checkpoint, and the IDs
+	 * of all nodes that were removed. The channel is not closed.
+	 * @param channel output
+	 */
+	public void checkpointIncremental(WritableByteChannel channel) {
+		if (sequence == 0) {
+			throw new IllegalStateException("An incremental checkpoint requires a full checkpoint");
+		}
+		ArrayList<NodePage> pages = new ArrayList<>(dirty.size());
+		for (int i = 0; i < dirty.size(); i++) {
+			NodePage page = dirty.get(i);
+			if (page.node != null && page.dirty) {
+				pages.add(page);
+			}
+		}
+		write(channel, KIND_INCREMENTAL, pages, removed);
+	}
+
+	private void write(WritableByteChannel channel, byte kind, ArrayList<NodePage> pages,
+			ArrayList<Long> removedIds) {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+		Node root = tree.getRoot();
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(kind);
+			out.writeLong(sequence);
+			out.writeLong(sequence + 1);
+			out.writeInt(tree.getDim());
+			out.writeInt(tree.getBitDepth());
+			out.writeInt(tree.size());
+			out.writeLong(root == null ? NO_NODE : root.getPage().id());
+			out.writeLong(nextId);
+			out.writeInt(removedIds.size());
+			for (int i = 0; i < removedIds.size(); i++) {
+				out.writeLong(removedIds.get(i));
+			}
+			out.writeInt(pages.size());
+			for (int i = 0; i < pages.size(); i++) {
+				NodePage page = pages.get(i);
+				bos.reset();
+				encodeNode(page.node, nodeOut);
+				nodeOut.flush();
+				out.writeLong(page.id());
+				out.writeInt(bos.size());
+				bos.writeTo(out);
+			}
+			out.flush();
+			statPageWrites += pages.size();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		//Only reset the tracking after the checkpoint has been written successfully
+		for (int i = 0; i < dirty.size(); i++) {
+			dirty.get(i).dirty = false;
+		}
+		dirty.clear();
+		removed.clear();
+		sequence++;
+	}
+
+	/**
+	 * Restores a tree from a full checkpoint and any number of subsequent incremental
+	 * checkpoints. The channels are not closed.
+	 * The returned provider can be used to continue writing incremental checkpoints.
+	 * @param codec value codec
+	 * @param base a full checkpoint
+	 * @param increments incremental checkpoints, in the order in which they were written
+	 * @return the provider, the tree can be retrieved with {@link #loadTree()}
+	 */
+	public static PersistenceProviderCheckpoint restore(PhValueCodec<?> codec,
+			ReadableByteChannel base, ReadableByteChannel... increments) {
+		PersistenceProviderCheckpoint pp = new PersistenceProviderCheckpoint(codec);
+		pp.restoring = new HashMap<>();
+		try {
+			Header h = pp.read(base, KIND_FULL, 0);
+			for (ReadableByteChannel c : increments) {
+				h = pp.read(c, KIND_INCREMENTAL, h.sequence);
+			}
+			PhTree16<?> t = new PhTree16<>(h.dims, h.depth, pp);
+			pp.tree = t;
+			pp.nextId = h.nextId;
+			pp.sequence = h.sequence;
+			t.initLoaded(h.rootId == NO_NODE ? null : pp.loadChild(h.rootId, 0, 0), h.nEntries);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			pp.restoring = null;
+		}
+		return pp;
+	}
+
+	private Header read(ReadableByteChannel channel, byte kind, long prevSequence) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+		if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a PH-Tree checkpoint");
+		}
+		if (in.readByte() != kind) {
+			throw new IOException(kind == KIND_FULL ? "Expected a full checkpoint"
+					: "Expected an incremental checkpoint");
+		}
+		long prev = in.readLong();
+		Header h = new Header();
+		h.sequence = in.readLong();
+		if (kind == KIND_INCREMENTAL && prev != prevSequence) {
+			throw new IOException("Incremental checkpoint " + h.sequence + " does not follow "
+					+ prevSequence);
+		}
+		h.dims = in.readInt();
+		h.depth = in.readInt();
+		h.nEntries = in.readInt();
+		h.rootId = in.readLong();
+		h.nextId = in.readLong();
+		int nRemoved = in.readInt();
+		for (int i = 0; i < nRemoved; i++) {
+			restoring.remove(in.readLong());
+		}
+		int nNodes = in.readInt();
+		for (int i = 0; i < nNodes; i++) {
+			long id = in.readLong();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			restoring.put(id, data);
+		}
+		return h;
+	}
+
+	@Override
+	Node loadChild(long id, int postLen, int infixLen) {
+		byte[] data = restoring.remove(id);
+		if (data == null) {
+			throw new IllegalStateException("Node not found: " + id);
+		}
+		statPageReads++;
+		try {
+			return decodeNode(new DataInputStream(new ByteArrayInputStream(data)),
+					new NodePage(this, null, new long[] {id}));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static class Header {
+		long sequence;
+		int dims;
+		int depth;
+		int nEntries;
+		long rootId;
+		long nextId;
+	}
+}
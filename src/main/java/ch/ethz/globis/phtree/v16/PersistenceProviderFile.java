@@ -0,0 +1,629 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.v16;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.util.PageFile;
+import ch.ethz.globis.phtree.v16.bst.BSTIteratorAll;
+
+/**
+ * File based persistence provider for {@link PhTree16}.
+ * <p>
+ * Every node of the tree is serialized into one or more fixed size pages of a {@link PageFile}.
+ * Sub-nodes are referenced by the ID of their first page. Modified nodes are tracked
+ * via {@link #updateNode(Object)} and written to the file by {@link #flush()}.
+ * Values are serialized with a {@link PhValueCodec}.
+ * <p>
+ * Nodes are loaded lazily when they are accessed for the first time, opening a tree does not
+ * read any nodes. Iterators can prefetch sub-nodes, see {@link #setPrefetch(boolean)}. The memory used by
+ * loaded nodes can be limited with {@link #setMaxCachedBytes(long)}. Nodes are then evicted
+ * with the CLOCK algorithm, modified nodes are written to the file before they are evicted.
+ * Nodes that are used by the current operation are never evicted. Nodes on the current path
+ * of an iterator are not evicted until the iterator leaves them or is garbage collected.
+ * The cache size is an estimate and can be exceeded temporarily by a single operation.
+ * Functions passed to {@code compute()} and similar methods must not access the tree.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+ * PhTreeConfig cfg = new PhTreeConfig(dims);
+ * cfg.setPersistenceProvider(pp);
+ * PhTree<Long> tree = PhTree.create(cfg);
+ * ...
+ * pp.close();
+ * 
+ * pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+ * PhTree<Long> tree = pp.loadTree();
+ * }</pre>
+ * A crash during {@link #flush()} may leave the file in an inconsistent state.
+ * I/O errors are reported as {@link UncheckedIOException}.
+ * 
+ * @author Tilmann Zaeschke
+ */
+public class PersistenceProviderFile extends NodeStore implements Closeable {
+
+	/** Every page of a node starts with the ID of the next page and the payload length. */
+	private static final int CHAIN_HEADER = 8 + 4;
+
+	private final PageFile file;
+	private final ArrayList<NodePage> dirty = new ArrayList<>();
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bos);
+
+	/** All nodes that are referenced by loaded nodes, including nodes that are not loaded. */
+	private final HashMap<Long, Node> nodes = new HashMap<>();
+	/** Pages of loaded nodes, in CLOCK order. */
+	private final ArrayList<NodePage> clock = new ArrayList<>();
+	private int clockHand = 0;
+	private long maxCachedBytes = Long.MAX_VALUE;
+	private long cachedBytes = 0;
+	private long opCount = 0;
+	/** Iterators that may be positioned in nodes, see {@link #registerIterator(NodePath)}. */
+	private final ArrayList<WeakReference<NodePath>> iterators = new ArrayList<>();
+	private int iteratorsPruneSize = 16;
+	/** The node whose content is currently being loaded. */
+	private NodePage loading = null;
+	private boolean prefetch = false;
+	private int statNodeHits = 0;
+	private int statNodeMisses = 0;
+
+	private PersistenceProviderFile(PageFile file, PhValueCodec<?> codec) {
+		super(codec);
+		this.file = file;
+	}
+
+	/**
+	 * Create a new file for a new tree. An existing file is overwritten.
+	 * @param path file path
+	 * @param codec value codec
+	 * @return the provider
+	 */
+	public static PersistenceProviderFile create(Path path, PhValueCodec<?> codec) {
+		return create(path, codec, PageFile.DEFAULT_PAGE_SIZE, PageFile.DEFAULT_CACHE_PAGES);
+	}
+
+	/**
+	 * Create a new file for a new tree. An existing file is overwritten.
+	 * @param path file path
+	 * @param codec value codec
+	 * @param pageSize page size in bytes
+	 * @param cachePages number of pages in the page cache
+	 * @return the provider
+	 */
+	public static PersistenceProviderFile create(Path path, PhValueCodec<?> codec, 
+			int pageSize, int cachePages) {
+		return new PersistenceProviderFile(PageFile.create(path, pageSize, cachePages), codec);
+	}
+
+	/**
+	 * Open an existing file, the tree can be loaded with {@link #loadTree()}.
+	 * @param path file path
+	 * @param codec value codec
+	 * @return the provider
+	 */
+	public static PersistenceProviderFile open(Path path, PhValueCodec<?> codec) {
+		return open(path, codec, PageFile.DEFAULT_CACHE_PAGES);
+	}
+
+	/**
+	 * Open an existing file, the tree can be loaded with {@link #loadTree()}.
+	 * @param path file path
+	 * @param codec value codec
+	 * @param cachePages number of pages in the page cache
+	 * @return the provider
+	 */
+	public static PersistenceProviderFile open(Path path, PhValueCodec<?> codec, int cachePages) {
+		return new PersistenceProviderFile(PageFile.open(path, cachePages), codec);
+	}
+
+	/**
+	 * @param o a node ID, as returned by {@link #registerNode(Object)}
+	 * @return the node
+	 */
+	@Override
+	public Object loadNode(Object o) {
+		return readNode((Long) o);
+	}
+
+	/**
+	 * Assigns a page to a new node.
+	 * @param o the new node
+	 * @return the node ID
+	 */
+	@Override
+	public Object registerNode(Object o) {
+		Node node = (Node) o;
+		NodePage page = new NodePage(this, node, new long[] {file.allocate()});
+		node.setPage(page);
+		page.dirty = true;
+		dirty.add(page);
+		nodes.put(page.id(), node);
+		page.lastOp = opCount;
+		addToCache(page);
+		return page.id();
+	}
+
+	@Override
+	public void updateNode(Object o) {
+		NodePage page = ((Node) o).getPage();
+		if (!page.dirty) {
+			page.dirty = true;
+			dirty.add(page);
+		}
+	}
+
+	/**
+	 * Frees the pages of a node that has been removed from the tree.
+	 * @param node the node
+	 */
+	@Override
+	void removeNode(Node node) {
+		NodePage page = node.getPage();
+		for (long id : page.pages) {
+			file.free(id);
+		}
+		nodes.remove(page.id());
+		if (page.resident) {
+			//The page is removed from the CLOCK list later
+			page.resident = false;
+			cachedBytes -= page.size;
+		}
+		page.node = null;
+		page.dirty = false;
+	}
+
+	/**
+	 * Frees all pages, this is called when the tree is cleared.
+	 */
+	@Override
+	void clearNodes() {
+		for (NodePage page : dirty) {
+			page.node = null;
+		}
+		dirty.clear();
+		for (NodePage page : clock) {
+			page.resident = false;
+		}
+		clock.clear();
+		nodes.clear();
+		cachedBytes = 0;
+		file.clear();
+	}
+
+	@Override
+	public String getDescription() {
+		return "FILE";
+	}
+
+	@Override
+	public int statsGetPageReads() {
+		return file.statsGetPageReads();
+	}
+
+	@Override
+	public int statsGetPageWrites() {
+		return file.statsGetPageWrites();
+	}
+
+	@Override
+	public void statsReset() {
+		file.statsReset();
+		statNodeHits = 0;
+		statNodeMisses = 0;
+	}
+
+	/**
+	 * @return Number of node accesses that found the node in memory. Repeated accesses to the
+	 * same node during one operation are counted once.
+	 */
+	public int statsGetNodeHits() {
+		return statNodeHits;
+	}
+
+	/**
+	 * @return Number of node accesses that required loading the node from the file.
+	 */
+	public int statsGetNodeMisses() {
+		return statNodeMisses;
+	}
+
+	/**
+	 * Limits the memory used by loaded nodes. Nodes are evicted if the estimated size of
+	 * all loaded nodes exceeds the limit. The default is {@link Long#MAX_VALUE}.
+	 * @param maxBytes the maximum size in bytes
+	 */
+	public void setMaxCachedBytes(long maxBytes) {
+		this.maxCachedBytes = maxBytes;
+		evictIfRequired(null);
+	}
+
+	/**
+	 * Enables prefetching for iterators. When an iterator loads a node, the first pages of all
+	 * sub-nodes that are not loaded are read into the page cache, runs of adjacent pages are
+	 * read with a single read operation. This helps range queries that visit most sub-nodes
+	 * of a node. The default is 'false'.
+	 * @param prefetch 'true' to enable prefetching
+	 */
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * @return the estimated size of all loaded nodes in bytes
+	 */
+	public long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	@Override
+	public void writeTree(PhTree<?> tree, int dims) {
+		if (this.tree != null || readHeader().getInt() != 0) {
+			throw new IllegalStateException("The file already contains a tree");
+		}
+		this.tree = (PhTree16<?>) tree;
+		updateTree(tree, dims, 0, NO_NODE);
+	}
+
+	@Override
+	public void updateTree(PhTree<?> tree, int dims, int nEntries, Object rootId) {
+		ByteBuffer bb = ByteBuffer.allocate(4 + 4 + 4 + 8);
+		bb.putInt(dims);
+		bb.putInt(tree.getBitDepth());
+		bb.putInt(nEntries);
+		bb.putLong((Long) rootId);
+		bb.flip();
+		file.writeHeader(bb);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> PhTree<T> loadTree() {
+		if (tree != null) {
+			return (PhTree<T>) tree;
+		}
+		ByteBuffer bb = readHeader();
+		int dims = bb.getInt();
+		if (dims == 0) {
+			throw new IllegalStateException("The file contains no tree");
+		}
+		int depth = bb.getInt();
+		int nEntries = bb.getInt();
+		long rootId = bb.getLong();
+		PhTree16<T> t = new PhTree16<>(dims, depth, this);
+		tree = t;
+		//The root node is loaded when it is accessed for the first time
+		t.initLoaded(rootId == NO_NODE ? null : loadChild(rootId, depth - 1, 0), nEntries);
+		return t;
+	}
+
+	/**
+	 * Writes all modified nodes and the header to the file.
+	 */
+	@Override
+	public void flush() {
+		if (tree == null) {
+			return;
+		}
+		for (int i = 0; i < dirty.size(); i++) {
+			NodePage page = dirty.get(i);
+			if (page.node != null && page.dirty) {
+				writeNode(page);
+				page.dirty = false;
+			}
+		}
+		dirty.clear();
+		Node root = tree.getRoot();
+		updateTree(tree, tree.getDim(), tree.size(), root == null ? NO_NODE : root.getPage().id());
+	}
+
+	/**
+	 * Flushes the tree and closes the file.
+	 */
+	@Override
+	public void close() {
+		flush();
+		file.close();
+	}
+
+	private ByteBuffer readHeader() {
+		return file.readHeader();
+	}
+
+	private void writeNode(NodePage page) {
+		bos.reset();
+		try {
+			encodeNode(page.node, out);
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		writeChain(page, bos.toByteArray());
+	}
+
+	private void writeChain(NodePage page, byte[] data) {
+		int pageSize = file.getPageSize();
+		int payload = pageSize - CHAIN_HEADER;
+		int nPages = Math.max(1, (data.length + payload - 1) / payload);
+		long[] pages = page.pages;
+		if (nPages != pages.length) {
+			int oldLen = pages.length;
+			for (int i = nPages; i < oldLen; i++) {
+				file.free(pages[i]);
+			}
+			pages = Arrays.copyOf(pages, nPages);
+			for (int i = oldLen; i < nPages; i++) {
+				pages[i] = file.allocate();
+			}
+			page.pages = pages;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(pageSize);
+		for (int i = 0; i < nPages; i++) {
+			int offs = i * payload;
+			int len = Math.min(payload, data.length - offs);
+			bb.clear();
+			bb.putLong(i + 1 < nPages ? pages[i + 1] : NO_NODE);
+			bb.putInt(len);
+			bb.put(data, offs, len);
+			bb.clear();
+			file.write(pages[i], bb);
+		}
+	}
+
+	/**
+	 * Reads a node with all its content, the sub-nodes are not loaded.
+	 */
+	private Node readNode(long id) {
+		NodePage page = new NodePage(this, null, new long[] {id});
+		try {
+			Node node = decodeNode(readChain(page), page);
+			nodes.put(id, node);
+			page.lastOp = opCount;
+			addToCache(page);
+			return node;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads all pages of a node.
+	 * @param page the node page, the page IDs of the node are updated
+	 * @return the serialized node
+	 */
+	private DataInputStream readChain(NodePage page) {
+		int payload = file.getPageSize() - CHAIN_HEADER;
+		long[] pages = new long[1];
+		byte[] data = new byte[payload];
+		int nPages = 0;
+		int len = 0;
+		for (long pageId = page.id(); pageId != NO_NODE; nPages++) {
+			ByteBuffer bb = file.read(pageId);
+			if (nPages == pages.length) {
+				pages = Arrays.copyOf(pages, nPages * 2);
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			pages[nPages] = pageId;
+			pageId = bb.getLong();
+			int n = bb.getInt();
+			bb.get(data, len, n);
+			len += n;
+		}
+		page.pages = Arrays.copyOf(pages, nPages);
+		return new DataInputStream(new ByteArrayInputStream(data, 0, len));
+	}
+
+	/**
+	 * Sub-nodes are created as stubs, their content is loaded when they are accessed.
+	 */
+	@Override
+	Node loadChild(long id, int postLen, int infixLen) {
+		Node node = nodes.get(id);
+		if (node == null) {
+			node = Node.createStub(tree.getDim(), infixLen, postLen, tree);
+			node.setPage(new NodePage(this, node, new long[] {id}));
+			nodes.put(id, node);
+		}
+		return node;
+	}
+
+	@Override
+	void registerIterator(NodePath it) {
+		if (iterators.size() >= iteratorsPruneSize) {
+			pinnedNodes();
+			iteratorsPruneSize = Math.max(16, 2 * iterators.size());
+		}
+		iterators.add(new WeakReference<>(it));
+	}
+
+	/**
+	 * Collects the nodes on the paths of all reachable iterators. Iterators that have been
+	 * garbage collected are removed.
+	 * @return the nodes that must not be evicted
+	 */
+	private Set<Node> pinnedNodes() {
+		Set<Node> pinned = Collections.newSetFromMap(new IdentityHashMap<>());
+		int n = 0;
+		for (int i = 0; i < iterators.size(); i++) {
+			WeakReference<NodePath> ref = iterators.get(i);
+			NodePath it = ref.get();
+			if (it != null) {
+				it.collectNodes(pinned);
+				iterators.set(n++, ref);
+			}
+		}
+		iterators.subList(n, iterators.size()).clear();
+		return pinned;
+	}
+
+	@Override
+	void startOperation() {
+		opCount++;
+		evictIfRequired(null);
+	}
+
+	@Override
+	void access(Node node, boolean loaded, boolean pin) {
+		NodePage page = node.getPage();
+		if (loaded && (page.lastOp == opCount || page == loading)) {
+			return;
+		}
+		if (pin) {
+			page.lastOp = opCount;
+		}
+		page.referenced = true;
+		if (loaded) {
+			statNodeHits++;
+			return;
+		}
+		statNodeMisses++;
+		loadContent(node, !pin && prefetch);
+	}
+
+	private void loadContent(Node node, boolean prefetchSubNodes) {
+		NodePage page = node.getPage();
+		try {
+			DataInputStream in = readChain(page);
+			in.readByte();
+			in.readByte();
+			int nEntries = in.readInt();
+			node.initContentForLoad(tree);
+			loading = page;
+			decodeEntries(in, node, nEntries);
+			if (prefetchSubNodes) {
+				prefetchSubNodes(node);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			loading = null;
+		}
+		Node live = nodes.putIfAbsent(page.id(), node);
+		if (live == null || live == node) {
+			addToCache(page);
+			evictIfRequired(page);
+		}
+		//Otherwise the node is an outdated copy that is only used by an iterator, it is 
+		//not cached and will be garbage collected. 
+	}
+
+	private void prefetchSubNodes(Node node) {
+		long[] ids = new long[node.getEntryCount()];
+		int n = 0;
+		BSTIteratorAll it = node.iterator();
+		while (it.hasNextEntry()) {
+			Object v = it.nextEntry().getValue();
+			if (v instanceof Node && !((Node) v).isLoaded()) {
+				ids[n++] = ((Node) v).getPage().id();
+			}
+		}
+		if (n > 1) {
+			file.prefetch(Arrays.copyOf(ids, n));
+		}
+	}
+
+	private void addToCache(NodePage page) {
+		page.resident = true;
+		page.size = estimateSize(page.node);
+		cachedBytes += page.size;
+		clock.add(page);
+	}
+
+	private long estimateSize(Node node) {
+		//Node, BST pages and per entry: BSTEntry, key array, key and value slot in BST page
+		return 200 + (long) node.getEntryCount() * (64 + 8L * tree.getDim());
+	}
+
+	/**
+	 * Evicts nodes with the CLOCK algorithm until the cache is smaller than the limit.
+	 * @param keep a node that is being loaded and must not be evicted, may be 'null'
+	 */
+	private void evictIfRequired(NodePage keep) {
+		if (cachedBytes <= maxCachedBytes) {
+			return;
+		}
+		Set<Node> pinned = pinnedNodes();
+		int n = 2 * clock.size();
+		while (cachedBytes > maxCachedBytes && n-- > 0 && !clock.isEmpty()) {
+			if (clockHand >= clock.size()) {
+				clockHand = 0;
+			}
+			NodePage page = clock.get(clockHand);
+			if (!page.resident) {
+				removeFromClock(clockHand);
+			} else if (page.lastOp == opCount || page == keep || pinned.contains(page.node)) {
+				//used by the current operation or by an iterator
+				clockHand++;
+			} else if (page.referenced) {
+				page.referenced = false;
+				long size = estimateSize(page.node);
+				cachedBytes += size - page.size;
+				page.size = size;
+				clockHand++;
+			} else {
+				evict(page);
+				removeFromClock(clockHand);
+			}
+		}
+	}
+
+	private void removeFromClock(int pos) {
+		int last = clock.size() - 1;
+		clock.set(pos, clock.get(last));
+		clock.remove(last);
+	}
+
+	private void evict(NodePage page) {
+		Node node = page.node;
+		//Prevent the following accesses from being counted
+		page.lastOp = opCount;
+		if (page.dirty) {
+			writeNode(page);
+			page.dirty = false;
+		}
+		//Sub-nodes that are not loaded are only referenced by this node
+		BSTIteratorAll it = node.iterator();
+		while (it.hasNextEntry()) {
+			Object v = it.nextEntry().getValue();
+			if (v instanceof Node && !((Node) v).isLoaded()) {
+				nodes.remove(((Node) v).getPage().id(), v);
+			}
+		}
+		node.evictContent();
+		page.resident = false;
+		cachedBytes -= page.size;
+	}
+}
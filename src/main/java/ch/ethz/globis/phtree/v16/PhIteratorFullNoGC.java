@@ -19,6 +19,7 @@
  */
 package ch.ethz.globis.phtree.v16;
 
+import java.util.Collection;
 import java.util.NoSuchElementException;
 
 import ch.ethz.globis.phtree.PhEntry;
@@ -40,13 +41,13 @@ import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
  */
 public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 
-	private class PhIteratorStack {
+	private class PhIteratorStack implements NodeStore.NodePath {
 		private final NodeIteratorFullNoGC<T>[] stack;
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorFullNoGC[PhTree16.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorFullNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -71,6 +72,13 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 		public NodeIteratorFullNoGC<T> pop() {
 			return stack[--size];
 		}
+
+		@Override
+		public void collectNodes(Collection<Node> nodes) {
+			for (int i = 0; i < size; i++) {
+				nodes.add(stack[i].getNode());
+			}
+		}
 	}
 
 	private final PhIteratorStack stack;
@@ -83,10 +91,11 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 	
 	public PhIteratorFullNoGC(PhTree16<T> pht, PhFilter checker) {
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[pht.getDim()], null);
 		this.resultToReturn = new PhEntry<>(new long[pht.getDim()], null);
+		pht.registerIterator(stack);
 	}	
 		
 	@Override
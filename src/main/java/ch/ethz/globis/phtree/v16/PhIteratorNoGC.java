@@ -19,6 +19,7 @@
  */
 package ch.ethz.globis.phtree.v16;
 
+import java.util.Collection;
 import java.util.NoSuchElementException;
 
 import ch.ethz.globis.phtree.PhEntry;
@@ -41,13 +42,13 @@ import ch.ethz.globis.phtree.util.unsynced.LongArrayOps;
  */
 public final class PhIteratorNoGC<T> implements PhQuery<T> {
 
-	private class PhIteratorStack {
+	private class PhIteratorStack implements NodeStore.NodePath {
 		private final NodeIteratorNoGC<T>[] stack;
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorNoGC[PhTree16.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -71,6 +72,13 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 		public NodeIteratorNoGC<T> pop() {
 			return stack[--size];
 		}
+
+		@Override
+		public void collectNodes(Collection<Node> nodes) {
+			for (int i = 0; i < size; i++) {
+				nodes.add(stack[i].getNode());
+			}
+		}
 	}
 
 	private final int dims;
@@ -79,6 +87,8 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 	private long[] rangeMax;
 	private PhFilter checker;
 	private final PhTree16<T> pht;
+	//The root has no prefix, unless the tree uses less than 64 bits
+	private final long[] rootPrefix;
 	
 	private PhEntry<T> resultFree;
 	private PhEntry<T> resultToReturn;
@@ -87,10 +97,12 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 	public PhIteratorNoGC(PhTree16<T> pht, PhFilter checker) {
 		this.dims = pht.getDim();
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[dims], null);
 		this.resultToReturn = new PhEntry<>(new long[dims], null);
+		this.rootPrefix = new long[dims];
+		pht.registerIterator(stack);
 	}	
 		
 	@Override
@@ -106,7 +118,7 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 			return this;
 		}
 		
-		stack.prepareAndPush(pht.getRoot(), null);
+		stack.prepareAndPush(pht.getRoot(), rootPrefix);
 		findNextElement();
 		return this;
 	}
@@ -44,6 +44,7 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	private static final PhDEComp COMP = new PhDEComp();
 	
 	private final int dims;
+	private final long[] nodeBuf;
 	private PhTree16<T> pht;
 	private PhDistance distance;
 	private long[] center;
@@ -60,6 +61,7 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 	 */
 	public PhQueryKnnHS(PhTree16<T> pht) {
 		this.dims = pht.getDim();
+		this.nodeBuf = new long[dims];
 		this.pht = pht;
 	}
 
@@ -165,18 +167,7 @@ public class PhQueryKnnHS<T> implements PhKnnQuery<T> {
 
 
 	private double distToNode(long[] prefix, int bitsToIgnore) {
-		long maskMin = (-1L) << bitsToIgnore;
-		long maskMax = ~maskMin;
-		long[] buf = new long[prefix.length];
-		for (int i = 0; i < buf.length; i++) {
-			//if v is outside the node, return distance to closest edge,
-			//otherwise return v itself (assume possible distance=0)
-			long min = prefix[i] & maskMin;
-			long max = prefix[i] | maskMax;
-			buf[i] = min > center[i] ? min : (max < center[i] ? max : center[i]); 
-		}
-
-		return distance.dist(center, buf);
+		return distance.distToNode(center, prefix, bitsToIgnore, nodeBuf);
 	}
 
 	
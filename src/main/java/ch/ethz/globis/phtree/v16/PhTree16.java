@@ -25,14 +25,18 @@ import static ch.ethz.globis.phtree.PhTreeHelper.posInArray;
 import static ch.ethz.globis.phtree.PhTreeHelper.maskNull;
 import static ch.ethz.globis.phtree.PhTreeHelper.unmaskNull;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import ch.ethz.globis.phtree.*;
+import ch.ethz.globis.phtree.PhTreeHelper.ListenerCompute;
 import ch.ethz.globis.phtree.util.PhMapper;
+import ch.ethz.globis.phtree.util.PhTreeBounds;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.util.StringBuilderLn;
 import ch.ethz.globis.phtree.util.unsynced.LongArrayPool;
@@ -101,7 +105,7 @@ public class PhTree16<T> implements PhTree<T> {
 	
 	static final int DEPTH_64 = 64;
 	
-	private static final int NO_INSERT_REQUIRED = Integer.MAX_VALUE;
+	static final int NO_INSERT_REQUIRED = Integer.MAX_VALUE;
 
 	private final int maxLeafN;// = 100;//10;//340;
 	/** Max number of keys in inner page (there can be max+1 page-refs) */
@@ -109,6 +113,8 @@ public class PhTree16<T> implements PhTree<T> {
 
 	//Dimension. This is the number of attributes of an entity.
 	private final int dims;
+	//Number of bits per key coordinate.
+	private final int depth;
 
 	private int nEntries = 0;
 
@@ -118,17 +124,48 @@ public class PhTree16<T> implements PhTree<T> {
 	private final ObjectPool<UpdateInfo> uiPool;
     private final LongArrayPool bitPool;
     private final BSTPool bstPool;
-
+    private final PhTreeBounds bounds;
+    /** The persistence provider, this is 'null' if the tree is not persistent. */
+    private final NodeStore pers;
+    /** Listener for modifications, this is 'null' if there is no listener. */
+    private PhTreeListener<T> listener;
+
+    /**
+     * This is called at the start of every operation, it allows the persistence provider
+     * to evict nodes that are not used by the operation.
+     * @return the root node
+     */
     Node getRoot() {
+		if (pers != null) {
+			pers.startOperation();
+		}
 		return root;
 	}
 
+	/**
+	 * Registers an iterator with the persistence provider, see
+	 * {@link NodeStore#registerIterator(NodeStore.NodePath)}.
+	 * @param it the path of the iterator
+	 */
+	void registerIterator(NodeStore.NodePath it) {
+		if (pers != null) {
+			pers.registerIterator(it);
+		}
+	}
+
 	public PhTree16(int dim) {
-		dims = dim;
+		this(dim, DEPTH_64, null);
+	}
+
+	PhTree16(int dim, int depth, NodeStore pers) {
+		this.dims = dim;
+		this.depth = depth;
+		this.pers = pers;
 		this.nodePool = ObjectPool.create(Node::new);
 		this.uiPool = ObjectPool.create(UpdateInfo::new);
         this.bitPool = LongArrayPool.create();
         this.bstPool = BSTPool.create();
+        this.bounds = new PhTreeBounds(this, dim);
 		debugCheck();
 
 		switch (dims) {
@@ -149,10 +186,75 @@ public class PhTree16<T> implements PhTree<T> {
 	}
 
 	public PhTree16(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
+		this(cnf.getDimActual(), cnf.getDepth(), persistenceProvider(cnf));
 		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
 			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
 		}
+		if (pers != null) {
+			pers.writeTree(this, dims);
+		}
+	}
+
+	private static NodeStore persistenceProvider(PhTreeConfig cnf) {
+		PersistenceProvider pp = cnf.getPersistenceProvider();
+		if (pp == PersistenceProvider.NONE) {
+			return null;
+		}
+		if (!(pp instanceof NodeStore)) {
+			throw new UnsupportedOperationException("provider= " + pp.getDescription());
+		}
+		return (NodeStore) pp;
+	}
+
+	NodeStore persistence() {
+		return pers;
+	}
+
+	/**
+	 * Writes the tree, see {@link PhTreeIO}.
+	 * @param out output
+	 * @param codec value codec
+	 * @throws IOException if writing fails
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(PhTreeIO.Output out, PhValueCodec<? super T> codec) throws IOException {
+		out.writeInt(dims);
+		out.writeInt(depth);
+		out.writeInt(nEntries);
+		out.writeBoolean(root != null);
+		if (root != null) {
+			root.write(out, (PhValueCodec<Object>) codec, dims);
+		}
+	}
+
+	/**
+	 * Reads a tree that was written with {@link #write(PhTreeIO.Output, PhValueCodec)}.
+	 * @param in input
+	 * @param codec value codec
+	 * @return the tree
+	 * @throws IOException if reading fails
+	 * @param <T> value type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PhTree16<T> read(PhTreeIO.Input in, PhValueCodec<T> codec) throws IOException {
+		int dims = in.readInt();
+		int depth = in.readInt();
+		PhTree16<T> tree = new PhTree16<>(dims, depth, null);
+		int nEntries = in.readInt();
+		Node root = in.readBoolean() ? Node.read(in, (PhValueCodec<Object>) codec, tree) : null;
+		tree.initLoaded(root, nEntries);
+		return tree;
+	}
+
+	/**
+	 * Used when a tree is loaded from a file or snapshot.
+	 * @param root the root node
+	 * @param nEntries number of entries
+	 */
+	void initLoaded(Node root, int nEntries) {
+		this.root = root;
+		this.nEntries = nEntries;
+		bounds.clear();
 	}
 
 	void increaseNrEntries() {
@@ -170,7 +272,7 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public PhTreeStats getStats() {
-		return getStats(0, getRoot(), new PhTreeStats(DEPTH_64));
+		return getStats(0, getRoot(), new PhTreeStats(depth));
 	}
 
 	private PhTreeStats getStats(int currentDepth, Node node, PhTreeStats stats) {
@@ -226,6 +328,7 @@ public class PhTree16<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T put(long[] key, T value) {
+		checkKey(key);
 		Object nonNullValue = maskNull(value);
 		if (getRoot() == null) {
 			insertRoot(key, nonNullValue);
@@ -237,18 +340,29 @@ public class PhTree16<T> implements PhTree<T> {
 			Node currentNode = (Node) o;
 			o = currentNode.doInsertIfMatching(key, nonNullValue, this);
 		}
+		bounds.insert(key);
+		if (listener != null) {
+			listener.onPut(key, unmaskNull(o), value, o != null);
+		}
 		return (T) o;
     }
 
     private void insertRoot(long[] key, Object value) {
-        root = Node.createNode(dims, 0, DEPTH_64-1, this);
+        root = Node.createNode(dims, 0, depth-1, this);
         long pos = posInArray(key, root.getPostLen());
         root.addEntry(pos, key, value, this);
         increaseNrEntries();
+        bounds.insert(key);
+        if (listener != null) {
+            listener.onPut(key, null, unmaskNull(value), false);
+        }
     }
 
 	@Override
 	public boolean contains(long... key) {
+		if (!isInRange(key)) {
+			return false;
+		}
 		Object o = getRoot();
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -261,6 +375,9 @@ public class PhTree16<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T get(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		Object o = getRoot();
 		while (o instanceof Node) {
 			Node currentNode = (Node) o;
@@ -278,6 +395,10 @@ public class PhTree16<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T remove(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
+		int sizeBefore = nEntries;
 		Object o = getRoot();
 		Node parentNode = null;
 		while (o instanceof Node) {
@@ -285,6 +406,12 @@ public class PhTree16<T> implements PhTree<T> {
 			o = currentNode.doIfMatching(key, false, parentNode, null, this);
 			parentNode = currentNode;
 		}
+		if (nEntries < sizeBefore) {
+			bounds.remove(key);
+			if (listener != null) {
+				listener.onRemove(key, unmaskNull(o));
+			}
+		}
 		return (T) o;
 	}
 
@@ -300,7 +427,11 @@ public class PhTree16<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T update(long[] oldKey, long[] newKey) {
-		Node[] stack = new Node[64];
+		if (!isInRange(oldKey)) {
+			return null;
+		}
+		checkKey(newKey);
+		Node[] stack = new Node[depth];
 		int stackSize = 0;
 		
 		Object o = getRoot();
@@ -314,7 +445,10 @@ public class PhTree16<T> implements PhTree<T> {
 			parentNode = currentNode;
 		}
 		
+		boolean found = o != null;
 		Object value = o == PhTreeHelper.NULL ? null : o;
+		//An entry with the new key that is replaced by the updated entry
+		Object displaced = null;
 
 		//traverse the tree from bottom to top
 		//this avoids extracting and checking infixes.
@@ -329,14 +463,22 @@ public class PhTree16<T> implements PhTree<T> {
 					o = stack[stackSize];
 					while (o instanceof Node) {
 						Node currentNode = (Node) o;
-						o = currentNode.doInsertIfMatching(newKey, value, this);
+						o = currentNode.doInsertIfMatching(newKey, maskNull(value), this);
 					}
+					displaced = o;
 					ui.insertRequired = NO_INSERT_REQUIRED;
 					break;
 				}
 			}
 		}		
 		uiPool.offer(ui);
+		bounds.update(oldKey, newKey);
+		if (found && listener != null) {
+			if (displaced != null) {
+				listener.onRemove(newKey, unmaskNull(displaced));
+			}
+			listener.onUpdate(oldKey, newKey, (T) value);
+		}
 		return (T) value;
 	}
 
@@ -351,6 +493,7 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T putIfAbsent(long[] key, T value) {
+		checkKey(key);
 		if (getRoot() == null) {
 			insertRoot(key, maskNull(value));
 			return null;
@@ -364,6 +507,10 @@ public class PhTree16<T> implements PhTree<T> {
 			if (e == null) {
 				increaseNrEntries();
 				currentNode.addEntry(hcPos, key, maskNull(value), this);
+				bounds.insert(key);
+				if (listener != null) {
+					listener.onPut(key, null, value, false);
+				}
 				return null;
 			}
 			o = e.getValue();
@@ -382,6 +529,9 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public boolean replace(long[] key, T oldValue, T newValue) {
+		if (!isInRange(key)) {
+			return false;
+		}
 		if (getRoot() == null) {
 			return false;
 		}
@@ -398,6 +548,10 @@ public class PhTree16<T> implements PhTree<T> {
 			if (!(o instanceof Node)) {
 				if (Objects.equals(maskNull(oldValue), o)) {
 					e.setValue(maskNull(newValue));
+					currentNode.markDirty();
+					if (listener != null) {
+						listener.onPut(key, oldValue, newValue, true);
+					}
 					return true;
 				}
 				return false;
@@ -407,6 +561,9 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T replace(long[] key, T value) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		if (getRoot() == null) {
 			return null;
 		}
@@ -422,6 +579,10 @@ public class PhTree16<T> implements PhTree<T> {
 			o = e.getValue();
 			if (!(o instanceof Node)) {
 				e.setValue(maskNull(value));
+				currentNode.markDirty();
+				if (listener != null) {
+					listener.onPut(key, unmaskNull(o), value, true);
+				}
 				return unmaskNull(o);
 			}
 		}
@@ -429,6 +590,7 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public T computeIfAbsent(long[] key, Function<long[], ? extends T> mappingFunction) {
+		checkKey(key);
 		if (getRoot() == null) {
 			T newValue = mappingFunction.apply(key);
 			if (newValue != null) {
@@ -447,6 +609,10 @@ public class PhTree16<T> implements PhTree<T> {
 				if (newValue != null) {
 					increaseNrEntries();
 					currentNode.addEntry(hcPos, key, maskNull(newValue), this);
+					bounds.insert(key);
+					if (listener != null) {
+						listener.onPut(key, null, newValue, false);
+					}
 				}
 				return newValue;
 			}
@@ -460,10 +626,19 @@ public class PhTree16<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T computeIfPresent(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		if (getRoot() == null) {
 			return null;
 		}
 
+		ListenerCompute<T> lc = null;
+		if (listener != null) {
+			lc = new ListenerCompute<>(remappingFunction);
+			remappingFunction = lc;
+		}
+		int sizeBefore = nEntries;
 		Object o = getRoot();
 		Node parentNode = null;
 		while (o instanceof Node) {
@@ -474,12 +649,19 @@ public class PhTree16<T> implements PhTree<T> {
 			// Node: recurse
 			// Otherwise: return value
 		}
+		if (nEntries < sizeBefore) {
+			bounds.remove(key);
+		}
+		if (lc != null) {
+			lc.notify(listener, key, (T) o, nEntries - sizeBefore);
+		}
 		return (T) o;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public T compute(long[] key, BiFunction<long[], ? super T, ? extends T> remappingFunction) {
+		checkKey(key);
 		if (getRoot() == null) {
 			T newValue = remappingFunction.apply(key, null);
 			if (newValue != null) {
@@ -488,6 +670,12 @@ public class PhTree16<T> implements PhTree<T> {
 			return newValue;
 		}
 
+		ListenerCompute<T> lc = null;
+		if (listener != null) {
+			lc = new ListenerCompute<>(remappingFunction);
+			remappingFunction = lc;
+		}
+		int sizeBefore = nEntries;
 		Object o = getRoot();
 		Node parentNode = null;
 		while (o instanceof Node) {
@@ -498,6 +686,14 @@ public class PhTree16<T> implements PhTree<T> {
             // Node: recurse
             // Otherwise: return value
 		}
+		if (nEntries < sizeBefore) {
+			bounds.remove(key);
+		} else if (nEntries > sizeBefore) {
+			bounds.insert(key);
+		}
+		if (lc != null) {
+			lc.notify(listener, key, (T) o, nEntries - sizeBefore);
+		}
 		return (T) o;
 	}
 
@@ -626,6 +822,36 @@ public class PhTree16<T> implements PhTree<T> {
 		return q;
 	}
 
+	@Override
+	public boolean forEach(long[] min, long[] max, PhFilter filter, PhQueryVisitor<T> visitor) {
+		if (min.length != dims || max.length != dims) {
+			throw new IllegalArgumentException("Invalid number of arguments: " + min.length +  
+					" / " + max.length + "  DIM=" + dims);
+		}
+		if (getRoot() == null) {
+			return true;
+		}
+		return new NodeIteratorVisitor<T>().run(getRoot(), min, max, filter, visitor);
+	}
+
+	@Override
+	public boolean queryMulti(long[][] mins, long[][] maxs, PhQueryMultiVisitor<T> visitor) {
+		if (mins.length != maxs.length) {
+			throw new IllegalArgumentException("Invalid number of windows: " + mins.length +
+					" / " + maxs.length);
+		}
+		for (int i = 0; i < mins.length; i++) {
+			if (mins[i].length != dims || maxs[i].length != dims) {
+				throw new IllegalArgumentException("Invalid number of arguments: " + mins[i].length +  
+						" / " + maxs[i].length + "  DIM=" + dims);
+			}
+		}
+		if (getRoot() == null || mins.length == 0) {
+			return true;
+		}
+		return new NodeIteratorMultiVisitor<T>(dims).run(getRoot(), mins, maxs, visitor);
+	}
+
 	/**
 	 * Performs a rectangular window query. The parameters are the min and max keys which 
 	 * contain the minimum respectively the maximum keys in every dimension.
@@ -674,6 +900,11 @@ public class PhTree16<T> implements PhTree<T> {
 		return it.resetAndRun(getRoot(), min, max, maxResults);
 	}
 
+	@Override
+	public boolean getBounds(long[] outMin, long[] outMax) {
+		return bounds.get(outMin, outMax);
+	}
+
 	@Override
 	public int getDim() {
 		return dims;
@@ -681,7 +912,30 @@ public class PhTree16<T> implements PhTree<T> {
 
 	@Override
 	public int getBitDepth() {
-		return PhTree16.DEPTH_64;
+		return depth;
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if all coordinates of the key fit into the bit depth of the tree
+	 */
+	private boolean isInRange(long[] key) {
+		if (depth == DEPTH_64) {
+			return true;
+		}
+		for (long k : key) {
+			if ((k >>> depth) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkKey(long[] key) {
+		if (!isInRange(key)) {
+			throw new IllegalArgumentException(
+					"Key exceeds bit depth " + depth + ": " + Arrays.toString(key));
+		}
 	}
 
 	/**
@@ -704,6 +958,11 @@ public class PhTree16<T> implements PhTree<T> {
 		//return new PhQueryKnnHSZ<T>(this).reset(nMin, dist, center);
 	}
 
+	@Override
+	public List<PhEntryPair<T>> closestPairs(int k, PhDistance dist) {
+		return new PhQueryClosestPairs<>(this).run(k, dist == null ? PhDistanceL.THIS : dist);
+	}
+
 	@Override
 	public PhRangeQuery<T> rangeQuery(double dist, long... center) {
 		return rangeQuery(dist, null, center);
@@ -727,8 +986,20 @@ public class PhTree16<T> implements PhTree<T> {
 	 */
 	@Override
 	public void clear() {
+		bounds.clear();
 		root = null;
 		nEntries = 0;
+		if (pers != null) {
+			pers.clearNodes();
+		}
+		if (listener != null) {
+			listener.onClear();
+		}
+	}
+
+	@Override
+	public void setListener(PhTreeListener<T> listener) {
+		this.listener = listener;
 	}
 
     ObjectPool<Node> nodePool() {
@@ -64,6 +64,38 @@ public class BSTIteratorMask {
 	}
 
 
+	/**
+	 * Same as {@link #reset(BSTreePage, long, long, int)}, but the iteration starts at the
+	 * first entry with a key that is equal to or larger than 'startKey'.
+	 * @param root root page
+	 * @param minMask min mask
+	 * @param maxMask max mask
+	 * @param nEntries number of entries
+	 * @param startKey start key
+	 * @return this iterator
+	 */
+	public BSTIteratorMask reset(BSTreePage root, long minMask, long maxMask, int nEntries,
+			long startKey) {
+		if (startKey <= minMask) {
+			return reset(root, minMask, maxMask, nEntries);
+		}
+		this.minMask = minMask;
+		this.maxMask = maxMask;
+		BSTreePage page = root;
+		while (!page.isLeaf()) {
+			if (page.getNKeys() == -1) {
+				currentPage = null;
+				return this;
+			}
+			page = page.findSubPage(startKey);
+		}
+		int pos = page.binarySearch(startKey);
+		this.currentPage = page;
+		this.currentPos = pos >= 0 ? pos : -(pos+1);
+		findNext();
+		return this;
+	}
+
 	private boolean findFirstLeafPage() {
 		while (!currentPage.isLeaf()) {
 			//the following is only for the initial search.
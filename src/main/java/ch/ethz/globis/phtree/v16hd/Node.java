@@ -142,6 +142,10 @@ public class Node {
 		}			
 		Object v = removeEntry(hcBuf, keyToMatch, insertRequired, tree);
 		if (v != null && !(v instanceof Node)) {
+			if (insertRequired != null && insertRequired.insertRequired == PhTree16HD.NO_INSERT_REQUIRED) {
+				//update() replaced the key in place, the entry was not removed
+				return v;
+			}
 			//Found and removed entry.
 			tree.decreaseNrEntries();
 			if (getEntryCount() == 1) {
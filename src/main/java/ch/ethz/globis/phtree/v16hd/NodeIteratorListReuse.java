@@ -68,6 +68,7 @@ public class NodeIteratorListReuse<T, R> {
 	private long[] rangeMax;
 
 	private final PhIteratorStack pool;
+	private long[] rootPrefix;
 	
 	private final class NodeIterator {
 	
@@ -218,7 +219,11 @@ public class NodeIteratorListReuse<T, R> {
 		this.rangeMin = rangeMin;
 		this.rangeMax = rangeMax;
 		this.maxResults = maxResults;
-		run(node, null);
+		//The root has no prefix, unless the tree uses less than 64 bits
+		if (rootPrefix == null || rootPrefix.length != rangeMin.length) {
+			rootPrefix = new long[rangeMin.length];
+		}
+		run(node, rootPrefix);
 		return results;
 	}
 	
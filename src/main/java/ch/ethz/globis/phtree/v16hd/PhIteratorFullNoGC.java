@@ -44,8 +44,8 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorFullNoGC[PhTree16HD.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorFullNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -83,7 +83,7 @@ public final class PhIteratorFullNoGC<T> implements PhExtent<T> {
 	public PhIteratorFullNoGC(PhTree16HD<T> pht, PhFilter checker) {
 		int dims = pht.getDim();
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[dims], null);
 		this.resultToReturn = new PhEntry<>(new long[dims], null);
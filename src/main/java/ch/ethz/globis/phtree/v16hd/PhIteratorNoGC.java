@@ -45,8 +45,8 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 		private int size = 0;
 		
 		@SuppressWarnings("unchecked")
-		PhIteratorStack() {
-			stack = new NodeIteratorNoGC[PhTree16HD.DEPTH_64];
+		PhIteratorStack(int depth) {
+			stack = new NodeIteratorNoGC[depth];
 		}
 
 		public boolean isEmpty() {
@@ -78,6 +78,8 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 	private long[] rangeMax;
 	private PhFilter checker;
 	private final PhTree16HD<T> pht;
+	//The root has no prefix, unless the tree uses less than 64 bits
+	private final long[] rootPrefix;
 	
 	private PhEntry<T> resultFree;
 	private PhEntry<T> resultToReturn;
@@ -86,10 +88,11 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 	public PhIteratorNoGC(PhTree16HD<T> pht, PhFilter checker) {
 		this.dims = pht.getDim();
 		this.checker = checker;
-		this.stack = new PhIteratorStack();
+		this.stack = new PhIteratorStack(pht.getBitDepth());
 		this.pht = pht;
 		this.resultFree = new PhEntry<>(new long[dims], null);
 		this.resultToReturn = new PhEntry<>(new long[dims], null);
+		this.rootPrefix = new long[dims];
 	}	
 		
 	@Override
@@ -105,7 +108,7 @@ public final class PhIteratorNoGC<T> implements PhQuery<T> {
 			return this;
 		}
 		
-		stack.prepareAndPush(pht.getRoot(), null);
+		stack.prepareAndPush(pht.getRoot(), rootPrefix);
 		findNextElement();
 		return this;
 	}
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import ch.ethz.globis.phtree.PersistenceProvider;
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhDistanceL;
 import ch.ethz.globis.phtree.PhEntry;
@@ -36,6 +37,7 @@ import ch.ethz.globis.phtree.PhRangeQuery;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.PhTreeConfig;
 import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.PhTreeListener;
 import ch.ethz.globis.phtree.util.PhMapper;
 import ch.ethz.globis.phtree.util.PhTreeStats;
 import ch.ethz.globis.phtree.util.StringBuilderLn;
@@ -105,7 +107,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 	
 	static final int DEPTH_64 = 64;
 	
-	private static final int NO_INSERT_REQUIRED = Integer.MAX_VALUE;
+	static final int NO_INSERT_REQUIRED = Integer.MAX_VALUE;
 
 	private final int maxLeafN;// = 100;//10;//340;
 	/** Max number of keys in inner page (there can be max+1 page-refs) */
@@ -113,10 +115,14 @@ public class PhTree16HD<T> implements PhTree<T> {
 
 	//Dimension. This is the number of attributes of an entity.
 	private final int dims;
+	//Number of bits per key coordinate.
+	private final int depth;
 
 	private int nEntries;
 
 	private Node root = null;
+	/** Listener for modifications, this is 'null' if there is no listener. */
+	private PhTreeListener<T> listener;
 
 	Node getRoot() {
 		return root;
@@ -128,7 +134,12 @@ public class PhTree16HD<T> implements PhTree<T> {
     private final BSTPool bstPool;
 
 	public PhTree16HD(int dim) {
-		dims = dim;
+		this(dim, DEPTH_64);
+	}
+
+	private PhTree16HD(int dim, int depth) {
+		this.dims = dim;
+		this.depth = depth;
         this.nodePool = ObjectPool.create(Node::new);
         this.uiPool = ObjectPool.create(UpdateInfo::new);
         this.bitPool = LongArrayPool.create();
@@ -153,10 +164,13 @@ public class PhTree16HD<T> implements PhTree<T> {
 	}
 
 	public PhTree16HD(PhTreeConfig cnf) {
-		this(cnf.getDimActual());
+		this(cnf.getDimActual(), cnf.getDepth());
 		if (cnf.getConcurrencyType() != PhTreeConfig.CONCURRENCY_NONE) {
 			throw new UnsupportedOperationException("type= " + cnf.getConcurrencyType());
 		}
+		if (cnf.getPersistenceProvider() != PersistenceProvider.NONE) {
+			throw new UnsupportedOperationException("provider= " + cnf.getPersistenceProvider().getDescription());
+		}
 	}
 
 	void increaseNrEntries() {
@@ -174,7 +188,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 
 	@Override
 	public PhTreeStats getStats() {
-		return getStats(0, getRoot(), new PhTreeStats(DEPTH_64));
+		return getStats(0, getRoot(), new PhTreeStats(depth));
 	}
 
 	private PhTreeStats getStats(int currentDepth, Node node, PhTreeStats stats) {
@@ -231,6 +245,7 @@ public class PhTree16HD<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T put(long[] key, T value) {
+		checkKey(key);
 		long[] hcBuf = BitsHD.newArray(dims);
 		Object nonNullValue = value == null ? PhTreeHelper.NULL : value;
 		if (getRoot() == null) {
@@ -243,18 +258,27 @@ public class PhTree16HD<T> implements PhTree<T> {
 			Node currentNode = (Node) o;
 			o = currentNode.doInsertIfMatching(key, nonNullValue, this, hcBuf);
 		}
+		if (listener != null) {
+			listener.onPut(key, PhTreeHelper.unmaskNull(o), value, o != null);
+		}
 		return (T) o;
     }
 
     private void insertRoot(long[] key, Object value, long[] hcBuf) {
-        root = Node.createNode(dims, 0, DEPTH_64-1, this);
+        root = Node.createNode(dims, 0, depth-1, this);
         posInArrayHD(key, root.getPostLen(), hcBuf);
         root.addEntry(hcBuf, key, value, this);
         increaseNrEntries();
+        if (listener != null) {
+            listener.onPut(key, null, PhTreeHelper.unmaskNull(value), false);
+        }
     }
 
 	@Override
 	public boolean contains(long... key) {
+		if (!isInRange(key)) {
+			return false;
+		}
 		long[] hcBuf = BitsHD.newArray(dims);
 		Object o = getRoot();
 		while (o instanceof Node) {
@@ -268,6 +292,9 @@ public class PhTree16HD<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T get(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		long[] hcBuf = BitsHD.newArray(dims);
 		Object o = getRoot();
 		while (o instanceof Node) {
@@ -286,6 +313,9 @@ public class PhTree16HD<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T remove(long... key) {
+		if (!isInRange(key)) {
+			return null;
+		}
 		long[] hcBuf = BitsHD.newArray(dims);
 		Object o = getRoot();
 		Node parentNode = null;
@@ -294,6 +324,9 @@ public class PhTree16HD<T> implements PhTree<T> {
 			o = currentNode.doIfMatching(key, false, parentNode, null, this, hcBuf);
 			parentNode = currentNode;
 		}
+		if (o != null && listener != null) {
+			listener.onRemove(key, PhTreeHelper.unmaskNull(o));
+		}
 		return (T) o;
 	}
 
@@ -309,8 +342,12 @@ public class PhTree16HD<T> implements PhTree<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public T update(long[] oldKey, long[] newKey) {
+		if (!isInRange(oldKey)) {
+			return null;
+		}
+		checkKey(newKey);
 		long[] hcBuf = BitsHD.newArray(dims);
-		Node[] stack = new Node[64];
+		Node[] stack = new Node[depth];
 		int stackSize = 0;
 		
 		Object o = getRoot();
@@ -324,7 +361,10 @@ public class PhTree16HD<T> implements PhTree<T> {
 			parentNode = currentNode;
 		}
 		
+		boolean found = o != null;
 		Object value = o == PhTreeHelper.NULL ? null : o;
+		//An entry with the new key that is replaced by the updated entry
+		Object displaced = null;
 
 		//traverse the tree from bottom to top
 		//this avoids extracting and checking infixes.
@@ -339,14 +379,21 @@ public class PhTree16HD<T> implements PhTree<T> {
 					o = stack[stackSize];
 					while (o instanceof Node) {
 						Node currentNode = (Node) o;
-						o = currentNode.doInsertIfMatching(newKey, value, this, hcBuf);
+						o = currentNode.doInsertIfMatching(newKey, PhTreeHelper.maskNull(value), this, hcBuf);
 					}
+					displaced = o;
 					ui.insertRequired = NO_INSERT_REQUIRED;
 					break;
 				}
 			}
 		}		
 		uiPool.offer(ui);
+		if (found && listener != null) {
+			if (displaced != null) {
+				listener.onRemove(newKey, PhTreeHelper.unmaskNull(displaced));
+			}
+			listener.onUpdate(oldKey, newKey, (T) value);
+		}
 		return (T) value;
 	}
 
@@ -529,7 +576,30 @@ public class PhTree16HD<T> implements PhTree<T> {
 
 	@Override
 	public int getBitDepth() {
-		return PhTree16HD.DEPTH_64;
+		return depth;
+	}
+
+	/**
+	 * @param key the key
+	 * @return {@code true} if all coordinates of the key fit into the bit depth of the tree
+	 */
+	private boolean isInRange(long[] key) {
+		if (depth == DEPTH_64) {
+			return true;
+		}
+		for (long k : key) {
+			if ((k >>> depth) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkKey(long[] key) {
+		if (!isInRange(key)) {
+			throw new IllegalArgumentException(
+					"Key exceeds bit depth " + depth + ": " + Arrays.toString(key));
+		}
 	}
 
 	/**
@@ -577,6 +647,14 @@ public class PhTree16HD<T> implements PhTree<T> {
 	public void clear() {
 		root = null;
 		nEntries = 0;
+		if (listener != null) {
+			listener.onClear();
+		}
+	}
+
+	@Override
+	public void setListener(PhTreeListener<T> listener) {
+		this.listener = listener;
 	}
 
     ObjectPool<Node> nodePool() {
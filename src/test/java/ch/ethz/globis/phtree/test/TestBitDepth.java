@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhTreeFrozen;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestBitDepth {
+
+	private static final int N = 5000;
+
+	private static <T> PhTree<T> create(int dim, int depth) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setDepth(depth);
+		return dim < 8 ? new PhTree13<>(cfg) : new PhTree16<>(cfg);
+	}
+
+	private static <T> PhTree<T> createHD(int dim, int depth) {
+		PhTreeConfig cfg = new PhTreeConfig(dim);
+		cfg.setDepth(depth);
+		return new PhTree16HD<>(cfg);
+	}
+
+	@Test
+	public void testCompareWith64() {
+		for (int dim : new int[]{1, 3, 10}) {
+			for (int depth : new int[]{1, 8, 16, 32, 63}) {
+				check(create(dim, depth), dim, depth);
+			}
+		}
+	}
+
+	@Test
+	public void testCompareWith64HD() {
+		for (int dim : new int[]{1, 3, 10}) {
+			for (int depth : new int[]{1, 8, 16, 32, 63}) {
+				check(createHD(dim, depth), dim, depth);
+			}
+		}
+	}
+
+	@Test
+	public void testUpdate() {
+		for (int dim : new int[]{1, 3, 10}) {
+			for (int depth : new int[]{1, 8, 63}) {
+				PhTree<Integer> ind = create(dim, depth);
+				PhTree<Integer> ref = PhTree.create(dim);
+				Random R = new Random(depth);
+				long[][] keys = new long[N][];
+				for (int i = 0; i < N; i++) {
+					keys[i] = randomKey(R, dim, depth);
+					assertEquals(ref.put(keys[i], i), ind.put(keys[i], i));
+				}
+				for (int i = 0; i < N; i++) {
+					long[] newKey = randomKey(R, dim, depth);
+					if (ref.contains(newKey)) {
+						continue;
+					}
+					assertEquals(ref.update(keys[i], newKey), ind.update(keys[i], newKey));
+					keys[i] = newKey;
+				}
+				assertEquals(ref.size(), ind.size());
+				for (long[] key : keys) {
+					assertEquals(ref.get(key), ind.get(key));
+				}
+			}
+		}
+	}
+
+	private static void check(PhTree<Integer> ind, int dim, int depth) {
+		PhTree<Integer> ref = PhTree.create(dim);
+		assertEquals(depth, ind.getBitDepth());
+		Random R = new Random(depth);
+		long[][] keys = new long[N][];
+		for (int i = 0; i < N; i++) {
+			keys[i] = randomKey(R, dim, depth);
+			assertEquals(ref.put(keys[i], i), ind.put(keys[i], i));
+		}
+		assertEquals(ref.size(), ind.size());
+		assertTrue(ind.getStats().getNodeCount() <= ref.getStats().getNodeCount());
+
+		PhTreeFrozen<Integer> frozen = ind.freeze();
+		for (int i = 0; i < 100; i++) {
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				//include ranges that exceed the bit depth
+				long a = R.nextLong() >> (64 - Math.min(63, depth + 1));
+				long b = R.nextLong() >> (64 - Math.min(63, depth + 1));
+				min[d] = Math.min(a, b);
+				max[d] = Math.max(a, b);
+			}
+			assertEquals(toString(ref.queryAll(min, max)), toString(ind.queryAll(min, max)));
+			int[] n = {0};
+			ind.forEach(min, max, null, (k, v) -> ++n[0] > 0);
+			assertEquals(ref.queryAll(min, max).size(), n[0]);
+			PhTree.PhQuery<Integer> q = ind.query(min, max);
+			while (q.hasNext()) {
+				q.next();
+				n[0]--;
+			}
+			assertEquals(0, n[0]);
+			assertEquals(toString(ref.queryAll(min, max)), toString(frozen.queryAll(min, max)));
+		}
+
+		//PhDistanceL overflows for larger keys
+		for (int i = 0; depth <= 16 && i < 20; i++) {
+			long[] center = randomKey(R, dim, depth);
+			PhTree.PhKnnQuery<Integer> q1 = ref.nearestNeighbour(5, center);
+			PhTree.PhKnnQuery<Integer> q2 = ind.nearestNeighbour(5, center);
+			while (q1.hasNext()) {
+				assertTrue(q2.hasNext());
+				assertEquals(q1.nextEntryReuse().dist(), q2.nextEntryReuse().dist(), 0);
+			}
+			assertFalse(q2.hasNext());
+		}
+
+		for (int i = 0; i < N; i += 2) {
+			assertEquals(ref.remove(keys[i]), ind.remove(keys[i]));
+		}
+		for (int i = 0; i < N; i++) {
+			assertEquals(ref.get(keys[i]), ind.get(keys[i]));
+		}
+		assertEquals(ref.size(), ind.size());
+	}
+
+	@Test
+	public void testKeyOutOfRange() {
+		for (int dim : new int[]{2, 10}) {
+			checkKeyOutOfRange(create(dim, 16), dim, true);
+			checkKeyOutOfRange(createHD(dim, 16), dim, false);
+		}
+	}
+
+	private static void checkKeyOutOfRange(PhTree<Integer> ind, int dim, boolean hasCompute) {
+		long[] k = new long[dim];
+		ind.put(k, 1);
+		long[] tooLarge = k.clone();
+		tooLarge[dim - 1] = 1 << 16;
+		long[] negative = k.clone();
+		negative[0] = -1;
+		for (long[] bad : new long[][]{tooLarge, negative}) {
+			try {
+				ind.put(bad, 2);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good
+			}
+			try {
+				ind.update(k, bad);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good
+			}
+			assertNull(ind.get(bad));
+			assertFalse(ind.contains(bad));
+			assertNull(ind.remove(bad));
+			assertNull(ind.update(bad, k));
+			if (!hasCompute) {
+				continue;
+			}
+			try {
+				ind.compute(bad, (key, v) -> 3);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good
+			}
+			assertNull(ind.computeIfPresent(bad, (key, v) -> 3));
+		}
+		assertEquals(1, ind.size());
+		assertEquals(1, (int) ind.get(k));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDepth() {
+		new PhTreeConfig(2).setDepth(65);
+	}
+
+	private static long[] randomKey(Random R, int dim, int depth) {
+		long[] v = new long[dim];
+		for (int d = 0; d < dim; d++) {
+			v[d] = R.nextLong() >>> (64 - depth);
+		}
+		return v;
+	}
+
+	private static String toString(List<PhEntry<Integer>> list) {
+		String[] a = new String[list.size()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = Arrays.toString(list.get(i).getKey()) + "=" + list.get(i).getValue();
+		}
+		Arrays.sort(a);
+		return Arrays.toString(a);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeSolidF;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.randomKey;
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class TestBounds extends TestSuper {
+
+	private static final int N_POINTS = 2000;
+
+	private final IntFunction<PhTree<?>> constructor;
+
+	public TestBounds(IntFunction<PhTree<?>> constructor) {
+		this.constructor = constructor;
+	}
+
+	@Parameterized.Parameters
+	public static List<Object[]> versions() {
+		return Arrays.asList(new Object[][] {
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree13<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16HD<>(dim) },
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> PhTree<T> create(int dim) {
+		return (PhTree<T>) constructor.apply(dim);
+	}
+
+	@Test
+	public void testEmpty() {
+		PhTree<Integer> ind = create(3);
+		assertFalse(ind.getBounds(new long[3], new long[3]));
+		ind.put(new long[]{1, 2, 3}, 1);
+		ind.remove(1, 2, 3);
+		assertFalse(ind.getBounds(new long[3], new long[3]));
+		ind.put(new long[]{1, 2, 3}, 1);
+		ind.clear();
+		assertFalse(ind.getBounds(new long[3], new long[3]));
+	}
+
+	@Test
+	public void testRandomModifications() {
+		for (int dim : new int[]{1, 2, 3, 5, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = randomKey(R, dim, 2000);
+				ind.put(v, i);
+				keys.add(v);
+				if (i % 10 == 0) {
+					check(ind);
+				}
+			}
+			check(ind);
+			//PhTree16HD does not support compute()
+			int nOps = ind instanceof PhTree16HD ? 2 : 5;
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = keys.get(R.nextInt(keys.size()));
+				switch (i % nOps) {
+				case 0:
+					ind.remove(v);
+					break;
+				case 1:
+					long[] v2 = randomKey(R, dim, 2000);
+					if (ind.update(v, v2) != null || ind.contains(v2)) {
+						keys.add(v2);
+					}
+					break;
+				case 2:
+					ind.computeIfPresent(v, (k, x) -> null);
+					break;
+				case 3:
+					long[] v3 = randomKey(R, dim, 2000);
+					ind.compute(v3, (k, x) -> 42);
+					keys.add(v3);
+					break;
+				default:
+					long[] v4 = randomKey(R, dim, 2000);
+					ind.putIfAbsent(v4, 42);
+					keys.add(v4);
+				}
+				check(ind);
+			}
+		}
+	}
+
+	private static void check(PhTree<Integer> ind) {
+		int dim = ind.getDim();
+		long[] min = new long[dim];
+		long[] max = new long[dim];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		PhTree.PhExtent<Integer> it = ind.queryExtent();
+		while (it.hasNext()) {
+			long[] k = it.nextKey();
+			for (int d = 0; d < dim; d++) {
+				min[d] = Math.min(min[d], k[d]);
+				max[d] = Math.max(max[d], k[d]);
+			}
+		}
+		long[] outMin = new long[dim];
+		long[] outMax = new long[dim];
+		assertEquals(ind.size() > 0, ind.getBounds(outMin, outMax));
+		if (ind.size() > 0) {
+			assertArrayEquals(min, outMin);
+			assertArrayEquals(max, outMax);
+		}
+	}
+
+	@Test
+	public void testFloat() {
+		PhTreeF<Integer> ind = PhTreeF.wrap(create(2));
+		double[] min = new double[2];
+		double[] max = new double[2];
+		assertFalse(ind.getBounds(min, max));
+		ind.put(new double[]{-1.5, 2}, 1);
+		ind.put(new double[]{3, -0.25}, 2);
+		assertTrue(ind.getBounds(min, max));
+		assertArrayEquals(new double[]{-1.5, -0.25}, min, 0);
+		assertArrayEquals(new double[]{3, 2}, max, 0);
+	}
+
+	@Test
+	public void testSolidFloat() {
+		PhTreeSolidF<Integer> ind = PhTreeSolidF.wrap(create(4));
+		double[] min = new double[2];
+		double[] max = new double[2];
+		assertFalse(ind.getBounds(min, max));
+		ind.put(new double[]{-1.5, 2}, new double[]{0, 5}, 1);
+		ind.put(new double[]{3, -0.25}, new double[]{4, 1}, 2);
+		assertTrue(ind.getBounds(min, max));
+		assertArrayEquals(new double[]{-1.5, -0.25}, min, 0);
+		assertArrayEquals(new double[]{4, 5}, max, 0);
+		ind.remove(new double[]{3, -0.25}, new double[]{4, 1});
+		assertTrue(ind.getBounds(min, max));
+		assertArrayEquals(new double[]{-1.5, 2}, min, 0);
+		assertArrayEquals(new double[]{0, 5}, max, 0);
+	}
+}
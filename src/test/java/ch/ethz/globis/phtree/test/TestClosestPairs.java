@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceF;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntryPair;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.pre.PreProcessorPointF;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class TestClosestPairs extends TestSuper {
+
+	private static final int N_POINTS = 500;
+
+	private final IntFunction<PhTree<?>> constructor;
+
+	public TestClosestPairs(IntFunction<PhTree<?>> constructor) {
+		this.constructor = constructor;
+	}
+
+	@Parameterized.Parameters
+	public static List<Object[]> versions() {
+		return Arrays.asList(new Object[][] {
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree13<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16HD<>(dim) },
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> PhTree<T> create(int dim) {
+		return (PhTree<T>) constructor.apply(dim);
+	}
+
+	@Test
+	public void testEmpty() {
+		PhTree<Integer> ind = create(2);
+		assertTrue(ind.closestPairs(5, null).isEmpty());
+		ind.put(new long[]{1, 1}, 1);
+		assertTrue(ind.closestPairs(5, null).isEmpty());
+		ind.put(new long[]{-1, 1}, 2);
+		List<PhEntryPair<Integer>> pairs = ind.closestPairs(5, null);
+		assertEquals(1, pairs.size());
+		assertEquals(2, pairs.get(0).dist(), 0);
+		assertTrue(ind.closestPairs(0, null).isEmpty());
+	}
+
+	@Test
+	public void testCompareWithBruteForce() {
+		for (int dim : new int[]{1, 2, 3, 5, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					v[d] = R.nextInt(20000) - 10000;
+				}
+				ind.put(v, i % 7 == 0 ? null : i);
+			}
+			List<long[]> keys = new ArrayList<>();
+			PhTree.PhExtent<Integer> it = ind.queryExtent();
+			while (it.hasNext()) {
+				keys.add(it.nextKey());
+			}
+			for (int k : new int[]{1, 10, 100}) {
+				check(ind, keys, k, PhDistanceL.THIS);
+			}
+		}
+	}
+
+	@Test
+	public void testDouble() {
+		PhTree<Integer> ind = create(3);
+		PreProcessorPointF pre = new PreProcessorPointF.IEEE();
+		Random R = new Random(0);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N_POINTS; i++) {
+			double[] d = {R.nextDouble() - 0.5, R.nextDouble() - 0.5, R.nextDouble() - 0.5};
+			long[] v = new long[3];
+			pre.pre(d, v);
+			ind.put(v, i);
+			keys.add(v);
+		}
+		check(ind, keys, 20, PhDistanceF.THIS);
+	}
+
+	private static void check(PhTree<Integer> ind, List<long[]> keys, int k, PhDistance dist) {
+		List<Double> expected = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			for (int j = i + 1; j < keys.size(); j++) {
+				expected.add(dist.dist(keys.get(i), keys.get(j)));
+			}
+		}
+		expected.sort(Double::compare);
+
+		List<PhEntryPair<Integer>> pairs = ind.closestPairs(k, dist);
+		assertEquals(Math.min(k, expected.size()), pairs.size());
+		Set<String> seen = new HashSet<>();
+		double prev = 0;
+		for (int i = 0; i < pairs.size(); i++) {
+			PhEntryPair<Integer> p = pairs.get(i);
+			long[] k1 = p.first().getKey();
+			long[] k2 = p.second().getKey();
+			assertFalse(Arrays.equals(k1, k2));
+			assertEquals(dist.dist(k1, k2), p.dist(), 0);
+			assertEquals(ind.get(k1), p.first().getValue());
+			assertEquals(ind.get(k2), p.second().getValue());
+			assertEquals(expected.get(i), p.dist(), 0);
+			assertTrue(prev <= p.dist());
+			prev = p.dist();
+			String s1 = Arrays.toString(k1);
+			String s2 = Arrays.toString(k2);
+			assertTrue(seen.add(s1.compareTo(s2) < 0 ? s1 + s2 : s2 + s1));
+		}
+	}
+}
@@ -21,6 +21,9 @@ import org.zoodb.index.critbit.BitTools;
 import ch.ethz.globis.phtree.PhTree;
 import ch.ethz.globis.phtree.test.util.TestSuper;
 import ch.ethz.globis.phtree.test.util.TestUtil;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
 
 public class TestIndexUpdate extends TestSuper {
 
@@ -257,4 +260,19 @@ public class TestIndexUpdate extends TestSuper {
         assertEquals(5, (int)phTree.get(key2b));
         assertNull(phTree.get(key2a));
     }
+
+	@Test
+	public void testUpdateKeyInPlace() {
+		for (PhTree<Integer> phTree : Arrays.<PhTree<Integer>>asList(
+				new PhTree13<>(3), new PhTree16<>(3), new PhTree16HD<>(3))) {
+			phTree.put(new long[] {0, 0, 0}, 1);
+			phTree.put(new long[] {1L << 40, 0, 0}, 2);
+			phTree.put(new long[] {1L << 41, 0, 0}, 3);
+			//the keys differ only in the postfix, the entry stays in its node
+			assertEquals(1, (int) phTree.update(new long[] {0, 0, 0}, new long[] {1, 0, 0}));
+			assertEquals(3, phTree.size());
+			assertEquals(1, (int) phTree.get(1, 0, 0));
+			assertNull(phTree.get(0, 0, 0));
+		}
+	}
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeListener;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.util.PhTreeListenerAsync;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.check;
+import static ch.ethz.globis.phtree.test.util.TestUtil.randomKey;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class TestListener extends TestSuper {
+
+	private static final int N = 5000;
+
+	private final IntFunction<PhTree<?>> constructor;
+
+	public TestListener(IntFunction<PhTree<?>> constructor) {
+		this.constructor = constructor;
+	}
+
+	@Parameterized.Parameters
+	public static List<Object[]> versions() {
+		return Arrays.asList(new Object[][] {
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree13<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16HD<>(dim) },
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> PhTree<T> create(int dim) {
+		return (PhTree<T>) constructor.apply(dim);
+	}
+
+	/**
+	 * Replicates the tree and checks the consistency of the events.
+	 */
+	private static class Replica implements PhTreeListener<Integer> {
+		final Map<List<Long>, Integer> map = new HashMap<>();
+		int nEvents = 0;
+
+		@Override
+		public void onPut(long[] key, Integer oldValue, Integer newValue, boolean replaced) {
+			List<Long> k = toList(key);
+			assertEquals(map.containsKey(k), replaced);
+			assertEquals(map.get(k), oldValue);
+			map.put(k, newValue);
+			nEvents++;
+		}
+
+		@Override
+		public void onRemove(long[] key, Integer oldValue) {
+			List<Long> k = toList(key);
+			assertTrue(map.containsKey(k));
+			assertEquals(map.remove(k), oldValue);
+			nEvents++;
+		}
+
+		@Override
+		public void onUpdate(long[] oldKey, long[] newKey, Integer value) {
+			List<Long> k = toList(oldKey);
+			assertTrue(map.containsKey(k));
+			assertEquals(map.remove(k), value);
+			assertNull(map.put(toList(newKey), value));
+			nEvents++;
+		}
+
+		@Override
+		public void onClear() {
+			map.clear();
+			nEvents++;
+		}
+	}
+
+	@Test
+	public void testSync() {
+		for (int dims : new int[] {1, 3, 10}) {
+			PhTree<Integer> tree = create(dims);
+			Replica replica = new Replica();
+			tree.setListener(replica);
+			modify(tree, dims, new Random(dims));
+			check(tree, replica.map);
+			tree.clear();
+			assertTrue(replica.map.isEmpty());
+		}
+	}
+
+	@Test
+	public void testNullValues() {
+		PhTree<Integer> tree = create(2);
+		Replica replica = new Replica();
+		tree.setListener(replica);
+		long[] key = {1, 2};
+		tree.put(key, null);
+		//replacing a 'null' value is not an insert
+		tree.put(key, 5);
+		tree.put(key, null);
+		assertEquals(1, replica.map.size());
+		tree.remove(key);
+		assertEquals(4, replica.nEvents);
+		//no events for operations that do not modify the tree
+		tree.remove(key);
+		tree.update(key, new long[] {3, 4});
+		assertEquals(4, replica.nEvents);
+		if (!(tree instanceof PhTree16HD)) {
+			tree.compute(key, (k, v) -> null);
+			tree.computeIfPresent(key, (k, v) -> 1);
+			tree.replace(key, 1);
+			assertEquals(4, replica.nEvents);
+			tree.put(key, 7);
+			assertFalse(tree.remove(key, 8));
+			assertTrue(tree.remove(key, 7));
+			assertEquals(6, replica.nEvents);
+		}
+		assertTrue(replica.map.isEmpty());
+	}
+
+	@Test
+	public void testUpdateExistingKey() {
+		for (int dims : new int[] {1, 3, 10}) {
+			PhTree<Integer> tree = create(dims);
+			Replica replica = new Replica();
+			tree.setListener(replica);
+			Random R = new Random(dims);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				long[] key = randomKey(R, dims);
+				keys.add(key);
+				tree.put(key, i % 7 == 0 ? null : i);
+			}
+			for (int i = 0; i < 500; i++) {
+				long[] oldKey = keys.remove(R.nextInt(keys.size()));
+				long[] newKey = keys.get(R.nextInt(keys.size()));
+				Integer v = tree.get(oldKey);
+				int nEvents = replica.nEvents;
+				assertEquals(v, tree.update(oldKey, newKey));
+				//the replaced entry is removed before the update
+				assertEquals(nEvents + 2, replica.nEvents);
+				assertEquals(keys.size(), tree.size());
+				assertEquals(v, replica.map.get(toList(newKey)));
+			}
+			check(tree, replica.map);
+		}
+	}
+
+	@Test
+	public void testListenerException() {
+		PhTree<Integer> tree = create(2);
+		tree.setListener(new Replica() {
+			@Override
+			public void onPut(long[] key, Integer oldValue, Integer newValue, boolean replaced) {
+				throw new UnsupportedOperationException();
+			}
+		});
+		try {
+			tree.put(new long[] {1, 2}, 1);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+		//the modification is not rolled back
+		assertEquals(1, (int) tree.get(1, 2));
+	}
+
+	@Test
+	public void testRemoveListener() {
+		PhTree<Integer> tree = create(2);
+		Replica replica = new Replica();
+		tree.setListener(replica);
+		tree.put(new long[] {1, 2}, 1);
+		tree.setListener(null);
+		tree.put(new long[] {1, 3}, 1);
+		tree.remove(new long[] {1, 2});
+		assertEquals(1, replica.nEvents);
+	}
+
+	@Test
+	public void testAsync() {
+		for (int dims : new int[] {1, 3, 10}) {
+			PhTree<Integer> tree = create(dims);
+			Replica replica = new Replica();
+			//small buffer to test blocking of the modifying thread
+			PhTreeListenerAsync<Integer> async = new PhTreeListenerAsync<>(replica, dims, 100, 16);
+			tree.setListener(async);
+			modify(tree, dims, new Random(dims));
+			async.flush();
+			assertEquals(0, async.getPending());
+			check(tree, replica.map);
+			tree.clear();
+			tree.setListener(null);
+			async.close();
+			assertTrue(replica.map.isEmpty());
+			try {
+				async.onClear();
+				fail();
+			} catch (IllegalStateException e) {
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testAsyncFailure() {
+		PhTree<Integer> tree = create(2);
+		Replica replica = new Replica() {
+			@Override
+			public void onRemove(long[] key, Integer oldValue) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		PhTreeListenerAsync<Integer> async = new PhTreeListenerAsync<>(replica, 2, 8, 4);
+		tree.setListener(async);
+		tree.put(new long[] {1, 2}, 1);
+		tree.remove(new long[] {1, 2});
+		for (int i = 0; i < 100; i++) {
+			tree.put(new long[] {i, i}, i);
+		}
+		try {
+			async.flush();
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof UnsupportedOperationException);
+		}
+		//later events are delivered
+		assertEquals(101, replica.nEvents);
+		async.flush();
+		async.close();
+	}
+
+	private static void modify(PhTree<Integer> tree, int dims, Random R) {
+		boolean mapOps = !(tree instanceof PhTree16HD);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N; i++) {
+			long[] key = randomKey(R, dims);
+			keys.add(key);
+			tree.put(key, i % 7 == 0 ? null : i);
+		}
+		for (int i = 0; i < 4 * N; i++) {
+			int pos = R.nextInt(keys.size());
+			long[] key = keys.get(pos);
+			int op = R.nextInt(mapOps ? 12 : 4);
+			Integer v = i % 5 == 0 ? null : i;
+			boolean drop = i % 3 == 0;
+			switch (op) {
+			case 0:
+				tree.put(key, v);
+				break;
+			case 1:
+				tree.remove(key);
+				break;
+			case 2:
+				long[] key2 = randomKey(R, dims);
+				if (tree.update(key, key2) != null || tree.contains(key2)) {
+					keys.set(pos, key2);
+				}
+				break;
+			case 3:
+				long[] key3 = randomKey(R, dims);
+				keys.add(key3);
+				tree.put(key3, v);
+				break;
+			case 4:
+				tree.putIfAbsent(key, v);
+				break;
+			case 5:
+				tree.replace(key, v);
+				break;
+			case 6:
+				tree.replace(key, tree.get(key), v);
+				break;
+			case 7:
+				tree.remove(key, tree.get(key));
+				break;
+			case 8:
+				tree.computeIfAbsent(key, k -> drop ? null : 3);
+				break;
+			case 9:
+				tree.computeIfPresent(key, (k, old) -> drop ? null : 4);
+				break;
+			case 10:
+				tree.compute(key, (k, old) -> drop ? null : 5);
+				break;
+			case 11:
+				long[] key4 = randomKey(R, dims);
+				keys.add(key4);
+				tree.compute(key4, (k, old) -> 6);
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+	}
+}
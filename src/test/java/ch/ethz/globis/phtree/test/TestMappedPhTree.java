@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.MappedPhTree;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeFrozen;
+import ch.ethz.globis.phtree.PhValueCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestMappedPhTree {
+
+	private static final int N = 5000;
+
+	private Path path;
+
+	@Before
+	public void before() throws IOException {
+		path = Files.createTempFile("phtree", ".map");
+	}
+
+	@After
+	public void after() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	@Test
+	public void testEmpty() {
+		PhTree.<Integer>create(3).freeze().write(path, PhValueCodec.INTEGER);
+		try (MappedPhTree<Integer> m = MappedPhTree.open(path, PhValueCodec.INTEGER)) {
+			assertEquals(0, m.size());
+			assertEquals(3, m.getDim());
+			assertNull(m.get(1, 2, 3));
+			assertTrue(m.queryAll().isEmpty());
+			assertTrue(m.nearestNeighbour(3, null, 1, 2, 3).isEmpty());
+			assertTrue(m.rangeQuery(10, null, 1, 2, 3).isEmpty());
+		}
+
+		PhTree<String> tree = PhTree.create(3);
+		tree.put(new long[]{-1, 2, 3}, "42");
+		tree.freeze().write(path, PhValueCodec.STRING);
+		try (MappedPhTree<String> m = MappedPhTree.open(path, PhValueCodec.STRING)) {
+			assertEquals("42", m.get(-1, 2, 3));
+			assertFalse(m.contains(1, 2, 3));
+			assertEquals(1, m.queryAll(new long[]{-5, 0, 0}, new long[]{5, 5, 5}).size());
+			assertEquals(1, m.nearestNeighbour(3, null, 0, 0, 0).size());
+		}
+	}
+
+	@Test
+	public void testCompareWithTree() {
+		for (int dim : new int[]{1, 2, 3, 5, 10, 20, 64}) {
+			PhTree<Integer> tree = PhTree.create(dim);
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					key[d] = i % 2 == 0 ? R.nextInt(2000) - 1000 : R.nextInt(1 << 24) - (1 << 23);
+				}
+				tree.put(key, i % 13 == 0 ? null : i);
+				keys.add(key);
+			}
+			PhTreeFrozen<Integer> f = tree.freeze();
+			f.write(path, PhValueCodec.INTEGER);
+			try (MappedPhTree<Integer> m = MappedPhTree.open(path, PhValueCodec.INTEGER)) {
+				check(tree, f, m, keys, R);
+			}
+		}
+	}
+
+	private static void check(PhTree<Integer> tree, PhTreeFrozen<Integer> f, MappedPhTree<Integer> m,
+			List<long[]> keys, Random R) {
+		int dim = tree.getDim();
+		assertEquals(tree.size(), m.size());
+		for (long[] key : keys) {
+			assertTrue(m.contains(key));
+			assertEquals(tree.get(key), m.get(key));
+			long[] key2 = key.clone();
+			key2[0]++;
+			assertEquals(tree.contains(key2), m.contains(key2));
+		}
+		List<PhEntry<Integer>> all = m.queryAll();
+		assertEquals(tree.size(), all.size());
+
+		for (int i = 0; i < 100; i++) {
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				long v1 = R.nextInt(3000) - 1500;
+				long v2 = i % 10 == 0 ? Long.MAX_VALUE : R.nextInt(3000) - 1500;
+				min[d] = Math.min(v1, v2);
+				max[d] = Math.max(v1, v2);
+			}
+			List<PhEntry<Integer>> expected = f.queryAll(min, max);
+			List<PhEntry<Integer>> actual = m.queryAll(min, max);
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < actual.size(); j++) {
+				assertArrayEquals(expected.get(j).getKey(), actual.get(j).getKey());
+				assertEquals(expected.get(j).getValue(), actual.get(j).getValue());
+			}
+		}
+
+		for (int i = 0; i < 20; i++) {
+			long[] center = keys.get(R.nextInt(keys.size())).clone();
+			center[0] += 3;
+			List<PhEntryDist<Integer>> expected = f.nearestNeighbour(10, null, center);
+			List<PhEntryDist<Integer>> actual = m.nearestNeighbour(10, null, center);
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < actual.size(); j++) {
+				assertEquals(expected.get(j).dist(), actual.get(j).dist(), 0);
+			}
+
+			double dist = 50_000 + R.nextInt(1000);
+			int n = 0;
+			for (PhEntry<Integer> e : all) {
+				if (PhDistanceL.THIS.dist(center, e.getKey()) <= dist) {
+					n++;
+				}
+			}
+			List<PhEntryDist<Integer>> range = m.rangeQuery(dist, null, center);
+			assertEquals(n, range.size());
+			for (PhEntryDist<Integer> e : range) {
+				assertTrue(e.dist() <= dist);
+				assertEquals(tree.get(e.getKey()), e.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void testSmallSegments() throws ReflectiveOperationException {
+		PhTree<String> tree = PhTree.create(3);
+		Random R = new Random(0);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			long[] key = {R.nextInt(1000), R.nextInt(1000), R.nextInt(1000)};
+			tree.put(key, value(i));
+			keys.add(key);
+		}
+		tree.freeze().write(path, PhValueCodec.STRING);
+		//Segments of 128 bytes: arrays span many segments and most values cross a boundary
+		try (MappedPhTree<String> m = open(path, PhValueCodec.STRING, 7)) {
+			assertEquals(tree.size(), m.size());
+			for (long[] key : keys) {
+				assertEquals(tree.get(key), m.get(key));
+			}
+			List<PhEntry<String>> all = m.queryAll();
+			assertEquals(tree.size(), all.size());
+			for (PhEntry<String> e : all) {
+				assertEquals(tree.get(e.getKey()), e.getValue());
+			}
+		}
+	}
+
+	private static String value(int i) {
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < i % 300; j++) {
+			sb.append((char) ('a' + (i + j) % 26));
+		}
+		return sb.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> MappedPhTree<T> open(Path path, PhValueCodec<T> codec, int segmentShift) 
+			throws ReflectiveOperationException {
+		Method m = MappedPhTree.class.getDeclaredMethod("open", Path.class, PhValueCodec.class, int.class);
+		m.setAccessible(true);
+		try {
+			return (MappedPhTree<T>) m.invoke(null, path, codec, segmentShift);
+		} catch (InvocationTargetException e) {
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void testTooManyDimensions() throws IOException {
+		PhTree.<Integer>create(3).freeze().write(path, PhValueCodec.INTEGER);
+		//The hcPos of a node must fit into a 'long'
+		ByteBuffer dims = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		dims.putInt(0, PhTreeFrozen.MAX_DIM + 1);
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			fc.write(dims, 12);
+		}
+		MappedPhTree.open(path, PhValueCodec.INTEGER);
+	}
+
+	@Test
+	public void testAbort() {
+		PhTree<Integer> tree = PhTree.create(2);
+		for (int i = 0; i < 100; i++) {
+			tree.put(new long[]{i, i}, i);
+		}
+		tree.freeze().write(path, PhValueCodec.INTEGER);
+		try (MappedPhTree<Integer> m = MappedPhTree.open(path, PhValueCodec.INTEGER)) {
+			int[] n = {0};
+			long[] min = {Long.MIN_VALUE, Long.MIN_VALUE};
+			long[] max = {Long.MAX_VALUE, Long.MAX_VALUE};
+			assertFalse(m.forEach(min, max, (k, v) -> ++n[0] < 7));
+			assertEquals(7, n[0]);
+		}
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void testInvalidFile() throws IOException {
+		Files.write(path, new byte[200]);
+		MappedPhTree.open(path, PhValueCodec.INTEGER);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTreeF.PhEntryDistF;
+import ch.ethz.globis.phtree.PhTreeF.PhEntryF;
+import ch.ethz.globis.phtree.PhTreeMultiMap;
+import ch.ethz.globis.phtree.PhTreeMultiMapBucketF;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.randomKey;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toArray;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+public class TestMultiMap {
+
+	private static final int N = 2000;
+
+	@Test
+	public void testCRUD() {
+		//64 dimensions use PhTree16HD, which does not support compute()
+		for (int dim : new int[]{2, 3, 10, 64}) {
+			PhTreeMultiMap<Integer> idx = PhTreeMultiMap.create(dim);
+			Map<List<Long>, List<Integer>> ref = new HashMap<>();
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = i % 3 == 0 || keys.isEmpty() ? randomKey(R, dim, 1000) : keys.get(R.nextInt(keys.size()));
+				Integer value = i % 11 == 0 ? null : i;
+				idx.put(key, value);
+				keys.add(key);
+				ref.computeIfAbsent(toList(key), k -> new ArrayList<>()).add(value);
+				assertTrue(idx.contains(key, value));
+			}
+			check(idx, ref);
+
+			for (int i = 0; i < N / 2; i++) {
+				long[] key = keys.get(R.nextInt(keys.size()));
+				List<Integer> expected = ref.get(toList(key));
+				if (i % 5 == 0) {
+					int n = idx.removeAll(key);
+					assertEquals(expected == null ? 0 : expected.size(), n);
+					ref.remove(toList(key));
+				} else if (expected != null) {
+					Integer value = expected.get(R.nextInt(expected.size()));
+					assertTrue(idx.remove(key, value));
+					expected.remove(value);
+					if (expected.isEmpty()) {
+						ref.remove(toList(key));
+					}
+				} else {
+					assertFalse(idx.remove(key, 42));
+				}
+			}
+			check(idx, ref);
+
+			idx.clear();
+			assertEquals(0, idx.size());
+			assertEquals(0, idx.sizeKeys());
+		}
+	}
+
+	@Test
+	public void testUpdate() {
+		PhTreeMultiMap<String> idx = PhTreeMultiMap.create(2);
+		long[] k1 = {1, 2};
+		long[] k2 = {3, 4};
+		idx.put(k1, "a");
+		idx.put(k1, "b");
+		idx.put(k1, "a");
+		assertEquals(3, idx.size());
+		assertEquals(1, idx.sizeKeys());
+		assertFalse(idx.update(k1, k2, "c"));
+		assertTrue(idx.update(k1, k2, "a"));
+		assertTrue(idx.contains(k1, "a"));
+		assertTrue(idx.contains(k2, "a"));
+		assertTrue(idx.update(k1, k2, "a"));
+		assertTrue(idx.update(k1, k2, "b"));
+		assertFalse(idx.contains(k1));
+		assertEquals(Arrays.asList("a", "a", "b"), idx.getAll(k2));
+		assertEquals(3, idx.size());
+		assertEquals(1, idx.sizeKeys());
+	}
+
+	@Test
+	public void testQueries() {
+		PhTreeMultiMap<Integer> idx = PhTreeMultiMap.create(2);
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j <= i; j++) {
+				idx.put(new long[]{i, i}, j);
+			}
+		}
+		List<PhEntry<Integer>> list = idx.queryAll(new long[]{2, 2}, new long[]{4, 4});
+		assertEquals(3 + 4 + 5, list.size());
+
+		int[] n = {0};
+		assertFalse(idx.forEach(new long[]{0, 0}, new long[]{9, 9}, (k, v) -> ++n[0] < 7));
+		assertEquals(7, n[0]);
+
+		//count values
+		List<PhEntryDist<Integer>> knn = idx.nearestNeighbour(4, false, null, 5, 5);
+		assertEquals(4, knn.size());
+		for (PhEntryDist<Integer> e : knn) {
+			assertArrayEquals(new long[]{5, 5}, e.getKey());
+			assertEquals(0, e.dist(), 0);
+		}
+		//count keys
+		knn = idx.nearestNeighbour(2, true, null, 5, 6);
+		assertEquals(6 + 7, knn.size());
+		assertTrue(knn.get(0).dist() > 0);
+		assertTrue(idx.nearestNeighbour(0, true, null, 5, 5).isEmpty());
+	}
+
+	@Test
+	public void testDoubleKeys() {
+		PhTreeMultiMapBucketF<String> idx = PhTreeMultiMapBucketF.create(2);
+		double[] k1 = {1.5, -2.5};
+		double[] k2 = {3.0, 4.0};
+		idx.put(k1, "a");
+		idx.put(k1, "b");
+		idx.put(k2, "c");
+		assertEquals(3, idx.size());
+		assertEquals(2, idx.sizeKeys());
+		assertTrue(idx.contains(k1, "b"));
+		assertTrue(idx.update(k1, k2, "b"));
+		assertEquals(Arrays.asList("c", "b"), idx.getAll(k2));
+		assertFalse(idx.remove(k1, "b"));
+
+		List<PhEntryF<String>> list = idx.queryAll(new double[]{0, -3}, new double[]{2, 0});
+		assertEquals(1, list.size());
+		assertArrayEquals(k1, list.get(0).getKey(), 0);
+
+		List<PhEntryDistF<String>> knn = idx.nearestNeighbour(1, true, 3, 3);
+		assertEquals(2, knn.size());
+		assertArrayEquals(k2, knn.get(0).getKey(), 0);
+		assertEquals(1, knn.get(0).dist(), 0);
+		assertEquals(2, idx.removeAll(k2));
+		assertEquals(1, idx.size());
+	}
+
+	private static void check(PhTreeMultiMap<Integer> idx, Map<List<Long>, List<Integer>> ref) {
+		int n = 0;
+		for (Map.Entry<List<Long>, List<Integer>> e : ref.entrySet()) {
+			long[] key = toArray(e.getKey());
+			List<Integer> actual = new ArrayList<>(idx.getAll(key));
+			List<Integer> expected = new ArrayList<>(e.getValue());
+			actual.sort(NULL_FIRST);
+			expected.sort(NULL_FIRST);
+			assertEquals(expected, actual);
+			n += expected.size();
+		}
+		assertEquals(n, idx.size());
+		assertEquals(ref.size(), idx.sizeKeys());
+
+		long[] min = new long[idx.getDim()];
+		long[] max = new long[idx.getDim()];
+		Arrays.fill(min, Long.MIN_VALUE);
+		Arrays.fill(max, Long.MAX_VALUE);
+		assertEquals(n, idx.queryAll(min, max).size());
+	}
+
+	private static final Comparator<Integer> NULL_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
+}
@@ -6,6 +6,7 @@
  */
 package ch.ethz.globis.phtree.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -267,6 +268,36 @@ public class TestNearestNeighbourFS {
 	 * 10, which has no effect if distance is '0'. 
 	 * This can result in an infinite loop. 
 	 */
+	@Test
+	public void testQueryLargeBoxes() {
+		final int DIM = 3;
+		final int N = 2000;
+		final int NQ = 100;
+		final int MAXV = 1000;
+		final Random R = new Random(0);
+		PhTreeSolidF<Object> ind = newTreeSF(DIM);
+		for (int i = 0; i < N; i++) {
+			double[] vMin = new double[DIM];
+			double[] vMax = new double[DIM];
+			for (int j = 0; j < DIM; j++) {
+				vMin[j] = R.nextDouble()*MAXV - MAXV/2.0;
+				vMax[j] = vMin[j] + R.nextDouble()*MAXV/2;
+			}
+			ind.put(vMin, vMax, i);
+		}
+		PhKnnQuerySF<Object> q = ind.nearestNeighbour(1, newDistFn(ind), new double[DIM]);
+		for (int i = 0; i < NQ; i++) {
+			double[] v = new double[DIM];
+			for (int j = 0; j < DIM; j++) {
+				v[j] = R.nextDouble()*MAXV*2 - MAXV;
+			}
+			List<PhEntrySF<Object>> exp10 = nearestNeighborK(ind, 10, v);
+			List<PhEntrySF<Object>> nnList10 = toList(q.reset(10, null, v));
+			assertEquals(10, nnList10.size());
+			check(v, exp10, nnList10);
+		}
+	}
+
 	@Test
 	public void testAlmostZeroDist() {
 		final int DIM = 3;
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.randomKey;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.test.util.TestUtil;
+import ch.ethz.globis.phtree.v16.PersistenceProviderCheckpoint;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+public class TestPersistenceCheckpoint {
+
+	private static final int N = 20_000;
+
+	private static PhTree<Long> create(PersistenceProviderCheckpoint pp, int dims) {
+		PhTreeConfig cfg = new PhTreeConfig(dims);
+		cfg.setPersistenceProvider(pp);
+		PhTree<Long> tree = PhTree.create(cfg);
+		assertTrue(tree instanceof PhTree16);
+		return tree;
+	}
+
+	@Test
+	public void testIncremental() {
+		for (int dims : new int[]{1, 3, 10}) {
+			PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+			PhTree<Long> tree = create(pp, dims);
+			Random R = new Random(dims);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = randomKey(R, dims);
+				keys.add(key);
+				tree.put(key, i % 5 == 0 ? null : (long) i);
+			}
+			byte[] base = checkpoint(pp, true);
+			List<byte[]> deltas = new ArrayList<>();
+			for (int round = 0; round < 5; round++) {
+				//modify about 1% of the entries
+				for (int i = 0; i < N / 100; i++) {
+					long[] key = keys.get(R.nextInt(keys.size()));
+					switch (i % 4) {
+					case 0:
+						tree.remove(key);
+						break;
+					case 1:
+						tree.update(key, randomKey(R, dims));
+						break;
+					default:
+						long[] key2 = randomKey(R, dims);
+						keys.add(key2);
+						tree.put(key2, (long) i);
+						tree.put(key, (long) -i);
+					}
+				}
+				byte[] delta = checkpoint(pp, false);
+				//Only modified nodes are written, small nodes make this more effective
+				assertTrue(delta.length < base.length / (dims < 10 ? 10 : 2));
+				deltas.add(delta);
+				PhTree<Long> restored = restore(base, deltas).loadTree();
+				check(tree, restored);
+			}
+
+			//Continue after restore
+			PersistenceProviderCheckpoint pp2 = restore(base, deltas);
+			PhTree<Long> tree2 = pp2.loadTree();
+			assertEquals(pp.getSequence(), pp2.getSequence());
+			for (int i = 0; i < 100; i++) {
+				tree2.put(randomKey(R, dims), (long) i);
+			}
+			deltas.add(checkpoint(pp2, false));
+			check(tree2, restore(base, deltas).loadTree());
+		}
+	}
+
+	@Test
+	public void testClear() {
+		PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 3);
+		Random R = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			tree.put(randomKey(R, 3), (long) i);
+		}
+		byte[] base = checkpoint(pp, true);
+		List<byte[]> deltas = new ArrayList<>();
+		tree.clear();
+		deltas.add(checkpoint(pp, false));
+		assertEquals(0, restore(base, deltas).loadTree().size());
+		for (int i = 0; i < 100; i++) {
+			tree.put(randomKey(R, 3), (long) i);
+		}
+		deltas.add(checkpoint(pp, false));
+		check(tree, restore(base, deltas).loadTree());
+	}
+
+	@Test
+	public void testEmpty() {
+		PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 2);
+		byte[] base = checkpoint(pp, true);
+		assertEquals(0, restore(base, new ArrayList<>()).loadTree().size());
+		tree.put(new long[]{1, 2}, 3L);
+		List<byte[]> deltas = new ArrayList<>();
+		deltas.add(checkpoint(pp, false));
+		check(tree, restore(base, deltas).loadTree());
+	}
+
+	@Test
+	public void testStats() {
+		PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 3);
+		Random R = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			tree.put(randomKey(R, 3), (long) i);
+		}
+		assertEquals(0, pp.statsGetPageWrites());
+		byte[] base = checkpoint(pp, true);
+		int nNodes = pp.statsGetPageWrites();
+		assertTrue(nNodes > 1);
+		tree.put(randomKey(R, 3), -1L);
+		List<byte[]> deltas = new ArrayList<>();
+		deltas.add(checkpoint(pp, false));
+		int nWrites = pp.statsGetPageWrites();
+		assertTrue(nWrites > nNodes && nWrites < 2 * nNodes);
+		pp.statsReset();
+		assertEquals(0, pp.statsGetPageWrites());
+
+		PersistenceProviderCheckpoint pp2 = restore(base, deltas);
+		assertEquals(0, pp2.statsGetPageWrites());
+		//Every reachable node is read once, the last put() may have added nodes
+		assertTrue(pp2.statsGetPageReads() >= nNodes);
+		try {
+			pp2.loadNode(0L);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		PersistenceProviderCheckpoint pp = PersistenceProviderCheckpoint.create(PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 2);
+		try {
+			pp.checkpointIncremental(Channels.newChannel(new ByteArrayOutputStream()));
+			fail();
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		byte[] base = checkpoint(pp, true);
+		tree.put(new long[]{1, 2}, 3L);
+		byte[] d1 = checkpoint(pp, false);
+		tree.put(new long[]{2, 2}, 3L);
+		byte[] d2 = checkpoint(pp, false);
+		List<byte[]> deltas = new ArrayList<>();
+		deltas.add(d2);
+		deltas.add(d1);
+		try {
+			restore(base, deltas);
+			fail();
+		} catch (UncheckedIOException e) {
+			//expected
+		}
+		try {
+			restore(d1, new ArrayList<>());
+			fail();
+		} catch (UncheckedIOException e) {
+			//expected
+		}
+	}
+
+	private static byte[] checkpoint(PersistenceProviderCheckpoint pp, boolean full) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if (full) {
+			pp.checkpoint(Channels.newChannel(bos));
+		} else {
+			pp.checkpointIncremental(Channels.newChannel(bos));
+		}
+		return bos.toByteArray();
+	}
+
+	private static PersistenceProviderCheckpoint restore(byte[] base, List<byte[]> deltas) {
+		ReadableByteChannel[] in = new ReadableByteChannel[deltas.size()];
+		for (int i = 0; i < in.length; i++) {
+			in[i] = Channels.newChannel(new ByteArrayInputStream(deltas.get(i)));
+		}
+		return PersistenceProviderCheckpoint.restore(PhValueCodec.LONG,
+				Channels.newChannel(new ByteArrayInputStream(base)), in);
+	}
+
+	private static void check(PhTree<Long> expected, PhTree<Long> actual) {
+		Map<List<Long>, Long> map = new HashMap<>();
+		PhExtent<Long> it = expected.queryExtent();
+		while (it.hasNext()) {
+			PhEntry<Long> e = it.nextEntry();
+			map.put(toList(e.getKey()), e.getValue());
+		}
+		TestUtil.check(actual, map);
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.check;
+import static ch.ethz.globis.phtree.test.util.TestUtil.randomKey;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toArray;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeConfig;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v16.PersistenceProviderFile;
+import ch.ethz.globis.phtree.v16.PhTree16;
+
+public class TestPersistenceFile {
+
+	private static final int N = 5000;
+
+	private Path path;
+
+	@Before
+	public void before() throws IOException {
+		path = Files.createTempFile("phtree", ".dat");
+	}
+
+	@After
+	public void after() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	private PhTree<Long> create(PersistenceProviderFile pp, int dims) {
+		PhTreeConfig cfg = new PhTreeConfig(dims);
+		cfg.setPersistenceProvider(pp);
+		return PhTree.create(cfg);
+	}
+
+	@Test
+	public void testWriteAndLoad() {
+		for (int dims : new int[]{1, 3, 10}) {
+			PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+			PhTree<Long> tree = create(pp, dims);
+			assertTrue(tree instanceof PhTree16);
+			Map<List<Long>, Long> ref = new HashMap<>();
+			Random R = new Random(dims);
+			for (int i = 0; i < N; i++) {
+				long[] key = randomKey(R, dims);
+				Long value = i % 13 == 0 ? null : (long) i;
+				tree.put(key, value);
+				ref.put(toList(key), value);
+			}
+			check(tree, ref);
+			pp.close();
+			assertTrue(pp.statsGetPageWrites() > 0);
+
+			pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+			tree = pp.loadTree();
+			check(tree, ref);
+			assertTrue(pp.statsGetPageReads() > 0);
+
+			//modify loaded tree
+			List<List<Long>> keys = new ArrayList<>(ref.keySet());
+			for (int i = 0; i < keys.size(); i += 2) {
+				long[] key = toArray(keys.get(i));
+				if (i % 4 == 0) {
+					tree.remove(key);
+					ref.remove(keys.get(i));
+					assertFalse(tree.contains(key));
+				} else if (i % 3 == 0) {
+					long[] key2 = randomKey(R, dims);
+					if (!ref.containsKey(toList(key2))) {
+						tree.update(key, key2);
+						ref.put(toList(key2), ref.remove(keys.get(i)));
+					}
+				} else {
+					tree.put(key, -1L);
+					ref.put(keys.get(i), -1L);
+				}
+			}
+			check(tree, ref);
+			pp.close();
+
+			pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+			tree = pp.loadTree();
+			check(tree, ref);
+			pp.close();
+		}
+	}
+
+	@Test
+	public void testLazyOpen() {
+		PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 2);
+		Map<List<Long>, Long> ref = new HashMap<>();
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			long[] key = {R.nextInt(1000), R.nextInt(1000)};
+			tree.put(key, (long) i);
+			ref.put(toList(key), (long) i);
+		}
+		pp.close();
+
+		pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+		tree = pp.loadTree();
+		assertEquals(0, pp.statsGetPageReads());
+		assertEquals(ref.size(), tree.size());
+		long[] key = toArray(ref.keySet().iterator().next());
+		assertEquals(ref.get(toList(key)), tree.get(key));
+		//Only the nodes on the path to the key are loaded
+		assertTrue(pp.statsGetNodeMisses() <= 64);
+
+		pp.setPrefetch(true);
+		long[] min = {100, 200};
+		long[] max = {300, 250};
+		int n = 0;
+		PhQuery<Long> q = tree.query(min, max);
+		while (q.hasNext()) {
+			long[] k = q.nextKey();
+			assertTrue(k[0] >= 100 && k[0] <= 300 && k[1] >= 200 && k[1] <= 250);
+			n++;
+		}
+		int expected = 0;
+		for (List<Long> k : ref.keySet()) {
+			if (k.get(0) >= 100 && k.get(0) <= 300 && k.get(1) >= 200 && k.get(1) <= 250) {
+				expected++;
+			}
+		}
+		assertEquals(expected, n);
+		check(tree, ref);
+		pp.close();
+	}
+
+	@Test
+	public void testSmallPages() {
+		//Nodes span several pages
+		PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG, 64, 4);
+		PhTree<Long> tree = create(pp, 2);
+		Map<List<Long>, Long> ref = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			long[] key = {i, i % 7};
+			tree.put(key, (long) i);
+			ref.put(toList(key), (long) i);
+		}
+		pp.close();
+		pp = PersistenceProviderFile.open(path, PhValueCodec.LONG, 4);
+		check(pp.loadTree(), ref);
+		pp.close();
+	}
+
+	@Test
+	public void testClear() {
+		PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+		PhTree<Long> tree = create(pp, 3);
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			tree.put(randomKey(R, 3), (long) i);
+		}
+		pp.flush();
+		tree.clear();
+		tree.put(new long[]{1, 2, 3}, 42L);
+		pp.close();
+
+		pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+		tree = pp.loadTree();
+		assertEquals(1, tree.size());
+		assertEquals(42L, (long) tree.get(new long[]{1, 2, 3}));
+		pp.close();
+	}
+
+	@Test
+	public void testEmpty() {
+		PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+		create(pp, 3);
+		pp.close();
+		pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+		PhTree<Long> tree = pp.loadTree();
+		assertEquals(0, tree.size());
+		assertEquals(3, tree.getDim());
+		tree.put(new long[]{1, 2, 3}, 42L);
+		assertEquals(42L, (long) tree.get(new long[]{1, 2, 3}));
+		pp.close();
+	}
+
+	@Test
+	public void testEviction() {
+		for (int dims : new int[]{1, 3, 6}) {
+			PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+			long maxBytes = 100_000;
+			pp.setMaxCachedBytes(maxBytes);
+			PhTree<Long> tree = create(pp, dims);
+			Map<List<Long>, Long> ref = new HashMap<>();
+			Random R = new Random(dims);
+			for (int i = 0; i < N; i++) {
+				long[] key = randomKey(R, dims);
+				tree.put(key, (long) i);
+				ref.put(toList(key), (long) i);
+				assertTrue(pp.getCachedBytes() < 2 * maxBytes);
+			}
+			check(tree, ref);
+			assertTrue(pp.statsGetNodeMisses() > 0);
+
+			//Modify the tree while an iterator traverses evicted nodes
+			List<List<Long>> keys = new ArrayList<>(ref.keySet());
+			PhExtent<Long> it = tree.queryExtent();
+			int n = 0;
+			while (it.hasNext()) {
+				assertTrue(ref.containsKey(toList(it.nextKey())));
+				n++;
+				if (n < keys.size()) {
+					long[] key = toArray(keys.get(n));
+					assertEquals(ref.get(keys.get(n)), tree.get(key));
+					tree.put(key, -1L);
+					ref.put(keys.get(n), -1L);
+				}
+			}
+			assertEquals(ref.size(), n);
+			for (int i = 0; i < keys.size(); i += 3) {
+				tree.remove(toArray(keys.get(i)));
+				ref.remove(keys.get(i));
+			}
+			check(tree, ref);
+			pp.close();
+
+			pp = PersistenceProviderFile.open(path, PhValueCodec.LONG);
+			pp.setMaxCachedBytes(maxBytes);
+			pp.statsReset();
+			tree = pp.loadTree();
+			check(tree, ref);
+			assertTrue(pp.getCachedBytes() < 2 * maxBytes);
+			assertTrue(pp.statsGetNodeHits() > 0);
+			assertTrue(pp.statsGetNodeMisses() > 0);
+			pp.close();
+		}
+	}
+
+	@Test
+	public void testEvictionDuringIteration() {
+		for (int dims : new int[]{1, 3, 6}) {
+			PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+			pp.setMaxCachedBytes(20_000);
+			PhTree<Long> tree = create(pp, dims);
+			Random R = new Random(dims);
+			for (int i = 0; i < N; i++) {
+				tree.put(randomKey(R, dims), (long) i);
+			}
+			List<long[]> order = new ArrayList<>();
+			PhExtent<Long> it0 = tree.queryExtent();
+			while (it0.hasNext()) {
+				order.add(it0.nextKey());
+			}
+			long[] min = new long[dims];
+			long[] max = new long[dims];
+			Arrays.fill(min, Long.MIN_VALUE);
+			Arrays.fill(max, Long.MAX_VALUE);
+			PhQuery<Long> it = tree.query(min, max);
+			long[] values = new long[order.size()];
+			int pos = 0;
+			while (it.hasNext()) {
+				PhEntry<Long> e = it.nextEntry();
+				assertArrayEquals(order.get(pos), e.getKey());
+				if (values[pos] != 0) {
+					//The iterator must see the update, not an evicted copy of the node
+					assertEquals(values[pos], (long) e.getValue());
+				}
+				pos++;
+				//Update an entry ahead of the iterator. The next entry has already been read.
+				int ahead = pos + 1 + R.nextInt(20);
+				if (ahead < values.length) {
+					values[ahead] = -pos;
+					tree.put(order.get(ahead), (long) -pos);
+				}
+				//Loading other nodes evicts nodes that are not on the iterator's path
+				for (int i = 0; i < 10; i++) {
+					assertNotNull(tree.get(order.get(R.nextInt(order.size()))));
+				}
+			}
+			assertEquals(order.size(), pos);
+			assertTrue(pp.statsGetNodeMisses() > 0);
+			pp.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTreeExists() {
+		PersistenceProviderFile pp = PersistenceProviderFile.create(path, PhValueCodec.LONG);
+		try {
+			create(pp, 3);
+			create(pp, 3);
+		} finally {
+			pp.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeHelper;
+import ch.ethz.globis.phtree.util.FastScanner;
+import ch.ethz.globis.phtree.util.PhBulkLoader;
+import ch.ethz.globis.phtree.util.PhBulkLoader.Format;
+
+public class TestPhBulkLoader {
+
+	private static final int N = 10_000;
+
+	private Path path;
+	private Path path2;
+
+	@Before
+	public void before() throws IOException {
+		path = Files.createTempFile("phtree", ".dat");
+		path2 = Files.createTempFile("phtree", ".dat");
+	}
+
+	@After
+	public void after() throws IOException {
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(path2);
+	}
+
+	@Test
+	public void testCsv() throws IOException {
+		for (int dims : new int[]{1, 3}) {
+			List<double[]> points = randomPoints(dims, N, new Random(dims));
+			writeCsv(path, points.subList(0, N / 2), ",", "\n");
+			writeCsv(path2, points.subList(N / 2, N), ", ", "\r\n");
+			PhBulkLoader loader = new PhBulkLoader(dims);
+			loader.setThreads(4);
+			//small chunks and batches to test the chunk boundaries and the backpressure
+			loader.setChunkSize(1000);
+			loader.setBatchSize(100);
+			loader.setQueueCapacity(2);
+			PhTreeF<Object> tree = PhTreeF.create(dims);
+			PhBulkLoader.Stats stats = loader.load(tree, null, Format.CSV, path, path2);
+			assertEquals(N, stats.getRows());
+			assertEquals(N, loader.getRowsLoaded());
+			assertEquals(Files.size(path) + Files.size(path2), stats.getBytes());
+			check(tree, points);
+		}
+	}
+
+	@Test
+	public void testCsvWhitespace() throws IOException {
+		List<double[]> points = randomPoints(2, N, new Random(0));
+		writeCsv(path, points, " ", "\n\n");
+		PhBulkLoader loader = new PhBulkLoader(2);
+		loader.setDelimiter(' ');
+		loader.setChunkSize(777);
+		PhTreeF<Object> tree = PhTreeF.create(2);
+		assertEquals(N, loader.load(tree, null, Format.CSV, path).getRows());
+		check(tree, points);
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		int dims = 3;
+		List<double[]> points = randomPoints(dims, N, new Random(0));
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+			for (double[] p : points) {
+				for (double d : p) {
+					out.writeDouble(d);
+				}
+			}
+		}
+		PhBulkLoader loader = new PhBulkLoader(dims);
+		loader.setChunkSize(1000);
+		loader.setBatchSize(50);
+		PhTreeF<Object> tree = PhTreeF.create(dims);
+		assertEquals(N, loader.load(tree, null, Format.BINARY, path).getRows());
+		check(tree, points);
+	}
+
+	@Test
+	public void testZOrder() throws IOException {
+		writeCsv(path, randomPoints(3, N, new Random(0)), ",", "\n");
+		PhBulkLoader loader = new PhBulkLoader(3);
+		loader.setBatchSize(1000);
+		int[] n = new int[1];
+		loader.load(Format.CSV, (keys, size) -> {
+			for (int i = 1; i < size; i++) {
+				assertTrue(PhTreeHelper.compareZOrder(keys[i - 1], keys[i], -1L) <= 0);
+			}
+			n[0] += size;
+		}, path);
+		assertEquals(N, n[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRow() throws IOException {
+		Files.write(path, "1,2\n3,4,5\n".getBytes());
+		new PhBulkLoader(2).load(PhTreeF.create(2), null, Format.CSV, path);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidNumber() throws IOException {
+		Files.write(path, "1,2\n3,x\n".getBytes());
+		new PhBulkLoader(2).load(PhTreeF.create(2), null, Format.CSV, path);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyToken() throws IOException {
+		Files.write(path, "1,2\n1,,2\n".getBytes());
+		new PhBulkLoader(2).load(PhTreeF.create(2), null, Format.CSV, path);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyLastToken() throws IOException {
+		Files.write(path, "1,2\n1,\n".getBytes());
+		new PhBulkLoader(2).load(PhTreeF.create(2), null, Format.CSV, path);
+	}
+
+	@Test
+	public void testParseDoubles() {
+		List<String> tokens = new ArrayList<>(Arrays.asList("0", "-0", "+1", "-0.0", ".5", "5.",
+				"1e3", "1E-3", "-2.5e+10", "123456789012345", "1234567890123456789",
+				"0.000000000000000000000000001", "1e22", "1e23", "1e-22", "1e-23", "1e400",
+				"1e-400", "4.9e-324", "1.7976931348623157E308", "NaN", "-Infinity", "1d",
+				"0x1p3", "00012.50"));
+		Random R = new Random(0);
+		for (int i = 0; i < 10_000; i++) {
+			double d = (R.nextDouble() - 0.5) * Math.pow(10, R.nextInt(40) - 20);
+			tokens.add(Double.toString(d));
+			tokens.add(Double.toString(Math.round(d * 1000) / 1000.0));
+			tokens.add(Float.toString((float) d));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String t : tokens) {
+			sb.append(t).append(", ");
+		}
+		sb.append(tokens.get(0));
+		FastScanner sc = new FastScanner(new BufferedReader(new StringReader(sb.toString())), ',');
+		double[] out = new double[tokens.size() + 1];
+		assertEquals(out.length, sc.nextLineAsDoubles(out));
+		for (int i = 0; i < tokens.size(); i++) {
+			double expected = Double.parseDouble(tokens.get(i));
+			assertEquals(tokens.get(i), Double.doubleToRawLongBits(expected),
+					Double.doubleToRawLongBits(out[i]));
+		}
+		assertFalse(sc.hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBinarySize() throws IOException {
+		Files.write(path, new byte[20]);
+		new PhBulkLoader(2).load(PhTreeF.create(2), null, Format.BINARY, path);
+	}
+
+	private static void check(PhTreeF<Object> tree, List<double[]> points) {
+		assertEquals(points.size(), tree.size());
+		for (double[] p : points) {
+			assertTrue(tree.contains(p));
+		}
+	}
+
+	private static List<double[]> randomPoints(int dims, int n, Random R) {
+		List<double[]> list = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double[] p = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				p[d] = (R.nextDouble() - 0.5) * 1000;
+			}
+			list.add(p);
+		}
+		return list;
+	}
+
+	private static void writeCsv(Path path, List<double[]> points, String delimiter, String eol)
+			throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(path)) {
+			for (double[] p : points) {
+				for (int d = 0; d < p.length; d++) {
+					if (d > 0) {
+						w.write(delimiter);
+					}
+					w.write(Double.toString(p[d]));
+				}
+				w.write(eol);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhTreeF;
+import ch.ethz.globis.phtree.PhTreeF32;
+import ch.ethz.globis.phtree.PhTreeF32.PhEntryDistF32;
+import ch.ethz.globis.phtree.PhTreeF32.PhEntryF32;
+import ch.ethz.globis.phtree.PhTreeF32.PhKnnQueryF32;
+import ch.ethz.globis.phtree.PhTreeF32.PhQueryF32;
+import ch.ethz.globis.phtree.util.BitTools;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPhTreeF32 {
+
+	private static final int N = 5000;
+
+	@Test
+	public void testEncoding() {
+		float[] values = {Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -1.5f, -Float.MIN_VALUE, -0.0f,
+				0.0f, Float.MIN_VALUE, 1, 1.5f, Float.MAX_VALUE, Float.POSITIVE_INFINITY};
+		long prev = -1;
+		for (float f : values) {
+			long l = BitTools.toSortableUInt32(f);
+			assertTrue(l > prev);
+			assertTrue(l >>> 32 == 0);
+			assertEquals(Float.floatToRawIntBits(f), Float.floatToRawIntBits(BitTools.fromSortableUInt32(l)));
+			prev = l;
+		}
+		Random R = new Random(0);
+		for (int i = 0; i < 10000; i++) {
+			float f1 = Float.intBitsToFloat(R.nextInt());
+			float f2 = Float.intBitsToFloat(R.nextInt());
+			if (Float.isNaN(f1) || Float.isNaN(f2)) {
+				continue;
+			}
+			assertEquals(Integer.signum(Float.compare(f1, f2)), 
+					Integer.signum(Long.compare(BitTools.toSortableUInt32(f1), BitTools.toSortableUInt32(f2))));
+		}
+	}
+
+	@Test
+	public void testCRUD() {
+		//dim > 60 uses PhTree16HD
+		for (int dim : new int[]{1, 3, 10, 64}) {
+			PhTreeF32<Integer> ind = PhTreeF32.create(dim);
+			Map<String, Integer> ref = new HashMap<>();
+			Random R = new Random(dim);
+			float[][] keys = new float[N][];
+			for (int i = 0; i < N; i++) {
+				keys[i] = randomKey(R, dim);
+				assertEquals(ref.put(Arrays.toString(keys[i]), i), ind.put(keys[i], i));
+			}
+			assertEquals(ref.size(), ind.size());
+			for (int i = 0; i < N; i++) {
+				assertEquals(ref.get(Arrays.toString(keys[i])), ind.get(keys[i]));
+				assertTrue(ind.contains(keys[i]));
+			}
+			for (int i = 0; i < N; i += 2) {
+				float[] k2 = randomKey(R, dim);
+				Integer v = ind.update(keys[i], k2);
+				if (v != null) {
+					assertEquals(ref.remove(Arrays.toString(keys[i])), v);
+					ref.put(Arrays.toString(k2), v);
+					keys[i] = k2;
+				}
+			}
+			for (int i = 0; i < N; i += 3) {
+				assertEquals(ref.remove(Arrays.toString(keys[i])), ind.remove(keys[i]));
+				assertFalse(ind.contains(keys[i]));
+			}
+			assertEquals(ref.size(), ind.size());
+			ind.clear();
+			assertEquals(0, ind.size());
+		}
+	}
+
+	@Test
+	public void testQuery() {
+		for (int dim : new int[]{2, 3, 10, 64}) {
+			PhTreeF32<Integer> ind = PhTreeF32.create(dim);
+			Random R = new Random(dim);
+			List<float[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				float[] k = randomKey(R, dim);
+				if (ind.put(k, i) == null) {
+					keys.add(k);
+				}
+			}
+			PhQueryF32<Integer> q = null;
+			for (int i = 0; i < 50; i++) {
+				float[] min = randomKey(R, dim);
+				float[] max = randomKey(R, dim);
+				for (int d = 0; d < dim; d++) {
+					float t = Math.min(min[d], max[d]);
+					max[d] = Math.max(min[d], max[d]);
+					min[d] = t;
+				}
+				int n = 0;
+				for (float[] k : keys) {
+					boolean inside = true;
+					for (int d = 0; d < dim; d++) {
+						inside &= k[d] >= min[d] && k[d] <= max[d];
+					}
+					n += inside ? 1 : 0;
+				}
+				List<PhEntryF32<Integer>> list = ind.queryAll(min, max);
+				assertEquals(n, list.size());
+				for (PhEntryF32<Integer> e : list) {
+					assertEquals(ind.get(e.getKey()), e.getValue());
+				}
+				if (q == null) {
+					q = ind.query(min, max);
+				} else {
+					q.reset(min, max);
+				}
+				int n2 = 0;
+				while (q.hasNext()) {
+					PhEntryF32<Integer> e = q.nextEntryReuse();
+					assertEquals(ind.get(e.getKey()), e.getValue());
+					n2++;
+				}
+				assertEquals(n, n2);
+			}
+		}
+	}
+
+	@Test
+	public void testKnn() {
+		for (int dim : new int[]{2, 3, 10}) {
+			PhTreeF32<Integer> ind = PhTreeF32.create(dim);
+			Random R = new Random(dim);
+			List<float[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				float[] k = randomKey(R, dim);
+				if (ind.put(k, i) == null) {
+					keys.add(k);
+				}
+			}
+			PhKnnQueryF32<Integer> q = null;
+			for (int i = 0; i < 20; i++) {
+				float[] c = randomKey(R, dim);
+				double[] dists = new double[keys.size()];
+				for (int j = 0; j < dists.length; j++) {
+					dists[j] = dist(c, keys.get(j));
+				}
+				Arrays.sort(dists);
+				q = q == null ? ind.nearestNeighbour(10, c) : q.reset(10, null, c);
+				int n = 0;
+				while (q.hasNext()) {
+					PhEntryDistF32<Integer> e = q.nextEntryReuse();
+					assertEquals(dist(c, e.getKey()), e.dist(), 0);
+					assertEquals(dists[n], e.dist(), 0);
+					n++;
+				}
+				assertEquals(10, n);
+			}
+		}
+	}
+
+	@Test
+	public void testMemory() {
+		int dim = 3;
+		PhTreeF32<Integer> ind32 = PhTreeF32.create(dim);
+		PhTreeF<Integer> ind64 = PhTreeF.create(dim);
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			float[] k = randomKey(R, dim);
+			ind32.put(k, i);
+			ind64.put(new double[]{k[0], k[1], k[2]}, i);
+		}
+		assertEquals(ind64.size(), ind32.size());
+		assertTrue(ind32.getStats().size < ind64.getStats().size);
+	}
+
+	private static float[] randomKey(Random R, int dim) {
+		float[] v = new float[dim];
+		for (int d = 0; d < dim; d++) {
+			v[d] = (R.nextFloat() - 0.5f) * 1000;
+		}
+		return v;
+	}
+
+	private static double dist(float[] v1, float[] v2) {
+		double d = 0;
+		for (int i = 0; i < v1.length; i++) {
+			double dl = (double) v1[i] - v2[i];
+			d += dl * dl;
+		}
+		return Math.sqrt(d);
+	}
+}
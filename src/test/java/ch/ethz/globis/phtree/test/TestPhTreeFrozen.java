@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhEntryDist;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTreeFrozen;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPhTreeFrozen {
+
+	private static final int N = 5000;
+
+	@Test
+	public void testEmpty() {
+		PhTreeFrozen<Integer> f = PhTree.<Integer>create(3).freeze();
+		assertEquals(0, f.size());
+		assertNull(f.get(1, 2, 3));
+		assertTrue(f.queryAll().isEmpty());
+		assertTrue(f.nearestNeighbour(3, null, 1, 2, 3).isEmpty());
+
+		PhTree<Integer> tree = PhTree.create(3);
+		tree.put(new long[]{-1, 2, 3}, 42);
+		f = tree.freeze();
+		assertEquals(42, (int) f.get(-1, 2, 3));
+		assertFalse(f.contains(1, 2, 3));
+		assertEquals(1, f.queryAll(new long[]{-5, 0, 0}, new long[]{5, 5, 5}).size());
+		assertEquals(1, f.nearestNeighbour(3, null, 0, 0, 0).size());
+	}
+
+	@Test
+	public void testCompareWithTree() {
+		for (int dim : new int[]{1, 2, 3, 5, 10, 20, 64}) {
+			PhTree<Integer> tree = PhTree.create(dim);
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					key[d] = i % 2 == 0 ? R.nextInt(2000) - 1000 : R.nextInt(1 << 24) - (1 << 23);
+				}
+				tree.put(key, i % 13 == 0 ? null : i);
+				keys.add(key);
+			}
+			PhTreeFrozen<Integer> f = tree.freeze();
+			assertEquals(tree.size(), f.size());
+			for (long[] key : keys) {
+				assertTrue(f.contains(key));
+				assertEquals(tree.get(key), f.get(key));
+				long[] key2 = key.clone();
+				key2[0]++;
+				assertEquals(tree.contains(key2), f.contains(key2));
+			}
+			List<PhEntry<Integer>> all = f.queryAll();
+			assertEquals(tree.size(), all.size());
+
+			for (int i = 0; i < 100; i++) {
+				long[] min = new long[dim];
+				long[] max = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					long v1 = R.nextInt(3000) - 1500;
+					long v2 = i % 10 == 0 ? Long.MAX_VALUE : R.nextInt(3000) - 1500;
+					min[d] = Math.min(v1, v2);
+					max[d] = Math.max(v1, v2);
+				}
+				List<PhEntry<Integer>> expected = tree.queryAll(min, max);
+				List<PhEntry<Integer>> actual = f.queryAll(min, max);
+				assertEquals(expected.size(), actual.size());
+				for (PhEntry<Integer> e : actual) {
+					assertEquals(tree.get(e.getKey()), e.getValue());
+				}
+			}
+
+			for (int i = 0; i < 20; i++) {
+				long[] center = keys.get(R.nextInt(keys.size())).clone();
+				center[0] += 3;
+				PhKnnQuery<Integer> knn = tree.nearestNeighbour(10, PhDistanceL.THIS, null, center);
+				List<PhEntryDist<Integer>> actual = f.nearestNeighbour(10, null, center);
+				assertTrue(actual.size() >= 10);
+				for (int j = 0; j < 10; j++) {
+					PhEntryDist<Integer> e = knn.nextEntry();
+					assertEquals(e.dist(), actual.get(j).dist(), 0);
+					assertEquals(PhDistanceL.THIS.dist(center, actual.get(j).getKey()), actual.get(j).dist(), 0);
+				}
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyDimensions() {
+		PhTree<Integer> tree = PhTree.create(PhTreeFrozen.MAX_DIM + 1);
+		tree.put(new long[PhTreeFrozen.MAX_DIM + 1], 1);
+		tree.freeze();
+	}
+
+	@Test
+	public void testAbort() {
+		PhTree<Integer> tree = PhTree.create(2);
+		for (int i = 0; i < 100; i++) {
+			tree.put(new long[]{i, i}, i);
+		}
+		PhTreeFrozen<Integer> f = tree.freeze();
+		int[] n = {0};
+		long[] min = {Long.MIN_VALUE, Long.MIN_VALUE};
+		long[] max = {Long.MAX_VALUE, Long.MAX_VALUE};
+		assertFalse(f.forEach(min, max, (k, v) -> ++n[0] < 7));
+		assertEquals(7, n[0]);
+		assertEquals(Arrays.asList(0, 1, 2), values(f.queryAll(new long[]{0, 0}, new long[]{2, 3})));
+	}
+
+	@Test
+	public void testMemory() {
+		//compare with v13, the stats of v16 do not include the entries
+		for (int dim : new int[]{2, 3, 6}) {
+			PhTree<Integer> tree = PhTree.create(dim);
+			Random R = new Random(0);
+			for (int i = 0; i < 100_000; i++) {
+				long[] key = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					key[d] = R.nextLong();
+				}
+				tree.put(key, i);
+			}
+			PhTreeFrozen<Integer> f = tree.freeze();
+			assertEquals(tree.size(), f.queryAll().size());
+			PhTree.PhExtent<Integer> it = tree.queryExtent();
+			while (it.hasNext()) {
+				PhEntry<Integer> e = it.nextEntryReuse();
+				assertEquals(e.getValue(), f.get(e.getKey()));
+			}
+			assertTrue(f.getStats().getCalculatedMemSize() < tree.getStats().getCalculatedMemSize());
+		}
+	}
+
+	private static List<Integer> values(List<PhEntry<Integer>> list) {
+		List<Integer> result = new ArrayList<>();
+		list.forEach(e -> result.add(e.getValue()));
+		return result;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeIO;
+import ch.ethz.globis.phtree.PhValueCodec;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v13.PhTree13.ValueStorage;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class TestPhTreeIO {
+
+	private static final int N = 10_000;
+
+	@Test
+	public void testV13() {
+		for (int dims : new int[]{1, 2, 3, 6}) {
+			check(new PhTree13<>(dims), PhValueCodec.LONG, i -> (long) i);
+			check(new PhTree13<>(dims, ValueStorage.LONG), PhValueCodec.LONG, i -> (long) i);
+			check(new PhTree13<>(dims, ValueStorage.INT), PhValueCodec.INTEGER, i -> i);
+			check(new PhTree13<>(dims, ValueStorage.NONE), PhValueCodec.NONE, i -> null);
+			check(new PhTree13<>(dims), PhValueCodec.STRING, i -> "v" + i);
+		}
+	}
+
+	@Test
+	public void testV16() {
+		for (int dims : new int[]{1, 3, 10}) {
+			check(new PhTree16<>(dims), PhValueCodec.LONG, i -> (long) i);
+			check(new PhTree16<>(dims), PhValueCodec.STRING, i -> "v" + i);
+		}
+	}
+
+	@Test
+	public void testEntries() {
+		check(new PhTree16HD<>(5), PhValueCodec.LONG, i -> (long) i);
+	}
+
+	@Test
+	public void testEmpty() {
+		List<PhTree<Long>> trees = Arrays.asList(new PhTree13<>(3), new PhTree16<>(3), new PhTree16HD<>(3));
+		for (PhTree<Long> tree : trees) {
+			PhTree<Long> tree2 = copy(tree, PhValueCodec.LONG);
+			assertEquals(0, tree2.size());
+			assertEquals(3, tree2.getDim());
+			tree2.put(new long[]{1, 2, 3}, 42L);
+			assertEquals(42L, (long) tree2.get(1, 2, 3));
+		}
+	}
+
+	private static <T> void check(PhTree<T> tree, PhValueCodec<T> codec, IntFunction<T> values) {
+		int dims = tree.getDim();
+		Random R = new Random(dims);
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N; i++) {
+			long[] key = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				key[d] = i % 2 == 0 ? R.nextInt(1000) - 500 : R.nextLong();
+			}
+			tree.put(key, i % 13 == 0 ? null : values.apply(i));
+			keys.add(key);
+		}
+
+		PhTree<T> tree2 = copy(tree, codec);
+		if (tree instanceof PhTree13 || tree instanceof PhTree16) {
+			assertEquals(tree.getClass(), tree2.getClass());
+		}
+		assertEquals(tree.size(), tree2.size());
+		assertEquals(tree.getBitDepth(), tree2.getBitDepth());
+		for (long[] key : keys) {
+			assertTrue(tree2.contains(key));
+			assertEquals(tree.get(key), tree2.get(key));
+		}
+		List<PhEntry<T>> all1 = toList(tree);
+		List<PhEntry<T>> all2 = toList(tree2);
+		assertEquals(all1.size(), all2.size());
+		for (int i = 0; i < all1.size(); i++) {
+			assertArrayEquals(all1.get(i).getKey(), all2.get(i).getKey());
+			assertEquals(all1.get(i).getValue(), all2.get(i).getValue());
+		}
+		long[] min = new long[dims];
+		long[] max = new long[dims];
+		for (int d = 0; d < dims; d++) {
+			min[d] = -100;
+			max[d] = 200;
+		}
+		assertEquals(tree.queryAll(min, max).size(), tree2.queryAll(min, max).size());
+
+		//the restored tree can be modified
+		for (int i = 0; i < keys.size(); i += 2) {
+			tree2.remove(keys.get(i));
+		}
+		for (int i = 0; i < keys.size(); i += 2) {
+			assertFalse(tree2.contains(keys.get(i)));
+		}
+		for (int i = 0; i < keys.size(); i += 2) {
+			tree2.put(keys.get(i), values.apply(i));
+		}
+		assertEquals(tree.size(), tree2.size());
+		for (long[] key : keys) {
+			assertTrue(tree2.contains(key));
+		}
+	}
+
+	private static <T> List<PhEntry<T>> toList(PhTree<T> tree) {
+		List<PhEntry<T>> list = new ArrayList<>();
+		PhTree.PhExtent<T> it = tree.queryExtent();
+		while (it.hasNext()) {
+			list.add(it.nextEntry());
+		}
+		return list;
+	}
+
+	private static <T> PhTree<T> copy(PhTree<T> tree, PhValueCodec<T> codec) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		PhTreeIO.write(tree, Channels.newChannel(bos), codec);
+		ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+		return PhTreeIO.read(Channels.newChannel(bis), codec);
+	}
+}
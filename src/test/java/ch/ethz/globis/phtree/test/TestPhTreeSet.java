@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTreeSet;
+import ch.ethz.globis.phtree.PhTreeSet.PhQuerySet;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.test.util.TestUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.toArray;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+public class TestPhTreeSet {
+
+	private static final int N = 5000;
+
+	@Test
+	public void testCRUD() {
+		for (int dim : new int[]{1, 2, 3, 5, 10}) {
+			PhTreeSet ind = PhTreeSet.create(dim);
+			Set<List<Long>> ref = new HashSet<>();
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = randomKey(R, dim);
+				assertEquals(ref.add(toList(key)), ind.add(key));
+				keys.add(key);
+			}
+			check(ind, ref);
+
+			for (int i = 0; i < N; i++) {
+				long[] key = keys.get(R.nextInt(keys.size()));
+				switch (i % 3) {
+				case 0:
+					assertEquals(ref.remove(toList(key)), ind.remove(key));
+					break;
+				case 1:
+					long[] key2 = randomKey(R, dim);
+					boolean ok = ref.contains(toList(key)) && !ref.contains(toList(key2));
+					assertEquals(ok, ind.update(key, key2));
+					if (ok) {
+						ref.remove(toList(key));
+						ref.add(toList(key2));
+						keys.add(key2);
+					}
+					break;
+				default:
+					long[] key3 = randomKey(R, dim);
+					assertEquals(ref.add(toList(key3)), ind.add(key3));
+					keys.add(key3);
+				}
+			}
+			check(ind, ref);
+
+			for (long[] key : keys) {
+				assertEquals(ref.remove(toList(key)), ind.remove(key));
+			}
+			assertEquals(0, ind.size());
+		}
+	}
+
+	@Test
+	public void testQueries() {
+		PhTreeSet ind = PhTreeSet.create(2);
+		for (int x = 0; x < 20; x++) {
+			for (int y = 0; y < 20; y++) {
+				ind.add(x, y);
+			}
+		}
+		long[] min = {3, 4};
+		long[] max = {5, 10};
+		int[] n = {0};
+		assertTrue(ind.forEach(min, max, k -> {
+			assertTrue(k[0] >= 3 && k[0] <= 5 && k[1] >= 4 && k[1] <= 10);
+			n[0]++;
+			return true;
+		}));
+		assertEquals(3 * 7, n[0]);
+
+		PhQuerySet q = ind.query(min, max);
+		n[0] = 0;
+		while (q.hasNext()) {
+			q.next();
+			n[0]++;
+		}
+		assertEquals(3 * 7, n[0]);
+		q.reset(new long[]{0, 0}, new long[]{1, 1});
+		n[0] = 0;
+		while (q.hasNext()) {
+			q.next();
+			n[0]++;
+		}
+		assertEquals(4, n[0]);
+
+		List<long[]> knn = ind.nearestNeighbour(1, null, 7, 8);
+		assertEquals(1, knn.size());
+		assertArrayEquals(new long[]{7, 8}, knn.get(0));
+		knn = ind.nearestNeighbour(5, PhDistanceL.THIS, 100, 100);
+		assertEquals(5, knn.size());
+		assertArrayEquals(new long[]{19, 19}, knn.get(0));
+	}
+
+	@Test
+	public void testUpdateCollision() {
+		PhTreeSet ind = PhTreeSet.create(2);
+		assertTrue(ind.add(1, 2));
+		assertTrue(ind.add(3, 4));
+		assertFalse(ind.update(new long[]{1, 2}, new long[]{3, 4}));
+		assertFalse(ind.update(new long[]{5, 6}, new long[]{7, 8}));
+		assertFalse(ind.update(new long[]{1, 2}, new long[]{1, 2}));
+		assertEquals(2, ind.size());
+		assertTrue(ind.contains(1, 2));
+		assertTrue(ind.contains(3, 4));
+		assertFalse(ind.contains(7, 8));
+		assertTrue(ind.update(new long[]{1, 2}, new long[]{7, 8}));
+		assertEquals(2, ind.size());
+		assertFalse(ind.contains(1, 2));
+		assertTrue(ind.contains(7, 8));
+	}
+
+	@Test
+	public void testMemory() {
+		PhTreeSet ind = PhTreeSet.create(3);
+		PhTree<Object> ref = new PhTree13<>(3);
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			long[] key = randomKey(R, 3);
+			ind.add(key);
+			ref.put(key, Boolean.TRUE);
+		}
+		assertEquals(ref.size(), ind.size());
+		assertTrue(ind.getStats().size < ref.getStats().size);
+	}
+
+	private static void check(PhTreeSet ind, Set<List<Long>> ref) {
+		assertEquals(ref.size(), ind.size());
+		for (List<Long> k : ref) {
+			assertTrue(ind.contains(toArray(k)));
+		}
+		Set<List<Long>> found = new HashSet<>();
+		Iterator<long[]> it = ind.queryExtent();
+		while (it.hasNext()) {
+			assertTrue(found.add(toList(it.next())));
+		}
+		assertEquals(ref, found);
+
+		long[] min = new long[ind.getDim()];
+		long[] max = new long[ind.getDim()];
+		Arrays.fill(min, Long.MIN_VALUE);
+		Arrays.fill(max, Long.MAX_VALUE);
+		int[] n = {0};
+		ind.forEach(min, max, k -> {
+			assertTrue(ref.contains(toList(k)));
+			n[0]++;
+			return true;
+		});
+		assertEquals(ref.size(), n[0]);
+	}
+
+	private static long[] randomKey(Random R, int dim) {
+		//small values create duplicate keys in low dimensions
+		return dim <= 2 ? TestUtil.randomKey(R, dim, 200) : TestUtil.randomKey(R, dim);
+	}
+}
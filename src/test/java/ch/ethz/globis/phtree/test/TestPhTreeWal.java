@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.toArray;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.globis.phtree.PhTreeWal;
+import ch.ethz.globis.phtree.PhValueCodec;
+
+public class TestPhTreeWal {
+
+	private static final int N = 2000;
+
+	private Path dir;
+
+	@Before
+	public void before() throws IOException {
+		dir = Files.createTempDirectory("phtree-wal");
+	}
+
+	@After
+	public void after() throws IOException {
+		deleteFiles();
+		Files.delete(dir);
+	}
+
+	private void deleteFiles() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			files.forEach(p -> {
+				try {
+					Files.delete(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		for (int dims : new int[]{2, 10}) {
+			deleteFiles();
+			Map<List<Long>, String> ref = new HashMap<>();
+			try (PhTreeWal<String> tree = PhTreeWal.open(dir, dims, PhValueCodec.STRING)) {
+				modify(tree, ref, new Random(dims), dims);
+			}
+			try (PhTreeWal<String> tree = PhTreeWal.open(dir, dims, PhValueCodec.STRING)) {
+				check(tree, ref);
+				//more updates after replay
+				modify(tree, ref, new Random(dims + 1), dims);
+			}
+			try (PhTreeWal<String> tree = PhTreeWal.open(dir, dims, PhValueCodec.STRING)) {
+				check(tree, ref);
+				tree.checkpoint();
+			}
+			try (PhTreeWal<String> tree = PhTreeWal.open(dir, dims, PhValueCodec.STRING)) {
+				check(tree, ref);
+				clear(tree, ref);
+			}
+		}
+	}
+
+	@Test
+	public void testCheckpoint() {
+		Map<List<Long>, String> ref = new HashMap<>();
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 3, PhValueCodec.STRING)) {
+			modify(tree, ref, new Random(0), 3);
+			long logSize = tree.logSize();
+			tree.checkpoint();
+			assertTrue(tree.logSize() < logSize);
+			check(tree, ref);
+			modify(tree, ref, new Random(1), 3);
+		}
+		assertTrue(Files.exists(dir.resolve("snapshot")));
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 3, PhValueCodec.STRING)) {
+			check(tree, ref);
+		}
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		Map<List<Long>, String> ref = new HashMap<>();
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			modify(tree, ref, new Random(0), 2);
+			tree.put(new long[]{-1, -1}, "torn");
+		}
+		//Simulate a crash during the last write
+		try (FileChannel fc = FileChannel.open(dir.resolve("wal"), StandardOpenOption.WRITE)) {
+			fc.truncate(fc.size() - 3);
+		}
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			check(tree, ref);
+			assertFalse(tree.contains(-1, -1));
+			tree.put(new long[]{-2, -2}, "after");
+			ref.put(toList(-2, -2), "after");
+		}
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			check(tree, ref);
+		}
+	}
+
+	@Test
+	public void testWriteFailure() throws ReflectiveOperationException, IOException {
+		Map<List<Long>, String> ref = new HashMap<>();
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			modify(tree, ref, new Random(0), 2);
+			//Inject a failure: writing to the closed log throws
+			Field f = PhTreeWal.class.getDeclaredField("log");
+			f.setAccessible(true);
+			((FileChannel) f.get(tree)).close();
+			try {
+				tree.put(new long[]{-1, -1}, "lost");
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+			//The WAL rejects further updates
+			try {
+				tree.put(new long[]{-2, -2}, "rejected");
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+			assertFalse(tree.contains(-2, -2));
+			long[] key = toArray(ref.keySet().iterator().next());
+			try {
+				tree.remove(key);
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+			assertTrue(tree.contains(key));
+			try {
+				tree.checkpoint();
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+		}
+		assertFalse(Files.exists(dir.resolve("snapshot")));
+		//Only durable updates are recovered
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			check(tree, ref);
+			assertFalse(tree.contains(-1, -1));
+		}
+	}
+
+	@Test
+	public void testCheckpointFailure() throws ReflectiveOperationException, IOException {
+		Map<List<Long>, String> ref = new HashMap<>();
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			modify(tree, ref, new Random(0), 2);
+			tree.checkpoint();
+			modify(tree, ref, new Random(1), 2);
+			//Inject a failure: resetting the closed log after installing the snapshot throws
+			Field f = PhTreeWal.class.getDeclaredField("log");
+			f.setAccessible(true);
+			((FileChannel) f.get(tree)).close();
+			try {
+				tree.checkpoint();
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+			//The log of the old generation is discarded on open, the WAL must reject updates
+			try {
+				tree.put(new long[]{-1, -1}, "lost");
+				fail();
+			} catch (UncheckedIOException e) {
+				//expected
+			}
+			assertFalse(tree.contains(-1, -1));
+		}
+		//The snapshot contains all updates
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			check(tree, ref);
+			tree.put(new long[]{-2, -2}, "after");
+			ref.put(toList(-2, -2), "after");
+		}
+		try (PhTreeWal<String> tree = PhTreeWal.open(dir, 2, PhValueCodec.STRING)) {
+			check(tree, ref);
+		}
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		int nThreads = 8;
+		int nPerThread = 200;
+		try (PhTreeWal<Long> tree = PhTreeWal.open(dir, 2, PhValueCodec.LONG)) {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < nThreads; t++) {
+				long id = t;
+				threads.add(new Thread(() -> {
+					for (long i = 0; i < nPerThread; i++) {
+						tree.put(new long[]{id, i}, id * i);
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertEquals(nThreads * nPerThread, tree.size());
+		}
+		try (PhTreeWal<Long> tree = PhTreeWal.open(dir, 2, PhValueCodec.LONG)) {
+			assertEquals(nThreads * nPerThread, tree.size());
+			for (long t = 0; t < nThreads; t++) {
+				for (long i = 0; i < nPerThread; i++) {
+					assertEquals(t * i, (long) tree.get(t, i));
+				}
+			}
+		}
+	}
+
+	private static void modify(PhTreeWal<String> tree, Map<List<Long>, String> ref, Random R, int dims) {
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < N; i++) {
+			long[] key = new long[dims];
+			for (int d = 0; d < dims; d++) {
+				key[d] = R.nextInt(100);
+			}
+			String v = i % 7 == 0 ? null : "v" + i;
+			assertEquals(ref.put(toList(key), v), tree.put(key, v));
+			keys.add(key);
+		}
+		for (int i = 0; i < N / 4; i++) {
+			long[] key = keys.get(R.nextInt(keys.size()));
+			if (i % 2 == 0) {
+				assertEquals(ref.remove(toList(key)), tree.remove(key));
+			} else {
+				long[] key2 = key.clone();
+				key2[0] += 1000;
+				if (ref.containsKey(toList(key)) && !ref.containsKey(toList(key2))) {
+					String v = ref.remove(toList(key));
+					ref.put(toList(key2), v);
+					assertEquals(v, tree.update(key, key2));
+				}
+			}
+		}
+		assertEquals(ref.size(), tree.size());
+	}
+
+	private static void clear(PhTreeWal<String> tree, Map<List<Long>, String> ref) {
+		for (List<Long> k : new ArrayList<>(ref.keySet())) {
+			tree.remove(toArray(k));
+			ref.remove(k);
+		}
+		assertEquals(0, tree.size());
+	}
+
+	private static void check(PhTreeWal<String> tree, Map<List<Long>, String> ref) {
+		assertEquals(ref.size(), tree.size());
+		for (Map.Entry<List<Long>, String> e : ref.entrySet()) {
+			long[] key = toArray(e.getKey());
+			assertTrue(e.toString(), tree.contains(key));
+			assertEquals(e.getValue(), tree.get(key));
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import ch.ethz.globis.phtree.PhTreeInt;
+import ch.ethz.globis.phtree.PhTreeLong;
+import ch.ethz.globis.phtree.test.util.TestUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static ch.ethz.globis.phtree.test.util.TestUtil.toArray;
+import static ch.ethz.globis.phtree.test.util.TestUtil.toList;
+import static org.junit.Assert.*;
+
+public class TestPrimitiveValues {
+
+	private static final int N = 5000;
+
+	@Test
+	public void testEmpty() {
+		PhTreeLong ind = PhTreeLong.create(2, -1);
+		assertEquals(-1, ind.getNoEntryValue());
+		assertEquals(-1, ind.getLong(1, 2));
+		assertEquals(-1, ind.removeLong(1, 2));
+		assertFalse(ind.contains(1, 2));
+		assertTrue(ind.forEach(new long[]{0, 0}, new long[]{5, 5}, (k, v) -> {
+			fail();
+			return true;
+		}));
+		assertEquals(-1, ind.putLong(new long[]{1, 2}, 42));
+		assertEquals(42, ind.putLong(new long[]{1, 2}, 43));
+		assertEquals(43, ind.getLong(1, 2));
+		assertEquals(1, ind.size());
+	}
+
+	@Test
+	public void testCRUD() {
+		for (int dim : new int[]{1, 2, 3, 5, 10}) {
+			PhTreeLong ind = PhTreeLong.create(dim, Long.MIN_VALUE);
+			Map<List<Long>, Long> ref = new HashMap<>();
+			Random R = new Random(dim);
+			List<long[]> keys = new ArrayList<>();
+			for (int i = 0; i < N; i++) {
+				long[] key = randomKey(R, dim);
+				long value = R.nextLong();
+				Long prev = ref.put(toList(key), value);
+				assertEquals(prev == null ? Long.MIN_VALUE : prev, ind.putLong(key, value));
+				keys.add(key);
+			}
+			check(ind, ref);
+
+			for (int i = 0; i < N; i++) {
+				long[] key = keys.get(R.nextInt(keys.size()));
+				switch (i % 3) {
+				case 0: {
+					Long prev = ref.remove(toList(key));
+					assertEquals(prev == null ? Long.MIN_VALUE : prev, ind.removeLong(key));
+					break;
+				}
+				case 1: {
+					long[] key2 = randomKey(R, dim);
+					if (ref.containsKey(toList(key)) && !ref.containsKey(toList(key2))) {
+						long v = ref.remove(toList(key));
+						ref.put(toList(key2), v);
+						assertEquals(v, ind.update(key, key2));
+						keys.add(key2);
+					}
+					break;
+				}
+				default: {
+					long value = R.nextLong();
+					Long prev = ref.put(toList(key), value);
+					assertEquals(prev == null ? Long.MIN_VALUE : prev, ind.putLong(key, value));
+				}
+				}
+			}
+			check(ind, ref);
+			ind.clear();
+			assertEquals(0, ind.size());
+		}
+	}
+
+	@Test
+	public void testQueries() {
+		PhTreeLong ind = PhTreeLong.create(2);
+		for (int x = 0; x < 20; x++) {
+			for (int y = 0; y < 20; y++) {
+				ind.putLong(new long[]{x, y}, x * 100L + y);
+			}
+		}
+		long[] min = {3, 4};
+		long[] max = {5, 10};
+		int[] n = {0};
+		assertTrue(ind.forEach(min, max, (k, v) -> {
+			assertEquals(k[0] * 100 + k[1], v);
+			n[0]++;
+			return true;
+		}));
+		assertEquals(3 * 7, n[0]);
+
+		n[0] = 0;
+		PhQuery<Long> q = ind.query(min, max);
+		while (q.hasNext()) {
+			PhEntry<Long> e = q.nextEntry();
+			assertEquals(e.getKey()[0] * 100 + e.getKey()[1], (long) e.getValue());
+			n[0]++;
+		}
+		assertEquals(3 * 7, n[0]);
+
+		PhKnnQuery<Long> knn = ind.nearestNeighbour(1, 7, 8);
+		assertEquals(708L, (long) knn.nextValue());
+	}
+
+	@Test
+	public void testInt() {
+		PhTreeInt ind = PhTreeInt.create(3, -1);
+		Map<List<Long>, Integer> ref = new HashMap<>();
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			long[] key = randomKey(R, 3);
+			int value = R.nextInt();
+			Integer prev = ref.put(toList(key), value);
+			assertEquals(prev == null ? -1 : prev, ind.putInt(key, value));
+		}
+		for (Map.Entry<List<Long>, Integer> e : ref.entrySet()) {
+			assertEquals((int) e.getValue(), ind.getInt(toArray(e.getKey())));
+		}
+		long[] min = {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+		long[] max = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+		int[] n = {0};
+		ind.forEach(min, max, (k, v) -> {
+			assertEquals((int) ref.get(toList(k)), v);
+			n[0]++;
+			return true;
+		});
+		assertEquals(ref.size(), n[0]);
+		PhQuery<Integer> q = ind.query(min, max);
+		while (q.hasNext()) {
+			PhEntry<Integer> e = q.nextEntry();
+			assertEquals(ref.get(toList(e.getKey())), e.getValue());
+		}
+		for (List<Long> k : new ArrayList<>(ref.keySet())) {
+			assertEquals((int) ref.remove(k), ind.removeInt(toArray(k)));
+		}
+		assertEquals(0, ind.size());
+	}
+
+	@Test
+	public void testIntStorage() {
+		PhTreeInt ind = PhTreeInt.create(2);
+		PhTreeLong indL = PhTreeLong.create(2);
+		Random R = new Random(0);
+		for (int i = 0; i < N; i++) {
+			long[] key = randomKey(R, 2);
+			ind.putInt(key, i);
+			indL.putLong(key, i);
+		}
+		assertEquals(ind.size(), indL.size());
+		//int values need 4 bytes per entry instead of 8
+		assertTrue(ind.getStats().getCalculatedMemSize() < indL.getStats().getCalculatedMemSize());
+	}
+
+	private static void check(PhTreeLong ind, Map<List<Long>, Long> ref) {
+		assertEquals(ref.size(), ind.size());
+		for (Map.Entry<List<Long>, Long> e : ref.entrySet()) {
+			long[] key = toArray(e.getKey());
+			assertTrue(ind.contains(key));
+			assertEquals((long) e.getValue(), ind.getLong(key));
+		}
+		long[] min = new long[ind.getDim()];
+		long[] max = new long[ind.getDim()];
+		Arrays.fill(min, Long.MIN_VALUE);
+		Arrays.fill(max, Long.MAX_VALUE);
+		int[] n = {0};
+		ind.forEach(min, max, (k, v) -> {
+			assertEquals((long) ref.get(toList(k)), v);
+			n[0]++;
+			return true;
+		});
+		assertEquals(ref.size(), n[0]);
+	}
+
+	private static long[] randomKey(Random R, int dim) {
+		//small values create duplicate keys in low dimensions
+		return dim <= 2 ? TestUtil.randomKey(R, dim, 200) : TestUtil.randomKey(R, dim);
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2016-2018 Tilmann Zäschke. All Rights Reserved.
+ * Copyright 2019 Improbable Worlds Limited. All rights reserved.
+ *
+ * This file is part of the PH-Tree project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.ethz.globis.phtree.test;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilterDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhQueryCursor;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.test.util.TestSuper;
+import ch.ethz.globis.phtree.v13.PhTree13;
+import ch.ethz.globis.phtree.v16.PhTree16;
+import ch.ethz.globis.phtree.v16hd.PhTree16HD;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class TestQueryVisitor extends TestSuper {
+
+	private static final int N_POINTS = 5000;
+
+	private final IntFunction<PhTree<?>> constructor;
+
+	public TestQueryVisitor(IntFunction<PhTree<?>> constructor) {
+		this.constructor = constructor;
+	}
+
+	@Parameterized.Parameters
+	public static List<Object[]> versions() {
+		return Arrays.asList(new Object[][] {
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree13<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16<>(dim) },
+			{ (IntFunction<PhTree<?>>) (dim) -> new PhTree16HD<>(dim) },
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> PhTree<T> create(int dim) {
+		return (PhTree<T>) constructor.apply(dim);
+	}
+
+	@Test
+	public void testEmpty() {
+		PhTree<Integer> ind = create(3);
+		assertTrue(ind.forEach(new long[3], new long[3], null, (k, v) -> {
+			fail();
+			return true;
+		}));
+	}
+
+	@Test
+	public void testCompareWithQuery() {
+		for (int dim : new int[]{1, 2, 3, 5, 8, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					v[d] = R.nextInt(2000) - 1000;
+				}
+				ind.put(v, i % 7 == 0 ? null : i);
+			}
+			for (int q = 0; q < 100; q++) {
+				long[] min = new long[dim];
+				long[] max = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					long a = R.nextInt(2000) - 1000;
+					long b = R.nextInt(2000) - 1000;
+					min[d] = Math.min(a, b);
+					max[d] = Math.max(a, b);
+				}
+				List<long[]> expected = new ArrayList<>();
+				for (PhEntry<Integer> e : ind.queryAll(min, max)) {
+					expected.add(e.getKey().clone());
+				}
+				List<long[]> actual = new ArrayList<>();
+				assertTrue(ind.forEach(min, max, null, (k, v) -> {
+					assertTrue(v == null || ind.get(k).equals(v));
+					actual.add(k.clone());
+					return true;
+				}));
+				assertKeysEqual(expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void testFilter() {
+		PhTree<Integer> ind = create(3);
+		Random R = new Random(0);
+		for (int i = 0; i < N_POINTS; i++) {
+			ind.put(new long[]{R.nextInt(1000), R.nextInt(1000), R.nextInt(1000)}, i);
+		}
+		long[] center = {500, 500, 500};
+		PhFilterDistance filter = new PhFilterDistance();
+		filter.set(center, PhDistanceL.THIS, 200);
+		long[] min = {0, 0, 0};
+		long[] max = {1000, 1000, 1000};
+		int[] n = new int[1];
+		assertTrue(ind.forEach(min, max, filter, (k, v) -> {
+			assertTrue(PhDistanceL.THIS.dist(center, k) <= 200);
+			n[0]++;
+			return true;
+		}));
+		int nExpected = 0;
+		for (PhEntry<Integer> e : ind.queryAll(min, max)) {
+			if (PhDistanceL.THIS.dist(center, e.getKey()) <= 200) {
+				nExpected++;
+			}
+		}
+		assertEquals(nExpected, n[0]);
+	}
+
+	@Test
+	public void testAbort() {
+		PhTree<Integer> ind = create(2);
+		for (int i = 0; i < 100; i++) {
+			ind.put(new long[]{i, i}, i);
+		}
+		int[] n = new int[1];
+		assertFalse(ind.forEach(new long[]{0, 0}, new long[]{99, 99}, null, (k, v) -> ++n[0] < 10));
+		assertEquals(10, n[0]);
+	}
+
+	@Test
+	public void testQueryMulti() {
+		for (int dim : new int[]{1, 2, 3, 5, 8, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					v[d] = R.nextInt(2000) - 1000;
+				}
+				ind.put(v, i);
+			}
+			int nWindows = 50;
+			long[][] mins = new long[nWindows][dim];
+			long[][] maxs = new long[nWindows][dim];
+			for (int w = 0; w < nWindows; w++) {
+				for (int d = 0; d < dim; d++) {
+					long a = R.nextInt(2000) - 1000;
+					long b = a + R.nextInt(500);
+					mins[w][d] = a;
+					maxs[w][d] = b;
+				}
+			}
+			List<List<long[]>> actual = new ArrayList<>();
+			for (int w = 0; w < nWindows; w++) {
+				actual.add(new ArrayList<>());
+			}
+			assertTrue(ind.queryMulti(mins, maxs, (w, k, v) -> {
+				assertEquals(ind.get(k), v);
+				actual.get(w).add(k.clone());
+				return true;
+			}));
+			for (int w = 0; w < nWindows; w++) {
+				List<long[]> expected = new ArrayList<>();
+				for (PhEntry<Integer> e : ind.queryAll(mins[w], maxs[w])) {
+					expected.add(e.getKey().clone());
+				}
+				assertKeysEqual(expected, actual.get(w));
+			}
+		}
+	}
+
+	@Test
+	public void testQueryMultiAbort() {
+		PhTree<Integer> ind = create(2);
+		for (int i = 0; i < 100; i++) {
+			ind.put(new long[]{i, i}, i);
+		}
+		long[][] mins = {{0, 0}, {50, 50}};
+		long[][] maxs = {{49, 49}, {99, 99}};
+		int[] n = new int[1];
+		assertFalse(ind.queryMulti(mins, maxs, (w, k, v) -> ++n[0] < 10));
+		assertEquals(10, n[0]);
+	}
+
+	@Test
+	public void testQueryCursor() {
+		for (int dim : new int[]{1, 2, 3, 5, 8, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					v[d] = R.nextInt(2000) - 1000;
+				}
+				ind.put(v, i);
+			}
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				min[d] = -R.nextInt(1000);
+				max[d] = R.nextInt(1000);
+			}
+			List<long[]> expected = new ArrayList<>();
+			for (PhEntry<Integer> e : ind.queryAll(min, max)) {
+				expected.add(e.getKey().clone());
+			}
+			for (int pageSize : new int[]{1, 7, 100}) {
+				List<long[]> actual = new ArrayList<>();
+				PhQueryCursor cursor = new PhQueryCursor(min, max);
+				int nPages = 0;
+				while (cursor != null) {
+					int[] n = {0};
+					cursor = ind.query(cursor, pageSize, (k, v) -> {
+						assertEquals(ind.get(k), v);
+						actual.add(k.clone());
+						n[0]++;
+						return true;
+					});
+					assertTrue(n[0] <= pageSize);
+					nPages++;
+				}
+				assertEquals(Math.max(1, (expected.size() + pageSize - 1) / pageSize), nPages);
+				assertKeysEqual(expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void testQueryCursorWithRemoval() {
+		PhTree<Integer> ind = create(3);
+		Random R = new Random(0);
+		for (int i = 0; i < N_POINTS; i++) {
+			ind.put(new long[]{R.nextInt(1000), R.nextInt(1000), R.nextInt(1000)}, i);
+		}
+		long[] min = {0, 0, 0};
+		long[] max = {1000, 1000, 1000};
+		int nExpected = ind.size();
+		int n = 0;
+		PhQueryCursor cursor = new PhQueryCursor(min, max);
+		List<long[]> page = new ArrayList<>();
+		while (cursor != null) {
+			page.clear();
+			cursor = ind.query(cursor, 10, (k, v) -> page.add(k.clone()));
+			//Removing the last key must not affect the next page
+			for (long[] k : page) {
+				assertNotNull(ind.remove(k));
+				n++;
+			}
+		}
+		assertEquals(nExpected, n);
+		assertEquals(0, ind.size());
+	}
+
+	@Test
+	public void testQueryToColumns() {
+		for (int dim : new int[]{1, 3, 10}) {
+			PhTree<Integer> ind = create(dim);
+			Random R = new Random(dim);
+			for (int i = 0; i < N_POINTS; i++) {
+				long[] v = new long[dim];
+				for (int d = 0; d < dim; d++) {
+					v[d] = R.nextInt(2000) - 1000;
+				}
+				ind.put(v, i % 7 == 0 ? null : i);
+			}
+			long[] min = new long[dim];
+			long[] max = new long[dim];
+			for (int d = 0; d < dim; d++) {
+				min[d] = -R.nextInt(1000);
+				max[d] = R.nextInt(1000);
+			}
+			List<long[]> expected = new ArrayList<>();
+			for (PhEntry<Integer> e : ind.queryAll(min, max)) {
+				expected.add(e.getKey().clone());
+			}
+
+			//direct buffers with an offset
+			LongBuffer[] columns = new LongBuffer[dim];
+			for (int d = 0; d < dim; d++) {
+				columns[d] = ByteBuffer.allocateDirect(8 * (N_POINTS + 1)).asLongBuffer();
+				columns[d].put(-1);
+			}
+			List<Integer> values = new ArrayList<>();
+			int n = ind.queryToColumns(min, max, columns, values);
+			assertEquals(expected.size(), n);
+			assertEquals(n, values.size());
+			assertKeysEqual(expected, toKeys(columns, 1, n, values, ind));
+
+			//small buffers
+			int pageSize = 10;
+			for (int d = 0; d < dim; d++) {
+				columns[d] = LongBuffer.allocate(pageSize);
+			}
+			assertEquals(Math.min(pageSize, expected.size()),
+					ind.queryToColumns(min, max, columns, null));
+
+			//paginated
+			List<long[]> actual = new ArrayList<>();
+			PhQueryCursor cursor = new PhQueryCursor(min, max);
+			while (cursor != null) {
+				values.clear();
+				for (int d = 0; d < dim; d++) {
+					columns[d].clear();
+				}
+				cursor = ind.queryToColumns(cursor, columns, values);
+				actual.addAll(toKeys(columns, 0, values.size(), values, ind));
+			}
+			assertKeysEqual(expected, actual);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testQueryToColumnsInvalidBuffers() {
+		PhTree<Integer> ind = create(3);
+		ind.queryToColumns(new long[3], new long[3], new LongBuffer[2], null);
+	}
+
+	private static List<long[]> toKeys(LongBuffer[] columns, int offs, int n, 
+			List<Integer> values, PhTree<Integer> ind) {
+		List<long[]> keys = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			long[] k = new long[columns.length];
+			for (int d = 0; d < k.length; d++) {
+				k[d] = columns[d].get(offs + i);
+			}
+			assertEquals(ind.get(k), values.get(i));
+			keys.add(k);
+		}
+		return keys;
+	}
+
+	private static void assertKeysEqual(List<long[]> expected, List<long[]> actual) {
+		Comparator<long[]> cmp = (a, b) -> {
+			for (int i = 0; i < a.length; i++) {
+				int c = Long.compare(a[i], b[i]);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		};
+		expected.sort(cmp);
+		actual.sort(cmp);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+	}
+}
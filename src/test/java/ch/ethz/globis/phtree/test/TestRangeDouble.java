@@ -236,4 +236,76 @@ public class TestRangeDouble {
 	}
 	
 
+	@Test
+	public void testQueryContainsAndVisitor() {
+		int N = 1000;
+		int DIM = 3;
+		Random R = new Random(0);
+		PhTreeSolidF<Integer> ind = createTree(DIM);
+		double[][] keys = new double[2*N][DIM];
+		for (int i = 0; i < N; i++) {
+			for (int d = 0; d < DIM; d++) {
+				keys[2*i][d] = R.nextDouble() - 0.5;
+				keys[2*i+1][d] = keys[2*i][d] + R.nextDouble()*0.2;
+			}
+			ind.put(keys[2*i], keys[2*i+1], i);
+		}
+
+		for (int q = 0; q < 100; q++) {
+			double[] p = new double[DIM];
+			double[] p2 = new double[DIM];
+			for (int d = 0; d < DIM; d++) {
+				p[d] = R.nextDouble() - 0.5;
+				p2[d] = p[d] + R.nextDouble()*0.1;
+			}
+			int nExpContains = 0;
+			int nExpIntersect = 0;
+			for (int i = 0; i < N; i++) {
+				boolean contains = true;
+				boolean intersects = true;
+				for (int d = 0; d < DIM; d++) {
+					contains &= keys[2*i][d] <= p[d] && p[d] <= keys[2*i+1][d];
+					intersects &= keys[2*i][d] <= p2[d] && p[d] <= keys[2*i+1][d];
+				}
+				nExpContains += contains ? 1 : 0;
+				nExpIntersect += intersects ? 1 : 0;
+			}
+
+			int n = 0;
+			Iterator<Integer> it = ind.queryContains(p);
+			while (it.hasNext()) {
+				it.next();
+				n++;
+			}
+			assertEquals(nExpContains, n);
+
+			int[] nV = {0};
+			assertTrue(ind.forEachContains(p, (lo, up, v) -> {
+				assertArrayEquals(keys[2*v], lo, 0);
+				assertArrayEquals(keys[2*v+1], up, 0);
+				nV[0]++;
+				return true;
+			}));
+			assertEquals(nExpContains, nV[0]);
+
+			nV[0] = 0;
+			assertTrue(ind.forEachIntersect(p, p2, (lo, up, v) -> {
+				assertArrayEquals(keys[2*v], lo, 0);
+				nV[0]++;
+				return true;
+			}));
+			assertEquals(nExpIntersect, nV[0]);
+			assertEquals(nExpIntersect, ind.queryIntersectAll(p, p2).size());
+		}
+
+		//abort
+		double[] min = new double[DIM];
+		double[] max = new double[DIM];
+		Arrays.fill(min, -1);
+		Arrays.fill(max, 1);
+		int[] n = {0};
+		assertFalse(ind.forEachIntersect(min, max, (lo, up, v) -> ++n[0] < 5));
+		assertEquals(5, n[0]);
+	}
+
 }
@@ -13,6 +13,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
@@ -211,6 +214,46 @@ public class TestValuesD extends TestSuper {
 		
 	}
 	
+	@Test
+	public void testQueryToColumns() {
+		int N = 1000;
+		int DIM = 3;
+		Random R = new Random(0);
+		PhTreeF<Integer> ind = createTree(DIM);
+		double[][] keys = new double[N][DIM];
+		for (int i = 0; i < N; i++) {
+			for (int d = 0; d < DIM; d++) {
+				keys[i][d] = R.nextDouble() - 0.5;
+			}
+			assertNull(ind.put(keys[i], Integer.valueOf(i)));
+		}
+
+		double[] min = {-0.5, -0.25, 0};
+		double[] max = {0.5, 0.25, 0.5};
+		DoubleBuffer[] columns = new DoubleBuffer[DIM];
+		for (int d = 0; d < DIM; d++) {
+			columns[d] = ByteBuffer.allocateDirect(8 * N).asDoubleBuffer();
+		}
+		List<Integer> values = new ArrayList<>();
+		int n = ind.queryToColumns(min, max, columns, values);
+		assertEquals(ind.queryAll(min, max).size(), n);
+		assertEquals(n, values.size());
+		for (int i = 0; i < n; i++) {
+			double[] key = keys[values.get(i)];
+			for (int d = 0; d < DIM; d++) {
+				assertEquals(key[d], columns[d].get(i), 0.0);
+				assertTrue(key[d] >= min[d] && key[d] <= max[d]);
+			}
+		}
+
+		//buffers are full
+		for (int d = 0; d < DIM; d++) {
+			columns[d].position(columns[d].capacity() - 5);
+		}
+		assertEquals(5, ind.queryToColumns(min, max, columns, null));
+		assertEquals(0, columns[0].remaining());
+	}
+
 	@Test
 	public void testQuerySet() {
 		int N = 1000;
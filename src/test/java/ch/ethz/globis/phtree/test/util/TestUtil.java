@@ -6,7 +6,17 @@
  */
 package ch.ethz.globis.phtree.test.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ch.ethz.globis.phtree.PhEntry;
 import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
 import ch.ethz.globis.phtree.nv.PhTreeNV;
 
 public abstract class TestUtil {
@@ -107,4 +117,80 @@ public abstract class TestUtil {
 	public static void afterSuite() {
 		getInstance().afterSuite();
 	}
+
+	/**
+	 * @param R random generator
+	 * @param dims dimensions
+	 * @return a key with random values in all dimensions
+	 */
+	public static long[] randomKey(Random R, int dims) {
+		long[] key = new long[dims];
+		for (int d = 0; d < dims; d++) {
+			key[d] = R.nextLong();
+		}
+		return key;
+	}
+
+	/**
+	 * @param R random generator
+	 * @param dims dimensions
+	 * @param range number of different values per dimension, centered around 0
+	 * @return a random key, small ranges create duplicate keys
+	 */
+	public static long[] randomKey(Random R, int dims, int range) {
+		long[] key = new long[dims];
+		for (int d = 0; d < dims; d++) {
+			key[d] = R.nextInt(range) - range / 2;
+		}
+		return key;
+	}
+
+	/**
+	 * @param key a key
+	 * @return the key as list, for use as key in hash maps
+	 */
+	public static List<Long> toList(long... key) {
+		List<Long> list = new ArrayList<>(key.length);
+		for (long l : key) {
+			list.add(l);
+		}
+		return list;
+	}
+
+	/**
+	 * @param list a key that was created with {@link #toList(long...)}
+	 * @return the key
+	 */
+	public static long[] toArray(List<Long> list) {
+		long[] key = new long[list.size()];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = list.get(i);
+		}
+		return key;
+	}
+
+	/**
+	 * Checks that the tree contains exactly the entries of the map.
+	 * @param tree the tree
+	 * @param ref expected entries, the keys are created with {@link #toList(long...)}
+	 * @param <T> value type
+	 */
+	public static <T> void check(PhTree<T> tree, Map<List<Long>, T> ref) {
+		assertEquals(ref.size(), tree.size());
+		for (Map.Entry<List<Long>, T> e : ref.entrySet()) {
+			long[] key = toArray(e.getKey());
+			assertTrue(e.toString(), tree.contains(key));
+			assertEquals(e.getValue(), tree.get(key));
+		}
+		int n = 0;
+		PhExtent<T> it = tree.queryExtent();
+		while (it.hasNext()) {
+			PhEntry<T> e = it.nextEntry();
+			List<Long> key = toList(e.getKey());
+			assertTrue(ref.containsKey(key));
+			assertEquals(ref.get(key), e.getValue());
+			n++;
+		}
+		assertEquals(ref.size(), n);
+	}
 }